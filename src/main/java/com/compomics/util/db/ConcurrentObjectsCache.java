@@ -0,0 +1,1193 @@
+package com.compomics.util.db;
+
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Objects cache for databases accessed by many threads. The entries are
+ * distributed in segments according to the hash of their db/table/key, each
+ * segment being locked independently and evicting its least recently used
+ * entries when exceeding its share of the byte budget. The size of an object
+ * is estimated from the average size of the objects of the same class in the
+ * database. Modified entries are written back to the database in batches and
+ * remain visible until written. Optionally, the writing can be delegated to a
+ * background flusher, see startFlusher.
+ *
+ * @author Marc Vaudel
+ */
+public class ConcurrentObjectsCache extends ObjectsCache {
+
+    /**
+     * The default number of segments.
+     */
+    public static final int DEFAULT_N_SEGMENTS = 16;
+    /**
+     * The default size of an object in the cache in bytes, used for the
+     * classes of objects not written or read yet.
+     */
+    public static final long DEFAULT_OBJECT_SIZE = 4096;
+    /**
+     * When evicting, entries are removed from a segment until its content
+     * gets below this share of its budget so that entries are written back in
+     * batches.
+     */
+    private static final double EVICTION_TARGET = 0.75;
+    /**
+     * The segments of the cache.
+     */
+    private final Segment[] segments;
+    /**
+     * Mask used to select a segment from a hash.
+     */
+    private final int segmentMask;
+    /**
+     * The maximal size of the cache content in bytes.
+     */
+    private volatile long byteBudget;
+    /**
+     * The estimated size of an object in bytes, used for the classes of
+     * objects not written or read yet.
+     */
+    private volatile long objectSize = DEFAULT_OBJECT_SIZE;
+    /**
+     * The size of the objects stored in the database by class.
+     */
+    private final ConcurrentHashMap<Class<?>, StoredSize> storedSizes = new ConcurrentHashMap<Class<?>, StoredSize>();
+    /**
+     * Map of the databases for which this cache should be used.
+     */
+    private final ConcurrentHashMap<String, ObjectsDB> databases = new ConcurrentHashMap<String, ObjectsDB>();
+    /**
+     * Indicates whether the cache is read only.
+     */
+    private volatile boolean readOnly = false;
+    /**
+     * The number of objects found in the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    /**
+     * The number of objects not found in the cache.
+     */
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * The number of objects evicted from the cache.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+    /**
+     * The number of objects written back to the database.
+     */
+    private final AtomicLong writeBacks = new AtomicLong();
+    /**
+     * The queue of evicted entries waiting to be written by the flusher. Null
+     * if the entries are written by the evicting thread.
+     */
+    private volatile ArrayBlockingQueue<CacheEntry> flushQueue = null;
+    /**
+     * The thread writing the entries of the flush queue.
+     */
+    private Thread flusherThread = null;
+    /**
+     * The maximal number of entries written by the flusher in a transaction.
+     */
+    private volatile int flushBatchSize = 10000;
+    /**
+     * Lock used to wait for the flusher.
+     */
+    private final Object flushLock = new Object();
+    /**
+     * The number of entries queued and not yet written by the flusher.
+     */
+    private int nUnflushed = 0;
+    /**
+     * The last exception encountered by the flusher, null if none.
+     */
+    private Exception flushException = null;
+
+    /**
+     * Constructor using the default number of segments and half of the
+     * maximal heap size as byte budget.
+     */
+    public ConcurrentObjectsCache() {
+        this(DEFAULT_N_SEGMENTS, Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param nSegments the number of segments, will be rounded to the next
+     * power of two
+     * @param byteBudget the maximal size of the cache content in bytes
+     */
+    public ConcurrentObjectsCache(int nSegments, long byteBudget) {
+        if (nSegments <= 0) {
+            throw new IllegalArgumentException("The number of segments should be positive.");
+        }
+        int size = 1;
+        while (size < nSegments) {
+            size <<= 1;
+        }
+        segments = new Segment[size];
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment();
+        }
+        segmentMask = size - 1;
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * Returns the maximal size of the cache content in bytes.
+     *
+     * @return the maximal size of the cache content in bytes
+     */
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * Sets the maximal size of the cache content in bytes. The budget is
+     * enforced at the next update of the cache.
+     *
+     * @param byteBudget the maximal size of the cache content in bytes
+     */
+    public void setByteBudget(long byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * Returns the size used to account for an object of a class not written
+     * or read yet in bytes.
+     *
+     * @return the size used to account for an object of a class not written
+     * or read yet in bytes
+     */
+    public long getObjectSize() {
+        return objectSize;
+    }
+
+    /**
+     * Sets the size used to account for an object of a class not written or
+     * read yet in bytes.
+     *
+     * @param objectSize the size used to account for an object of a class not
+     * written or read yet in bytes
+     */
+    public void setObjectSize(long objectSize) {
+        this.objectSize = objectSize;
+    }
+
+    @Override
+    public void setStoredSize(Object object, int size) {
+        if (object != null) {
+            Class<?> objectClass = object.getClass();
+            StoredSize storedSize = storedSizes.get(objectClass);
+            if (storedSize == null) {
+                storedSize = new StoredSize();
+                StoredSize previous = storedSizes.putIfAbsent(objectClass, storedSize);
+                if (previous != null) {
+                    storedSize = previous;
+                }
+            }
+            storedSize.add(size);
+        }
+    }
+
+    /**
+     * Returns the estimated size of the given object in bytes, i.e. the
+     * average size of the objects of the same class in the database, or the
+     * object size if no object of this class was written or read yet.
+     * Subclasses can provide a finer estimation.
+     *
+     * @param object the object
+     *
+     * @return the estimated size of the given object in bytes
+     */
+    protected long estimateSize(Object object) {
+        if (object != null) {
+            StoredSize storedSize = storedSizes.get(object.getClass());
+            if (storedSize != null) {
+                return storedSize.getAverage();
+            }
+        }
+        return objectSize;
+    }
+
+    /**
+     * Returns the number of objects found in the cache.
+     *
+     * @return the number of objects found in the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of objects not found in the cache.
+     *
+     * @return the number of objects not found in the cache
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of objects evicted from the cache.
+     *
+     * @return the number of objects evicted from the cache
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of objects written back to the database.
+     *
+     * @return the number of objects written back to the database
+     */
+    public long getWriteBackCount() {
+        return writeBacks.get();
+    }
+
+    /**
+     * Resets the hit, miss, eviction and write back counters.
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        writeBacks.set(0);
+    }
+
+    /**
+     * Returns the estimated size of the cache content in bytes.
+     *
+     * @return the estimated size of the cache content in bytes
+     */
+    public long getContentSize() {
+        long result = 0;
+        for (Segment segment : segments) {
+            result += segment.getContentSize();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of objects in the cache.
+     *
+     * @return the number of objects in the cache
+     */
+    public int getNObjects() {
+        int result = 0;
+        for (Segment segment : segments) {
+            result += segment.getNObjects();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the maximal number of entries written by the flusher in a
+     * transaction.
+     *
+     * @return the maximal number of entries written by the flusher in a
+     * transaction
+     */
+    public int getFlushBatchSize() {
+        return flushBatchSize;
+    }
+
+    /**
+     * Sets the maximal number of entries written by the flusher in a
+     * transaction.
+     *
+     * @param flushBatchSize the maximal number of entries written by the
+     * flusher in a transaction
+     */
+    public void setFlushBatchSize(int flushBatchSize) {
+        this.flushBatchSize = flushBatchSize;
+    }
+
+    /**
+     * Starts a background thread writing the evicted entries to the database.
+     * Evicted entries are queued and written in large transactions, the
+     * evicting threads only wait when the queue is full. Entries remain
+     * available from the cache until written. Use flush() to make sure that
+     * the queued entries are written and close() to stop the flusher.
+     *
+     * @param queueCapacity the maximal number of entries waiting to be written
+     */
+    public synchronized void startFlusher(int queueCapacity) {
+        if (flushQueue != null) {
+            throw new IllegalStateException("Flusher already started.");
+        }
+        final ArrayBlockingQueue<CacheEntry> queue = new ArrayBlockingQueue<CacheEntry>(queueCapacity);
+        flusherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<CacheEntry> batch = new ArrayList<CacheEntry>();
+                while (true) {
+                    try {
+                        batch.add(queue.take());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    queue.drainTo(batch, flushBatchSize - 1);
+                    try {
+                        writeBack(batch, null);
+                    } catch (Exception e) {
+                        synchronized (flushLock) {
+                            flushException = e;
+                        }
+                    } finally {
+                        synchronized (flushLock) {
+                            nUnflushed -= batch.size();
+                            flushLock.notifyAll();
+                        }
+                        batch.clear();
+                    }
+                }
+            }
+        }, "ObjectsCache flusher");
+        flusherThread.setDaemon(true);
+        flushQueue = queue;
+        flusherThread.start();
+    }
+
+    /**
+     * Indicates whether evicted entries are written by a background flusher.
+     *
+     * @return a boolean indicating whether evicted entries are written by a
+     * background flusher
+     */
+    public boolean isFlusherRunning() {
+        return flushQueue != null;
+    }
+
+    /**
+     * Waits until all entries queued for writing are written to the database.
+     * Entries which could not be written remain in the cache as modified and
+     * the error encountered by the flusher is thrown.
+     *
+     * @throws SQLException exception thrown whenever an error occurred while
+     * adding an object in the database
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing an object
+     * @throws java.lang.InterruptedException if the thread is interrupted
+     */
+    public void flush() throws IOException, SQLException, InterruptedException {
+        Exception exception;
+        synchronized (flushLock) {
+            while (nUnflushed > 0) {
+                flushLock.wait();
+            }
+            exception = flushException;
+            flushException = null;
+        }
+        if (exception instanceof IOException) {
+            throw (IOException) exception;
+        } else if (exception instanceof SQLException) {
+            throw (SQLException) exception;
+        } else if (exception instanceof InterruptedException) {
+            throw (InterruptedException) exception;
+        } else if (exception != null) {
+            throw new IOException("Error while writing the cache content.", exception);
+        }
+    }
+
+    /**
+     * Writes the queued entries and stops the flusher. Evicted entries will
+     * then be written by the evicting thread. Should be called once no other
+     * thread is adding objects to the cache.
+     *
+     * @throws SQLException exception thrown whenever an error occurred while
+     * adding an object in the database
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing an object
+     * @throws java.lang.InterruptedException if the thread is interrupted
+     */
+    public synchronized void close() throws IOException, SQLException, InterruptedException {
+        ArrayBlockingQueue<CacheEntry> queue = flushQueue;
+        if (queue != null) {
+            try {
+                flush();
+            } finally {
+                flushQueue = null;
+                flusherThread.interrupt();
+                flusherThread.join();
+                flusherThread = null;
+                ArrayList<CacheEntry> remaining = new ArrayList<CacheEntry>();
+                queue.drainTo(remaining);
+                synchronized (flushLock) {
+                    nUnflushed -= remaining.size();
+                }
+                writeBack(remaining, null);
+            }
+        }
+    }
+
+    /**
+     * Writes back evicted entries or queues them for the flusher if running.
+     *
+     * @param evicted the evicted entries
+     *
+     * @throws SQLException exception thrown whenever an error occurred while
+     * adding the object in the database
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the object
+     * @throws java.lang.InterruptedException if the thread is interrupted
+     */
+    private void evicted(ArrayList<CacheEntry> evicted) throws IOException, SQLException, InterruptedException {
+        ArrayBlockingQueue<CacheEntry> queue = flushQueue;
+        if (queue == null) {
+            writeBack(evicted, null);
+        } else {
+            for (CacheEntry entry : evicted) {
+                if (entry.isModified()) {
+                    synchronized (flushLock) {
+                        nUnflushed++;
+                    }
+                    queue.put(entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addDb(ObjectsDB objectsDB) {
+        if (readOnly) {
+            throw new IllegalArgumentException("Cannot add db, cache read only.");
+        }
+        String dbName = objectsDB.getName();
+        if (dbName.contains(cacheSeparator)) {
+            throw new IllegalArgumentException("Database name (" + dbName + ") should not contain " + cacheSeparator);
+        }
+        databases.put(dbName, objectsDB);
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) {
+        super.setReadOnly(readOnly);
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Returns the segment where the object of the given cache key is stored.
+     *
+     * @param cacheKey the cache key
+     *
+     * @return the segment of this key
+     */
+    private Segment getSegment(String cacheKey) {
+        int hash = cacheKey.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return segments[hash & segmentMask];
+    }
+
+    @Override
+    public void removeObject(String dbName, String tableName, String objectKey) throws InterruptedException {
+        if (!readOnly) {
+            String cacheKey = getCacheKey(dbName, tableName, objectKey);
+            getSegment(cacheKey).remove(cacheKey);
+        }
+    }
+
+    @Override
+    public Object getObject(String dbName, String tableName, String objectKey) {
+        String cacheKey = getCacheKey(dbName, tableName, objectKey);
+        CacheEntry entry = getSegment(cacheKey).get(cacheKey);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.getObject();
+        } else {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    @Override
+    public boolean inCache(String dbName, String tableName, String objectKey) {
+        String cacheKey = getCacheKey(dbName, tableName, objectKey);
+        return getSegment(cacheKey).contains(cacheKey);
+    }
+
+    @Override
+    public boolean updateObject(String dbName, String tableName, String objectKey, Object object) throws InterruptedException {
+        if (!readOnly) {
+            String cacheKey = getCacheKey(dbName, tableName, objectKey);
+            return getSegment(cacheKey).update(cacheKey, object, estimateSize(object));
+        }
+        return false;
+    }
+
+    @Override
+    public void addObject(String dbName, String tableName, String objectKey, Object object, boolean modifiedOrNew, boolean updateCache) throws IOException, SQLException, InterruptedException {
+        if (!readOnly) {
+            if (objectKey.contains(cacheSeparator)) {
+                throw new IllegalArgumentException("Object key (" + objectKey + ") should not contain " + cacheSeparator + ".");
+            }
+            if (tableName.contains(cacheSeparator)) {
+                throw new IllegalArgumentException("Table name (" + tableName + ") should not contain " + cacheSeparator + ".");
+            }
+            String cacheKey = getCacheKey(dbName, tableName, objectKey);
+            Segment segment = getSegment(cacheKey);
+            segment.put(new CacheEntry(cacheKey, dbName, tableName, objectKey, object, modifiedOrNew, estimateSize(object)));
+            if (updateCache) {
+                ArrayList<CacheEntry> evicted = segment.evict(getSegmentBudget(), getSegmentCapacity());
+                if (evicted != null) {
+                    evicted(evicted);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the byte budget of a segment.
+     *
+     * @return the byte budget of a segment
+     */
+    private long getSegmentBudget() {
+        return byteBudget / segments.length;
+    }
+
+    /**
+     * Returns the maximal number of objects in a segment. The cache size in
+     * number of objects is only used when the automated memory management is
+     * disabled.
+     *
+     * @return the maximal number of objects in a segment
+     */
+    private int getSegmentCapacity() {
+        if (isAutomatedMemoryManagement()) {
+            return Integer.MAX_VALUE;
+        }
+        return (getCacheSize() + segments.length - 1) / segments.length;
+    }
+
+    @Override
+    public void updateCache() throws IOException, SQLException, InterruptedException {
+        if (!readOnly) {
+            long segmentBudget = getSegmentBudget();
+            int segmentCapacity = getSegmentCapacity();
+            for (Segment segment : segments) {
+                ArrayList<CacheEntry> evicted = segment.evict(segmentBudget, segmentCapacity);
+                if (evicted != null) {
+                    evicted(evicted);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void updateCacheSynchronized() throws IOException, SQLException, InterruptedException {
+        updateCache();
+    }
+
+    @Override
+    public void reduceMemoryConsumption(double share, WaitingHandler waitingHandler) throws IOException, SQLException, InterruptedException {
+        if (!readOnly) {
+            ArrayList<CacheEntry> evicted = new ArrayList<CacheEntry>();
+            for (Segment segment : segments) {
+                evicted.addAll(segment.evict(share));
+            }
+            if (waitingHandler != null) {
+                waitingHandler.resetSecondaryProgressCounter();
+                waitingHandler.setMaxSecondaryProgressCounter(evicted.size());
+            }
+            writeBack(evicted, waitingHandler);
+        }
+    }
+
+    @Override
+    public void saveObjects(ArrayList<String> entryKeys, WaitingHandler waitingHandler, boolean clearEntries) throws IOException, SQLException, InterruptedException {
+        if (!readOnly) {
+            if (waitingHandler != null) {
+                waitingHandler.resetSecondaryProgressCounter();
+                waitingHandler.setMaxSecondaryProgressCounter(entryKeys.size());
+            }
+            ArrayList<CacheEntry> entries = new ArrayList<CacheEntry>(entryKeys.size());
+            for (String entryKey : entryKeys) {
+                Segment segment = getSegment(entryKey);
+                CacheEntry entry;
+                if (clearEntries) {
+                    entry = segment.evict(entryKey);
+                } else {
+                    entry = segment.get(entryKey);
+                }
+                if (entry == null) {
+                    throw new IllegalArgumentException("Object corresponding to entry " + entryKey + " not found in cache when saving.");
+                }
+                entries.add(entry);
+            }
+            writeBack(entries, waitingHandler);
+        }
+    }
+
+    @Override
+    public void saveObject(String entryKey, boolean clearEntry) throws IOException, SQLException, InterruptedException {
+        ArrayList<String> entryKeys = new ArrayList<String>(1);
+        entryKeys.add(entryKey);
+        saveObjects(entryKeys, null, clearEntry);
+    }
+
+    @Override
+    public void saveCache(WaitingHandler waitingHandler, boolean emptyCache) throws IOException, SQLException, InterruptedException {
+        if (flushQueue != null) {
+            flush();
+        }
+        ArrayList<CacheEntry> entries = new ArrayList<CacheEntry>();
+        for (Segment segment : segments) {
+            if (emptyCache && !readOnly) {
+                entries.addAll(segment.evictAll());
+            } else {
+                entries.addAll(segment.getModified());
+            }
+        }
+        if (waitingHandler != null) {
+            waitingHandler.setMaxSecondaryProgressCounter(entries.size() + 1);
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.setSecondaryProgressCounter(0);
+        }
+        writeBack(entries, waitingHandler);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (!segment.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the modified entries back to their database in one batch per
+     * table. Evicted entries stay in the cache until written and are put back
+     * in the cache if they could not be saved.
+     *
+     * @param entries the entries to write
+     * @param waitingHandler a waiting handler displaying progress to the user.
+     * Can be null. Progress will be displayed as secondary.
+     *
+     * @throws SQLException exception thrown whenever an error occurred while
+     * adding the object in the database
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the object
+     * @throws java.lang.InterruptedException if the thread is interrupted
+     */
+    private void writeBack(ArrayList<CacheEntry> entries, WaitingHandler waitingHandler) throws IOException, SQLException, InterruptedException {
+        try {
+            HashMap<String, HashMap<String, ArrayList<CacheEntry>>> toSave = new HashMap<String, HashMap<String, ArrayList<CacheEntry>>>(1);
+            for (CacheEntry entry : entries) {
+                if (entry.isModified()) {
+                    HashMap<String, ArrayList<CacheEntry>> dbMap = toSave.get(entry.getDbName());
+                    if (dbMap == null) {
+                        dbMap = new HashMap<String, ArrayList<CacheEntry>>();
+                        toSave.put(entry.getDbName(), dbMap);
+                    }
+                    ArrayList<CacheEntry> tableEntries = dbMap.get(entry.getTableName());
+                    if (tableEntries == null) {
+                        tableEntries = new ArrayList<CacheEntry>();
+                        dbMap.put(entry.getTableName(), tableEntries);
+                    }
+                    tableEntries.add(entry);
+                }
+            }
+            for (String dbName : toSave.keySet()) {
+                ObjectsDB objectsDB = databases.get(dbName);
+                if (objectsDB == null) {
+                    throw new IllegalStateException("Database " + dbName + " not loaded in cache");
+                }
+                HashMap<String, ArrayList<CacheEntry>> dbMap = toSave.get(dbName);
+                for (String tableName : dbMap.keySet()) {
+                    ArrayList<CacheEntry> tableEntries = dbMap.get(tableName);
+                    int[] versions = new int[tableEntries.size()];
+                    HashMap<String, Object> objects = new HashMap<String, Object>(tableEntries.size());
+                    for (int i = 0; i < tableEntries.size(); i++) {
+                        CacheEntry entry = tableEntries.get(i);
+                        versions[i] = entry.getVersion();
+                        objects.put(entry.getObjectKey(), entry.getObject());
+                    }
+                    objectsDB.insertObjects(tableName, objects, waitingHandler);
+                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                    for (int i = 0; i < tableEntries.size(); i++) {
+                        tableEntries.get(i).setSaved(versions[i]);
+                    }
+                    writeBacks.addAndGet(tableEntries.size());
+                }
+            }
+        } finally {
+            for (CacheEntry entry : entries) {
+                getSegment(entry.getCacheKey()).release(entry);
+            }
+        }
+    }
+
+    /**
+     * A segment of the cache. The entries are kept in access order and
+     * evicted entries waiting to be written are kept apart, a key is never
+     * present in both maps.
+     */
+    private class Segment {
+
+        /**
+         * The entries of this segment in access order.
+         */
+        private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+        /**
+         * Evicted entries waiting to be written to the database.
+         */
+        private final HashMap<String, CacheEntry> pendingEntries = new HashMap<String, CacheEntry>();
+        /**
+         * The estimated size of the entries in bytes.
+         */
+        private long contentSize = 0;
+
+        /**
+         * Returns the entry corresponding to the given key, null if not
+         * present.
+         *
+         * @param cacheKey the cache key
+         *
+         * @return the entry corresponding to the given key
+         */
+        public synchronized CacheEntry get(String cacheKey) {
+            CacheEntry entry = entries.get(cacheKey);
+            if (entry == null) {
+                entry = pendingEntries.get(cacheKey);
+            }
+            return entry;
+        }
+
+        /**
+         * Indicates whether the segment contains the given key.
+         *
+         * @param cacheKey the cache key
+         *
+         * @return a boolean indicating whether the segment contains the given
+         * key
+         */
+        public synchronized boolean contains(String cacheKey) {
+            return entries.containsKey(cacheKey) || pendingEntries.containsKey(cacheKey);
+        }
+
+        /**
+         * Adds an entry to the segment, replacing any entry with the same key.
+         *
+         * @param entry the entry
+         */
+        public synchronized void put(CacheEntry entry) {
+            CacheEntry oldEntry = entries.put(entry.getCacheKey(), entry);
+            if (oldEntry != null) {
+                contentSize -= oldEntry.getSize();
+            }
+            contentSize += entry.getSize();
+            pendingEntries.remove(entry.getCacheKey());
+        }
+
+        /**
+         * Updates the object of an entry and sets it as modified.
+         *
+         * @param cacheKey the cache key
+         * @param object the new object
+         * @param size the estimated size of the new object
+         *
+         * @return a boolean indicating whether the entry was found
+         */
+        public synchronized boolean update(String cacheKey, Object object, long size) {
+            CacheEntry entry = entries.get(cacheKey);
+            if (entry != null) {
+                contentSize += size - entry.getSize();
+            } else {
+                entry = pendingEntries.get(cacheKey);
+                if (entry == null) {
+                    return false;
+                }
+            }
+            entry.setSize(size);
+            entry.setObject(object);
+            return true;
+        }
+
+        /**
+         * Removes an entry from the segment without saving it.
+         *
+         * @param cacheKey the cache key
+         */
+        public synchronized void remove(String cacheKey) {
+            pendingEntries.remove(cacheKey);
+            CacheEntry entry = entries.remove(cacheKey);
+            if (entry != null) {
+                contentSize -= entry.getSize();
+            }
+        }
+
+        /**
+         * Evicts the least recently used entries if the segment exceeds the
+         * given limits. Modified entries are kept as pending until released.
+         *
+         * @param maxSize the maximal size of the segment content in bytes
+         * @param maxEntries the maximal number of entries
+         *
+         * @return the evicted entries, null if none
+         */
+        public synchronized ArrayList<CacheEntry> evict(long maxSize, int maxEntries) {
+            if (contentSize <= maxSize && entries.size() <= maxEntries) {
+                return null;
+            }
+            long targetSize = (long) (EVICTION_TARGET * maxSize);
+            int targetEntries = (int) (EVICTION_TARGET * maxEntries);
+            ArrayList<CacheEntry> evicted = new ArrayList<CacheEntry>();
+            Iterator<CacheEntry> iterator = entries.values().iterator();
+            while (iterator.hasNext() && (contentSize > targetSize || entries.size() > targetEntries)) {
+                CacheEntry entry = iterator.next();
+                iterator.remove();
+                evicted.add(setEvicted(entry));
+            }
+            return evicted;
+        }
+
+        /**
+         * Evicts the given share of the entries starting from the least
+         * recently used.
+         *
+         * @param share the share of entries to evict
+         *
+         * @return the evicted entries
+         */
+        public synchronized ArrayList<CacheEntry> evict(double share) {
+            int toRemove = (int) (share * entries.size());
+            ArrayList<CacheEntry> evicted = new ArrayList<CacheEntry>(toRemove);
+            Iterator<CacheEntry> iterator = entries.values().iterator();
+            while (iterator.hasNext() && evicted.size() < toRemove) {
+                CacheEntry entry = iterator.next();
+                iterator.remove();
+                evicted.add(setEvicted(entry));
+            }
+            return evicted;
+        }
+
+        /**
+         * Evicts the entry of the given key.
+         *
+         * @param cacheKey the cache key
+         *
+         * @return the evicted entry, null if not found
+         */
+        public synchronized CacheEntry evict(String cacheKey) {
+            CacheEntry entry = entries.remove(cacheKey);
+            if (entry != null) {
+                return setEvicted(entry);
+            }
+            return pendingEntries.get(cacheKey);
+        }
+
+        /**
+         * Evicts all entries of the segment.
+         *
+         * @return the evicted entries
+         */
+        public synchronized ArrayList<CacheEntry> evictAll() {
+            ArrayList<CacheEntry> evicted = new ArrayList<CacheEntry>(entries.size() + pendingEntries.size());
+            evicted.addAll(pendingEntries.values());
+            for (CacheEntry entry : entries.values()) {
+                evicted.add(setEvicted(entry));
+            }
+            entries.clear();
+            return evicted;
+        }
+
+        /**
+         * Accounts for an entry removed from the entries map and stores it as
+         * pending if modified. Must be called while holding the lock of the
+         * segment.
+         *
+         * @param entry the evicted entry
+         *
+         * @return the evicted entry
+         */
+        private CacheEntry setEvicted(CacheEntry entry) {
+            contentSize -= entry.getSize();
+            if (entry.isModified()) {
+                pendingEntries.put(entry.getCacheKey(), entry);
+            }
+            evictions.incrementAndGet();
+            return entry;
+        }
+
+        /**
+         * Returns the modified entries of this segment.
+         *
+         * @return the modified entries of this segment
+         */
+        public synchronized ArrayList<CacheEntry> getModified() {
+            ArrayList<CacheEntry> modified = new ArrayList<CacheEntry>();
+            for (CacheEntry entry : entries.values()) {
+                if (entry.isModified()) {
+                    modified.add(entry);
+                }
+            }
+            for (CacheEntry entry : pendingEntries.values()) {
+                if (entry.isModified()) {
+                    modified.add(entry);
+                }
+            }
+            return modified;
+        }
+
+        /**
+         * Releases an entry after it was written. If the entry was pending it
+         * is removed from the pending entries, if it is still modified it is
+         * put back in the cache.
+         *
+         * @param entry the entry
+         */
+        public synchronized void release(CacheEntry entry) {
+            String cacheKey = entry.getCacheKey();
+            if (pendingEntries.get(cacheKey) == entry) {
+                pendingEntries.remove(cacheKey);
+                if (entry.isModified() && !entries.containsKey(cacheKey)) {
+                    entries.put(cacheKey, entry);
+                    contentSize += entry.getSize();
+                }
+            }
+        }
+
+        /**
+         * Returns the estimated size of the segment content in bytes.
+         *
+         * @return the estimated size of the segment content in bytes
+         */
+        public synchronized long getContentSize() {
+            return contentSize;
+        }
+
+        /**
+         * Returns the number of objects in the segment.
+         *
+         * @return the number of objects in the segment
+         */
+        public synchronized int getNObjects() {
+            return entries.size() + pendingEntries.size();
+        }
+
+        /**
+         * Indicates whether the segment is empty.
+         *
+         * @return a boolean indicating whether the segment is empty
+         */
+        public synchronized boolean isEmpty() {
+            return entries.isEmpty() && pendingEntries.isEmpty();
+        }
+    }
+
+    /**
+     * The sizes of the objects of a class in the database.
+     */
+    private static class StoredSize {
+
+        /**
+         * The total size of the objects in bytes.
+         */
+        private final AtomicLong total = new AtomicLong();
+        /**
+         * The number of objects.
+         */
+        private final AtomicLong count = new AtomicLong();
+
+        /**
+         * Adds the size of an object.
+         *
+         * @param size the size of the object in bytes
+         */
+        public void add(int size) {
+            total.addAndGet(size);
+            count.incrementAndGet();
+        }
+
+        /**
+         * Returns the average size of the objects in bytes.
+         *
+         * @return the average size of the objects in bytes
+         */
+        public long getAverage() {
+            long n = count.get();
+            return n == 0 ? 0 : total.get() / n;
+        }
+    }
+
+    /**
+     * Class representing a cache entry.
+     */
+    private static class CacheEntry {
+
+        /**
+         * The cache key of this entry.
+         */
+        private final String cacheKey;
+        /**
+         * The name of the database.
+         */
+        private final String dbName;
+        /**
+         * The name of the table.
+         */
+        private final String tableName;
+        /**
+         * The key of the object.
+         */
+        private final String objectKey;
+        /**
+         * The object of this entry.
+         */
+        private volatile Object object;
+        /**
+         * A boolean indicating whether this entry is modified when compared to
+         * the version of the database.
+         */
+        private boolean modified;
+        /**
+         * The version of the object, incremented at every modification.
+         */
+        private int version = 0;
+        /**
+         * The estimated size of the object in bytes.
+         */
+        private volatile long size;
+
+        /**
+         * Constructor.
+         *
+         * @param cacheKey the cache key of this entry
+         * @param dbName the name of the database
+         * @param tableName the name of the table
+         * @param objectKey the key of the object
+         * @param object the object of the entry
+         * @param modified boolean indicating whether the entry is modified
+         * @param size the estimated size of the object in bytes
+         */
+        public CacheEntry(String cacheKey, String dbName, String tableName, String objectKey, Object object, boolean modified, long size) {
+            this.cacheKey = cacheKey;
+            this.dbName = dbName;
+            this.tableName = tableName;
+            this.objectKey = objectKey;
+            this.object = object;
+            this.modified = modified;
+            this.size = size;
+        }
+
+        /**
+         * Returns the cache key of this entry.
+         *
+         * @return the cache key of this entry
+         */
+        public String getCacheKey() {
+            return cacheKey;
+        }
+
+        /**
+         * Returns the name of the database.
+         *
+         * @return the name of the database
+         */
+        public String getDbName() {
+            return dbName;
+        }
+
+        /**
+         * Returns the name of the table.
+         *
+         * @return the name of the table
+         */
+        public String getTableName() {
+            return tableName;
+        }
+
+        /**
+         * Returns the key of the object.
+         *
+         * @return the key of the object
+         */
+        public String getObjectKey() {
+            return objectKey;
+        }
+
+        /**
+         * Returns the object of this entry.
+         *
+         * @return the object contained by this entry
+         */
+        public Object getObject() {
+            return object;
+        }
+
+        /**
+         * Sets the object of this entry and marks it as modified.
+         *
+         * @param object the object for this entry
+         */
+        public synchronized void setObject(Object object) {
+            this.object = object;
+            modified = true;
+            version++;
+        }
+
+        /**
+         * Indicates whether the object is modified when compared to the version
+         * in the database.
+         *
+         * @return a boolean indicating whether the object is modified
+         */
+        public synchronized boolean isModified() {
+            return modified;
+        }
+
+        /**
+         * Returns the version of the object.
+         *
+         * @return the version of the object
+         */
+        public synchronized int getVersion() {
+            return version;
+        }
+
+        /**
+         * Marks the entry as saved if the object was not modified since the
+         * given version.
+         *
+         * @param savedVersion the version of the object which was saved
+         */
+        public synchronized void setSaved(int savedVersion) {
+            if (version == savedVersion) {
+                modified = false;
+            }
+        }
+
+        /**
+         * Returns the estimated size of the object in bytes.
+         *
+         * @return the estimated size of the object in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Sets the estimated size of the object in bytes.
+         *
+         * @param size the estimated size of the object in bytes
+         */
+        public void setSize(long size) {
+            this.size = size;
+        }
+    }
+}
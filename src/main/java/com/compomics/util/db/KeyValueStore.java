@@ -0,0 +1,215 @@
+package com.compomics.util.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An embedded key value store. Every table is stored in its own append-only
+ * file, see KeyValueTable.
+ *
+ * @author Marc Vaudel
+ */
+public class KeyValueStore {
+
+    /**
+     * The folder containing the table files.
+     */
+    private final File folder;
+    /**
+     * The tables indexed by name.
+     */
+    private final ConcurrentHashMap<String, KeyValueTable> tables = new ConcurrentHashMap<String, KeyValueTable>();
+
+    /**
+     * Constructor. Opens the tables found in the given folder, the folder is
+     * created if it does not exist. For every table, the latest generation of
+     * the file which can be opened is used and the other files are deleted.
+     * Files left by interrupted compactions are deleted.
+     *
+     * @param folder the folder containing the table files
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the table files
+     */
+    public KeyValueStore(File folder) throws IOException {
+        this.folder = folder;
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Impossible to create folder " + folder + ".");
+        }
+        HashMap<String, TreeMap<Integer, File>> tableFiles = new HashMap<String, TreeMap<Integer, File>>();
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.endsWith(KeyValueTable.EXTENSION + KeyValueTable.TEMP_EXTENSION)) {
+                    // file left by an interrupted compaction
+                    file.delete();
+                } else if (fileName.endsWith(KeyValueTable.EXTENSION)) {
+                    String name = fileName.substring(0, fileName.length() - KeyValueTable.EXTENSION.length());
+                    int separator = name.lastIndexOf('.');
+                    if (separator > 0) {
+                        String baseName = name.substring(0, separator);
+                        int generation;
+                        try {
+                            generation = Integer.parseInt(name.substring(separator + 1));
+                        } catch (NumberFormatException e) {
+                            continue;
+                        }
+                        TreeMap<Integer, File> generations = tableFiles.get(baseName);
+                        if (generations == null) {
+                            generations = new TreeMap<Integer, File>();
+                            tableFiles.put(baseName, generations);
+                        }
+                        generations.put(generation, file);
+                    }
+                }
+            }
+        }
+        for (TreeMap<Integer, File> generations : tableFiles.values()) {
+            KeyValueTable table = null;
+            File tableFile = null;
+            IOException openException = null;
+            for (File file : generations.descendingMap().values()) {
+                try {
+                    table = KeyValueTable.open(file);
+                    tableFile = file;
+                    break;
+                } catch (IOException e) {
+                    if (openException == null) {
+                        openException = e;
+                    }
+                }
+            }
+            if (table == null) {
+                throw openException;
+            }
+            // files of previous compactions not deleted because mapped, or of generations which could not be opened
+            for (File file : generations.values()) {
+                if (!file.equals(tableFile)) {
+                    file.delete();
+                }
+            }
+            tables.put(table.getTableName(), table);
+        }
+    }
+
+    /**
+     * Returns the name of the table as stored, i.e. without surrounding
+     * quotation marks.
+     *
+     * @param tableName the name of the table
+     *
+     * @return the name of the table as stored
+     */
+    private static String getStoredName(String tableName) {
+        if (tableName.length() > 1 && tableName.startsWith("\"") && tableName.endsWith("\"")) {
+            return tableName.substring(1, tableName.length() - 1);
+        }
+        return tableName;
+    }
+
+    /**
+     * Adds a table to the store.
+     *
+     * @param tableName the name of the table
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * creating the table file
+     */
+    public synchronized void addTable(String tableName) throws IOException {
+        String storedName = getStoredName(tableName);
+        if (tables.containsKey(storedName)) {
+            throw new IllegalArgumentException("Table " + storedName + " already exists.");
+        }
+        String baseName = KeyValueTable.getBaseName(storedName);
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(baseName + ".")
+                        && (file.getName().endsWith(KeyValueTable.EXTENSION) || file.getName().endsWith(KeyValueTable.EXTENSION + KeyValueTable.TEMP_EXTENSION))) {
+                    file.delete();
+                }
+            }
+        }
+        tables.put(storedName, KeyValueTable.create(folder, storedName));
+    }
+
+    /**
+     * Indicates whether the store contains the given table.
+     *
+     * @param tableName the name of the table
+     *
+     * @return a boolean indicating whether the store contains the given table
+     */
+    public boolean hasTable(String tableName) {
+        return tables.containsKey(getStoredName(tableName));
+    }
+
+    /**
+     * Returns the table of the given name, null if not found.
+     *
+     * @param tableName the name of the table
+     *
+     * @return the table of the given name
+     */
+    public KeyValueTable getTable(String tableName) {
+        return tables.get(getStoredName(tableName));
+    }
+
+    /**
+     * Returns the names of the tables of the store.
+     *
+     * @return the names of the tables of the store
+     */
+    public ArrayList<String> getTables() {
+        return new ArrayList<String>(tables.keySet());
+    }
+
+    /**
+     * Compacts the tables where overwritten and deleted records use more than
+     * the given share of the file.
+     *
+     * @param garbageShare the share of the file used by overwritten and
+     * deleted records above which a table is compacted, 0 to compact all
+     * tables with overwritten or deleted records
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * compacting a table
+     */
+    public void compact(double garbageShare) throws IOException {
+        for (KeyValueTable table : tables.values()) {
+            if (table.getGarbageShare() > garbageShare) {
+                table.compact();
+            }
+        }
+    }
+
+    /**
+     * Forces the content of the tables to the disk.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing a table
+     */
+    public void sync() throws IOException {
+        for (KeyValueTable table : tables.values()) {
+            table.sync();
+        }
+    }
+
+    /**
+     * Closes the tables of the store.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * closing a table
+     */
+    public synchronized void close() throws IOException {
+        for (KeyValueTable table : tables.values()) {
+            table.close();
+        }
+        tables.clear();
+    }
+}
@@ -0,0 +1,880 @@
+package com.compomics.util.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A table of a key value store. The records of the table are appended to a
+ * single file which is memory mapped for reading. The position of the latest
+ * record of every key is kept in a sorted in-memory index allowing range scans
+ * by key prefix. Space used by overwritten and deleted records is reclaimed
+ * by compacting the table. The compacted table is written to a temporary file
+ * which replaces the previous file only once complete on the disk.
+ *
+ * File format: magic number, version, table name length and UTF-8 table name
+ * followed by records composed of key length, UTF-8 key, value length and
+ * value. Deleted keys are stored with a value length of -1.
+ *
+ * @author Marc Vaudel
+ */
+public class KeyValueTable {
+
+    /**
+     * The extension of the table files.
+     */
+    public static final String EXTENSION = ".kvt";
+    /**
+     * The extension appended to the name of a table file while it is written
+     * by a compaction.
+     */
+    public static final String TEMP_EXTENSION = ".tmp";
+    /**
+     * Magic number at the start of the table files.
+     */
+    private static final int MAGIC_NUMBER = 0x4B565442;
+    /**
+     * The version of the file format.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The value length used to mark deleted keys.
+     */
+    private static final int DELETED = -1;
+    /**
+     * The size of the mapped chunks of the file.
+     */
+    private static final long CHUNK_SIZE = 1L << 30;
+    /**
+     * The size of the unmapped end of the file above which the file is mapped
+     * again. Below, records are read from the file channel.
+     */
+    private static final long REMAP_THRESHOLD = 1L << 24;
+    /**
+     * The size of the buffer used to write batches of records.
+     */
+    private static final int WRITE_BUFFER_SIZE = 1 << 23;
+    /**
+     * The encoding used for the keys and table names.
+     */
+    private static final String ENCODING = "UTF-8";
+    /**
+     * The folder containing the table file.
+     */
+    private final File folder;
+    /**
+     * The name of the table.
+     */
+    private final String tableName;
+    /**
+     * The base name of the table files.
+     */
+    private final String baseName;
+    /**
+     * The generation of the table file, incremented at every compaction.
+     */
+    private int generation;
+    /**
+     * The table file.
+     */
+    private File file;
+    /**
+     * The random access file used to write the table.
+     */
+    private RandomAccessFile randomAccessFile;
+    /**
+     * The channel of the table file.
+     */
+    private FileChannel channel;
+    /**
+     * The mapped chunks of the file.
+     */
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    /**
+     * The length of the mapped part of the file.
+     */
+    private volatile long mappedLength = 0;
+    /**
+     * The length of the file.
+     */
+    private volatile long fileLength;
+    /**
+     * The number of bytes used by overwritten and deleted records.
+     */
+    private volatile long garbageLength = 0;
+    /**
+     * Index of the position of the value length of every key.
+     */
+    private final ConcurrentSkipListMap<String, Long> index = new ConcurrentSkipListMap<String, Long>();
+    /**
+     * Lock preventing reading while the file is replaced or closed.
+     */
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+    /**
+     * Mutex for the writing of records.
+     */
+    private final Object writeMutex = new Object();
+    /**
+     * Mutex for the mapping of the file.
+     */
+    private final Object mapMutex = new Object();
+
+    /**
+     * Constructor.
+     *
+     * @param folder the folder containing the table file
+     * @param baseName the base name of the table files
+     * @param generation the generation of the table file
+     * @param tableName the name of the table
+     */
+    private KeyValueTable(File folder, String baseName, int generation, String tableName) {
+        this.folder = folder;
+        this.baseName = baseName;
+        this.generation = generation;
+        this.tableName = tableName;
+        this.file = getFile(folder, baseName, generation);
+    }
+
+    /**
+     * Creates a new empty table in the given folder.
+     *
+     * @param folder the folder where to store the table
+     * @param tableName the name of the table
+     *
+     * @return the new table
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the table file
+     */
+    public static KeyValueTable create(File folder, String tableName) throws IOException {
+        KeyValueTable table = new KeyValueTable(folder, getBaseName(tableName), 0, tableName);
+        if (table.file.exists() && !table.file.delete()) {
+            throw new IOException("Impossible to delete " + table.file + ".");
+        }
+        table.openFile(true);
+        return table;
+    }
+
+    /**
+     * Opens the given table file and indexes its content.
+     *
+     * @param file the table file
+     *
+     * @return the table
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the table file
+     */
+    public static KeyValueTable open(File file) throws IOException {
+        String fileName = file.getName();
+        String name = fileName.substring(0, fileName.length() - EXTENSION.length());
+        int separator = name.lastIndexOf('.');
+        String baseName = name.substring(0, separator);
+        int generation = Integer.parseInt(name.substring(separator + 1));
+        KeyValueTable table = new KeyValueTable(file.getParentFile(), baseName, generation, readTableName(file));
+        table.openFile(false);
+        return table;
+    }
+
+    /**
+     * Returns the base name of the files of a table. The base name contains
+     * the characters of the table name allowed in file names followed by the
+     * hash of the table name.
+     *
+     * @param tableName the name of the table
+     *
+     * @return the base name of the files of the table
+     */
+    public static String getBaseName(String tableName) {
+        StringBuilder baseName = new StringBuilder();
+        for (int i = 0; i < tableName.length() && baseName.length() < 64; i++) {
+            char character = tableName.charAt(i);
+            if (character >= 'a' && character <= 'z' || character >= 'A' && character <= 'Z' || character >= '0' && character <= '9' || character == '_' || character == '-') {
+                baseName.append(character);
+            } else {
+                baseName.append('_');
+            }
+        }
+        baseName.append('_').append(Integer.toHexString(tableName.hashCode()));
+        return baseName.toString();
+    }
+
+    /**
+     * Returns the base name of the table file.
+     *
+     * @return the base name of the table file
+     */
+    public String getBaseName() {
+        return baseName;
+    }
+
+    /**
+     * Returns the table file for the given generation.
+     *
+     * @param folder the folder containing the table file
+     * @param baseName the base name of the table files
+     * @param generation the generation of the table file
+     *
+     * @return the table file
+     */
+    private static File getFile(File folder, String baseName, int generation) {
+        return new File(folder, baseName + "." + generation + EXTENSION);
+    }
+
+    /**
+     * Reads the table name from the header of a table file.
+     *
+     * @param file the table file
+     *
+     * @return the name of the table
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static String readTableName(File file) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (dis.readInt() != MAGIC_NUMBER) {
+                throw new IOException(file + " is not a key value table.");
+            }
+            int version = dis.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported key value table version " + version + " in " + file + ".");
+            }
+            int nameLength = dis.readInt();
+            if (nameLength < 0 || nameLength > file.length() - 12) {
+                throw new IOException("Invalid table name length " + nameLength + " in " + file + ".");
+            }
+            byte[] nameBytes = new byte[nameLength];
+            dis.readFully(nameBytes);
+            return new String(nameBytes, ENCODING);
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Opens the table file, writing the header if the file is new, indexing
+     * the content otherwise. Records truncated at the end of the file are
+     * discarded.
+     *
+     * @param newFile boolean indicating whether the file should be created
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing the file
+     */
+    private void openFile(boolean newFile) throws IOException {
+        if (newFile) {
+            byte[] nameBytes = tableName.getBytes(ENCODING);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                dos.writeInt(MAGIC_NUMBER);
+                dos.writeInt(VERSION);
+                dos.writeInt(nameBytes.length);
+                dos.write(nameBytes);
+            } finally {
+                dos.close();
+            }
+            fileLength = 12 + nameBytes.length;
+        } else {
+            indexFile();
+        }
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        if (channel.size() > fileLength) {
+            channel.truncate(fileLength);
+        }
+        fileLength = channel.size();
+        map(fileLength);
+    }
+
+    /**
+     * Indexes the content of the table file.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private void indexFile() throws IOException {
+        index.clear();
+        garbageLength = 0;
+        HashMap<String, Integer> recordLengths = new HashMap<String, Integer>();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            dis.readInt();
+            dis.readInt();
+            int nameLength = dis.readInt();
+            dis.readFully(new byte[nameLength]);
+            long position = 12 + nameLength;
+            fileLength = position;
+            byte[] valueBuffer = new byte[1024];
+            try {
+                while (true) {
+                    byte[] keyBytes = new byte[dis.readInt()];
+                    dis.readFully(keyBytes);
+                    int valueLength = dis.readInt();
+                    if (valueLength > 0) {
+                        if (valueLength > valueBuffer.length) {
+                            valueBuffer = new byte[valueLength];
+                        }
+                        dis.readFully(valueBuffer, 0, valueLength);
+                    }
+                    String key = new String(keyBytes, ENCODING);
+                    int recordLength = 8 + keyBytes.length + Math.max(valueLength, 0);
+                    Integer previousLength = recordLengths.get(key);
+                    if (previousLength != null) {
+                        garbageLength += previousLength;
+                    }
+                    if (valueLength == DELETED) {
+                        index.remove(key);
+                        recordLengths.remove(key);
+                        garbageLength += recordLength;
+                    } else {
+                        index.put(key, position + 4 + keyBytes.length);
+                        recordLengths.put(key, recordLength);
+                    }
+                    position += recordLength;
+                    fileLength = position;
+                }
+            } catch (EOFException e) {
+                // end of the file, possibly in a truncated record which will be discarded
+            }
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Maps the file up to the given length. Chunks entirely mapped before are
+     * reused.
+     *
+     * @param length the length of the file to map
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * mapping the file
+     */
+    private void map(long length) throws IOException {
+        synchronized (mapMutex) {
+            if (length <= mappedLength) {
+                return;
+            }
+            MappedByteBuffer[] oldChunks = chunks;
+            int nChunks = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            MappedByteBuffer[] newChunks = new MappedByteBuffer[nChunks];
+            for (int i = 0; i < nChunks; i++) {
+                if (i < oldChunks.length && oldChunks[i].capacity() == CHUNK_SIZE) {
+                    newChunks[i] = oldChunks[i];
+                } else {
+                    long start = i * CHUNK_SIZE;
+                    newChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, length - start));
+                }
+            }
+            chunks = newChunks;
+            mappedLength = length;
+        }
+    }
+
+    /**
+     * Reads bytes from the file at the given position. The file must be
+     * locked for reading.
+     *
+     * @param position the position in the file
+     * @param destination the array where to store the bytes
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private void read(long position, byte[] destination) throws IOException {
+        long end = position + destination.length;
+        if (end > mappedLength && fileLength - mappedLength >= REMAP_THRESHOLD) {
+            map(fileLength);
+        }
+        if (end <= mappedLength) {
+            MappedByteBuffer[] currentChunks = chunks;
+            int offset = 0;
+            long currentPosition = position;
+            while (offset < destination.length) {
+                ByteBuffer buffer = currentChunks[(int) (currentPosition / CHUNK_SIZE)].duplicate();
+                buffer.position((int) (currentPosition % CHUNK_SIZE));
+                int length = Math.min(destination.length - offset, buffer.remaining());
+                buffer.get(destination, offset, length);
+                offset += length;
+                currentPosition += length;
+            }
+        } else {
+            ByteBuffer buffer = ByteBuffer.wrap(destination);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of file " + file + ".");
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the value stored at the given position. The file must be locked
+     * for reading.
+     *
+     * @param position the position of the value length in the file
+     *
+     * @return the value
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private byte[] readValue(long position) throws IOException {
+        byte[] lengthBytes = new byte[4];
+        read(position, lengthBytes);
+        byte[] value = new byte[ByteBuffer.wrap(lengthBytes).getInt()];
+        read(position + 4, value);
+        return value;
+    }
+
+    /**
+     * Returns the name of the table.
+     *
+     * @return the name of the table
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * Returns the value stored for the given key, null if not found.
+     *
+     * @param key the key
+     *
+     * @return the value stored for the given key
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public byte[] get(String key) throws IOException {
+        fileLock.readLock().lock();
+        try {
+            Long position = index.get(key);
+            if (position == null) {
+                return null;
+            }
+            return readValue(position);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Indicates whether the table contains the given key.
+     *
+     * @param key the key
+     *
+     * @return a boolean indicating whether the table contains the given key
+     */
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Returns the number of keys in the table.
+     *
+     * @return the number of keys in the table
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns the keys of the table in ascending order.
+     *
+     * @return the keys of the table
+     */
+    public ArrayList<String> getKeys() {
+        return new ArrayList<String>(index.keySet());
+    }
+
+    /**
+     * Returns the keys of the table starting with the given prefix in
+     * ascending order.
+     *
+     * @param prefix the prefix
+     *
+     * @return the keys of the table starting with the given prefix
+     */
+    public ArrayList<String> getKeys(String prefix) {
+        return new ArrayList<String>(index.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet());
+    }
+
+    /**
+     * Returns the keys of the table starting with the given prefix in
+     * ascending order, after the given key and up to the given number of keys.
+     *
+     * @param prefix the prefix
+     * @param lastKey the key after which to start, null to start at the first
+     * key with the given prefix
+     * @param nKeys the maximal number of keys to return
+     *
+     * @return the keys of the table
+     */
+    public ArrayList<String> getKeys(String prefix, String lastKey, int nKeys) {
+        String upperBound = prefix + Character.MAX_VALUE;
+        NavigableMap<String, Long> range;
+        if (lastKey == null) {
+            range = index.subMap(prefix, true, upperBound, false);
+        } else {
+            range = index.subMap(lastKey, false, upperBound, false);
+        }
+        ArrayList<String> keys = new ArrayList<String>(Math.min(nKeys, 1024));
+        for (String key : range.keySet()) {
+            if (keys.size() == nKeys) {
+                break;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the keys and values of the table starting with the given prefix
+     * in ascending order of keys.
+     *
+     * @param prefix the prefix, an empty string for all keys
+     *
+     * @return the keys and values of the table starting with the given prefix
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public ArrayList<Map.Entry<String, byte[]>> getEntries(String prefix) throws IOException {
+        fileLock.readLock().lock();
+        try {
+            ArrayList<Map.Entry<String, byte[]>> entries = new ArrayList<Map.Entry<String, byte[]>>();
+            for (Map.Entry<String, Long> entry : index.subMap(prefix, true, prefix + Character.MAX_VALUE, false).entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<String, byte[]>(entry.getKey(), readValue(entry.getValue())));
+            }
+            return entries;
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a value for the given key, replacing the previous value if any.
+     *
+     * @param key the key
+     * @param value the value
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void put(String key, byte[] value) throws IOException {
+        HashMap<String, byte[]> values = new HashMap<String, byte[]>(1);
+        values.put(key, value);
+        put(values);
+    }
+
+    /**
+     * Stores the given values, replacing the previous values if any. The
+     * records are written in batches.
+     *
+     * @param values the values indexed by key
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void put(HashMap<String, byte[]> values) throws IOException {
+        synchronized (writeMutex) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.min(WRITE_BUFFER_SIZE, 64 * values.size()));
+            DataOutputStream dos = new DataOutputStream(bos);
+            ArrayList<String> batchKeys = new ArrayList<String>();
+            ArrayList<Long> batchPositions = new ArrayList<Long>();
+            ArrayList<Integer> batchLengths = new ArrayList<Integer>();
+            for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                byte[] keyBytes = entry.getKey().getBytes(ENCODING);
+                byte[] value = entry.getValue();
+                dos.writeInt(keyBytes.length);
+                dos.write(keyBytes);
+                batchKeys.add(entry.getKey());
+                batchPositions.add((long) bos.size());
+                if (value == null) {
+                    dos.writeInt(DELETED);
+                    batchLengths.add(8 + keyBytes.length);
+                } else {
+                    dos.writeInt(value.length);
+                    dos.write(value);
+                    batchLengths.add(-(8 + keyBytes.length + value.length));
+                }
+                if (bos.size() >= WRITE_BUFFER_SIZE) {
+                    append(bos, batchKeys, batchPositions, batchLengths);
+                }
+            }
+            append(bos, batchKeys, batchPositions, batchLengths);
+        }
+    }
+
+    /**
+     * Deletes the value of the given key.
+     *
+     * @param key the key
+     *
+     * @return a boolean indicating whether the key was in the table
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public boolean delete(String key) throws IOException {
+        synchronized (writeMutex) {
+            if (!index.containsKey(key)) {
+                return false;
+            }
+            put(key, null);
+            return true;
+        }
+    }
+
+    /**
+     * Appends a batch of records to the file and indexes them. Must be called
+     * while holding the write mutex.
+     *
+     * @param bos the stream containing the records, will be reset
+     * @param batchKeys the keys of the records, will be cleared
+     * @param batchPositions the positions of the value lengths relative to the
+     * start of the batch, will be cleared
+     * @param batchLengths the lengths of the records, positive for deletions
+     * and negative otherwise, will be cleared
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void append(ByteArrayOutputStream bos, ArrayList<String> batchKeys, ArrayList<Long> batchPositions, ArrayList<Integer> batchLengths) throws IOException {
+        if (bos.size() == 0) {
+            return;
+        }
+        fileLock.readLock().lock();
+        try {
+            if (channel == null) {
+                throw new IOException("Table " + tableName + " is closed.");
+            }
+            long start = fileLength;
+            ByteBuffer buffer = ByteBuffer.wrap(bos.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, start + buffer.position());
+            }
+            fileLength = start + buffer.capacity();
+            for (int i = 0; i < batchKeys.size(); i++) {
+                String key = batchKeys.get(i);
+                long position = start + batchPositions.get(i);
+                int recordLength = batchLengths.get(i);
+                boolean deleted = recordLength > 0;
+                Long previousPosition = deleted ? index.remove(key) : index.put(key, position);
+                if (previousPosition != null) {
+                    garbageLength += getRecordLength(key, previousPosition);
+                }
+                if (deleted) {
+                    garbageLength += recordLength;
+                }
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        bos.reset();
+        batchKeys.clear();
+        batchPositions.clear();
+        batchLengths.clear();
+    }
+
+    /**
+     * Returns the length of a record. The file must be locked for reading.
+     *
+     * @param key the key of the record
+     * @param position the position of the value length in the file
+     *
+     * @return the length of the record
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private long getRecordLength(String key, long position) throws IOException {
+        byte[] lengthBytes = new byte[4];
+        read(position, lengthBytes);
+        int valueLength = ByteBuffer.wrap(lengthBytes).getInt();
+        return 8 + key.getBytes(ENCODING).length + Math.max(valueLength, 0);
+    }
+
+    /**
+     * Returns the length of the table file.
+     *
+     * @return the length of the table file
+     */
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * Returns the share of the file used by overwritten and deleted records.
+     *
+     * @return the share of the file used by overwritten and deleted records
+     */
+    public double getGarbageShare() {
+        long length = fileLength;
+        if (length == 0) {
+            return 0;
+        }
+        return ((double) garbageLength) / length;
+    }
+
+    /**
+     * Forces the content of the table to the disk.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void sync() throws IOException {
+        synchronized (writeMutex) {
+            if (channel != null) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the table in a new file containing only the latest record of
+     * every key, in ascending order of keys. The new file is written under a
+     * temporary name, forced to the disk and renamed, the previous file is
+     * deleted only after that, so that a crash during the compaction leaves
+     * the previous file intact.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing the files
+     */
+    public void compact() throws IOException {
+        synchronized (writeMutex) {
+            fileLock.writeLock().lock();
+            try {
+                if (garbageLength == 0) {
+                    return;
+                }
+                File newFile = getFile(folder, baseName, generation + 1);
+                File tempFile = new File(folder, newFile.getName() + TEMP_EXTENSION);
+                byte[] nameBytes = tableName.getBytes(ENCODING);
+                HashMap<String, Long> newPositions = new HashMap<String, Long>(index.size());
+                FileOutputStream fos = new FileOutputStream(tempFile);
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+                boolean renamed = false;
+                try {
+                    dos.writeInt(MAGIC_NUMBER);
+                    dos.writeInt(VERSION);
+                    dos.writeInt(nameBytes.length);
+                    dos.write(nameBytes);
+                    long position = 12 + nameBytes.length;
+                    for (Map.Entry<String, Long> entry : index.entrySet()) {
+                        byte[] keyBytes = entry.getKey().getBytes(ENCODING);
+                        byte[] value = readValue(entry.getValue());
+                        dos.writeInt(keyBytes.length);
+                        dos.write(keyBytes);
+                        newPositions.put(entry.getKey(), position + 4 + keyBytes.length);
+                        dos.writeInt(value.length);
+                        dos.write(value);
+                        position += 8 + keyBytes.length + value.length;
+                    }
+                    dos.flush();
+                    fos.getChannel().force(true);
+                    dos.close();
+                    if (!tempFile.renameTo(newFile)) {
+                        throw new IOException("Impossible to rename " + tempFile + " to " + newFile + ".");
+                    }
+                    renamed = true;
+                } finally {
+                    if (!renamed) {
+                        try {
+                            dos.close();
+                        } finally {
+                            tempFile.delete();
+                        }
+                    }
+                }
+                closeFile();
+                File oldFile = file;
+                generation++;
+                file = newFile;
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                channel = randomAccessFile.getChannel();
+                fileLength = channel.size();
+                index.putAll(newPositions);
+                garbageLength = 0;
+                map(fileLength);
+                if (!oldFile.delete()) {
+                    oldFile.deleteOnExit();
+                }
+            } finally {
+                fileLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Closes the file and releases the mapped chunks. Must be called while
+     * holding the write lock.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * closing the file
+     */
+    private void closeFile() throws IOException {
+        synchronized (mapMutex) {
+            chunks = new MappedByteBuffer[0];
+            mappedLength = 0;
+        }
+        if (channel != null) {
+            channel.force(false);
+            randomAccessFile.close();
+            channel = null;
+            randomAccessFile = null;
+        }
+    }
+
+    /**
+     * Closes the table. The content is forced to the disk.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * closing the file
+     */
+    public void close() throws IOException {
+        synchronized (writeMutex) {
+            fileLock.writeLock().lock();
+            try {
+                closeFile();
+            } finally {
+                fileLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Closes the table and deletes its file.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * closing the file
+     */
+    public void delete() throws IOException {
+        close();
+        index.clear();
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
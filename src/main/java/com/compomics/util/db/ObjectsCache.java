@@ -14,7 +14,8 @@ import java.util.concurrent.Semaphore;
  * An object cache can be combined to an ObjectDB to improve its performance. A
  * single cache can be used by different databases. This ough not to be
  * serialized. The length of lists/maps in the cache shall stay independent from
- * the number of objects in cache.
+ * the number of objects in cache. For caches accessed by many threads, see
+ * the lock-striped ConcurrentObjectsCache.
  *
  * @author Marc Vaudel
  */
@@ -57,7 +58,7 @@ public class ObjectsCache {
     /**
      * Separator used to concatenate strings.
      */
-    private static final String cacheSeparator = "_ccs_";
+    protected static final String cacheSeparator = "_ccs_";
     /**
      * The standard batch size for saving objects in databases.
      */
@@ -674,6 +675,16 @@ public class ObjectsCache {
         return getEntry(dbName, tableName, objectKey) != null;
     }
 
+    /**
+     * Informs the cache of the size of an object in the database, called by
+     * the database whenever an object is written or read. Ignored by default.
+     *
+     * @param object the object
+     * @param size the size of the binary content of the object in bytes
+     */
+    public void setStoredSize(Object object, int size) {
+    }
+
     /**
      * Saves the cache content in the database.
      *
@@ -748,7 +759,7 @@ public class ObjectsCache {
      * @return the cache key which will index an object based on its db name,
      * table name and object key
      */
-    private String getCacheKey(String dbName, String tableName, String objectKey) {
+    protected String getCacheKey(String dbName, String tableName, String objectKey) {
         StringBuilder stringBuilder = new StringBuilder(2 * cacheSeparator.length() + dbName.length() + tableName.length() + objectKey.length());
         stringBuilder.append(dbName).append(cacheSeparator).append(tableName).append(cacheSeparator).append(objectKey);
         return stringBuilder.toString();
@@ -761,7 +772,7 @@ public class ObjectsCache {
      * @param cacheKey the key used by the cache
      * @return the components of the key
      */
-    private String[] getKeyComponents(String cacheKey) {
+    protected String[] getKeyComponents(String cacheKey) {
         return cacheKey.split(cacheSeparator);
     }
 
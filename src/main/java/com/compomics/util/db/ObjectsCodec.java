@@ -0,0 +1,51 @@
+package com.compomics.util.db;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Interface for a codec converting objects to and from the binary content
+ * stored in the database. Objects which cannot be encoded by the codec are
+ * stored using Java serialization.
+ *
+ * @author Marc Vaudel
+ */
+public interface ObjectsCodec extends Serializable {
+
+    /**
+     * Encodes the given object. Returns null if the object cannot be encoded
+     * by this codec, in which case Java serialization is used instead.
+     *
+     * @param object the object to encode
+     *
+     * @return the encoded object, null if not supported by this codec
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * encoding the object
+     */
+    public byte[] encode(Object object) throws IOException;
+
+    /**
+     * Indicates whether the given content was encoded by this codec.
+     *
+     * @param bytes the content as stored in the database
+     *
+     * @return a boolean indicating whether the given content was encoded by
+     * this codec
+     */
+    public boolean canDecode(byte[] bytes);
+
+    /**
+     * Decodes an object encoded by this codec.
+     *
+     * @param bytes the content as stored in the database
+     *
+     * @return the decoded object
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * decoding the object
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object embedded in the content
+     */
+    public Object decode(byte[] bytes) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,190 @@
+package com.compomics.util.db;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A cursor iterating the keys of a table in ascending order, optionally
+ * together with the objects. Keys are fetched in batches, the database is not
+ * locked between batches. Objects added to the database while iterating are
+ * returned if their key comes after the current key.
+ *
+ * @author Marc Vaudel
+ */
+public class ObjectsCursor {
+
+    /**
+     * The database to iterate.
+     */
+    private final ObjectsDB objectsDB;
+    /**
+     * The name of the table to iterate.
+     */
+    private final String tableName;
+    /**
+     * The prefix of the keys to iterate.
+     */
+    private final String prefix;
+    /**
+     * The number of keys to fetch at a time.
+     */
+    private final int batchSize;
+    /**
+     * Boolean indicating whether the objects should be fetched with the keys.
+     */
+    private final boolean withObjects;
+    /**
+     * The keys of the current batch.
+     */
+    private ArrayList<String> batchKeys = new ArrayList<String>(0);
+    /**
+     * The objects of the current batch indexed by key.
+     */
+    private HashMap<String, Object> batchObjects = null;
+    /**
+     * The index of the next key in the batch.
+     */
+    private int batchIndex = 0;
+    /**
+     * The last key fetched from the table.
+     */
+    private String lastKey = null;
+    /**
+     * Boolean indicating whether all keys were fetched from the table.
+     */
+    private boolean tableDone = false;
+    /**
+     * The long keys matching the prefix, iterated after the table.
+     */
+    private ArrayList<String> longKeys = null;
+    /**
+     * The index of the next long key.
+     */
+    private int longKeysIndex = 0;
+    /**
+     * The current object.
+     */
+    private Object currentObject = null;
+
+    /**
+     * Constructor.
+     *
+     * @param objectsDB the database to iterate
+     * @param tableName the name of the table to iterate
+     * @param prefix the prefix of the keys to iterate, an empty string to
+     * iterate all keys
+     * @param batchSize the number of keys to fetch at a time
+     * @param withObjects boolean indicating whether the objects should be
+     * fetched with the keys
+     */
+    ObjectsCursor(ObjectsDB objectsDB, String tableName, String prefix, int batchSize, boolean withObjects) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be positive.");
+        }
+        this.objectsDB = objectsDB;
+        this.tableName = tableName;
+        this.prefix = prefix;
+        this.batchSize = batchSize;
+        this.withObjects = withObjects;
+    }
+
+    /**
+     * Indicates whether the cursor has more keys.
+     *
+     * @return a boolean indicating whether the cursor has more keys
+     *
+     * @throws SQLException exception thrown whenever an error occurs while
+     * interacting with the database
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing a file from the database
+     * @throws InterruptedException exception thrown if a threading error occurs
+     * while interacting with the database
+     */
+    public boolean hasNext() throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        while (batchIndex >= batchKeys.size()) {
+            if (tableDone) {
+                if (longKeys == null) {
+                    longKeys = objectsDB.getLongKeys(tableName, prefix);
+                }
+                return longKeysIndex < longKeys.size();
+            }
+            fetchBatch();
+        }
+        return true;
+    }
+
+    /**
+     * Moves the cursor to the next key and returns it.
+     *
+     * @return the next key
+     *
+     * @throws SQLException exception thrown whenever an error occurs while
+     * interacting with the database
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing a file from the database
+     * @throws InterruptedException exception thrown if a threading error occurs
+     * while interacting with the database
+     */
+    public String next() throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        if (!hasNext()) {
+            throw new IllegalStateException("No more keys in table " + tableName + ".");
+        }
+        if (batchIndex < batchKeys.size()) {
+            String key = batchKeys.get(batchIndex++);
+            currentObject = withObjects ? batchObjects.get(key) : null;
+            return key;
+        }
+        String key = longKeys.get(longKeysIndex++);
+        currentObject = withObjects ? objectsDB.retrieveObject(tableName, key, true, false) : null;
+        return key;
+    }
+
+    /**
+     * Returns the object corresponding to the current key, null if the cursor
+     * was created without objects.
+     *
+     * @return the object corresponding to the current key
+     */
+    public Object getObject() {
+        return currentObject;
+    }
+
+    /**
+     * Fetches the next batch of keys from the table. Long keys are skipped
+     * and iterated at the end.
+     *
+     * @throws SQLException exception thrown whenever an error occurs while
+     * interacting with the database
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing a file from the database
+     * @throws InterruptedException exception thrown if a threading error occurs
+     * while interacting with the database
+     */
+    private void fetchBatch() throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        batchObjects = withObjects ? new HashMap<String, Object>(batchSize) : null;
+        ArrayList<String> keys = objectsDB.getKeys(tableName, prefix, lastKey, batchSize, batchObjects);
+        tableDone = keys.size() < batchSize;
+        if (!keys.isEmpty()) {
+            lastKey = keys.get(keys.size() - 1);
+        }
+        if (objectsDB.isKeyValueStore()) {
+            batchKeys = keys;
+        } else {
+            batchKeys = new ArrayList<String>(keys.size());
+            for (String key : keys) {
+                if (!key.startsWith(ObjectsDB.LONG_KEY_PREFIX)) {
+                    batchKeys.add(key);
+                }
+            }
+        }
+        batchIndex = 0;
+    }
+}
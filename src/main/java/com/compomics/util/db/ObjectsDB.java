@@ -5,10 +5,10 @@ import com.compomics.util.waiting.WaitingHandler;
 import java.io.*;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.concurrent.Semaphore;
-import javax.sql.rowset.serial.SerialBlob;
 
 /**
  * A database which can easily be used to store objects.
@@ -149,11 +149,25 @@ public class ObjectsDB implements Serializable {
      * If true, SQLite is used as the database, if false Derby is used.
      */
     private boolean useSQLite = false;
+    /**
+     * If true, the embedded key value store is used instead of Derby or
+     * SQLite.
+     */
+    private boolean useKeyValueStore = false;
+    /**
+     * The key value store, null if Derby or SQLite is used.
+     */
+    private KeyValueStore keyValueStore = null;
     /**
      * The identifier used to register the derby connection in the DerbyUtil
      * class.
      */
     public static final String derbyConnectionID = "objectsDB";
+    /**
+     * The codec used to encode the objects stored in the database. If null,
+     * Java serialization is used.
+     */
+    private ObjectsCodec objectsCodec = null;
 
     /**
      * Constructor.
@@ -174,7 +188,32 @@ public class ObjectsDB implements Serializable {
      * threading error occurred while establishing the connection
      */
     public ObjectsDB(String folder, String dbName, boolean deleteOldDatabase, ObjectsCache objectsCache) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        this(folder, dbName, deleteOldDatabase, objectsCache, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param folder absolute path of the folder where to establish the database
+     * @param dbName name of the database
+     * @param deleteOldDatabase if true, tries to delete the old database
+     * @param objectsCache a cache to store objects without interacting with the
+     * database
+     * @param useKeyValueStore if true, the objects are stored in the embedded
+     * key value store instead of Derby
+     *
+     * @throws SQLException exception thrown whenever a problem occurred when
+     * establishing the connection to the database
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while reading or writing a file
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing a file
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred while establishing the connection
+     */
+    public ObjectsDB(String folder, String dbName, boolean deleteOldDatabase, ObjectsCache objectsCache, boolean useKeyValueStore) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         this.dbName = dbName;
+        this.useKeyValueStore = useKeyValueStore;
         objectsCache.addDb(this);
         establishConnection(folder, deleteOldDatabase, objectsCache);
     }
@@ -207,6 +246,69 @@ public class ObjectsDB implements Serializable {
         objectCache.addDb(this);
     }
 
+    /**
+     * Returns the codec used to encode the objects stored in the database.
+     * Null if Java serialization is used.
+     *
+     * @return the codec used to encode the objects stored in the database
+     */
+    public ObjectsCodec getObjectsCodec() {
+        return objectsCodec;
+    }
+
+    /**
+     * Sets the codec used to encode the objects stored in the database. Null
+     * to use Java serialization only. Note that objects stored using a codec
+     * can only be read back when the same codec is set.
+     *
+     * @param objectsCodec the codec used to encode the objects stored in the
+     * database
+     */
+    public void setObjectsCodec(ObjectsCodec objectsCodec) {
+        this.objectsCodec = objectsCodec;
+    }
+
+    /**
+     * Indicates whether the objects are stored in the embedded key value store.
+     *
+     * @return a boolean indicating whether the objects are stored in the
+     * embedded key value store
+     */
+    public boolean isKeyValueStore() {
+        return useKeyValueStore;
+    }
+
+    /**
+     * Returns the table of the key value store.
+     *
+     * @param tableName the name of the table
+     *
+     * @return the table of the key value store
+     *
+     * @throws SQLException exception thrown whenever the table is not found
+     */
+    private KeyValueTable getKeyValueTable(String tableName) throws SQLException {
+        KeyValueTable table = keyValueStore.getTable(tableName);
+        if (table == null) {
+            throw new SQLException("Table " + tableName + " not found in database " + dbName + ".");
+        }
+        return table;
+    }
+
+    /**
+     * Compacts the tables of the key value store where more than half of the
+     * file is used by overwritten or deleted objects. No effect when using
+     * Derby or SQLite.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * compacting a table
+     */
+    public void compact() throws IOException {
+        if (keyValueStore != null) {
+            keyValueStore.compact(0.5);
+        }
+    }
+
     /**
      * Adds the desired table in the database.
      *
@@ -221,6 +323,14 @@ public class ObjectsDB implements Serializable {
         if (debugInteractions) {
             System.out.println(System.currentTimeMillis() + " Inserting table, table: " + tableName);
         }
+        if (keyValueStore != null) {
+            try {
+                keyValueStore.addTable(tableName);
+            } catch (IOException e) {
+                throw new SQLException("An error occurred while creating table " + tableName + ".", e);
+            }
+            return;
+        }
         Statement stmt = dbConnection.createStatement();
         dbMutex.acquire();
         try {
@@ -279,6 +389,10 @@ public class ObjectsDB implements Serializable {
      */
     public ArrayList<String> getTables() throws SQLException, InterruptedException {
 
+        if (keyValueStore != null) {
+            return keyValueStore.getTables();
+        }
+
         dbMutex.acquire();
         DatabaseMetaData dmd = dbConnection.getMetaData();
         ArrayList<String> result = new ArrayList<String>();
@@ -351,22 +465,15 @@ public class ObjectsDB implements Serializable {
         if (usedTables != null) {
             usedTables.add(tableName);
         }
+        if (keyValueStore != null) {
+            getKeyValueTable(tableName).put(correctedKey, serializeObject(object));
+            return;
+        }
         dbMutex.acquire();
         PreparedStatement ps = dbConnection.prepareStatement("INSERT INTO " + tableName + " VALUES (?, ?)");
         try {
             ps.setString(1, correctedKey);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            try {
-                ObjectOutputStream oos = new ObjectOutputStream(bos);
-                try {
-                    oos.writeObject(object);
-                } finally {
-                    oos.close();
-                }
-            } finally {
-                bos.close();
-            }
-            ps.setBytes(2, bos.toByteArray());
+            ps.setBytes(2, serializeObject(object));
             ps.executeUpdate();
         } finally {
             ps.close();
@@ -400,6 +507,21 @@ public class ObjectsDB implements Serializable {
             usedTables.add(tableName);
         }
 
+        if (keyValueStore != null) {
+            HashMap<String, byte[]> values = new HashMap<String, byte[]>(objects.size());
+            for (String objectKey : objects.keySet()) {
+                values.put(correctKey(tableName, objectKey), serializeObject(objects.get(objectKey)));
+                if (waitingHandler != null) {
+                    waitingHandler.increaseSecondaryProgressCounter();
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                }
+            }
+            getKeyValueTable(tableName).put(values);
+            return;
+        }
+
         dbMutex.acquire();
 
         dbConnection.setAutoCommit(false);
@@ -438,29 +560,18 @@ public class ObjectsDB implements Serializable {
                 if (tableContent.contains(correctedKey)) {
                     updateKeys.put(objectKey, correctedKey);
                 } else {
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    try {
-                        ObjectOutputStream oos = new ObjectOutputStream(bos);
-                        try {
 
-                            oos.writeObject(objects.get(objectKey));
-                            insertStatement.setString(1, correctedKey);
-                            insertStatement.setBytes(2, bos.toByteArray());
-                            insertStatement.addBatch();
-
-                            if ((++rowCounter) % objectsCache.getBatchSize() == 0) {
-                                insertStatement.executeBatch();
-                                insertStatement.clearParameters();
-                                dbConnection.commit();
-                                insertStatement.close();
-                                insertStatement = dbConnection.prepareStatement("INSERT INTO " + tableName + " VALUES (?, ?)");
-                                rowCounter = 0;
-                            }
-                        } finally {
-                            oos.close();
-                        }
-                    } finally {
-                        bos.close();
+                    insertStatement.setString(1, correctedKey);
+                    insertStatement.setBytes(2, serializeObject(objects.get(objectKey)));
+                    insertStatement.addBatch();
+
+                    if ((++rowCounter) % objectsCache.getBatchSize() == 0) {
+                        insertStatement.executeBatch();
+                        insertStatement.clearParameters();
+                        dbConnection.commit();
+                        insertStatement.close();
+                        insertStatement = dbConnection.prepareStatement("INSERT INTO " + tableName + " VALUES (?, ?)");
+                        rowCounter = 0;
                     }
 
                     addedKeys.add(correctedKey);
@@ -513,29 +624,17 @@ public class ObjectsDB implements Serializable {
                     debugContentWriter.flush();
                 }
 
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                try {
-                    ObjectOutputStream oos = new ObjectOutputStream(bos);
-                    try {
-                        oos.writeObject(objects.get(objectKey));
-
-                        updateStatement.setString(2, correctedKey);
-                        updateStatement.setBytes(1, bos.toByteArray());
-                        updateStatement.addBatch();
-
-                        if ((++rowCounter) % objectsCache.getBatchSize() == 0) {
-                            updateStatement.executeBatch();
-                            updateStatement.clearParameters();
-                            dbConnection.commit();
-                            updateStatement.close();
-                            updateStatement = dbConnection.prepareStatement("UPDATE " + tableName + " SET MATCH_BLOB=? WHERE NAME=?");
-                            rowCounter = 0;
-                        }
-                    } finally {
-                        oos.close();
-                    }
-                } finally {
-                    bos.close();
+                updateStatement.setString(2, correctedKey);
+                updateStatement.setBytes(1, serializeObject(objects.get(objectKey)));
+                updateStatement.addBatch();
+
+                if ((++rowCounter) % objectsCache.getBatchSize() == 0) {
+                    updateStatement.executeBatch();
+                    updateStatement.clearParameters();
+                    dbConnection.commit();
+                    updateStatement.close();
+                    updateStatement = dbConnection.prepareStatement("UPDATE " + tableName + " SET MATCH_BLOB=? WHERE NAME=?");
+                    rowCounter = 0;
                 }
 
                 if (waitingHandler != null) {
@@ -581,6 +680,11 @@ public class ObjectsDB implements Serializable {
      */
     public void loadObjects(String tableName, WaitingHandler waitingHandler, boolean displayProgress) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
+        if (keyValueStore != null) {
+            loadObjectsFromStore(tableName, null, waitingHandler, displayProgress);
+            return;
+        }
+
         if (usedTables == null || usedTables.contains(tableName)) {
             if (!loading && (tableQueue.isEmpty() || tableQueue.indexOf(tableName) == 0)) {
 
@@ -636,28 +740,8 @@ public class ObjectsDB implements Serializable {
                                 String key = results.getString(1);
 
                                 if (!objectsCache.inCache(dbName, tableName, key)) {
-
-                                    Blob tempBlob;
-
-                                    if (useSQLite) {
-                                        byte[] bytes = results.getBytes(2);
-                                        tempBlob = new SerialBlob(bytes);
-                                    } else {
-                                        tempBlob = results.getBlob(2);
-                                    }
-
-                                    BufferedInputStream bis = new BufferedInputStream(tempBlob.getBinaryStream());
-                                    try {
-                                        ObjectInputStream in = new ObjectInputStream(bis);
-                                        try {
-                                            Object object = in.readObject();
-                                            objectsFromDb.put(key, object);
-                                        } finally {
-                                            in.close();
-                                        }
-                                    } finally {
-                                        bis.close();
-                                    }
+                                    Object object = deserializeObject(getBytes(results, 2));
+                                    objectsFromDb.put(key, object);
                                 }
                             }
 
@@ -719,6 +803,11 @@ public class ObjectsDB implements Serializable {
      */
     public void loadObjects(String tableName, ArrayList<String> keys, WaitingHandler waitingHandler, boolean displayProgress) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
+        if (keyValueStore != null) {
+            loadObjectsFromStore(tableName, keys, waitingHandler, displayProgress);
+            return;
+        }
+
         HashSet<String> keysToQuery = new HashSet<String>(keys);
 
         HashSet<String> queue = contentQueue.get(tableName);
@@ -765,12 +854,19 @@ public class ObjectsDB implements Serializable {
                     System.out.println(System.currentTimeMillis() + " getting " + keys.size() + " objects, table: " + tableName);
                 }
 
-                ArrayList<String> toLoad = new ArrayList<String>(keys.size());
+                HashSet<String> toLoad = new HashSet<String>(keys.size());
+                String minKey = null, maxKey = null;
 
                 for (String key : keys) {
                     String correctedKey = correctKey(tableName, key);
                     if (objectsCache != null && !objectsCache.inCache(dbName, tableName, correctedKey)) {
                         toLoad.add(correctedKey);
+                        if (minKey == null || correctedKey.compareTo(minKey) < 0) {
+                            minKey = correctedKey;
+                        }
+                        if (maxKey == null || correctedKey.compareTo(maxKey) > 0) {
+                            maxKey = correctedKey;
+                        }
                     }
                 }
 
@@ -782,12 +878,13 @@ public class ObjectsDB implements Serializable {
                     loading = true;
 
                     try {
-                        Statement stmt = dbConnection.createStatement();
-                        //Statement stmt = dbConnection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY); // @TODO: test if this is faster
-                        //stmt.setFetchSize(toLoad.size()); // @TODO: test if this is faster
+                        // only scan the range of keys to load, batches of sorted keys are thus read using the primary key index
+                        PreparedStatement stmt = dbConnection.prepareStatement("select * from " + tableName + " where NAME >= ? and NAME <= ?");
 
                         try {
-                            ResultSet results = stmt.executeQuery("select * from " + tableName);
+                            stmt.setString(1, minKey);
+                            stmt.setString(2, maxKey);
+                            ResultSet results = stmt.executeQuery();
 
                             try {
                                 int found = 0;
@@ -796,27 +893,8 @@ public class ObjectsDB implements Serializable {
                                     String key = results.getString(1);
                                     if (toLoad.contains(key)) {
                                         found++;
-                                        Blob tempBlob;
-
-                                        if (useSQLite) {
-                                            byte[] bytes = results.getBytes(2);
-                                            tempBlob = new SerialBlob(bytes);
-                                        } else {
-                                            tempBlob = results.getBlob(2);
-                                        }
-
-                                        BufferedInputStream bis = new BufferedInputStream(tempBlob.getBinaryStream());
-                                        try {
-                                            ObjectInputStream in = new ObjectInputStream(bis);
-                                            try {
-                                                Object object = in.readObject();
-                                                objectsFromDb.put(key, object);
-                                            } finally {
-                                                in.close();
-                                            }
-                                        } finally {
-                                            bis.close();
-                                        }
+                                        Object object = deserializeObject(getBytes(results, 2));
+                                        objectsFromDb.put(key, object);
                                         if (waitingHandler != null && displayProgress) {
                                             waitingHandler.increaseSecondaryProgressCounter();
                                         }
@@ -865,6 +943,268 @@ public class ObjectsDB implements Serializable {
         }
     }
 
+    /**
+     * Loads objects from a table of the key value store in the cache.
+     *
+     * @param tableName the table name
+     * @param keys the keys of the objects to load, null to load the entire
+     * table
+     * @param waitingHandler the waiting handler allowing displaying progress
+     * and canceling the process
+     * @param displayProgress boolean indicating whether the progress of this
+     * method should be displayed on the waiting handler
+     *
+     * @throws SQLException exception thrown whenever the table is not found
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing a file from the database
+     * @throws InterruptedException exception thrown if a threading error occurs
+     * while interacting with the database
+     */
+    private void loadObjectsFromStore(String tableName, ArrayList<String> keys, WaitingHandler waitingHandler, boolean displayProgress) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        if (usedTables != null && !usedTables.contains(tableName)) {
+            return;
+        }
+
+        if (debugInteractions) {
+            System.out.println(System.currentTimeMillis() + " getting objects from the key value store, table: " + tableName);
+        }
+
+        KeyValueTable table = getKeyValueTable(tableName);
+        if (keys == null) {
+            keys = table.getKeys();
+        }
+
+        if (waitingHandler != null && displayProgress) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.setSecondaryProgressCounter(0);
+            waitingHandler.setMaxSecondaryProgressCounter(keys.size());
+        }
+
+        for (String key : keys) {
+            String correctedKey = correctKey(tableName, key);
+            if (!objectsCache.inCache(dbName, tableName, correctedKey)) {
+                byte[] value = table.get(correctedKey);
+                if (value != null) {
+                    objectsCache.addObject(dbName, tableName, correctedKey, deserializeObject(value), false, false);
+                }
+            }
+            if (waitingHandler != null) {
+                if (waitingHandler.isRunCanceled()) {
+                    break;
+                }
+                if (displayProgress) {
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            }
+        }
+        objectsCache.updateCache();
+    }
+
+    /**
+     * Streams the objects of a table whose key starts with the given prefix in
+     * the cache. Objects are fetched in batches of the given size so that the
+     * keys of the table are never loaded in memory at once.
+     *
+     * @param tableName the table name
+     * @param prefix the prefix of the keys of the objects to load, an empty
+     * string to load the entire table
+     * @param batchSize the number of objects to fetch at a time
+     * @param waitingHandler the waiting handler allowing displaying progress
+     * and canceling the process
+     * @param displayProgress boolean indicating whether the progress of this
+     * method should be displayed on the waiting handler
+     *
+     * @throws SQLException exception thrown whenever an error occurs while
+     * interacting with the database
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing a file from the database
+     * @throws InterruptedException exception thrown if a threading error occurs
+     * while interacting with the database
+     */
+    public void loadObjects(String tableName, String prefix, int batchSize, WaitingHandler waitingHandler, boolean displayProgress) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        if (debugInteractions) {
+            System.out.println(System.currentTimeMillis() + " streaming objects with prefix " + prefix + ", table: " + tableName);
+        }
+
+        ObjectsCursor cursor = scanObjects(tableName, prefix, batchSize);
+        int count = 0;
+        while (cursor.hasNext()) {
+            String correctedKey = correctKey(tableName, cursor.next());
+            Object object = cursor.getObject();
+            if (object != null && !objectsCache.inCache(dbName, tableName, correctedKey)) {
+                objectsCache.addObject(dbName, tableName, correctedKey, object, false, false);
+            }
+            if (++count % batchSize == 0) {
+                objectsCache.updateCache();
+            }
+            if (waitingHandler != null) {
+                if (waitingHandler.isRunCanceled()) {
+                    break;
+                }
+                if (displayProgress) {
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            }
+        }
+        objectsCache.updateCache();
+    }
+
+    /**
+     * Returns a cursor over the keys of a table starting with the given
+     * prefix, in ascending order.
+     *
+     * @param tableName the table name
+     * @param prefix the prefix of the keys, an empty string to iterate all
+     * keys
+     *
+     * @return a cursor over the keys of the table
+     */
+    public ObjectsCursor scanKeys(String tableName, String prefix) {
+        return new ObjectsCursor(this, tableName, prefix, 10000, false);
+    }
+
+    /**
+     * Returns a cursor over the objects of a table whose key starts with the
+     * given prefix, in ascending order of the keys. Objects are fetched in
+     * batches of the given size. The version in cache is returned for objects
+     * present in the cache, objects in cache not yet saved in the database are
+     * not iterated.
+     *
+     * @param tableName the table name
+     * @param prefix the prefix of the keys, an empty string to iterate all
+     * objects
+     * @param batchSize the number of objects to fetch at a time
+     *
+     * @return a cursor over the objects of the table
+     */
+    public ObjectsCursor scanObjects(String tableName, String prefix, int batchSize) {
+        return new ObjectsCursor(this, tableName, prefix, batchSize, true);
+    }
+
+    /**
+     * Returns the keys of a table starting with the given prefix in ascending
+     * order, after the given key and up to the given number of keys. Long keys
+     * are returned as stored in the database. Objects are not retrieved for
+     * long keys.
+     *
+     * @param tableName the table name
+     * @param prefix the prefix of the keys
+     * @param lastKey the key after which to start, null to start at the first
+     * key with the given prefix
+     * @param nKeys the maximal number of keys to return
+     * @param objects map where to put the objects indexed by key, ignored if
+     * null
+     *
+     * @return the keys
+     *
+     * @throws SQLException exception thrown whenever an error occurs while
+     * interacting with the database
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing a file from the database
+     * @throws InterruptedException exception thrown if a threading error occurs
+     * while interacting with the database
+     */
+    ArrayList<String> getKeys(String tableName, String prefix, String lastKey, int nKeys, HashMap<String, Object> objects) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        if (dbConnection == null && keyValueStore == null || usedTables != null && !usedTables.contains(tableName)) {
+            return new ArrayList<String>(0);
+        }
+
+        if (keyValueStore != null) {
+            KeyValueTable table = getKeyValueTable(tableName);
+            ArrayList<String> keys = table.getKeys(prefix, lastKey, nKeys);
+            if (objects != null) {
+                for (String key : keys) {
+                    Object object = objectsCache.getObject(dbName, tableName, key);
+                    if (object == null) {
+                        byte[] value = table.get(key);
+                        if (value != null) {
+                            object = deserializeObject(value);
+                        }
+                    }
+                    objects.put(key, object);
+                }
+            }
+            return keys;
+        }
+
+        ArrayList<String> keys = new ArrayList<String>(Math.min(nKeys, 1024));
+        HashMap<String, byte[]> values = objects == null ? null : new HashMap<String, byte[]>(Math.min(nKeys, 1024));
+        String query = "select NAME" + (objects == null ? "" : ", MATCH_BLOB")
+                + " from " + tableName
+                + " where NAME " + (lastKey == null ? ">=" : ">") + " ? and NAME < ? order by NAME";
+
+        dbMutex.acquire();
+
+        PreparedStatement stmt = dbConnection.prepareStatement(query);
+        try {
+            stmt.setMaxRows(nKeys);
+            stmt.setString(1, lastKey == null ? prefix : lastKey);
+            stmt.setString(2, prefix + Character.MAX_VALUE);
+            ResultSet results = stmt.executeQuery();
+            try {
+                while (results.next()) {
+                    String key = results.getString(1);
+                    keys.add(key);
+                    if (values != null && !key.startsWith(LONG_KEY_PREFIX)) {
+                        values.put(key, getBytes(results, 2));
+                    }
+                }
+            } finally {
+                results.close();
+            }
+        } finally {
+            stmt.close();
+        }
+
+        dbMutex.release();
+
+        if (values != null) {
+            for (String key : values.keySet()) {
+                Object object = objectsCache.getObject(dbName, tableName, key);
+                if (object == null) {
+                    object = deserializeObject(values.get(key));
+                }
+                objects.put(key, object);
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * Returns the original long keys of a table starting with the given
+     * prefix in ascending order.
+     *
+     * @param tableName the table name
+     * @param prefix the prefix of the keys
+     *
+     * @return the long keys
+     */
+    ArrayList<String> getLongKeys(String tableName, String prefix) {
+        ArrayList<String> result = new ArrayList<String>();
+        if (keyValueStore == null && longKeysMap != null) {
+            ArrayList<String> longKeys = longKeysMap.get(tableName);
+            if (longKeys != null) {
+                for (String key : longKeys) {
+                    if (key.startsWith(prefix)) {
+                        result.add(key);
+                    }
+                }
+                Collections.sort(result);
+            }
+        }
+        return result;
+    }
+
     /**
      * Retrieves an object from the desired table. The key should be unique
      * otherwise the first object will be returned. Returns null if the key is
@@ -965,7 +1305,18 @@ public class ObjectsDB implements Serializable {
             System.out.println(System.currentTimeMillis() + " Retrieving object, table: " + tableName + ", key: " + objectKey);
         }
 
-        if (dbConnection == null || usedTables != null && !usedTables.contains(tableName)) {
+        if (dbConnection == null && keyValueStore == null || usedTables != null && !usedTables.contains(tableName)) {
+            return object;
+        }
+
+        if (keyValueStore != null) {
+            byte[] value = getKeyValueTable(tableName).get(correctedKey);
+            if (value != null) {
+                object = deserializeObject(value);
+            }
+            if (useCache && !objectsCache.inCache(dbName, tableName, objectKey)) {
+                objectsCache.addObject(dbName, tableName, objectKey, object, false, true);
+            }
             return object;
         }
 
@@ -981,26 +1332,7 @@ public class ObjectsDB implements Serializable {
 
                 if (results.next()) {
 
-                    Blob tempBlob;
-
-                    if (useSQLite) {
-                        byte[] bytes = results.getBytes(1);
-                        tempBlob = new SerialBlob(bytes);
-                    } else {
-                        tempBlob = results.getBlob(1);
-                    }
-
-                    BufferedInputStream bis = new BufferedInputStream(tempBlob.getBinaryStream());
-                    try {
-                        ObjectInputStream in = new ObjectInputStream(bis);
-                        try {
-                            object = in.readObject();
-                        } finally {
-                            in.close();
-                        }
-                    } finally {
-                        bis.close();
-                    }
+                    object = deserializeObject(getBytes(results, 1));
 
                     if (debugSpeed) {
                         long loaded = System.currentTimeMillis();
@@ -1017,7 +1349,7 @@ public class ObjectsDB implements Serializable {
                         long written = System.currentTimeMillis();
 
                         FileInputStream fis = new FileInputStream(debugObjectFile);
-                        bis = new BufferedInputStream(fis);
+                        BufferedInputStream bis = new BufferedInputStream(fis);
                         ObjectInputStream in = new ObjectInputStream(bis);
                         Object match = in.readObject();
                         fis.close();
@@ -1103,6 +1435,9 @@ public class ObjectsDB implements Serializable {
         if (debugInteractions) {
             System.out.println(System.currentTimeMillis() + " Checking db content, table: " + tableName + ", key: " + objectKey);
         }
+        if (keyValueStore != null) {
+            return getKeyValueTable(tableName).contains(correctedKey);
+        }
         dbMutex.acquire();
         Statement stmt = dbConnection.createStatement();
         boolean result = false;
@@ -1134,6 +1469,10 @@ public class ObjectsDB implements Serializable {
      */
     public HashSet<String> getTableContent(String tableName) throws SQLException, InterruptedException {
 
+        if (keyValueStore != null) {
+            return new HashSet<String>(getKeyValueTable(tableName).getKeys());
+        }
+
         HashSet<String> tableContent;
         if (tablesContentCache != null) {
             tableContent = tablesContentCache.get(tableName);
@@ -1249,6 +1588,13 @@ public class ObjectsDB implements Serializable {
         // remove from the cache
         objectsCache.removeObject(dbName, tableName, correctedKey);
 
+        if (keyValueStore != null) {
+            if (usedTables == null || usedTables.contains(tableName)) {
+                getKeyValueTable(tableName).delete(correctedKey);
+            }
+            return;
+        }
+
         // delete from database
         dbMutex.acquire();
         if (debugInteractions) {
@@ -1342,6 +1688,11 @@ public class ObjectsDB implements Serializable {
 
         if (!cacheUpdated && (usedTables == null || usedTables.contains(tableName))) {
 
+            if (keyValueStore != null) {
+                getKeyValueTable(tableName).put(correctedKey, serializeObject(object));
+                return;
+            }
+
             dbMutex.acquire();
 
             if (debugInteractions) {
@@ -1349,18 +1700,7 @@ public class ObjectsDB implements Serializable {
             }
             PreparedStatement ps = dbConnection.prepareStatement("update " + tableName + " set MATCH_BLOB=? where NAME='" + objectKey + "'");
             try {
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                try {
-                    ObjectOutputStream oos = new ObjectOutputStream(bos);
-                    try {
-                        oos.writeObject(object);
-                    } finally {
-                        oos.close();
-                    }
-                } finally {
-                    bos.close();
-                }
-                ps.setBytes(1, bos.toByteArray());
+                ps.setBytes(1, serializeObject(object));
                 ps.executeUpdate();
             } finally {
                 ps.close();
@@ -1370,6 +1710,105 @@ public class ObjectsDB implements Serializable {
         }
     }
 
+    /**
+     * Converts an object to the binary content to store in the database using
+     * the codec if set, Java serialization otherwise.
+     *
+     * @param object the object to store
+     *
+     * @return the binary content to store in the database
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * serializing the object
+     */
+    private byte[] serializeObject(Object object) throws IOException {
+
+        if (objectsCodec != null) {
+            byte[] bytes = objectsCodec.encode(object);
+            if (bytes != null) {
+                if (objectsCache != null) {
+                    objectsCache.setStoredSize(object, bytes.length);
+                }
+                return bytes;
+            }
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            try {
+                oos.writeObject(object);
+            } finally {
+                oos.close();
+            }
+        } finally {
+            bos.close();
+        }
+        byte[] bytes = bos.toByteArray();
+        if (objectsCache != null) {
+            objectsCache.setStoredSize(object, bytes.length);
+        }
+        return bytes;
+    }
+
+    /**
+     * Converts the binary content stored in the database back to an object
+     * using the codec if it recognizes the content, Java serialization
+     * otherwise.
+     *
+     * @param bytes the binary content stored in the database
+     *
+     * @return the object stored
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * deserializing the object
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing the object
+     */
+    private Object deserializeObject(byte[] bytes) throws IOException, ClassNotFoundException {
+
+        Object object;
+        if (objectsCodec != null && objectsCodec.canDecode(bytes)) {
+            object = objectsCodec.decode(bytes);
+        } else {
+            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+            try {
+                ObjectInputStream in = new ObjectInputStream(bis);
+                try {
+                    object = in.readObject();
+                } finally {
+                    in.close();
+                }
+            } finally {
+                bis.close();
+            }
+        }
+        if (objectsCache != null) {
+            objectsCache.setStoredSize(object, bytes.length);
+        }
+        return object;
+    }
+
+    /**
+     * Returns the binary content of the given column of the current row of a
+     * result set.
+     *
+     * @param results the result set
+     * @param columnIndex the index of the column
+     *
+     * @return the binary content of the column
+     *
+     * @throws SQLException exception thrown whenever an error occurs while
+     * interacting with the database
+     */
+    private byte[] getBytes(ResultSet results, int columnIndex) throws SQLException {
+        if (useSQLite) {
+            return results.getBytes(columnIndex);
+        }
+        Blob tempBlob = results.getBlob(columnIndex);
+        return tempBlob.getBytes(1, (int) tempBlob.length());
+    }
+
     /**
      * Saves the current date to the CONNECTION_LOG_TABLE.
      *
@@ -1456,7 +1895,7 @@ public class ObjectsDB implements Serializable {
      * @return true if the connection to the DB is active
      */
     public boolean isConnectionActive() {
-        return path != null && DerbyUtil.isActiveConnection(derbyConnectionID, path);
+        return path != null && (keyValueStore != null || DerbyUtil.isActiveConnection(derbyConnectionID, path));
     }
 
     /**
@@ -1477,7 +1916,7 @@ public class ObjectsDB implements Serializable {
         }
         dbMutex.release();
 
-        if (dbConnection != null) {
+        if (dbConnection != null || keyValueStore != null) {
             // try to save the long key indexes
             try {
                 saveAttributes();
@@ -1500,6 +1939,15 @@ public class ObjectsDB implements Serializable {
             e.printStackTrace();
         }
 
+        if (keyValueStore != null) {
+            try {
+                keyValueStore.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            keyValueStore = null;
+        }
+
         if (debugSpeed && debugSpeedWriter != null) {
             try {
                 debugSpeedWriter.close();
@@ -1553,7 +2001,9 @@ public class ObjectsDB implements Serializable {
 
             close();
 
-            DerbyUtil.closeConnection();
+            if (!useKeyValueStore) {
+                DerbyUtil.closeConnection();
+            }
             boolean deleted = Util.deleteDir(dbFolder);
             //TODO: Restore connections?
 
@@ -1570,7 +2020,9 @@ public class ObjectsDB implements Serializable {
         }
         dbMutex.acquire();
 
-        if (useSQLite) {
+        if (useKeyValueStore) {
+            keyValueStore = new KeyValueStore(dbFolder);
+        } else if (useSQLite) {
             try {
                 Class.forName("org.sqlite.JDBC");
                 dbConnection = DriverManager.getConnection("jdbc:sqlite:" + path); // @TODO: another instance of SQLite may have already booted the database. We need to check this first?
@@ -1581,7 +2033,7 @@ public class ObjectsDB implements Serializable {
                 ex.printStackTrace();
             }
         }
-        if (!useSQLite) {
+        if (!useKeyValueStore && !useSQLite) {
             if (isConnectionActive()) {
                 throw new IllegalArgumentException("Impossible to establish a Derby connection in " + path + ", connection to the folder already active.");
             }
@@ -1670,6 +2122,11 @@ public class ObjectsDB implements Serializable {
      */
     public String correctKey(String tableName, String key) {
 
+        // no restriction on the key length in the key value store
+        if (keyValueStore != null) {
+            return key;
+        }
+
         // @TODO: escape special characters:
         //String correctedKey = key.replaceAll("[^\\dA-Za-z ]", "");
         String correctedKey = key;
@@ -0,0 +1,172 @@
+package com.compomics.util.experiment.biology;
+
+import com.compomics.util.experiment.biology.ions.PeptideFragmentIon;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.maps.SecondChanceCache;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Cache for the theoretic fragment ions of peptides. The ions are stored per
+ * peptide sequence and modifications, and per ion types and neutral losses
+ * setting. The size of the cache is the number of ions it holds.
+ *
+ * @author Marc Vaudel
+ */
+public class FragmentIonCache extends SecondChanceCache<FragmentIonCache.Key, TheoreticalFragmentIons> {
+
+    /**
+     * The default capacity in number of ions.
+     */
+    public static final int DEFAULT_CAPACITY = 250000;
+    /**
+     * When evicting, entries are removed until the size of the cache gets
+     * below this share of its capacity.
+     */
+    private static final double EVICTION_TARGET = 0.75;
+
+    /**
+     * Constructor with default capacity.
+     */
+    public FragmentIonCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the capacity of the cache in number of ions
+     */
+    public FragmentIonCache(int capacity) {
+        super(capacity, EVICTION_TARGET);
+    }
+
+    @Override
+    protected long getWeight(TheoreticalFragmentIons fragmentIons) {
+        return fragmentIons.getNIons() + 1;
+    }
+
+    /**
+     * Returns the theoretic fragment ions of the given peptide, computing
+     * them using the given ion factory if not in cache.
+     *
+     * @param ionFactory the ion factory to use to compute missing ions
+     * @param peptide the peptide
+     * @param specificAnnotationSettings if provided, only the ions detectable
+     * using these settings will be selected
+     *
+     * @return the theoretic fragment ions of the peptide
+     */
+    public TheoreticalFragmentIons getFragmentIons(IonFactory ionFactory, Peptide peptide, SpecificAnnotationSettings specificAnnotationSettings) {
+        Key key = new Key(getPeptideKey(peptide), getSettingsKey(specificAnnotationSettings));
+        TheoreticalFragmentIons fragmentIons = get(key);
+        if (fragmentIons == null) {
+            fragmentIons = put(key, new TheoreticalFragmentIons(ionFactory.getFragmentIons(peptide, specificAnnotationSettings)));
+        }
+        return fragmentIons;
+    }
+
+    /**
+     * Returns the key of a peptide in the cache: the sequence followed by the
+     * name, site and mass of every modification in the order of the
+     * modification matches. The mass is taken from the PTM factory so that
+     * ions cached before a modification was changed are not returned.
+     *
+     * @param peptide the peptide
+     *
+     * @return the key of the peptide in the cache
+     */
+    private static String getPeptideKey(Peptide peptide) {
+        String sequence = peptide.getSequence();
+        if (!peptide.isModified()) {
+            return sequence;
+        }
+        PTMFactory ptmFactory = PTMFactory.getInstance();
+        StringBuilder peptideKey = new StringBuilder(sequence.length() + 48 * peptide.getNModifications());
+        peptideKey.append(sequence);
+        for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+            String ptmName = modificationMatch.getTheoreticPtm();
+            peptideKey.append('_').append(ptmName).append('@').append(modificationMatch.getModificationSite())
+                    .append('=').append(ptmFactory.getPTM(ptmName).getMass());
+        }
+        return peptideKey.toString();
+    }
+
+    /**
+     * Returns a key for the annotation settings used by the ion factory: the
+     * selected ion types, the selected peptide fragment ion types and whether
+     * neutral losses are annotated, as bits of an integer.
+     *
+     * @param specificAnnotationSettings the specific annotation settings
+     *
+     * @return the key of the settings in the cache
+     */
+    private static int getSettingsKey(SpecificAnnotationSettings specificAnnotationSettings) {
+        if (specificAnnotationSettings == null) {
+            return -1;
+        }
+        int settingsKey = 0;
+        HashMap<Ion.IonType, HashSet<Integer>> selectedIonTypes = specificAnnotationSettings.getIonTypes();
+        for (Ion.IonType ionType : selectedIonTypes.keySet()) {
+            settingsKey |= 1 << ionType.index;
+        }
+        for (Integer fragmentIonType : specificAnnotationSettings.getFragmentIonTypes()) {
+            if (fragmentIonType >= PeptideFragmentIon.A_ION && fragmentIonType <= PeptideFragmentIon.Z_ION) {
+                settingsKey |= 1 << (16 + fragmentIonType);
+            }
+        }
+        if (!specificAnnotationSettings.getNeutralLossesMap().isEmpty()) {
+            settingsKey |= 1 << 30;
+        }
+        return settingsKey;
+    }
+
+    /**
+     * Key of a cache entry.
+     */
+    static class Key {
+
+        /**
+         * The key of the peptide.
+         */
+        private final String peptideKey;
+        /**
+         * The key of the annotation settings.
+         */
+        private final int settingsKey;
+        /**
+         * The hash code.
+         */
+        private final int hash;
+
+        /**
+         * Constructor.
+         *
+         * @param peptideKey the key of the peptide
+         * @param settingsKey the key of the annotation settings
+         */
+        Key(String peptideKey, int settingsKey) {
+            this.peptideKey = peptideKey;
+            this.settingsKey = settingsKey;
+            hash = 31 * peptideKey.hashCode() + settingsKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && settingsKey == other.settingsKey && peptideKey.equals(other.peptideKey);
+        }
+    }
+}
@@ -15,6 +15,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This factory generates the expected ions from a peptide.
@@ -36,7 +37,11 @@ public class IonFactory {
     /**
      * Cache for the possible combinations of neutral losses.
      */
-    private HashMap<String, NeutralLossCombination[]> neutralLossesCombinationsCache = new HashMap<String, NeutralLossCombination[]>();
+    private final ConcurrentHashMap<String, NeutralLossCombination[]> neutralLossesCombinationsCache = new ConcurrentHashMap<String, NeutralLossCombination[]>();
+    /**
+     * Cache for the theoretic fragment ions of peptides.
+     */
+    private final FragmentIonCache fragmentIonCache = new FragmentIonCache();
     /**
      * Cache for the mass of NH3.
      */
@@ -496,6 +501,32 @@ public class IonFactory {
         return result;
     }
 
+    /**
+     * Returns the theoretic ions expected from a peptide from the fragment
+     * ion cache, computing them if needed. The ions are shared between
+     * callers and must not be modified, use getFragmentIons to obtain ions
+     * that can be modified. /!\ this method will work only if the PMTs found
+     * in the peptide are in the PTMFactory.
+     *
+     * @param peptide The considered peptide
+     * @param specificAnnotationSettings if provided, only the ions detectable
+     * using these settings will be selected
+     *
+     * @return the expected fragment ions
+     */
+    public TheoreticalFragmentIons getTheoreticalFragmentIons(Peptide peptide, SpecificAnnotationSettings specificAnnotationSettings) {
+        return fragmentIonCache.getFragmentIons(this, peptide, specificAnnotationSettings);
+    }
+
+    /**
+     * Returns the cache of the theoretic fragment ions of peptides.
+     *
+     * @return the cache of the theoretic fragment ions of peptides
+     */
+    public FragmentIonCache getFragmentIonCache() {
+        return fragmentIonCache;
+    }
+
     /**
      * This method returns the theoretic ions expected from a tag.
      *
@@ -0,0 +1,203 @@
+package com.compomics.util.experiment.biology;
+
+import com.compomics.util.experiment.biology.ions.ElementaryIon;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The theoretic fragment ions of a peptide as returned by the IonFactory,
+ * together with compact arrays of their masses and m/z values per ion type,
+ * subtype and charge. The arrays are in the order of the ions in the map.
+ *
+ * Instances are shared between threads by the FragmentIonCache: neither the
+ * ions nor the arrays returned must be modified.
+ *
+ * @author Marc Vaudel
+ */
+public class TheoreticalFragmentIons {
+
+    /**
+     * The ions indexed by type and subtype.
+     */
+    private final HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> ions;
+    /**
+     * The ion series indexed by type and subtype.
+     */
+    private final HashMap<Integer, HashMap<Integer, IonSeries>> ionSeries;
+    /**
+     * The total number of ions.
+     */
+    private final int nIons;
+
+    /**
+     * Constructor.
+     *
+     * @param ions the ions indexed by type and subtype as returned by the
+     * IonFactory
+     */
+    public TheoreticalFragmentIons(HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> ions) {
+        this.ions = ions;
+        ionSeries = new HashMap<Integer, HashMap<Integer, IonSeries>>(ions.size());
+        int ionCount = 0;
+        for (Integer ionType : ions.keySet()) {
+            HashMap<Integer, ArrayList<Ion>> ionsOfType = ions.get(ionType);
+            HashMap<Integer, IonSeries> seriesOfType = new HashMap<Integer, IonSeries>(ionsOfType.size());
+            for (Integer subType : ionsOfType.keySet()) {
+                ArrayList<Ion> ionsOfSubType = ionsOfType.get(subType);
+                seriesOfType.put(subType, new IonSeries(ionsOfSubType));
+                ionCount += ionsOfSubType.size();
+            }
+            ionSeries.put(ionType, seriesOfType);
+        }
+        nIons = ionCount;
+    }
+
+    /**
+     * Returns the ions indexed by type and subtype. The map must not be
+     * modified.
+     *
+     * @return the ions indexed by type and subtype
+     */
+    public HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> getIons() {
+        return ions;
+    }
+
+    /**
+     * Returns the ions of the given type and subtype, null if none.
+     *
+     * @param ionType the index of the ion type
+     * @param subType the ion subtype
+     *
+     * @return the ions of the given type and subtype
+     */
+    public ArrayList<Ion> getIons(int ionType, int subType) {
+        HashMap<Integer, ArrayList<Ion>> ionsOfType = ions.get(ionType);
+        if (ionsOfType == null) {
+            return null;
+        }
+        return ionsOfType.get(subType);
+    }
+
+    /**
+     * Returns the theoretic masses of the ions of the given type and subtype
+     * in the order of the ions, null if none. The array must not be modified.
+     *
+     * @param ionType the index of the ion type
+     * @param subType the ion subtype
+     *
+     * @return the theoretic masses of the ions
+     */
+    public double[] getMasses(int ionType, int subType) {
+        IonSeries series = getIonSeries(ionType, subType);
+        if (series == null) {
+            return null;
+        }
+        return series.masses;
+    }
+
+    /**
+     * Returns the theoretic m/z of the ions of the given type and subtype at
+     * the given charge in the order of the ions, null if none. The values are
+     * the ones of Ion.getTheoreticMz. The array must not be modified.
+     *
+     * @param ionType the index of the ion type
+     * @param subType the ion subtype
+     * @param charge the charge
+     *
+     * @return the theoretic m/z of the ions
+     */
+    public double[] getMz(int ionType, int subType, int charge) {
+        IonSeries series = getIonSeries(ionType, subType);
+        if (series == null) {
+            return null;
+        }
+        return series.getMz(charge);
+    }
+
+    /**
+     * Returns the total number of ions.
+     *
+     * @return the total number of ions
+     */
+    public int getNIons() {
+        return nIons;
+    }
+
+    /**
+     * Returns the ion series of the given type and subtype, null if none.
+     *
+     * @param ionType the index of the ion type
+     * @param subType the ion subtype
+     *
+     * @return the ion series
+     */
+    private IonSeries getIonSeries(int ionType, int subType) {
+        HashMap<Integer, IonSeries> seriesOfType = ionSeries.get(ionType);
+        if (seriesOfType == null) {
+            return null;
+        }
+        return seriesOfType.get(subType);
+    }
+
+    /**
+     * The masses of the ions of a given type and subtype, and their m/z
+     * values computed on demand per charge.
+     */
+    private static class IonSeries {
+
+        /**
+         * The theoretic masses of the ions.
+         */
+        final double[] masses;
+        /**
+         * The m/z values indexed by charge.
+         */
+        private volatile double[][] mzValues = new double[0][];
+
+        /**
+         * Constructor.
+         *
+         * @param ions the ions of the series
+         */
+        IonSeries(ArrayList<Ion> ions) {
+            masses = new double[ions.size()];
+            for (int i = 0; i < masses.length; i++) {
+                masses[i] = ions.get(i).getTheoreticMass();
+            }
+        }
+
+        /**
+         * Returns the m/z values of the ions at the given charge.
+         *
+         * @param charge the charge
+         *
+         * @return the m/z values of the ions
+         */
+        double[] getMz(int charge) {
+            double[][] currentMzValues = mzValues;
+            if (charge < currentMzValues.length && currentMzValues[charge] != null) {
+                return currentMzValues[charge];
+            }
+            synchronized (this) {
+                currentMzValues = mzValues;
+                if (charge < currentMzValues.length && currentMzValues[charge] != null) {
+                    return currentMzValues[charge];
+                }
+                double protonMass = ElementaryIon.proton.getTheoreticMass();
+                double[] mz = new double[masses.length];
+                for (int i = 0; i < masses.length; i++) {
+                    double ionMz = masses[i] + protonMass;
+                    if (charge > 1) {
+                        ionMz = (ionMz + (charge - 1) * protonMass) / charge;
+                    }
+                    mz[i] = ionMz;
+                }
+                double[][] newMzValues = Arrays.copyOf(currentMzValues, Math.max(currentMzValues.length, charge + 1));
+                newMzValues[charge] = mz;
+                mzValues = newMzValues;
+                return mz;
+            }
+        }
+    }
+}
@@ -216,6 +216,12 @@ public abstract class Identification extends ExperimentObject {
      * while interacting with the database
      */
     public void loadSpectrumMatches(String fileName, WaitingHandler waitingHandler, boolean displayProgress) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        HashSet<String> spectrumKeys = spectrumIdentificationMap.get(fileName);
+        if (waitingHandler != null && displayProgress && spectrumKeys != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.setSecondaryProgressCounter(0);
+            waitingHandler.setMaxSecondaryProgressCounter(spectrumKeys.size());
+        }
         identificationDB.loadSpectrumMatches(fileName, waitingHandler, displayProgress);
     }
 
@@ -58,6 +58,10 @@ public class IdentificationDB implements Serializable {
      * The suffix for a PSM parameters table.
      */
     private static String psmParametersTableSuffix = "_psm_parameters";
+    /**
+     * The number of objects fetched at a time when streaming a table.
+     */
+    private static final int SCAN_BATCH_SIZE = 1000;
     /**
      * List of all raw assumptions tables.
      */
@@ -106,8 +110,32 @@ public class IdentificationDB implements Serializable {
      * while interacting with the database
      */
     public IdentificationDB(String folder, String name, boolean deleteOldDatabase, ObjectsCache objectCache) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        this(folder, name, deleteOldDatabase, objectCache, false);
+    }
+
+    /**
+     * Constructor creating the database and the protein and protein parameters
+     * tables.
+     *
+     * @param folder the folder where to put the database
+     * @param name the database name
+     * @param deleteOldDatabase if true, tries to delete the old database
+     * @param objectCache the objects cache
+     * @param useKeyValueStore if true, the matches are stored in the embedded
+     * key value store instead of Derby
+     *
+     * @throws SQLException exception thrown whenever an error occurs while
+     * interacting with the database
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing a file from the database
+     * @throws InterruptedException exception thrown if a threading error occurs
+     * while interacting with the database
+     */
+    public IdentificationDB(String folder, String name, boolean deleteOldDatabase, ObjectsCache objectCache, boolean useKeyValueStore) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         this.dbName = name;
-        objectsDB = new ObjectsDB(folder, dbName, deleteOldDatabase, objectCache);
+        objectsDB = new ObjectsDB(folder, dbName, deleteOldDatabase, objectCache, useKeyValueStore);
         if (deleteOldDatabase) {
             objectsDB.addTable(proteinTableName);
             objectsDB.addTable(peptideTableName);
@@ -791,7 +819,7 @@ public class IdentificationDB implements Serializable {
 
     /**
      * Loads all spectrum matches of the given file in the cache of the
-     * database.
+     * database. The matches are streamed from the database in batches.
      *
      * @param fileName the file name
      * @param waitingHandler the waiting handler allowing displaying progress
@@ -811,7 +839,7 @@ public class IdentificationDB implements Serializable {
     public void loadSpectrumMatches(String fileName, WaitingHandler waitingHandler, boolean displayProgress) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         String testKey = Spectrum.getSpectrumKey(fileName, "test");
         String tableName = getSpectrumMatchTable(testKey);
-        objectsDB.loadObjects(tableName, waitingHandler, displayProgress);
+        objectsDB.loadObjects(tableName, "", SCAN_BATCH_SIZE, waitingHandler, displayProgress);
     }
 
     /**
@@ -0,0 +1,950 @@
+package com.compomics.util.experiment.identification;
+
+import com.compomics.util.db.ObjectsCodec;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.matches.VariantMatch;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.identification.spectrum_assumptions.TagAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.personalization.ExperimentObject;
+import com.compomics.util.experiment.personalization.UrParameter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Compact binary codec for the identification matches stored in the
+ * database. Spectrum, peptide and protein matches, peptide assumptions and
+ * peptides are written field by field using variable length integers and a
+ * per-object string dictionary, without class descriptors. Other objects
+ * reachable from these, like user parameters or tag assumptions, are embedded
+ * using Java serialization.
+ *
+ * @author Marc Vaudel
+ */
+public class MatchesCodec implements ObjectsCodec {
+
+    /**
+     * The version UID for serialization/deserialization compatibility.
+     */
+    static final long serialVersionUID = -3948315573401217865L;
+    /**
+     * The first byte of the content encoded by this codec. Java serialization
+     * streams start with 0xACED.
+     */
+    private static final byte MAGIC_0 = (byte) 0xC0;
+    /**
+     * The second byte of the content encoded by this codec.
+     */
+    private static final byte MAGIC_1 = (byte) 0x4D;
+    /**
+     * The version of the format.
+     */
+    private static final byte VERSION = 1;
+    /**
+     * Tag for a null object.
+     */
+    private static final int NULL = 0;
+    /**
+     * Tag for a reference to an object already written.
+     */
+    private static final int REFERENCE = 1;
+    /**
+     * Tag for an object embedded using Java serialization.
+     */
+    private static final int SERIALIZED = 2;
+    /**
+     * Tag for a spectrum match.
+     */
+    private static final int SPECTRUM_MATCH = 3;
+    /**
+     * Tag for a peptide match.
+     */
+    private static final int PEPTIDE_MATCH = 4;
+    /**
+     * Tag for a protein match.
+     */
+    private static final int PROTEIN_MATCH = 5;
+    /**
+     * Tag for a peptide assumption.
+     */
+    private static final int PEPTIDE_ASSUMPTION = 6;
+    /**
+     * Tag for a peptide.
+     */
+    private static final int PEPTIDE = 7;
+
+    /**
+     * Constructor.
+     */
+    public MatchesCodec() {
+    }
+
+    @Override
+    public byte[] encode(Object object) throws IOException {
+        if (getTag(object) < SPECTRUM_MATCH) {
+            return null;
+        }
+        Encoder encoder = new Encoder();
+        encoder.writeObject(object);
+        return encoder.toByteArray();
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length > 2 && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+    }
+
+    @Override
+    public Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        if (bytes[2] != VERSION) {
+            throw new IOException("Unsupported matches encoding version: " + bytes[2] + ".");
+        }
+        Decoder decoder = new Decoder(bytes, 3);
+        return decoder.readObject();
+    }
+
+    /**
+     * Returns the tag to use for the given object. Only the exact classes
+     * supported are written in the compact format, subclasses are embedded
+     * using Java serialization.
+     *
+     * @param object the object
+     *
+     * @return the tag to use for the given object
+     */
+    private static int getTag(Object object) {
+        if (object == null) {
+            return NULL;
+        }
+        Class objectClass = object.getClass();
+        if (objectClass == SpectrumMatch.class) {
+            return SPECTRUM_MATCH;
+        } else if (objectClass == PeptideMatch.class) {
+            return PEPTIDE_MATCH;
+        } else if (objectClass == ProteinMatch.class) {
+            return PROTEIN_MATCH;
+        } else if (objectClass == PeptideAssumption.class && ((PeptideAssumption) object).getScore() != null) {
+            return PEPTIDE_ASSUMPTION;
+        } else if (objectClass == Peptide.class && ((Peptide) object).getSequence() != null) {
+            return PEPTIDE;
+        }
+        return SERIALIZED;
+    }
+
+    /**
+     * Writes objects to a growable byte array.
+     */
+    private static class Encoder {
+
+        /**
+         * The content written.
+         */
+        private byte[] buffer = new byte[256];
+        /**
+         * The length of the content written.
+         */
+        private int length = 0;
+        /**
+         * Index of the strings already written.
+         */
+        private final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+        /**
+         * Index of the objects already written.
+         */
+        private final IdentityHashMap<Object, Integer> handles = new IdentityHashMap<Object, Integer>();
+        /**
+         * The objects to embed using Java serialization.
+         */
+        private final ArrayList<Object> serializedObjects = new ArrayList<Object>(0);
+
+        /**
+         * Returns the encoded content: header, objects embedded using Java
+         * serialization and the compact content.
+         *
+         * @return the encoded content
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while serializing an embedded object
+         */
+        public byte[] toByteArray() throws IOException {
+
+            byte[] serialized = null;
+            if (!serializedObjects.isEmpty()) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(bos);
+                try {
+                    oos.writeObject(serializedObjects);
+                } finally {
+                    oos.close();
+                }
+                serialized = bos.toByteArray();
+            }
+
+            byte[] body = buffer;
+            int bodyLength = length;
+            buffer = new byte[bodyLength + 8 + (serialized == null ? 0 : serialized.length)];
+            length = 0;
+            writeByte(MAGIC_0);
+            writeByte(MAGIC_1);
+            writeByte(VERSION);
+            if (serialized == null) {
+                writeVarInt(0);
+            } else {
+                writeVarInt(serialized.length);
+                writeBytes(serialized, serialized.length);
+            }
+            writeBytes(body, bodyLength);
+
+            byte[] result = new byte[length];
+            System.arraycopy(buffer, 0, result, 0, length);
+            return result;
+        }
+
+        /**
+         * Makes sure that the buffer can hold the given number of additional
+         * bytes.
+         *
+         * @param nBytes the number of additional bytes
+         */
+        private void ensureCapacity(int nBytes) {
+            if (length + nBytes > buffer.length) {
+                byte[] newBuffer = new byte[Math.max(2 * buffer.length, length + nBytes)];
+                System.arraycopy(buffer, 0, newBuffer, 0, length);
+                buffer = newBuffer;
+            }
+        }
+
+        /**
+         * Writes a byte.
+         *
+         * @param value the byte
+         */
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) value;
+        }
+
+        /**
+         * Writes the given number of bytes of an array.
+         *
+         * @param bytes the bytes
+         * @param nBytes the number of bytes to write
+         */
+        private void writeBytes(byte[] bytes, int nBytes) {
+            ensureCapacity(nBytes);
+            System.arraycopy(bytes, 0, buffer, length, nBytes);
+            length += nBytes;
+        }
+
+        /**
+         * Writes a positive integer using one to five bytes.
+         *
+         * @param value the integer
+         */
+        private void writeVarInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        /**
+         * Writes a signed integer using zigzag encoding.
+         *
+         * @param value the integer
+         */
+        private void writeSignedVarInt(int value) {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        /**
+         * Writes a double on eight bytes.
+         *
+         * @param value the double
+         */
+        private void writeDouble(double value) {
+            long bits = Double.doubleToLongBits(value);
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (bits >>> shift);
+            }
+        }
+
+        /**
+         * Writes a double which can be null.
+         *
+         * @param value the double
+         */
+        private void writeNullableDouble(Double value) {
+            if (value == null) {
+                writeByte(0);
+            } else {
+                writeByte(1);
+                writeDouble(value);
+            }
+        }
+
+        /**
+         * Writes a string which can be null. Strings already written are
+         * replaced by their index.
+         *
+         * @param value the string
+         *
+         * @throws IOException exception thrown whenever the string cannot be
+         * encoded
+         */
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeVarInt(index + 2);
+                return;
+            }
+            strings.put(value, strings.size());
+            byte[] bytes = value.getBytes("UTF-8");
+            writeVarInt(1);
+            writeVarInt(bytes.length);
+            writeBytes(bytes, bytes.length);
+        }
+
+        /**
+         * Writes a list of strings which can be null.
+         *
+         * @param values the list of strings
+         *
+         * @throws IOException exception thrown whenever a string cannot be
+         * encoded
+         */
+        private void writeStringList(ArrayList<String> values) throws IOException {
+            if (values == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(values.size() + 1);
+            for (String value : values) {
+                writeString(value);
+            }
+        }
+
+        /**
+         * Writes the user parameters of an object.
+         *
+         * @param experimentObject the object
+         *
+         * @throws IOException exception thrown whenever a parameter cannot be
+         * encoded
+         */
+        private void writeUrParams(ExperimentObject experimentObject) throws IOException {
+            HashMap<String, UrParameter> urParams = experimentObject.getUrParams();
+            if (urParams == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(urParams.size());
+            for (UrParameter urParameter : urParams.values()) {
+                writeObject(urParameter);
+            }
+        }
+
+        /**
+         * Writes an object.
+         *
+         * @param object the object
+         *
+         * @throws IOException exception thrown whenever the object cannot be
+         * encoded
+         */
+        public void writeObject(Object object) throws IOException {
+
+            int tag = getTag(object);
+
+            if (tag == NULL) {
+                writeVarInt(NULL);
+                return;
+            }
+            if (tag == SERIALIZED) {
+                writeVarInt(SERIALIZED);
+                writeVarInt(serializedObjects.size());
+                serializedObjects.add(object);
+                return;
+            }
+
+            Integer handle = handles.get(object);
+            if (handle != null) {
+                writeVarInt(REFERENCE);
+                writeVarInt(handle);
+                return;
+            }
+            handles.put(object, handles.size());
+
+            writeVarInt(tag);
+            switch (tag) {
+                case SPECTRUM_MATCH:
+                    writeSpectrumMatch((SpectrumMatch) object);
+                    break;
+                case PEPTIDE_MATCH:
+                    writePeptideMatch((PeptideMatch) object);
+                    break;
+                case PROTEIN_MATCH:
+                    writeProteinMatch((ProteinMatch) object);
+                    break;
+                case PEPTIDE_ASSUMPTION:
+                    writePeptideAssumption((PeptideAssumption) object);
+                    break;
+                case PEPTIDE:
+                    writePeptide((Peptide) object);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Tag " + tag + " not implemented.");
+            }
+        }
+
+        /**
+         * Writes a spectrum match.
+         *
+         * @param spectrumMatch the spectrum match
+         *
+         * @throws IOException exception thrown whenever the match cannot be
+         * encoded
+         */
+        private void writeSpectrumMatch(SpectrumMatch spectrumMatch) throws IOException {
+            writeString(spectrumMatch.getKey());
+            Integer spectrumNumber = spectrumMatch.getSpectrumNumber();
+            if (spectrumNumber == null) {
+                writeByte(0);
+            } else {
+                writeByte(1);
+                writeSignedVarInt(spectrumNumber);
+            }
+            HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptionsMap = spectrumMatch.getAssumptionsMap();
+            if (assumptionsMap == null) {
+                writeVarInt(0);
+            } else {
+                writeVarInt(assumptionsMap.size() + 1);
+                for (Integer advocateId : assumptionsMap.keySet()) {
+                    writeSignedVarInt(advocateId);
+                    HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateMap = assumptionsMap.get(advocateId);
+                    writeVarInt(advocateMap.size());
+                    for (Double score : advocateMap.keySet()) {
+                        writeNullableDouble(score);
+                        ArrayList<SpectrumIdentificationAssumption> assumptions = advocateMap.get(score);
+                        writeVarInt(assumptions.size());
+                        for (SpectrumIdentificationAssumption assumption : assumptions) {
+                            writeObject(assumption);
+                        }
+                    }
+                }
+            }
+            writeObject(spectrumMatch.getBestPeptideAssumption());
+            writeObject(spectrumMatch.getBestTagAssumption());
+            writeUrParams(spectrumMatch);
+        }
+
+        /**
+         * Writes a peptide match.
+         *
+         * @param peptideMatch the peptide match
+         *
+         * @throws IOException exception thrown whenever the match cannot be
+         * encoded
+         */
+        private void writePeptideMatch(PeptideMatch peptideMatch) throws IOException {
+            writeString(peptideMatch.getKey());
+            writeObject(peptideMatch.getTheoreticPeptide());
+            writeStringList(peptideMatch.getSpectrumMatchesKeys());
+            writeUrParams(peptideMatch);
+        }
+
+        /**
+         * Writes a protein match.
+         *
+         * @param proteinMatch the protein match
+         *
+         * @throws IOException exception thrown whenever the match cannot be
+         * encoded
+         */
+        private void writeProteinMatch(ProteinMatch proteinMatch) throws IOException {
+            writeStringList(proteinMatch.getTheoreticProteinsAccessions());
+            writeString(proteinMatch.getMainMatch());
+            writeStringList(proteinMatch.getPeptideMatchesKeys());
+            writeUrParams(proteinMatch);
+        }
+
+        /**
+         * Writes a peptide assumption.
+         *
+         * @param peptideAssumption the peptide assumption
+         *
+         * @throws IOException exception thrown whenever the assumption cannot
+         * be encoded
+         */
+        private void writePeptideAssumption(PeptideAssumption peptideAssumption) throws IOException {
+            writeObject(peptideAssumption.getPeptide());
+            writeSignedVarInt(peptideAssumption.getRank());
+            writeSignedVarInt(peptideAssumption.getAdvocate());
+            Charge charge = peptideAssumption.getIdentificationCharge();
+            if (charge == null) {
+                writeByte(0);
+            } else {
+                writeByte(1);
+                writeSignedVarInt(charge.sign);
+                writeSignedVarInt(charge.value);
+                writeUrParams(charge);
+            }
+            writeDouble(peptideAssumption.getScore());
+            writeString(peptideAssumption.getIdentificationFile());
+            writeNullableDouble(peptideAssumption.getRawScore());
+            ArrayList<double[]> aminoAcidScores = peptideAssumption.getAminoAcidScores();
+            if (aminoAcidScores == null) {
+                writeVarInt(0);
+            } else {
+                writeVarInt(aminoAcidScores.size() + 1);
+                for (double[] scores : aminoAcidScores) {
+                    if (scores == null) {
+                        writeVarInt(0);
+                    } else {
+                        writeVarInt(scores.length + 1);
+                        for (double score : scores) {
+                            writeDouble(score);
+                        }
+                    }
+                }
+            }
+            writeUrParams(peptideAssumption);
+        }
+
+        /**
+         * Writes a peptide.
+         *
+         * @param peptide the peptide
+         *
+         * @throws IOException exception thrown whenever the peptide cannot be
+         * encoded
+         */
+        private void writePeptide(Peptide peptide) throws IOException {
+            writeString(peptide.getSequence());
+            ArrayList<ModificationMatch> modificationMatches = peptide.getModificationMatches();
+            if (modificationMatches == null) {
+                writeVarInt(0);
+            } else {
+                writeVarInt(modificationMatches.size() + 1);
+                for (ModificationMatch modificationMatch : modificationMatches) {
+                    writeString(modificationMatch.getTheoreticPtm());
+                    int flags = 0;
+                    if (modificationMatch.isVariable()) {
+                        flags |= 1;
+                    }
+                    if (modificationMatch.isConfident()) {
+                        flags |= 2;
+                    }
+                    if (modificationMatch.isInferred()) {
+                        flags |= 4;
+                    }
+                    writeByte(flags);
+                    writeSignedVarInt(modificationMatch.getModificationSite());
+                    writeUrParams(modificationMatch);
+                }
+            }
+            writeStringList(peptide.getParentProteinsNoRemapping());
+            writeObject(peptide.getVariantMatches());
+            writeUrParams(peptide);
+        }
+    }
+
+    /**
+     * Reads objects from the content of a byte array.
+     */
+    private static class Decoder {
+
+        /**
+         * The content to read.
+         */
+        private final byte[] buffer;
+        /**
+         * The current position in the buffer.
+         */
+        private int position;
+        /**
+         * The strings read.
+         */
+        private final ArrayList<String> strings = new ArrayList<String>();
+        /**
+         * The objects read.
+         */
+        private final ArrayList<Object> handles = new ArrayList<Object>();
+        /**
+         * The objects embedded using Java serialization.
+         */
+        private ArrayList<Object> serializedObjects = null;
+
+        /**
+         * Constructor.
+         *
+         * @param buffer the content to read
+         * @param position the position where the content starts
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while deserializing an embedded object
+         * @throws ClassNotFoundException exception thrown whenever an error
+         * occurred while deserializing an embedded object
+         */
+        public Decoder(byte[] buffer, int position) throws IOException, ClassNotFoundException {
+            this.buffer = buffer;
+            this.position = position;
+            int serializedLength = readVarInt();
+            if (serializedLength > 0) {
+                ByteArrayInputStream bis = new ByteArrayInputStream(buffer, this.position, serializedLength);
+                ObjectInputStream in = new ObjectInputStream(bis);
+                try {
+                    @SuppressWarnings("unchecked")
+                    ArrayList<Object> objects = (ArrayList<Object>) in.readObject();
+                    serializedObjects = objects;
+                } finally {
+                    in.close();
+                }
+                this.position += serializedLength;
+            }
+        }
+
+        /**
+         * Reads a byte.
+         *
+         * @return the byte
+         */
+        private int readByte() {
+            return buffer[position++];
+        }
+
+        /**
+         * Reads a positive integer written on one to five bytes.
+         *
+         * @return the integer
+         */
+        private int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer[position++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        /**
+         * Reads a signed integer written using zigzag encoding.
+         *
+         * @return the integer
+         */
+        private int readSignedVarInt() {
+            int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /**
+         * Reads a double written on eight bytes.
+         *
+         * @return the double
+         */
+        private double readDouble() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (buffer[position++] & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        /**
+         * Reads a double which can be null.
+         *
+         * @return the double
+         */
+        private Double readNullableDouble() {
+            if (readByte() == 0) {
+                return null;
+            }
+            return readDouble();
+        }
+
+        /**
+         * Reads a string which can be null.
+         *
+         * @return the string
+         *
+         * @throws IOException exception thrown whenever the string cannot be
+         * decoded
+         */
+        private String readString() throws IOException {
+            int index = readVarInt();
+            if (index == 0) {
+                return null;
+            }
+            if (index > 1) {
+                return strings.get(index - 2);
+            }
+            int length = readVarInt();
+            String value = new String(buffer, position, length, "UTF-8");
+            position += length;
+            strings.add(value);
+            return value;
+        }
+
+        /**
+         * Reads a list of strings which can be null.
+         *
+         * @return the list of strings
+         *
+         * @throws IOException exception thrown whenever a string cannot be
+         * decoded
+         */
+        private ArrayList<String> readStringList() throws IOException {
+            int size = readVarInt() - 1;
+            if (size == -1) {
+                return null;
+            }
+            ArrayList<String> values = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                values.add(readString());
+            }
+            return values;
+        }
+
+        /**
+         * Reads the user parameters of an object.
+         *
+         * @param experimentObject the object
+         *
+         * @throws IOException exception thrown whenever a parameter cannot be
+         * decoded
+         */
+        private void readUrParams(ExperimentObject experimentObject) throws IOException {
+            int size = readVarInt();
+            for (int i = 0; i < size; i++) {
+                experimentObject.addUrParam((UrParameter) readObject());
+            }
+        }
+
+        /**
+         * Reads an object.
+         *
+         * @return the object
+         *
+         * @throws IOException exception thrown whenever the object cannot be
+         * decoded
+         */
+        public Object readObject() throws IOException {
+
+            int tag = readVarInt();
+
+            switch (tag) {
+                case NULL:
+                    return null;
+                case REFERENCE:
+                    return handles.get(readVarInt());
+                case SERIALIZED:
+                    return serializedObjects.get(readVarInt());
+                default:
+                    break;
+            }
+
+            int handle = handles.size();
+            handles.add(null);
+            Object object;
+            switch (tag) {
+                case SPECTRUM_MATCH:
+                    object = readSpectrumMatch();
+                    break;
+                case PEPTIDE_MATCH:
+                    object = readPeptideMatch();
+                    break;
+                case PROTEIN_MATCH:
+                    object = readProteinMatch();
+                    break;
+                case PEPTIDE_ASSUMPTION:
+                    object = readPeptideAssumption();
+                    break;
+                case PEPTIDE:
+                    object = readPeptide();
+                    break;
+                default:
+                    throw new IOException("Unknown tag " + tag + " in encoded match.");
+            }
+            handles.set(handle, object);
+            return object;
+        }
+
+        /**
+         * Reads a spectrum match.
+         *
+         * @return the spectrum match
+         *
+         * @throws IOException exception thrown whenever the match cannot be
+         * decoded
+         */
+        private SpectrumMatch readSpectrumMatch() throws IOException {
+            SpectrumMatch spectrumMatch = new SpectrumMatch(readString());
+            if (readByte() != 0) {
+                spectrumMatch.setSpectrumNumber(readSignedVarInt());
+            }
+            int nAdvocates = readVarInt() - 1;
+            if (nAdvocates >= 0) {
+                HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptionsMap = new HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>>(nAdvocates);
+                for (int i = 0; i < nAdvocates; i++) {
+                    int advocateId = readSignedVarInt();
+                    int nScores = readVarInt();
+                    HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateMap = new HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>(nScores);
+                    for (int j = 0; j < nScores; j++) {
+                        Double score = readNullableDouble();
+                        int nAssumptions = readVarInt();
+                        ArrayList<SpectrumIdentificationAssumption> assumptions = new ArrayList<SpectrumIdentificationAssumption>(nAssumptions);
+                        for (int k = 0; k < nAssumptions; k++) {
+                            assumptions.add((SpectrumIdentificationAssumption) readObject());
+                        }
+                        advocateMap.put(score, assumptions);
+                    }
+                    assumptionsMap.put(advocateId, advocateMap);
+                }
+                spectrumMatch.setAssumptionsMap(assumptionsMap);
+            }
+            spectrumMatch.setBestPeptideAssumption((PeptideAssumption) readObject());
+            spectrumMatch.setBestTagAssumption((TagAssumption) readObject());
+            readUrParams(spectrumMatch);
+            return spectrumMatch;
+        }
+
+        /**
+         * Reads a peptide match.
+         *
+         * @return the peptide match
+         *
+         * @throws IOException exception thrown whenever the match cannot be
+         * decoded
+         */
+        private PeptideMatch readPeptideMatch() throws IOException {
+            String key = readString();
+            Peptide peptide = (Peptide) readObject();
+            PeptideMatch peptideMatch = new PeptideMatch(peptide, key);
+            peptideMatch.setSpectrumMatchesKeys(readStringList());
+            readUrParams(peptideMatch);
+            return peptideMatch;
+        }
+
+        /**
+         * Reads a protein match.
+         *
+         * @return the protein match
+         *
+         * @throws IOException exception thrown whenever the match cannot be
+         * decoded
+         */
+        private ProteinMatch readProteinMatch() throws IOException {
+            ProteinMatch proteinMatch = new ProteinMatch();
+            ArrayList<String> accessions = readStringList();
+            if (accessions != null) {
+                for (String accession : accessions) {
+                    proteinMatch.addTheoreticProtein(accession);
+                }
+            }
+            proteinMatch.setMainMatch(readString());
+            proteinMatch.setPeptideKeys(readStringList());
+            readUrParams(proteinMatch);
+            return proteinMatch;
+        }
+
+        /**
+         * Reads a peptide assumption.
+         *
+         * @return the peptide assumption
+         *
+         * @throws IOException exception thrown whenever the assumption cannot
+         * be decoded
+         */
+        private PeptideAssumption readPeptideAssumption() throws IOException {
+            Peptide peptide = (Peptide) readObject();
+            int rank = readSignedVarInt();
+            int advocate = readSignedVarInt();
+            Charge charge = null;
+            if (readByte() != 0) {
+                int sign = readSignedVarInt();
+                int value = readSignedVarInt();
+                charge = new Charge(sign, value);
+                readUrParams(charge);
+            }
+            double score = readDouble();
+            String identificationFile = readString();
+            PeptideAssumption peptideAssumption = new PeptideAssumption(peptide, rank, advocate, charge, score, identificationFile);
+            peptideAssumption.setRawScore(readNullableDouble());
+            int nAminoAcidScores = readVarInt() - 1;
+            if (nAminoAcidScores >= 0) {
+                ArrayList<double[]> aminoAcidScores = new ArrayList<double[]>(nAminoAcidScores);
+                for (int i = 0; i < nAminoAcidScores; i++) {
+                    int nScores = readVarInt() - 1;
+                    if (nScores == -1) {
+                        aminoAcidScores.add(null);
+                    } else {
+                        double[] scores = new double[nScores];
+                        for (int j = 0; j < nScores; j++) {
+                            scores[j] = readDouble();
+                        }
+                        aminoAcidScores.add(scores);
+                    }
+                }
+                peptideAssumption.setAminoAcidScores(aminoAcidScores);
+            }
+            readUrParams(peptideAssumption);
+            return peptideAssumption;
+        }
+
+        /**
+         * Reads a peptide.
+         *
+         * @return the peptide
+         *
+         * @throws IOException exception thrown whenever the peptide cannot be
+         * decoded
+         */
+        private Peptide readPeptide() throws IOException {
+            String sequence = readString();
+            ArrayList<ModificationMatch> modificationMatches = null;
+            int nModifications = readVarInt() - 1;
+            if (nModifications >= 0) {
+                modificationMatches = new ArrayList<ModificationMatch>(nModifications);
+                for (int i = 0; i < nModifications; i++) {
+                    String ptmName = readString();
+                    int flags = readByte();
+                    int site = readSignedVarInt();
+                    ModificationMatch modificationMatch = new ModificationMatch(ptmName, (flags & 1) != 0, site);
+                    modificationMatch.setConfident((flags & 2) != 0);
+                    modificationMatch.setInferred((flags & 4) != 0);
+                    readUrParams(modificationMatch);
+                    modificationMatches.add(modificationMatch);
+                }
+            }
+            Peptide peptide = new Peptide(sequence, modificationMatches);
+            peptide.setParentProteins(readStringList());
+            @SuppressWarnings("unchecked")
+            ArrayList<VariantMatch> variantMatches = (ArrayList<VariantMatch>) readObject();
+            if (variantMatches != null) {
+                peptide.setVariantMatches(variantMatches);
+            }
+            readUrParams(peptide);
+            return peptide;
+        }
+    }
+}
@@ -90,6 +90,15 @@ public class PeptideMatch extends IdentificationMatch {
         return spectrumMatchesKeys;
     }
 
+    /**
+     * Sets the keys of all spectra matched.
+     *
+     * @param spectrumMatchesKeys the keys of all spectrum matches
+     */
+    public void setSpectrumMatchesKeys(ArrayList<String> spectrumMatchesKeys) {
+        this.spectrumMatchesKeys = spectrumMatchesKeys;
+    }
+
     /**
      * Add a spectrum match key.
      *
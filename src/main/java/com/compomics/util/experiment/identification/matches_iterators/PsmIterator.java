@@ -7,6 +7,7 @@ import com.compomics.util.waiting.WaitingHandler;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -89,12 +90,16 @@ public class PsmIterator {
     public PsmIterator(String spectrumFile, ArrayList<String> spectrumKeys, Identification identification, ArrayList<UrParameter> psmParameters, boolean loadAssumptions, WaitingHandler waitingHandler) {
         this.identification = identification;
         if (spectrumKeys == null) {
+            // keys are sorted so that every batch covers a narrow range of keys in the database
             if (spectrumFile != null) {
                 this.spectrumKeys = new ArrayList<String>(identification.getSpectrumIdentification(spectrumFile));
+                Collections.sort(this.spectrumKeys);
             } else {
                 this.spectrumKeys = new ArrayList<String>(identification.getSpectrumIdentificationSize());
                 for (String tempSpectrumFile : identification.getOrderedSpectrumFileNames()) {
-                    this.spectrumKeys.addAll(identification.getSpectrumIdentification(tempSpectrumFile));
+                    ArrayList<String> fileKeys = new ArrayList<String>(identification.getSpectrumIdentification(tempSpectrumFile));
+                    Collections.sort(fileKeys);
+                    this.spectrumKeys.addAll(fileKeys);
                 }
             }
         } else {
@@ -0,0 +1,138 @@
+package com.compomics.util.experiment.identification.protein_inference;
+
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Utilities for the mapping of peptides to proteins.
+ *
+ * @author Marc Vaudel
+ */
+public class PeptideMapperUtils {
+
+    /**
+     * The number of batches per thread when mapping peptides in parallel.
+     */
+    private static final int BATCHES_PER_THREAD = 4;
+
+    /**
+     * Returns the protein mappings of the given peptide sequences in a map:
+     * peptide sequence &gt; protein mappings. The peptides are split in
+     * batches mapped on the given number of threads, the peptide mapper must
+     * therefore support concurrent queries.
+     *
+     * @param peptideMapper the peptide mapper to use
+     * @param peptideSequences the peptide sequences
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param nThreads the number of threads to use
+     *
+     * @return the protein mappings of the peptides
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error occurs
+     * while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides
+     * @throws SQLException if an SQLException exception thrown whenever a
+     * problem occurred while interacting with a database
+     */
+    public static HashMap<String, ArrayList<PeptideProteinMapping>> getProteinMappings(final PeptideMapper peptideMapper, Collection<String> peptideSequences,
+            final SequenceMatchingPreferences sequenceMatchingPreferences, int nThreads) throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+
+        if (nThreads <= 1 || peptideSequences.size() <= 1) {
+            return getProteinMappings(peptideMapper, peptideSequences, sequenceMatchingPreferences);
+        }
+
+        int nBatches = Math.min(peptideSequences.size(), nThreads * BATCHES_PER_THREAD);
+        int batchSize = (peptideSequences.size() - 1) / nBatches + 1;
+        ArrayList<ArrayList<String>> batches = new ArrayList<ArrayList<String>>(nBatches);
+        ArrayList<String> batch = new ArrayList<String>(batchSize);
+        for (String peptideSequence : peptideSequences) {
+            batch.add(peptideSequence);
+            if (batch.size() == batchSize) {
+                batches.add(batch);
+                batch = new ArrayList<String>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            ArrayList<Future<HashMap<String, ArrayList<PeptideProteinMapping>>>> futures = new ArrayList<Future<HashMap<String, ArrayList<PeptideProteinMapping>>>>(batches.size());
+            for (final ArrayList<String> peptideBatch : batches) {
+                futures.add(pool.submit(new Callable<HashMap<String, ArrayList<PeptideProteinMapping>>>() {
+                    @Override
+                    public HashMap<String, ArrayList<PeptideProteinMapping>> call() throws Exception {
+                        return getProteinMappings(peptideMapper, peptideBatch, sequenceMatchingPreferences);
+                    }
+                }));
+            }
+            HashMap<String, ArrayList<PeptideProteinMapping>> result = new HashMap<String, ArrayList<PeptideProteinMapping>>(peptideSequences.size());
+            for (Future<HashMap<String, ArrayList<PeptideProteinMapping>>> future : futures) {
+                try {
+                    result.putAll(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    } else if (cause instanceof ClassNotFoundException) {
+                        throw (ClassNotFoundException) cause;
+                    } else if (cause instanceof SQLException) {
+                        throw (SQLException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IllegalStateException("Error while mapping peptides.", cause);
+                }
+            }
+            return result;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the protein mappings of the given peptide sequences in a map:
+     * peptide sequence &gt; protein mappings. The peptides are mapped in the
+     * calling thread.
+     *
+     * @param peptideMapper the peptide mapper to use
+     * @param peptideSequences the peptide sequences
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @return the protein mappings of the peptides
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error occurs
+     * while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides
+     * @throws SQLException if an SQLException exception thrown whenever a
+     * problem occurred while interacting with a database
+     */
+    private static HashMap<String, ArrayList<PeptideProteinMapping>> getProteinMappings(PeptideMapper peptideMapper, Collection<String> peptideSequences,
+            SequenceMatchingPreferences sequenceMatchingPreferences) throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+        HashMap<String, ArrayList<PeptideProteinMapping>> result = new HashMap<String, ArrayList<PeptideProteinMapping>>(peptideSequences.size());
+        for (String peptideSequence : peptideSequences) {
+            if (!result.containsKey(peptideSequence)) {
+                result.put(peptideSequence, peptideMapper.getProteinMapping(peptideSequence, sequenceMatchingPreferences));
+            }
+        }
+        return result;
+    }
+}
@@ -10,6 +10,7 @@ import com.compomics.util.experiment.identification.amino_acid_tags.matchers.Tag
 import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
 import com.compomics.util.experiment.identification.protein_inference.PeptideMapper;
+import com.compomics.util.experiment.identification.protein_inference.PeptideMapperUtils;
 import com.compomics.util.experiment.identification.protein_inference.PeptideMapperType;
 import com.compomics.util.experiment.identification.protein_inference.PeptideProteinMapping;
 import com.compomics.util.experiment.identification.protein_inference.fm_index.FMIndex;
@@ -22,9 +23,20 @@ import com.compomics.util.preferences.SequenceMatchingPreferences;
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.regex.Pattern;
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 
 /**
  * Command line peptide mapping.
@@ -33,24 +45,56 @@ import java.io.FileReader;
  */
 public class PeptideMapping {
 
+    /**
+     * The number of input lines mapped per batch.
+     */
+    private static final int BATCH_SIZE = 1000;
+    /**
+     * The number of batches per thread which can be in memory at the same
+     * time.
+     */
+    private static final int BATCHES_PER_THREAD = 4;
+    /**
+     * The line separator used in the output.
+     */
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
     /**
      * Main class.
      *
      * @param args command line arguments
      */
     public static void main(String[] args) {
-        if ((args.length > 0 && (args[0].equals("-h") || args[0].equals("--help"))) || args.length < 4 || (!args[0].equals("-p") && !args[0].equals("-t"))) {
+
+        // extract the number of threads from the arguments
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        ArrayList<String> argsList = new ArrayList<String>(Arrays.asList(args));
+        int threadsIndex = argsList.indexOf("--threads");
+        if (threadsIndex >= 0) {
+            try {
+                nThreads = Integer.parseInt(argsList.get(threadsIndex + 1));
+                argsList.remove(threadsIndex + 1);
+                argsList.remove(threadsIndex);
+            } catch (Exception e) {
+                nThreads = 0;
+            }
+        }
+        args = argsList.toArray(new String[argsList.size()]);
+
+        if ((args.length > 0 && (args[0].equals("-h") || args[0].equals("--help"))) || args.length < 4 || (!args[0].equals("-p") && !args[0].equals("-t")) || nThreads < 1) {
             System.err.println("PeptideMapping: a tool to map peptides or sequence tags against a given proteome.");
-            System.err.println("usage: PeptideMapping -[p|t] input-fasta input-peptide/tag-csv output-csv [utilities-parameter-file]");
+            System.err.println("usage: PeptideMapping -[p|t] input-fasta input-peptide/tag-csv output-csv [utilities-parameter-file] [--threads N]");
             System.err.println();
             System.err.println("Options are:");
             System.err.println("\t-p\tpeptide mapping");
             System.err.println("\t-t\tsequence tag mapping");
             System.err.println("\t-h\tprint this info");
+            System.err.println("\t--threads\tnumber of threads to use for indexing and mapping");
             System.err.println();
             System.err.println("Default parameters:");
             System.err.println("\tindexing method:\t\tfm-index");
             System.err.println("\tframentation tolerance [Da]:\t0.02");
+            System.err.println("\tthreads:\t\t\tnumber of available cores");
 
             System.exit(-1);
         }
@@ -103,12 +147,12 @@ public class PeptideMapping {
         long startTimeIndex = System.nanoTime();
         PeptideMapper peptideMapper = null;
         if (peptideMapperType == PeptideMapperType.fm_index) {
-            peptideMapper = new FMIndex(waitingHandlerCLIImpl, true, peptideVariantsPreferences, searchParameters);
+            peptideMapper = new FMIndex(waitingHandlerCLIImpl, true, peptideVariantsPreferences, searchParameters, true, nThreads);
         } else {
             try {
                 peptideMapper = new ProteinTree(1000, 1000);
                 ExceptionHandler exceptionHandler = new CommandLineExceptionHandler();
-                ((ProteinTree) peptideMapper).initiateTree(3, 50, 50, waitingHandlerCLIImpl, exceptionHandler, true, false, 1);
+                ((ProteinTree) peptideMapper).initiateTree(3, 50, 50, waitingHandlerCLIImpl, exceptionHandler, true, false, nThreads);
             } catch (Exception e) {
                 System.err.println("Error: could not set up index");
                 System.exit(-1);
@@ -122,150 +166,293 @@ public class PeptideMapping {
             System.err.println("Indexing took " + (diffTimeIndex / 1e9) + " seconds");
         }
 
+        BatchMapper batchMapper;
         if (args[0].equals("-p")) {
-            ArrayList<String> peptides = new ArrayList<String>();
-            try {
-                String line = "";
-                BufferedReader br = new BufferedReader(new FileReader(args[2]));
-                while ((line = br.readLine()) != null) {
-                    if (!Pattern.matches("[a-zA-Z]+", line)) {
-                        System.err.println("Error: invalid character in line '" + line + "'");
-                        System.exit(-1);
-                    }
-                    peptides.add(line.toUpperCase());
-                }
-                br.close();
-            } catch (Exception e) {
-                System.err.println("Error: cound not open input list");
-                System.exit(-1);
-            }
-            waitingHandlerCLIImpl.setSecondaryProgressCounterIndeterminate(false);
-            waitingHandlerCLIImpl.setMaxSecondaryProgressCounter(peptides.size());
-            waitingHandlerCLIImpl.setSecondaryProgressCounter(0);
-            ArrayList<PeptideProteinMapping> allPeptideProteinMappings = new ArrayList<PeptideProteinMapping>();
+            batchMapper = new PeptideBatchMapper(peptideMapper, sequenceMatchingPreferences);
+        } else {
+            // setting up modifications lists, only relevant for protein tree
+            ArrayList<String> variableModifications = searchParameters.getPtmSettings().getVariableModifications();
+            ArrayList<String> fixedModifications = searchParameters.getPtmSettings().getFixedModifications();
+            TagMatcher tagMatcher = new TagMatcher(fixedModifications, variableModifications, sequenceMatchingPreferences);
+            tagMatcher.setSynchronizedIndexing(nThreads > 1);
+            batchMapper = new TagBatchMapper(peptideMapper, tagMatcher, sequenceMatchingPreferences, searchParameters.getFragmentIonAccuracyInDaltons());
+        }
 
-            // starting the mapping
-            try {
-                long startTimeMapping = System.nanoTime();
-                for (int i = 0; i < peptides.size(); ++i) {
-                    String peptide = peptides.get(i);
-                    waitingHandlerCLIImpl.increaseSecondaryProgressCounter();
-                    ArrayList<PeptideProteinMapping> peptideProteinMappings = peptideMapper.getProteinMapping(peptide, sequenceMatchingPreferences);
-                    allPeptideProteinMappings.addAll(peptideProteinMappings);
-                }
-                long diffTimeMapping = System.nanoTime() - startTimeMapping;
-                System.err.println();
-                System.err.println("Mapping " + peptides.size() + " peptides took " + (diffTimeMapping / 1e9) + " seconds");
-            } catch (Exception e) {
-                System.err.println("Error: mapping went wrong for unknown reasons");
-                System.exit(-1);
-            }
+        // starting the mapping
+        long startTimeMapping = System.nanoTime();
+        long nLines = map(batchMapper, args[2], args[3], nThreads);
+        long diffTimeMapping = System.nanoTime() - startTimeMapping;
+        System.err.println("Mapping " + nLines + (args[0].equals("-p") ? " peptides" : " tags") + " took " + (diffTimeMapping / 1e9) + " seconds");
 
+        if (peptideMapperType == PeptideMapperType.tree) {
             try {
-                PrintWriter writer = new PrintWriter(args[3], "UTF-8");
-                for (PeptideProteinMapping peptideProteinMapping : allPeptideProteinMappings) {
-                    String peptide = peptideProteinMapping.getPeptideSequence();
-                    String accession = peptideProteinMapping.getProteinAccession();
-                    int startIndex = peptideProteinMapping.getIndex();
-                    writer.println(peptide + "," + accession + "," + startIndex);
-                }
-                writer.close();
+                ((ProteinTree) peptideMapper).close();
             } catch (Exception e) {
-                System.err.println("Error: could not write into file '" + args[3] + "'");
+                System.err.println("Error: could not close index");
                 System.exit(-1);
             }
-        } else {
-            ArrayList<Tag> tags = new ArrayList<Tag>();
-            ArrayList<Integer> tagIndexes = new ArrayList<Integer>();
-            try {
-                String line = "";
-                BufferedReader br = new BufferedReader(new FileReader(args[2]));
-                while ((line = br.readLine()) != null) {
-                    Tag tag = new Tag();
-                    for (String part : line.split(",")) {
+        }
+    }
 
-                        if (Pattern.matches("[a-zA-Z]+", part)) {
-                            tag.addAminoAcidSequence(new AminoAcidSequence(part));
-                        } else {
-                            try {
-                                double mass = Double.parseDouble(part);
-                                tag.addMassGap(mass);
-                            } catch (NumberFormatException e) {
-                                System.err.println("Error: line contains no valid tag: '" + line + "'");
-                                System.exit(-1);
+    /**
+     * Maps the lines of the input file and writes the results to the output
+     * file. The input is read in batches which are mapped by the given number
+     * of threads, and written in the order of the input. At most
+     * BATCHES_PER_THREAD batches per thread are in memory at the same time.
+     * Exits the virtual machine if an error occurred.
+     *
+     * @param batchMapper the mapper for the batches of lines
+     * @param inputPath the path to the input file
+     * @param outputPath the path to the output file
+     * @param nThreads the number of threads to use
+     *
+     * @return the number of lines mapped
+     */
+    private static long map(final BatchMapper batchMapper, String inputPath, String outputPath, int nThreads) {
+
+        final Semaphore batchesInMemory = new Semaphore(nThreads * BATCHES_PER_THREAD);
+        final BlockingQueue<Future<String>> outputQueue = new ArrayBlockingQueue<Future<String>>(nThreads * BATCHES_PER_THREAD + 1);
+        final Exception[] writingException = new Exception[1];
+        final PrintWriter writer;
+        try {
+            writer = new PrintWriter(outputPath, "UTF-8");
+        } catch (Exception e) {
+            System.err.println("Error: could not write into file '" + outputPath + "'");
+            System.exit(-1);
+            return 0;
+        }
+
+        // the writer takes the batches in order and releases them once written
+        final FutureTask<String> end = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                return null;
+            }
+        });
+        Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Future<String> batch = outputQueue.take();
+                        if (batch == end) {
+                            break;
+                        }
+                        try {
+                            String output = batch.get();
+                            if (writingException[0] == null) {
+                                writer.print(output);
+                            }
+                        } catch (ExecutionException e) {
+                            if (writingException[0] == null) {
+                                writingException[0] = e;
                             }
                         }
+                        batchesInMemory.release();
                     }
-                    tags.add(tag);
+                } catch (InterruptedException e) {
+                    writingException[0] = e;
                 }
-            } catch (Exception e) {
-                System.err.println("Error: cound not open input list");
-                System.exit(-1);
             }
+        }, "PeptideMapping writer");
+        writerThread.start();
 
-            waitingHandlerCLIImpl.setSecondaryProgressCounterIndeterminate(false);
-            waitingHandlerCLIImpl.setMaxSecondaryProgressCounter(tags.size());
-            waitingHandlerCLIImpl.setSecondaryProgressCounter(0);
-            ArrayList<PeptideProteinMapping> allPeptideProteinMappings = new ArrayList<PeptideProteinMapping>();
-
-            // starting the mapping
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        long nLines = 0;
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(inputPath));
             try {
-                // setting up modifications lists, only relevant for protein tree
-                ArrayList<String> variableModifications = searchParameters.getPtmSettings().getVariableModifications();
-                ArrayList<String> fixedModifications = searchParameters.getPtmSettings().getFixedModifications();
-
-                TagMatcher tagMatcher = new TagMatcher(fixedModifications, variableModifications, sequenceMatchingPreferences);
-
-                long startTimeMapping = System.nanoTime();
-                for (int i = 0; i < tags.size(); ++i) {
-                    waitingHandlerCLIImpl.increaseSecondaryProgressCounter();
-                    ArrayList<PeptideProteinMapping> peptideProteinMappings = peptideMapper.getProteinMapping(tags.get(i), tagMatcher, sequenceMatchingPreferences, searchParameters.getFragmentIonAccuracyInDaltons());
-                    allPeptideProteinMappings.addAll(peptideProteinMappings);
-                    for (int j = 0; j < peptideProteinMappings.size(); ++j) {
-                        tagIndexes.add(i);
+                ArrayList<String> batch = new ArrayList<String>(BATCH_SIZE);
+                String line;
+                while (writingException[0] == null) {
+                    line = br.readLine();
+                    if (line != null) {
+                        batch.add(line);
+                        nLines++;
+                    }
+                    if (batch.size() == BATCH_SIZE || line == null && !batch.isEmpty()) {
+                        final ArrayList<String> lines = batch;
+                        batchesInMemory.acquire();
+                        outputQueue.put(pool.submit(new Callable<String>() {
+                            @Override
+                            public String call() throws Exception {
+                                return batchMapper.map(lines);
+                            }
+                        }));
+                        batch = new ArrayList<String>(BATCH_SIZE);
+                    }
+                    if (line == null) {
+                        break;
                     }
                 }
-                long diffTimeMapping = System.nanoTime() - startTimeMapping;
-                System.err.println();
-                System.err.println("Mapping " + tags.size() + " tags took " + (diffTimeMapping / 1e9) + " seconds");
-            } catch (Exception e) {
-                e.printStackTrace();
+            } finally {
+                br.close();
+            }
+            outputQueue.put(end);
+            writerThread.join();
+        } catch (Exception e) {
+            System.err.println("Error: cound not open input list");
+            System.exit(-1);
+        } finally {
+            pool.shutdownNow();
+            writer.close();
+        }
+
+        if (writingException[0] != null) {
+            Throwable cause = writingException[0];
+            if (cause instanceof ExecutionException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IllegalArgumentException) {
+                System.err.println("Error: " + cause.getMessage());
+            } else {
+                cause.printStackTrace();
                 System.err.println("Error: an unexpected error happened.");
-                System.exit(-1);
             }
+            System.exit(-1);
+        }
 
-            try {
-                PrintWriter writer = new PrintWriter(args[3], "UTF-8");
-                for (int i = 0; i < allPeptideProteinMappings.size(); ++i) {
-                    PeptideProteinMapping peptideProteinMapping = allPeptideProteinMappings.get(i);
-                    String peptide = peptideProteinMapping.getPeptideSequence();
-                    String accession = peptideProteinMapping.getProteinAccession();
-                    int startIndex = peptideProteinMapping.getIndex();
-                    for (TagComponent tagComponent : tags.get(tagIndexes.get(i)).getContent()) {
-                        if (tagComponent instanceof MassGap) {
-                            writer.print(tagComponent.getMass());
-                        }
-                        if (tagComponent instanceof AminoAcidSequence) {
-                            writer.print(tagComponent.asSequence());
-                        }
-                        writer.print(",");
-                    }
-                    writer.println(peptide + "," + accession + "," + startIndex);
+        return nLines;
+    }
+
+    /**
+     * Maps a batch of input lines and returns the corresponding output.
+     */
+    private interface BatchMapper {
+
+        /**
+         * Maps the given lines and returns the output.
+         *
+         * @param lines the lines of the input file
+         *
+         * @return the output for these lines
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * mapping the lines, an IllegalArgumentException if a line is not
+         * valid
+         */
+        public String map(ArrayList<String> lines) throws Exception;
+    }
+
+    /**
+     * Maps batches of peptides, one peptide per line.
+     */
+    private static class PeptideBatchMapper implements BatchMapper {
+
+        /**
+         * The peptide mapper.
+         */
+        private final PeptideMapper peptideMapper;
+        /**
+         * The sequence matching preferences.
+         */
+        private final SequenceMatchingPreferences sequenceMatchingPreferences;
+
+        /**
+         * Constructor.
+         *
+         * @param peptideMapper the peptide mapper
+         * @param sequenceMatchingPreferences the sequence matching preferences
+         */
+        public PeptideBatchMapper(PeptideMapper peptideMapper, SequenceMatchingPreferences sequenceMatchingPreferences) {
+            this.peptideMapper = peptideMapper;
+            this.sequenceMatchingPreferences = sequenceMatchingPreferences;
+        }
+
+        @Override
+        public String map(ArrayList<String> lines) throws Exception {
+            ArrayList<String> peptides = new ArrayList<String>(lines.size());
+            for (String line : lines) {
+                if (!Pattern.matches("[a-zA-Z]+", line)) {
+                    throw new IllegalArgumentException("invalid character in line '" + line + "'");
+                }
+                peptides.add(line.toUpperCase());
+            }
+            HashMap<String, ArrayList<PeptideProteinMapping>> mappings = PeptideMapperUtils.getProteinMappings(peptideMapper, peptides, sequenceMatchingPreferences, 1);
+            StringBuilder output = new StringBuilder();
+            for (String peptide : peptides) {
+                for (PeptideProteinMapping peptideProteinMapping : mappings.get(peptide)) {
+                    output.append(peptideProteinMapping.getPeptideSequence()).append(',')
+                            .append(peptideProteinMapping.getProteinAccession()).append(',')
+                            .append(peptideProteinMapping.getIndex()).append(LINE_SEPARATOR);
                 }
-                writer.close();
-            } catch (Exception e) {
-                System.err.println("Error: could not write into file '" + args[3] + "'");
-                System.exit(-1);
             }
+            return output.toString();
         }
+    }
 
-        if (peptideMapperType == PeptideMapperType.tree) {
-            try {
-                ((ProteinTree) peptideMapper).close();
-            } catch (Exception e) {
-                System.err.println("Error: could not close index");
-                System.exit(-1);
+    /**
+     * Maps batches of tags, one tag per line.
+     */
+    private static class TagBatchMapper implements BatchMapper {
+
+        /**
+         * The peptide mapper.
+         */
+        private final PeptideMapper peptideMapper;
+        /**
+         * The tag matcher.
+         */
+        private final TagMatcher tagMatcher;
+        /**
+         * The sequence matching preferences.
+         */
+        private final SequenceMatchingPreferences sequenceMatchingPreferences;
+        /**
+         * The fragment ion tolerance in Dalton.
+         */
+        private final Double massTolerance;
+
+        /**
+         * Constructor.
+         *
+         * @param peptideMapper the peptide mapper
+         * @param tagMatcher the tag matcher
+         * @param sequenceMatchingPreferences the sequence matching preferences
+         * @param massTolerance the fragment ion tolerance in Dalton
+         */
+        public TagBatchMapper(PeptideMapper peptideMapper, TagMatcher tagMatcher, SequenceMatchingPreferences sequenceMatchingPreferences, Double massTolerance) {
+            this.peptideMapper = peptideMapper;
+            this.tagMatcher = tagMatcher;
+            this.sequenceMatchingPreferences = sequenceMatchingPreferences;
+            this.massTolerance = massTolerance;
+        }
+
+        @Override
+        public String map(ArrayList<String> lines) throws Exception {
+            StringBuilder output = new StringBuilder();
+            for (String line : lines) {
+                Tag tag = new Tag();
+                for (String part : line.split(",")) {
+                    if (Pattern.matches("[a-zA-Z]+", part)) {
+                        tag.addAminoAcidSequence(new AminoAcidSequence(part));
+                    } else {
+                        try {
+                            double mass = Double.parseDouble(part);
+                            tag.addMassGap(mass);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("line contains no valid tag: '" + line + "'");
+                        }
+                    }
+                }
+                StringBuilder tagOutput = new StringBuilder();
+                for (TagComponent tagComponent : tag.getContent()) {
+                    if (tagComponent instanceof MassGap) {
+                        tagOutput.append(tagComponent.getMass());
+                    }
+                    if (tagComponent instanceof AminoAcidSequence) {
+                        tagOutput.append(tagComponent.asSequence());
+                    }
+                    tagOutput.append(',');
+                }
+                for (PeptideProteinMapping peptideProteinMapping : peptideMapper.getProteinMapping(tag, tagMatcher, sequenceMatchingPreferences, massTolerance)) {
+                    output.append(tagOutput)
+                            .append(peptideProteinMapping.getPeptideSequence()).append(',')
+                            .append(peptideProteinMapping.getProteinAccession()).append(',')
+                            .append(peptideProteinMapping.getIndex()).append(LINE_SEPARATOR);
+                }
             }
+            return output.toString();
         }
     }
 }
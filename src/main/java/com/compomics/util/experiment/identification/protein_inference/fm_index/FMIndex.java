@@ -17,14 +17,24 @@ import com.compomics.util.experiment.identification.identification_parameters.Se
 import com.compomics.util.experiment.identification.matches.ModificationMatch;
 import com.compomics.util.experiment.identification.matches.VariantMatch;
 import com.compomics.util.experiment.identification.protein_inference.PeptideMapper;
+import com.compomics.util.experiment.identification.protein_inference.PeptideMapperUtils;
 import com.compomics.util.experiment.identification.protein_inference.PeptideProteinMapping;
 import com.compomics.util.preferences.PeptideVariantsPreferences;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -33,6 +43,10 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.TreeSet;
 import org.jsuffixarrays.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -43,9 +57,36 @@ import java.util.concurrent.Semaphore;
  */
 public class FMIndex implements PeptideMapper {
     /**
-     * Semaphore for caching.
+     * Magic number at the beginning of the index files.
      */
-    static Semaphore cacheMutex = new Semaphore(1);
+    public static final int INDEX_FILE_MAGIC = 0x464D4958;
+    /**
+     * Version of the index file format.
+     */
+    public static final int INDEX_FILE_VERSION = 2;
+    /**
+     * Extension of the index files.
+     */
+    public static final String INDEX_FILE_EXTENSION = ".fmi";
+    /**
+     * Maximal number of residues in an index part.
+     */
+    public static final int MAX_INDEX_CHUNK_SIZE = 100 * 1024 * 1024;
+    /**
+     * Minimal number of residues in an index part when splitting the database
+     * on the threads.
+     */
+    public static final int MIN_INDEX_CHUNK_SIZE = 4 * 1024 * 1024;
+    /**
+     * Estimate of the peak memory in bytes used per residue while building an
+     * index part.
+     */
+    public static final int BUILD_BYTES_PER_RESIDUE = 20;
+    /**
+     * The maximal number of ranges followed in the index when computing the
+     * lower bounds on the number of variants of a peptide.
+     */
+    private static final int MAX_LOWER_BOUND_RANGES = 64;
     /**
     * Number of chunks of complete index.
     **/
@@ -53,7 +94,7 @@ public class FMIndex implements PeptideMapper {
     /**
      * Byte size of index chuck.
      */
-    private final int indexChunkSize = 100 * 1024 * 1024;
+    private int indexChunkSize = MAX_INDEX_CHUNK_SIZE;
     /**
      * Sampled suffix array.
      */
@@ -198,6 +239,11 @@ public class FMIndex implements PeptideMapper {
      * for every variant (insertion / deletion / substitution)
      */
     boolean genericVariantMatching = true;
+    /**
+     * Indicates whether the searches with variants are pruned using lower
+     * bounds on the number of variants needed by the rest of the peptide.
+     */
+    private boolean variantsPruning = true;
     /**
      * Number of allowed variant operations.
      */
@@ -370,6 +416,40 @@ public class FMIndex implements PeptideMapper {
         return bytes;
     }
 
+    /**
+     * Returns whether the searches with variants are pruned using lower bounds
+     * on the number of variants needed by the rest of the peptide.
+     *
+     * @return true if the searches with variants are pruned
+     */
+    public boolean isVariantsPruning() {
+        return variantsPruning;
+    }
+
+    /**
+     * Sets whether the searches with variants should be pruned using lower
+     * bounds on the number of variants needed by the rest of the peptide. The
+     * pruning does not change the mappings found.
+     *
+     * @param variantsPruning true if the searches with variants should be
+     * pruned
+     */
+    public void setVariantsPruning(boolean variantsPruning) {
+        this.variantsPruning = variantsPruning;
+    }
+
+    /**
+     * Flattens the occurrence tables in level order, see
+     * WaveletTree.flatten(). The index must not be queried while the tables
+     * are flattened.
+     */
+    public void flattenOccurrenceTables() {
+        for (int indexPart = 0; indexPart < indexParts; ++indexPart) {
+            occurrenceTablesPrimary.get(indexPart).flatten();
+            occurrenceTablesReversed.get(indexPart).flatten();
+        }
+    }
+
     
     /**
      * Constructor. If PTM settings are provided the index will contain
@@ -381,9 +461,48 @@ public class FMIndex implements PeptideMapper {
      * @param searchParameters the search parameters
      */
     public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PeptideVariantsPreferences peptideVariantsPreferences, SearchParameters searchParameters) {
+        this(waitingHandler, displayProgress, peptideVariantsPreferences, searchParameters, false, 1);
+    }
+
+    /**
+     * Constructor. If PTM settings are provided the index will contain
+     * modification information, ignored if null. If useIndexFile is true, the
+     * index is loaded from the index file next to the FASTA file when
+     * available, and saved there after indexing otherwise.
+     *
+     * @param waitingHandler the waiting handler
+     * @param displayProgress if true, the progress is displayed
+     * @param peptideVariantsPreferences contains all parameters for variants
+     * @param searchParameters the search parameters
+     * @param useIndexFile if true the index is loaded from or saved to an
+     * index file
+     * @param nThreads the number of threads to use to build the index parts
+     */
+    public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PeptideVariantsPreferences peptideVariantsPreferences, SearchParameters searchParameters, boolean useIndexFile, int nThreads) {
+        this(waitingHandler, displayProgress, peptideVariantsPreferences, searchParameters, useIndexFile, nThreads, getAvailableMemory());
+    }
+
+    /**
+     * Constructor. If PTM settings are provided the index will contain
+     * modification information, ignored if null. If useIndexFile is true, the
+     * index is loaded from the index file next to the FASTA file when
+     * available, and saved there after indexing otherwise. The size of the
+     * index parts is chosen so that the parts built concurrently fit in the
+     * given memory budget.
+     *
+     * @param waitingHandler the waiting handler
+     * @param displayProgress if true, the progress is displayed
+     * @param peptideVariantsPreferences contains all parameters for variants
+     * @param searchParameters the search parameters
+     * @param useIndexFile if true the index is loaded from or saved to an
+     * index file
+     * @param nThreads the number of threads to use to build the index parts
+     * @param memoryBudget the memory available to build the index in bytes
+     */
+    public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PeptideVariantsPreferences peptideVariantsPreferences, SearchParameters searchParameters, boolean useIndexFile, int nThreads, long memoryBudget) {
         massTolerance = searchParameters.getFragmentIonAccuracy();
         massAccuracyType = searchParameters.getFragmentAccuracyType();
-        init(waitingHandler, displayProgress, searchParameters.getPtmSettings(), peptideVariantsPreferences);
+        init(waitingHandler, displayProgress, searchParameters.getPtmSettings(), peptideVariantsPreferences, useIndexFile, nThreads, memoryBudget);
     }
     
     /**
@@ -396,7 +515,76 @@ public class FMIndex implements PeptideMapper {
      * @param peptideVariantsPreferences contains all parameters for variants
      */
     public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PtmSettings ptmSettings, PeptideVariantsPreferences peptideVariantsPreferences) {
-        init(waitingHandler, displayProgress, ptmSettings, peptideVariantsPreferences);
+        this(waitingHandler, displayProgress, ptmSettings, peptideVariantsPreferences, false, 1);
+    }
+
+    /**
+     * Constructor. If PTM settings are provided the index will contain
+     * modification information, ignored if null. If useIndexFile is true, the
+     * index is loaded from the index file next to the FASTA file when
+     * available, and saved there after indexing otherwise.
+     *
+     * @param waitingHandler the waiting handler
+     * @param displayProgress if true, the progress is displayed
+     * @param ptmSettings contains modification parameters for identification
+     * @param peptideVariantsPreferences contains all parameters for variants
+     * @param useIndexFile if true the index is loaded from or saved to an
+     * index file
+     * @param nThreads the number of threads to use to build the index parts
+     */
+    public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PtmSettings ptmSettings, PeptideVariantsPreferences peptideVariantsPreferences, boolean useIndexFile, int nThreads) {
+        this(waitingHandler, displayProgress, ptmSettings, peptideVariantsPreferences, useIndexFile, nThreads, getAvailableMemory());
+    }
+
+    /**
+     * Constructor. If PTM settings are provided the index will contain
+     * modification information, ignored if null. If useIndexFile is true, the
+     * index is loaded from the index file next to the FASTA file when
+     * available, and saved there after indexing otherwise. The size of the
+     * index parts is chosen so that the parts built concurrently fit in the
+     * given memory budget.
+     *
+     * @param waitingHandler the waiting handler
+     * @param displayProgress if true, the progress is displayed
+     * @param ptmSettings contains modification parameters for identification
+     * @param peptideVariantsPreferences contains all parameters for variants
+     * @param useIndexFile if true the index is loaded from or saved to an
+     * index file
+     * @param nThreads the number of threads to use to build the index parts
+     * @param memoryBudget the memory available to build the index in bytes
+     */
+    public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PtmSettings ptmSettings, PeptideVariantsPreferences peptideVariantsPreferences, boolean useIndexFile, int nThreads, long memoryBudget) {
+        init(waitingHandler, displayProgress, ptmSettings, peptideVariantsPreferences, useIndexFile, nThreads, memoryBudget);
+    }
+
+    /**
+     * Returns the memory currently available in the virtual machine in bytes.
+     *
+     * @return the memory currently available in the virtual machine
+     */
+    public static long getAvailableMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+    }
+
+    /**
+     * Returns the number of residues per index part. The database is split on
+     * the threads, the parts being kept between MIN_INDEX_CHUNK_SIZE and
+     * MAX_INDEX_CHUNK_SIZE, and made smaller if the parts built concurrently
+     * would not fit in the memory budget.
+     *
+     * @param databaseLength the number of residues in the database, an upper
+     * bound is sufficient
+     * @param nThreads the number of threads used to build the index parts
+     * @param memoryBudget the memory available to build the index in bytes
+     *
+     * @return the number of residues per index part
+     */
+    public static int getIndexChunkSize(long databaseLength, int nThreads, long memoryBudget) {
+        long chunkSize = Math.max(MIN_INDEX_CHUNK_SIZE, (databaseLength - 1) / nThreads + 1);
+        chunkSize = Math.min(chunkSize, MAX_INDEX_CHUNK_SIZE);
+        chunkSize = Math.min(chunkSize, memoryBudget / ((long) nThreads * BUILD_BYTES_PER_RESIDUE));
+        return (int) Math.max(chunkSize, 1);
     }
         
     /**
@@ -407,9 +595,12 @@ public class FMIndex implements PeptideMapper {
      * @param displayProgress if true, the progress is displayed
      * @param ptmSettings contains modification parameters for identification
      * @param peptideVariantsPreferences contains all parameters for variants
-     * @param massTolerance the mass tolerance
+     * @param useIndexFile if true the index is loaded from or saved to an
+     * index file
+     * @param nThreads the number of threads to use to build the index parts
+     * @param memoryBudget the memory available to build the index in bytes
      */
-    private void init(WaitingHandler waitingHandler, boolean displayProgress, PtmSettings ptmSettings, PeptideVariantsPreferences peptideVariantsPreferences){
+    private void init(final WaitingHandler waitingHandler, final boolean displayProgress, PtmSettings ptmSettings, PeptideVariantsPreferences peptideVariantsPreferences, boolean useIndexFile, int nThreads, long memoryBudget){
         // load all variant preferences
         maxNumberVariants = peptideVariantsPreferences.getnVariants();
         genericVariantMatching = !peptideVariantsPreferences.getUseSpecificCount();
@@ -825,32 +1016,73 @@ public class FMIndex implements PeptideMapper {
         sortedAas[AminoAcid.getAminoAcids().length] = '$';
         sortedAas[AminoAcid.getAminoAcids().length + 1] = '/';
         Arrays.sort(sortedAas);
-        long[] alphabet = new long[]{0, 0};
+        final long[] alphabet = new long[]{0, 0};
         for (int i = 0; i < sortedAas.length; ++i) {
             alphabet[sortedAas[i] >> 6] |= 1L << (sortedAas[i] & 63);
         }
 
-        // reading all proteins in a first pass to get information about number and total length
+        // load the index from its file if it was saved for these settings
+        File indexFile = null;
+        String indexKey = null;
+        if (useIndexFile && sf.getCurrentFastaFile() != null) {
+            try {
+                indexKey = getIndexKey(sf.getCurrentFastaFile(), ptmSettings, peptideVariantsPreferences, massTolerance, massAccuracyType);
+                indexFile = getIndexFile(sf.getCurrentFastaFile(), indexKey);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (indexFile != null && indexFile.exists()) {
+                try {
+                    if (readIndex(indexFile, indexKey)) {
+                        return;
+                    }
+                } catch (Exception e) {
+                    System.err.println("Reindexing: " + indexFile.getName() + ". (Reason: " + e.getLocalizedMessage() + ")");
+                }
+            }
+        }
+
+        // split the database on the threads within the memory budget
+        long databaseLength = sf.getCurrentFastaFile() != null ? sf.getCurrentFastaFile().length() : Integer.MAX_VALUE;
+        indexChunkSize = getIndexChunkSize(databaseLength, nThreads, memoryBudget);
+
+        // reading all proteins in a first pass to get information about number and total length, the regions of the file are read in parallel
         ArrayList<Integer> tmpLengths = new ArrayList<Integer>();
         ArrayList<Integer> tmpProteins = new ArrayList<Integer>();
         long ticker = indexChunkSize;
         try {
+            ArrayList<int[]> regionLengths = sf.processProteins(new SequenceFactory.RegionProcessor<int[]>() {
+                @Override
+                public int[] process(SequenceFactory.RegionProteinIterator proteinIterator) throws IOException {
+                    int[] proteinLengths = new int[1024];
+                    int nProteins = 0;
+                    while (proteinIterator.hasNext()) {
+                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                            break;
+                        }
+                        if (nProteins == proteinLengths.length) {
+                            proteinLengths = Arrays.copyOf(proteinLengths, 2 * nProteins);
+                        }
+                        proteinLengths[nProteins++] = proteinIterator.getNextProtein().getLength();
+                    }
+                    return Arrays.copyOf(proteinLengths, nProteins);
+                }
+            }, false, nThreads);
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
             int indexStringLength = 1;
             int numProteins = 0;
-            ProteinIterator pi = sf.getProteinIterator(false);
-            while (pi.hasNext()) {
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    return;
-                }
-                Protein currentProtein = pi.getNextProtein();
-                int proteinLen = currentProtein.getLength();
-                indexStringLength += proteinLen;
-                ++numProteins;
-                if (indexStringLength > ticker){
-                    tmpLengths.add(indexStringLength);
-                    tmpProteins.add(numProteins);
-                    indexStringLength = 1;
-                    numProteins = 0;
+            for (int[] proteinLengths : regionLengths) {
+                for (int proteinLen : proteinLengths) {
+                    indexStringLength += proteinLen;
+                    ++numProteins;
+                    if (indexStringLength > ticker){
+                        tmpLengths.add(indexStringLength);
+                        tmpProteins.add(numProteins);
+                        indexStringLength = 1;
+                        numProteins = 0;
+                    }
                 }
             }
             tmpLengths.add(indexStringLength);
@@ -868,13 +1100,49 @@ public class FMIndex implements PeptideMapper {
             waitingHandler.setSecondaryProgressCounter(0);
         }
         
+        // reading the parts sequentially and building them concurrently, at most nThreads parts being in memory
+        boolean indexComplete = false;
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
         try {
+            final Semaphore partsInMemory = new Semaphore(nThreads);
+            ArrayList<Future<IndexPart>> futures = new ArrayList<Future<IndexPart>>(tmpLengths.size());
             ProteinIterator pi = sf.getProteinIterator(false);
             for (int i = 0; i < tmpLengths.size(); ++i){
-                addDataToIndex(pi, tmpLengths.get(i), tmpProteins.get(i), alphabet, waitingHandler, displayProgress);
+                partsInMemory.acquire();
+                final byte[] T = readIndexPart(pi, tmpLengths.get(i), tmpProteins.get(i), waitingHandler, displayProgress);
+                if (T == null) {
+                    partsInMemory.release();
+                    break;
+                }
+                futures.add(pool.submit(new Callable<IndexPart>() {
+                    @Override
+                    public IndexPart call() throws Exception {
+                        try {
+                            return buildIndexPart(T, alphabet, waitingHandler, displayProgress);
+                        } finally {
+                            partsInMemory.release();
+                        }
+                    }
+                }));
+            }
+            indexComplete = futures.size() == tmpLengths.size();
+            for (Future<IndexPart> future : futures) {
+                IndexPart indexPart = future.get();
+                if (indexPart == null) {
+                    indexComplete = false;
+                    break;
+                }
+                suffixArraysPrimary.add(indexPart.suffixArray);
+                occurrenceTablesPrimary.add(indexPart.occurrenceTablePrimary);
+                occurrenceTablesReversed.add(indexPart.occurrenceTableReversed);
+                lessTablesPrimary.add(indexPart.occurrenceTablePrimary.createLessTable());
+                lessTablesReversed.add(indexPart.occurrenceTableReversed.createLessTable());
             }
         } catch (Exception e) {
+            indexComplete = false;
             e.printStackTrace();
+        } finally {
+            pool.shutdownNow();
         }
         
         int lookupLength = ((int) ((lookupMaxMass + computeInverseMassValue(massTolerance, lookupMaxMass)) * lookupMultiplier));
@@ -899,14 +1167,289 @@ public class FMIndex implements PeptideMapper {
                return (int)((m1.mass - m2.mass) * 1000000.);
            } 
         });
-        cache = (HashMap<String, CacheElement>[])new HashMap[indexParts];
-        for (int indexPart = 0; indexPart < indexParts; ++indexPart) cache[indexPart] = new HashMap<String, CacheElement>();
+
+        if (indexFile != null && indexComplete && (waitingHandler == null || !waitingHandler.isRunCanceled())
+                && indexFile.getParentFile().canWrite()) {
+            try {
+                writeIndex(indexFile, indexKey);
+            } catch (IOException e) {
+                // the index is only kept in memory, e.g. when the folder of the FASTA file is read-only
+            }
+        }
+    }
+
+    /**
+     * Returns the key of the index files, the MD5 checksum of the FASTA file
+     * and of the settings used to build the index.
+     *
+     * @param fastaFile the FASTA file
+     * @param ptmSettings the modification settings, can be null
+     * @param peptideVariantsPreferences the variants settings
+     * @param massTolerance the mass tolerance
+     * @param massAccuracyType the type of mass tolerance
+     *
+     * @return the key of the index file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the FASTA file
+     */
+    public static String getIndexKey(File fastaFile, PtmSettings ptmSettings, PeptideVariantsPreferences peptideVariantsPreferences, double massTolerance, SearchParameters.MassAccuracyType massAccuracyType) throws IOException {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 checksums are not supported.", e);
+        }
+
+        FileInputStream in = new FileInputStream(fastaFile);
+        try {
+            byte[] buffer = new byte[1024 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder settings = new StringBuilder();
+        settings.append(INDEX_FILE_VERSION);
+        if (ptmSettings != null) {
+            PTMFactory ptmFactory = PTMFactory.getInstance();
+            settings.append("|fixed");
+            for (String modification : ptmSettings.getFixedModifications()) {
+                settings.append('|').append(modification).append('|').append(ptmFactory.getPTM(modification).getMass());
+            }
+            settings.append("|variable");
+            for (String modification : ptmSettings.getVariableModifications()) {
+                settings.append('|').append(modification).append('|').append(ptmFactory.getPTM(modification).getMass());
+            }
+        }
+        settings.append("|variants|").append(peptideVariantsPreferences.getnVariants())
+                .append('|').append(peptideVariantsPreferences.getUseSpecificCount())
+                .append('|').append(peptideVariantsPreferences.getnAaInsertions())
+                .append('|').append(peptideVariantsPreferences.getnAaDeletions())
+                .append('|').append(peptideVariantsPreferences.getnAaSubstitutions());
+        AaSubstitutionMatrix aaSubstitutionMatrix = peptideVariantsPreferences.getAaSubstitutionMatrix();
+        for (char aa = 'A'; aa <= 'Z'; ++aa) {
+            if (aaSubstitutionMatrix.getOriginalAminoAcids().contains(aa)) {
+                settings.append('|').append(aa).append(new TreeSet<Character>(aaSubstitutionMatrix.getSubstitutionAminoAcids(aa)));
+            }
+        }
+        settings.append("|tolerance|").append(massTolerance).append('|').append(massAccuracyType);
+        digest.update(settings.toString().getBytes("UTF-8"));
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the index file of the given FASTA file for the given key.
+     *
+     * @param fastaFile the FASTA file
+     * @param indexKey the key as returned by getIndexKey
+     *
+     * @return the index file
+     */
+    public static File getIndexFile(File fastaFile, String indexKey) {
+        return new File(fastaFile.getParentFile(), fastaFile.getName() + "_" + indexKey + INDEX_FILE_EXTENSION);
+    }
+
+    /**
+     * Loads the index parts and the mass lookup tables from an index file.
+     * Nothing is loaded if the file was written for another key or in another
+     * version, or if the file is truncated or corrupted, in which case an
+     * exception is thrown.
+     *
+     * @param indexFile the index file
+     * @param indexKey the key of the index
+     *
+     * @return true if the index was loaded
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private boolean readIndex(File indexFile, String indexKey) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            MappedIndexFile in = new MappedIndexFile(raf.getChannel());
+            if (in.readInt() != INDEX_FILE_MAGIC || in.readInt() != INDEX_FILE_VERSION || !indexKey.equals(in.readString())) {
+                return false;
+            }
+
+            int nParts = in.readLength(4);
+            if (nParts < 1) {
+                throw new IOException("Corrupted index file, invalid number of index parts: " + nParts + ".");
+            }
+            ArrayList<Integer> partLengths = new ArrayList<Integer>(nParts);
+            ArrayList<int[]> partSuffixArrays = new ArrayList<int[]>(nParts);
+            ArrayList<int[]> partBoundaries = new ArrayList<int[]>(nParts);
+            ArrayList<String[]> partAccessions = new ArrayList<String[]>(nParts);
+            ArrayList<WaveletTree> partTablesPrimary = new ArrayList<WaveletTree>(nParts);
+            ArrayList<WaveletTree> partTablesReversed = new ArrayList<WaveletTree>(nParts);
+            for (int indexPart = 0; indexPart < nParts; ++indexPart) {
+                partLengths.add(in.readInt());
+                partSuffixArrays.add(in.readIntArray());
+                partBoundaries.add(in.readIntArray());
+                int nAccessions = in.readLength(4);
+                if (nAccessions < 0) {
+                    throw new IOException("Corrupted index file, invalid number of proteins: " + nAccessions + ".");
+                }
+                String[] partAccession = new String[nAccessions];
+                for (int i = 0; i < partAccession.length; ++i) {
+                    partAccession[i] = in.readString();
+                }
+                partAccessions.add(partAccession);
+                partTablesPrimary.add(new WaveletTree(in));
+                partTablesReversed.add(new WaveletTree(in));
+            }
+
+            long[] fileLookupMasses = in.readLongArray();
+            int nXlookup = in.readLength(4);
+            if (nXlookup < 0) {
+                throw new IOException("Corrupted index file, invalid lookup length: " + nXlookup + ".");
+            }
+            long[][] fileXlookup = new long[nXlookup][];
+            for (int i = 0; i < fileXlookup.length; ++i) {
+                fileXlookup[i] = in.readLongArray();
+            }
+            int nMassIndexMaps = in.readLength(12);
+            if (nMassIndexMaps < 0) {
+                throw new IOException("Corrupted index file, invalid number of mass maps: " + nMassIndexMaps + ".");
+            }
+            ArrayList<MassIndexMap> fileMassIndexMaps = new ArrayList<MassIndexMap>(nMassIndexMaps);
+            for (int i = 0; i < nMassIndexMaps; ++i) {
+                double mass = in.readDouble();
+                fileMassIndexMaps.add(new MassIndexMap(mass, in.readIntArray()));
+            }
+            if (in.remaining() != 0) {
+                throw new IOException("Corrupted index file, " + in.remaining() + " unexpected bytes at the end of the file.");
+            }
+
+            indexParts = nParts;
+            indexStringLengths.addAll(partLengths);
+            suffixArraysPrimary.addAll(partSuffixArrays);
+            boundaries.addAll(partBoundaries);
+            accessions.addAll(partAccessions);
+            for (int indexPart = 0; indexPart < nParts; ++indexPart) {
+                occurrenceTablesPrimary.add(partTablesPrimary.get(indexPart));
+                occurrenceTablesReversed.add(partTablesReversed.get(indexPart));
+                lessTablesPrimary.add(partTablesPrimary.get(indexPart).createLessTable());
+                lessTablesReversed.add(partTablesReversed.get(indexPart).createLessTable());
+            }
+            lookupMasses = fileLookupMasses;
+            Xlookup = fileXlookup;
+            massIndexMaps = fileMassIndexMaps;
+
+            return true;
+
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the index parts and the mass lookup tables to an index file. The
+     * index is first written to a temporary file which then replaces the
+     * index file.
+     *
+     * @param indexFile the index file
+     * @param indexKey the key of the index
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void writeIndex(File indexFile, String indexKey) throws IOException {
+
+        File tempFile = new File(indexFile.getParentFile(), indexFile.getName() + "_temp");
+        boolean written = false;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1024 * 1024));
+        try {
+            out.writeInt(INDEX_FILE_MAGIC);
+            out.writeInt(INDEX_FILE_VERSION);
+            MappedIndexFile.writeString(out, indexKey);
+
+            out.writeInt(indexParts);
+            for (int indexPart = 0; indexPart < indexParts; ++indexPart) {
+                out.writeInt(indexStringLengths.get(indexPart));
+                MappedIndexFile.writeIntArray(out, suffixArraysPrimary.get(indexPart));
+                MappedIndexFile.writeIntArray(out, boundaries.get(indexPart));
+                String[] partAccessions = accessions.get(indexPart);
+                out.writeInt(partAccessions.length);
+                for (String accession : partAccessions) {
+                    MappedIndexFile.writeString(out, accession);
+                }
+                occurrenceTablesPrimary.get(indexPart).write(out);
+                occurrenceTablesReversed.get(indexPart).write(out);
+            }
+
+            MappedIndexFile.writeLongArray(out, lookupMasses);
+            out.writeInt(Xlookup.length);
+            for (long[] lookup : Xlookup) {
+                MappedIndexFile.writeLongArray(out, lookup);
+            }
+            out.writeInt(massIndexMaps.size());
+            for (MassIndexMap massIndexMap : massIndexMaps) {
+                out.writeDouble(massIndexMap.mass);
+                MappedIndexFile.writeIntArray(out, massIndexMap.indexes);
+            }
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+
+        if (indexFile.exists() && !indexFile.delete() || !tempFile.renameTo(indexFile)) {
+            tempFile.delete();
+            throw new IOException("Impossible to save the index to " + indexFile.getAbsolutePath() + ".");
+        }
     }
     
     
     
     
-    void addDataToIndex(ProteinIterator pi, int indexStringLength, int numProteins, long[] alphabet, WaitingHandler waitingHandler, boolean displayProgress){
+    /**
+     * The structures built for an index part.
+     */
+    private static class IndexPart {
+
+        /**
+         * The sampled suffix array.
+         */
+        int[] suffixArray;
+        /**
+         * The occurrence table for backward search over the forward text.
+         */
+        WaveletTree occurrenceTablePrimary;
+        /**
+         * The occurrence table for backward search over the reversed text.
+         */
+        WaveletTree occurrenceTableReversed;
+    }
+
+    /**
+     * Reads the proteins of the next index part, stores their boundaries and
+     * accessions, and returns the text of the part.
+     *
+     * @param pi the protein iterator
+     * @param indexStringLength the length of the sequences of the part
+     * @param numProteins the number of proteins in the part
+     * @param waitingHandler the waiting handler
+     * @param displayProgress if true, the progress is displayed
+     *
+     * @return the text of the index part, null if the process was canceled
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * reading the proteins
+     */
+    private byte[] readIndexPart(ProteinIterator pi, int indexStringLength, int numProteins, WaitingHandler waitingHandler, boolean displayProgress) throws Exception {
         indexParts += 1;
         indexStringLength += numProteins + 1; // delimiters between protein sequences + sentinal
         indexStringLengths.add(indexStringLength);
@@ -924,33 +1467,45 @@ public class FMIndex implements PeptideMapper {
         boundaries.add(bndaries);
         String[] accssions = new String[numProteins];
         accessions.add(accssions);
-        boundaries.get(0)[0] = 1;
+        bndaries[0] = 1;
 
         // reading proteins in a second pass to store their amino acid sequences and their accession numbers
         int tmpN = 0;
         int tmpNumProtein = 0;
-        try {
-            
-            for (int i = 0; i < numProteins; ++i){
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    return;
-                }
-                if (!pi.hasNext()) throw new Exception("More sequences from database requested than contained.");
-                Protein currentProtein = pi.getNextProtein();
-                int proteinLen = currentProtein.getLength();
-                T[tmpN++] = '/'; // adding the delimiters
-                System.arraycopy(currentProtein.getSequence().toUpperCase().getBytes(), 0, T, tmpN, proteinLen);
-                tmpN += proteinLen;
-                accssions[tmpNumProtein++] = currentProtein.getAccession();
-                bndaries[tmpNumProtein] = tmpN + 1;
-
+        for (int i = 0; i < numProteins; ++i){
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return null;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (!pi.hasNext()) throw new Exception("More sequences from database requested than contained.");
+            Protein currentProtein = pi.getNextProtein();
+            int proteinLen = currentProtein.getLength();
+            T[tmpN++] = '/'; // adding the delimiters
+            System.arraycopy(currentProtein.getSequence().toUpperCase().getBytes(), 0, T, tmpN, proteinLen);
+            tmpN += proteinLen;
+            accssions[tmpNumProtein++] = currentProtein.getAccession();
+            bndaries[tmpNumProtein] = tmpN + 1;
+
         }
         if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
             waitingHandler.increaseSecondaryProgressCounter();
         }
+        return T;
+    }
+
+    /**
+     * Builds the suffix array and the occurrence tables of an index part. The
+     * parts are independent and can be built concurrently.
+     *
+     * @param T the text of the index part
+     * @param alphabet the alphabet
+     * @param waitingHandler the waiting handler
+     * @param displayProgress if true, the progress is displayed
+     *
+     * @return the structures of the index part, null if the process was
+     * canceled
+     */
+    private IndexPart buildIndexPart(byte[] T, long[] alphabet, WaitingHandler waitingHandler, boolean displayProgress) {
+        int indexStringLength = T.length;
 
         int[] T_int = new int[indexStringLength];
         for (int i = 0; i < indexStringLength; ++i) {
@@ -977,11 +1532,10 @@ public class FMIndex implements PeptideMapper {
         int sampledIndex = 0;
         for (int i = 0; i < indexStringLength; i += sampling) {
             if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
+                return null;
             }
             sampledSuffixArray[sampledIndex++] = suffixArrayPrimary[i];
         }
-        suffixArraysPrimary.add(sampledSuffixArray);
         if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
             waitingHandler.increaseSecondaryProgressCounter();
         }
@@ -989,7 +1543,6 @@ public class FMIndex implements PeptideMapper {
 
         // creating the occurrence table and less table for backward search over forward text
         WaveletTree occurrenceTablePrimary = new WaveletTree(bwt, alphabet, waitingHandler, numMasses, hasPTMatTerminus);
-        int[] lessTablePrimary = occurrenceTablePrimary.createLessTable();
         if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
             waitingHandler.increaseSecondaryProgressCounter();
         }
@@ -1026,15 +1579,15 @@ public class FMIndex implements PeptideMapper {
 
         // create inversed less and occurrence table
         WaveletTree occurrenceTableReversed = new WaveletTree(bwt, alphabet, waitingHandler, numMasses, hasPTMatTerminus);
-        int[] lessTableReversed = occurrenceTableReversed.createLessTable();
         if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
             waitingHandler.increaseSecondaryProgressCounter();
         }
         
-        occurrenceTablesPrimary.add(occurrenceTablePrimary);
-        occurrenceTablesReversed.add(occurrenceTableReversed);
-        lessTablesPrimary.add(lessTablePrimary);
-        lessTablesReversed.add(lessTableReversed);
+        IndexPart indexPart = new IndexPart();
+        indexPart.suffixArray = sampledSuffixArray;
+        indexPart.occurrenceTablePrimary = occurrenceTablePrimary;
+        indexPart.occurrenceTableReversed = occurrenceTableReversed;
+        return indexPart;
     }
     
     
@@ -1229,6 +1782,64 @@ public class FMIndex implements PeptideMapper {
         return (pos < indexStringLength) ? pos : pos - indexStringLength;
     }
 
+    /**
+     * Returns lower bounds on the number of variants needed to map the end of
+     * the reversed peptide: the value at index j is a lower bound for the
+     * residues j to the end of the reversed peptide, i.e. for the residues
+     * not yet processed by the backward search after j steps. The peptide is
+     * searched from its N-terminus in the index of the reversed proteome and
+     * split into segments every time a segment is not found. Every segment
+     * not found requires at least one variant. All bounds are zero if the
+     * pruning is disabled.
+     *
+     * @param combinations the possible amino acids per position of the
+     * reversed peptide
+     * @param indexPart the index part
+     *
+     * @return the lower bounds on the number of variants
+     */
+    private int[] getVariantsLowerBounds(ArrayList<String> combinations, int indexPart) {
+        if (!variantsPruning) {
+            return new int[combinations.size() + 1];
+        }
+        int[] lessTableReversed = lessTablesReversed.get(indexPart);
+        WaveletTree occurrenceTableReversed = occurrenceTablesReversed.get(indexPart);
+        int lenPeptide = combinations.size();
+        int[] lowerBounds = new int[lenPeptide + 1];
+        int[] fullRange = new int[]{0, indexStringLengths.get(indexPart) - 1};
+
+        ArrayList<int[]> ranges = new ArrayList<int[]>(1);
+        ranges.add(fullRange);
+        int nSegmentsNotFound = 0;
+        for (int j = lenPeptide - 1; j >= 0; --j) {
+            String combinationSequence = combinations.get(j);
+            ArrayList<int[]> newRanges = new ArrayList<int[]>(ranges.size());
+            for (int[] range : ranges) {
+                for (int c = 0; c < combinationSequence.length(); ++c) {
+                    int aminoAcid = combinationSequence.charAt(c);
+                    int lessValue = lessTableReversed[aminoAcid];
+                    int[] newRange = occurrenceTableReversed.singleRangeQuery(range[0] - 1, range[1], aminoAcid);
+                    int leftIndex = lessValue + newRange[0];
+                    int rightIndex = lessValue + newRange[1] - 1;
+                    if (leftIndex <= rightIndex) {
+                        newRanges.add(new int[]{leftIndex, rightIndex});
+                    }
+                }
+            }
+            if (newRanges.isEmpty()) {
+                ++nSegmentsNotFound;
+                newRanges.add(fullRange);
+            } else if (newRanges.size() > MAX_LOWER_BOUND_RANGES) {
+                // start a new segment without counting a variant, this only lowers the bound
+                newRanges.clear();
+                newRanges.add(fullRange);
+            }
+            ranges = newRanges;
+            lowerBounds[j] = nSegmentsNotFound;
+        }
+        return lowerBounds;
+    }
+
     /**
      * Main method for mapping a peptide with all variants against all
      * registered proteins in the experiment. This method is implementing the
@@ -1262,6 +1873,32 @@ public class FMIndex implements PeptideMapper {
 
     }
 
+    /**
+     * Returns the protein mappings of the given peptide sequences in a map:
+     * peptide sequence &gt; protein mappings as returned by
+     * getProteinMapping. The peptides are mapped on the given number of
+     * threads.
+     *
+     * @param peptideSequences the peptide sequences
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param nThreads the number of threads to use
+     *
+     * @return the protein mappings of the peptides
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error occurs
+     * while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides
+     * @throws SQLException if an SQLException exception thrown whenever a
+     * problem occurred while interacting with a database
+     */
+    public HashMap<String, ArrayList<PeptideProteinMapping>> getProteinMappings(Collection<String> peptideSequences, SequenceMatchingPreferences sequenceMatchingPreferences, int nThreads)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+        return PeptideMapperUtils.getProteinMappings(this, peptideSequences, sequenceMatchingPreferences, nThreads);
+    }
+
     /**
      * Exact mapping peptides against the proteome.
      *
@@ -1383,10 +2020,15 @@ public class FMIndex implements PeptideMapper {
 
         if (countX <= xNumLimit) {
             backwardMatrix[0][0].add(new MatrixContent(indexStringLengths.get(indexPart) - 1));
+            int[] lowerBounds = getVariantsLowerBounds(combinations, indexPart);
 
             for (int k = 0; k <= maxNumberVariants; ++k) {
                 ArrayList<MatrixContent>[] backwardList = backwardMatrix[k];
                 for (int j = 0; j < lenPeptide; ++j) {
+                    if (k + lowerBounds[j] > maxNumberVariants) {
+                        // the rest of the peptide cannot be mapped with the remaining variants
+                        continue;
+                    }
                     String combinationSequence = combinations.get(j);
                     ArrayList<MatrixContent> cell = backwardList[j];
 
@@ -1551,10 +2193,15 @@ public class FMIndex implements PeptideMapper {
 
         if (countX <= xNumLimit) {
             backwardMatrix[0][0].add(new MatrixContent(indexStringLengths.get(indexPart) - 1));
+            int[] lowerBounds = getVariantsLowerBounds(combinations, indexPart);
 
             for (int k = 0; k <= numErrors; ++k) {
                 LinkedList<MatrixContent>[] backwardList = backwardMatrix[k];
                 for (int j = 0; j < lenPeptide; ++j) {
+                    if (k + lowerBounds[j] > numErrors) {
+                        // the rest of the peptide cannot be mapped with the remaining variants
+                        continue;
+                    }
                     String combinationSequence = combinations.get(j);
                     LinkedList<MatrixContent> cell = backwardList[j];
 
@@ -1691,7 +2338,16 @@ public class FMIndex implements PeptideMapper {
 
     @Override
     public void emptyCache() {
-        // No cache here
+        tagMappingCache.clear();
+    }
+
+    /**
+     * Returns the cache of the intermediate tag mapping results.
+     *
+     * @return the cache of the intermediate tag mapping results
+     */
+    public TagMappingCache getTagMappingCache() {
+        return tagMappingCache;
     }
 
     @Override
@@ -4509,86 +5165,41 @@ public class FMIndex implements PeptideMapper {
     }
 
     /**
-     * Class for caching intermediate tag to proteome mapping results.
-     */
-    private class CacheElement {
-
-        Double massFirst;
-        String sequence;
-        Double massSecond;
-        ArrayList<MatrixContent> cachedPrimary;
-
-        /**
-         * Constructor
-         *
-         * @param massFirst
-         * @param sequence
-         * @param massSecond
-         * @param cachedPrimary
-         */
-        public CacheElement(Double massFirst, String sequence, Double massSecond, ArrayList<MatrixContent> cachedPrimary) {
-            this.sequence = sequence;
-            this.massFirst = massFirst;
-            this.massSecond = massSecond;
-            this.cachedPrimary = cachedPrimary;
-        }
-    }
-
-    /**
-     * List of cached intermediate tag to proteome mapping results.
+     * Cache of the intermediate tag to proteome mapping results.
      */
-    private HashMap<String, CacheElement>[] cache = null;
+    private final TagMappingCache tagMappingCache = new TagMappingCache();
 
     /**
-     * Adding intermediate tag to proteome mapping results into the cache.
+     * Returns the cached intermediate tag to proteome mapping results, null if
+     * not in cache or if the tag is not of the form mass-sequence-mass.
+     *
+     * @param tagComponents the components of the tag
+     * @param indexPart the index part
      *
-     * @param tagComponents
-     * @return
+     * @return the cached matrix contents
      */
     private ArrayList<MatrixContent> isCached(TagElement[] tagComponents, int indexPart) {
         if (tagComponents.length != 3 || !tagComponents[0].isMass || tagComponents[1].isMass || !tagComponents[2].isMass) {
             return null;
         }
-        ArrayList<MatrixContent> cached = null;
-
-        try {
-            cacheMutex.acquire();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        
-        
-        String key = tagComponents[1].sequence + String.format("%.5f", tagComponents[2].mass);
-        CacheElement cacheElement = cache[indexPart].get(key);
-        if (cacheElement != null) cached = cacheElement.cachedPrimary;
-        cacheMutex.release();
-        return cached;
+        return tagMappingCache.get(indexPart, tagComponents[1].sequence, tagComponents[2].mass);
     }
 
     /**
      * Caching intermediate results of previous tag to proteome matches.
      *
-     * @param tagComponents
-     * @param cachedPrimary
+     * @param tagComponents the components of the tag
+     * @param cachedPrimary the matrix contents to cache
+     * @param indexPart the index part
      */
     private void cacheIt(TagElement[] tagComponents, ArrayList<MatrixContent> cachedPrimary, int indexPart) {
         if (tagComponents.length != 3 || !tagComponents[0].isMass || tagComponents[1].isMass || !tagComponents[2].isMass) {
             return;
         }
-        try {
-            cacheMutex.acquire();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        ArrayList<MatrixContent> cacheContentPrimary = new ArrayList<MatrixContent>();
+        ArrayList<MatrixContent> cacheContentPrimary = new ArrayList<MatrixContent>(cachedPrimary.size());
         for (MatrixContent matrixContent : cachedPrimary) {
             cacheContentPrimary.add(new MatrixContent(matrixContent));
         }
-        
-        String key = tagComponents[1].sequence + String.format("%.5f", tagComponents[2].mass);
-        CacheElement cacheElement = new CacheElement(tagComponents[0].mass, tagComponents[1].sequence, tagComponents[2].mass, cacheContentPrimary);
-        if (!cache[indexPart].containsKey(key)) cache[indexPart].put(key, cacheElement);
-        cacheMutex.release();
+        tagMappingCache.put(indexPart, tagComponents[1].sequence, tagComponents[2].mass, cacheContentPrimary);
     }
 }
@@ -0,0 +1,347 @@
+package com.compomics.util.experiment.identification.protein_inference.fm_index;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Wavelet tree flattened in level order. The rank blocks of all nodes are
+ * concatenated in a single array and the nodes are referenced by their index
+ * in level order, the root having index 0 and missing children index -1.
+ * Queries walk the tree in loops over primitive arrays instead of following
+ * references between objects.
+ *
+ * @author Marc Vaudel
+ */
+class FlatWaveletTree {
+
+    /**
+     * The rank blocks of all nodes.
+     */
+    private final long[] blocks;
+    /**
+     * The offset of the rank blocks of every node.
+     */
+    private final int[] offsets;
+    /**
+     * The index of the left child of every node, -1 if none.
+     */
+    private final int[] leftChildren;
+    /**
+     * The index of the right child of every node, -1 if none.
+     */
+    private final int[] rightChildren;
+    /**
+     * The alphabet going to the left child of every node, two longs per node.
+     */
+    private final long[] alphabetDirections;
+    /**
+     * The first character in the alphabet of every node.
+     */
+    private final int[] firstChars;
+    /**
+     * The last character in the alphabet of every node.
+     */
+    private final int[] lastChars;
+    /**
+     * Indicates for every node whether the range query continues in the
+     * left child.
+     */
+    private final boolean[] continueLeftRangeQuery;
+    /**
+     * Indicates for every node whether the range query continues in the
+     * right child.
+     */
+    private final boolean[] continueRightRangeQuery;
+    /**
+     * The number of masses.
+     */
+    private final int numMasses;
+
+    /**
+     * Constructor flattening the given tree.
+     *
+     * @param root the root of the tree
+     */
+    FlatWaveletTree(WaveletTree root) {
+
+        ArrayList<WaveletTree> nodes = new ArrayList<WaveletTree>();
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); ++i) {
+            WaveletTree node = nodes.get(i);
+            if (node.leftChild != null) {
+                nodes.add(node.leftChild);
+            }
+            if (node.rightChild != null) {
+                nodes.add(node.rightChild);
+            }
+        }
+
+        int nNodes = nodes.size();
+        offsets = new int[nNodes];
+        leftChildren = new int[nNodes];
+        rightChildren = new int[nNodes];
+        alphabetDirections = new long[2 * nNodes];
+        firstChars = new int[nNodes];
+        lastChars = new int[nNodes];
+        continueLeftRangeQuery = new boolean[nNodes];
+        continueRightRangeQuery = new boolean[nNodes];
+        numMasses = root.numMasses;
+
+        int length = 0;
+        int childIndex = 1;
+        for (int i = 0; i < nNodes; ++i) {
+            WaveletTree node = nodes.get(i);
+            offsets[i] = length;
+            length += node.rank.getBlocks().length;
+            leftChildren[i] = node.leftChild != null ? childIndex++ : -1;
+            rightChildren[i] = node.rightChild != null ? childIndex++ : -1;
+            alphabetDirections[2 * i] = node.alphabetDirections[0];
+            alphabetDirections[2 * i + 1] = node.alphabetDirections[1];
+            firstChars[i] = node.firstChar;
+            lastChars[i] = node.lastChar;
+            continueLeftRangeQuery[i] = node.continueLeftRangeQuery;
+            continueRightRangeQuery[i] = node.continueRightRangeQuery;
+        }
+
+        blocks = new long[length];
+        for (int i = 0; i < nNodes; ++i) {
+            long[] nodeBlocks = nodes.get(i).rank.getBlocks();
+            System.arraycopy(nodeBlocks, 0, blocks, offsets[i], nodeBlocks.length);
+        }
+    }
+
+    /**
+     * Constructor reading the tree from an index file.
+     *
+     * @param indexFile the index file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    FlatWaveletTree(MappedIndexFile indexFile) throws IOException {
+        numMasses = indexFile.readInt();
+        blocks = indexFile.readLongArray();
+        offsets = indexFile.readIntArray();
+        leftChildren = indexFile.readIntArray();
+        rightChildren = indexFile.readIntArray();
+        alphabetDirections = indexFile.readLongArray();
+        firstChars = indexFile.readIntArray();
+        lastChars = indexFile.readIntArray();
+        int nNodes = offsets.length;
+        continueLeftRangeQuery = new boolean[nNodes];
+        continueRightRangeQuery = new boolean[nNodes];
+        for (int i = 0; i < nNodes; ++i) {
+            continueLeftRangeQuery[i] = indexFile.readBoolean();
+            continueRightRangeQuery[i] = indexFile.readBoolean();
+        }
+    }
+
+    /**
+     * Writes the tree to an index file.
+     *
+     * @param out the stream to write to
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(numMasses);
+        MappedIndexFile.writeLongArray(out, blocks);
+        MappedIndexFile.writeIntArray(out, offsets);
+        MappedIndexFile.writeIntArray(out, leftChildren);
+        MappedIndexFile.writeIntArray(out, rightChildren);
+        MappedIndexFile.writeLongArray(out, alphabetDirections);
+        MappedIndexFile.writeIntArray(out, firstChars);
+        MappedIndexFile.writeIntArray(out, lastChars);
+        for (int i = 0; i < offsets.length; ++i) {
+            out.writeBoolean(continueLeftRangeQuery[i]);
+            out.writeBoolean(continueRightRangeQuery[i]);
+        }
+    }
+
+    /**
+     * Returns the number of masses.
+     *
+     * @return the number of masses
+     */
+    int getNumMasses() {
+        return numMasses;
+    }
+
+    /**
+     * Indicates whether the given character goes to the left child of the
+     * given node.
+     *
+     * @param node the node
+     * @param character the character
+     *
+     * @return true if the character goes to the left child
+     */
+    private boolean isLeft(int node, int character) {
+        return ((alphabetDirections[2 * node + (character >>> 6)] >>> (character & 63)) & 1L) == 1L;
+    }
+
+    /**
+     * Returns the number of occurrences of a given character until position
+     * index.
+     *
+     * @param index the index
+     * @param character the character
+     *
+     * @return the rank
+     */
+    int getRank(int index, int character) {
+        int node = 0;
+        while (index >= 0) {
+            boolean left = isLeft(node, character);
+            int ones = Rank.getRankOne(blocks, offsets[node], index);
+            int result = left ? index + 1 - ones : ones;
+            int child = left ? leftChildren[node] : rightChildren[node];
+            if (child < 0) {
+                return result;
+            }
+            node = child;
+            index = result - 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the character and rank at a given index.
+     *
+     * @param index the index
+     *
+     * @return the character and rank
+     */
+    int[] getCharacterInfo(int index) {
+        int node = 0;
+        while (true) {
+            int offset = offsets[node];
+            boolean left = Rank.getBit(blocks, offset, index) == 0;
+            int ones = Rank.getRankOne(blocks, offset, index);
+            int result = left ? index + 1 - ones : ones;
+            if (result == 0) {
+                return new int[]{firstChars[node], 0};
+            }
+            result -= 1;
+            int child = left ? leftChildren[node] : rightChildren[node];
+            if (child < 0) {
+                return new int[]{left ? firstChars[node] : lastChars[node], result};
+            }
+            node = child;
+            index = result;
+        }
+    }
+
+    /**
+     * Returns the number of bytes for the allocated arrays.
+     *
+     * @return the number of allocated bytes
+     */
+    int getAllocatedBytes() {
+        int nNodes = offsets.length;
+        return (blocks.length << 3) + nNodes * (4 * 4 + 2 * 8 + 2);
+    }
+
+    /**
+     * Fills a list of character and new left/right index for a given range.
+     *
+     * @param node the node
+     * @param leftIndex left index boundary
+     * @param rightIndex right index boundary
+     * @param setCharacter list of counted characters
+     */
+    void rangeQuery(int node, int leftIndex, int rightIndex, int[][] setCharacter) {
+        int offset = offsets[node];
+        int newLeftIndex = (leftIndex >= 0) ? Rank.getRankOne(blocks, offset, leftIndex) : 0;
+        int newRightIndex = (rightIndex >= 0) ? Rank.getRankOne(blocks, offset, rightIndex) : 0;
+
+        if (continueRightRangeQuery[node] && newRightIndex - newLeftIndex > 0) {
+            int rightChild = rightChildren[node];
+            if (rightChild >= 0) {
+                rangeQuery(rightChild, newLeftIndex - 1, newRightIndex - 1, setCharacter);
+            } else {
+                int lastChar = lastChars[node];
+                setCharacter[setCharacter[numMasses][0]++] = new int[]{lastChar, newLeftIndex, newRightIndex, lastChar, -1};
+            }
+        }
+
+        newLeftIndex = leftIndex - newLeftIndex;
+        newRightIndex = rightIndex - newRightIndex;
+        if (continueLeftRangeQuery[node] && newRightIndex - newLeftIndex > 0) {
+            int leftChild = leftChildren[node];
+            if (leftChild >= 0) {
+                rangeQuery(leftChild, newLeftIndex, newRightIndex, setCharacter);
+            } else {
+                int firstChar = firstChars[node];
+                setCharacter[setCharacter[numMasses][0]++] = new int[]{firstChar, newLeftIndex + 1, newRightIndex + 1, firstChar, -1};
+            }
+        }
+    }
+
+    /**
+     * Fills a list of character and new left/right index for a given index.
+     *
+     * @param index index boundary
+     * @param setCharacter list of counted characters
+     */
+    void rangeQueryOneValue(int index, int[][] setCharacter) {
+        int node = 0;
+        while (true) {
+            int offset = offsets[node];
+            int bit = Rank.getBit(blocks, offset, index);
+            int ones = Rank.getRankOne(blocks, offset, index);
+            if (bit == 1) {
+                if (rightChildren[node] < 0) {
+                    int lastChar = lastChars[node];
+                    setCharacter[setCharacter[numMasses][0]++] = new int[]{lastChar, ones - 1, ones, lastChar, -1};
+                    return;
+                }
+                node = rightChildren[node];
+                index = ones - 1;
+            } else {
+                int zeros = index + 1 - ones;
+                if (leftChildren[node] < 0) {
+                    int firstChar = firstChars[node];
+                    setCharacter[setCharacter[numMasses][0]++] = new int[]{firstChar, zeros - 1, zeros, firstChar, -1};
+                    return;
+                }
+                node = leftChildren[node];
+                index = zeros - 1;
+            }
+        }
+    }
+
+    /**
+     * Returns a new left/right index range for a given character.
+     *
+     * @param leftIndex left index boundary
+     * @param rightIndex right index boundary
+     * @param character character to check
+     *
+     * @return the new left/right index range
+     */
+    int[] singleRangeQuery(int leftIndex, int rightIndex, int character) {
+        int node = 0;
+        while (true) {
+            int offset = offsets[node];
+            int newLeftIndex = (leftIndex >= 0) ? Rank.getRankOne(blocks, offset, leftIndex) : 0;
+            int newRightIndex = (rightIndex >= 0) ? Rank.getRankOne(blocks, offset, rightIndex) : 0;
+            int child;
+            if (isLeft(node, character)) {
+                newLeftIndex = (leftIndex >= 0) ? leftIndex + 1 - newLeftIndex : 0;
+                newRightIndex = (rightIndex >= 0) ? rightIndex + 1 - newRightIndex : 0;
+                child = leftChildren[node];
+            } else {
+                child = rightChildren[node];
+            }
+            if (child < 0) {
+                return new int[]{newLeftIndex, newRightIndex};
+            }
+            node = child;
+            leftIndex = newLeftIndex - 1;
+            rightIndex = newRightIndex - 1;
+        }
+    }
+}
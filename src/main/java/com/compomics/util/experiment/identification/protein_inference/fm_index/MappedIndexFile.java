@@ -0,0 +1,339 @@
+package com.compomics.util.experiment.identification.protein_inference.fm_index;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reader for the binary files of the FM index. The file is memory mapped
+ * window by window and the arrays are copied in bulk from the mapped buffers.
+ * The static methods write the arrays in the format expected by the reader.
+ *
+ * @author Marc Vaudel
+ */
+class MappedIndexFile {
+
+    /**
+     * The size of the mapped windows in bytes.
+     */
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    /**
+     * The channel to the file.
+     */
+    private final FileChannel channel;
+    /**
+     * The length of the file.
+     */
+    private final long fileLength;
+    /**
+     * The position of the current window in the file.
+     */
+    private long windowStart = 0;
+    /**
+     * The current window.
+     */
+    private MappedByteBuffer buffer = null;
+
+    /**
+     * Constructor.
+     *
+     * @param channel the channel to the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    MappedIndexFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.fileLength = channel.size();
+    }
+
+    /**
+     * Makes sure that the given number of bytes can be read from the current
+     * window, maps the next window otherwise.
+     *
+     * @param nBytes the number of bytes to read
+     *
+     * @throws IOException exception thrown whenever the end of the file was
+     * reached
+     */
+    private void ensure(int nBytes) throws IOException {
+        if (buffer != null && buffer.remaining() >= nBytes) {
+            return;
+        }
+        long position = buffer == null ? 0 : windowStart + buffer.position();
+        long size = Math.min(Math.max(nBytes, WINDOW_SIZE), fileLength - position);
+        if (size < nBytes) {
+            throw new IOException("Unexpected end of index file.");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        windowStart = position;
+    }
+
+    /**
+     * Returns the number of bytes left to read in the file.
+     *
+     * @return the number of bytes left to read in the file
+     */
+    long remaining() {
+        long position = buffer == null ? 0 : windowStart + buffer.position();
+        return fileLength - position;
+    }
+
+    /**
+     * Reads the number of elements of an array or list and makes sure that it
+     * is compatible with the length of the file.
+     *
+     * @param elementSize the minimal size of an element in bytes
+     *
+     * @return the number of elements, -1 for null
+     *
+     * @throws IOException exception thrown whenever the length read is not
+     * valid
+     */
+    int readLength(int elementSize) throws IOException {
+        int length = readInt();
+        if (length < -1 || (long) length * elementSize > remaining()) {
+            throw new IOException("Corrupted index file, invalid length: " + length + ".");
+        }
+        return length;
+    }
+
+    /**
+     * Returns the number of elements of the given size which can be read in
+     * one bulk operation.
+     *
+     * @param remaining the number of elements left to read
+     * @param elementSize the size of an element in bytes
+     *
+     * @return the number of elements to read
+     *
+     * @throws IOException exception thrown whenever the end of the file was
+     * reached
+     */
+    private int bulkLength(int remaining, int elementSize) throws IOException {
+        int length = Math.min(remaining, WINDOW_SIZE / elementSize);
+        ensure(length * elementSize);
+        return length;
+    }
+
+    /**
+     * Reads a boolean.
+     *
+     * @return the boolean
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    boolean readBoolean() throws IOException {
+        ensure(1);
+        return buffer.get() != 0;
+    }
+
+    /**
+     * Reads an int.
+     *
+     * @return the int
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    int readInt() throws IOException {
+        ensure(4);
+        return buffer.getInt();
+    }
+
+    /**
+     * Reads a long.
+     *
+     * @return the long
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    long readLong() throws IOException {
+        ensure(8);
+        return buffer.getLong();
+    }
+
+    /**
+     * Reads a double.
+     *
+     * @return the double
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    double readDouble() throws IOException {
+        ensure(8);
+        return buffer.getDouble();
+    }
+
+    /**
+     * Reads a string.
+     *
+     * @return the string
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    String readString() throws IOException {
+        byte[] bytes = readByteArray();
+        return bytes == null ? null : new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Reads an array of bytes, null if a null array was written.
+     *
+     * @return the array
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    byte[] readByteArray() throws IOException {
+        int length = readLength(1);
+        if (length < 0) {
+            return null;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int bulkLength = bulkLength(length - offset, 1);
+            buffer.get(result, offset, bulkLength);
+            offset += bulkLength;
+        }
+        return result;
+    }
+
+    /**
+     * Reads an array of ints, null if a null array was written.
+     *
+     * @return the array
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    int[] readIntArray() throws IOException {
+        int length = readLength(4);
+        if (length < 0) {
+            return null;
+        }
+        int[] result = new int[length];
+        int offset = 0;
+        while (offset < length) {
+            int bulkLength = bulkLength(length - offset, 4);
+            buffer.asIntBuffer().get(result, offset, bulkLength);
+            buffer.position(buffer.position() + 4 * bulkLength);
+            offset += bulkLength;
+        }
+        return result;
+    }
+
+    /**
+     * Reads an array of longs, null if a null array was written.
+     *
+     * @return the array
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    long[] readLongArray() throws IOException {
+        int length = readLength(8);
+        if (length < 0) {
+            return null;
+        }
+        long[] result = new long[length];
+        int offset = 0;
+        while (offset < length) {
+            int bulkLength = bulkLength(length - offset, 8);
+            buffer.asLongBuffer().get(result, offset, bulkLength);
+            buffer.position(buffer.position() + 8 * bulkLength);
+            offset += bulkLength;
+        }
+        return result;
+    }
+
+    /**
+     * Writes a string.
+     *
+     * @param out the stream to write to
+     * @param string the string
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        writeByteArray(out, string == null ? null : string.getBytes("UTF-8"));
+    }
+
+    /**
+     * Writes an array of bytes preceded by its length, -1 for null.
+     *
+     * @param out the stream to write to
+     * @param array the array
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    static void writeByteArray(DataOutputStream out, byte[] array) throws IOException {
+        if (array == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(array.length);
+        out.write(array);
+    }
+
+    /**
+     * Writes an array of ints preceded by its length, -1 for null.
+     *
+     * @param out the stream to write to
+     * @param array the array
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    static void writeIntArray(DataOutputStream out, int[] array) throws IOException {
+        if (array == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(array.length);
+        byte[] bytes = new byte[4 * Math.min(array.length, WINDOW_SIZE / 16)];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        int offset = 0;
+        while (offset < array.length) {
+            int length = Math.min(array.length - offset, bytes.length / 4);
+            byteBuffer.asIntBuffer().put(array, offset, length);
+            out.write(bytes, 0, 4 * length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Writes an array of longs preceded by its length, -1 for null.
+     *
+     * @param out the stream to write to
+     * @param array the array
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    static void writeLongArray(DataOutputStream out, long[] array) throws IOException {
+        if (array == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(array.length);
+        byte[] bytes = new byte[8 * Math.min(array.length, WINDOW_SIZE / 32)];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        int offset = 0;
+        while (offset < array.length) {
+            int length = Math.min(array.length - offset, bytes.length / 8);
+            byteBuffer.asLongBuffer().put(array, offset, length);
+            out.write(bytes, 0, 8 * length);
+            offset += length;
+        }
+    }
+}
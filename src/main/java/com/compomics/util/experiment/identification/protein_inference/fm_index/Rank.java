@@ -1,36 +1,32 @@
 package com.compomics.util.experiment.identification.protein_inference.fm_index;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /**
- * Rank as used in the FM index.
+ * Rank as used in the FM index. The bits are stored in blocks of 256 bits
+ * interleaved with their counts: every block takes five longs, a header
+ * followed by four words of bits. The upper 32 bits of the header contain
+ * the number of ones before the block and the lower 32 bits the number of
+ * ones in the block before each word, one byte per word. A rank query thus
+ * reads two neighboring longs only.
  *
  * @author Dominik Kopczynski
  */
 public class Rank {
 
     /**
-     * The length.
-     */
-    public final int length;
-    /**
-     * The bit field.
-     */
-    private final long[] bitfield;
-    /**
-     * The sums.
-     */
-    private final int[] sums;
-    /**
-     * The sums.
+     * The number of longs per block.
      */
-    private final byte[] sumsSecondLevel;
+    static final int BLOCK_LENGTH = 5;
     /**
-     * The shift.
+     * The length.
      */
-    private final int shift = 6;
+    public final int length;
     /**
-     * The mask.
+     * The blocks of headers and bits.
      */
-    private final int mask = 63;
+    private final long[] blocks;
 
     /**
      * Constructor.
@@ -40,34 +36,13 @@ public class Rank {
      */
     public Rank(byte[] text, long[] aAlphabet) {
         length = text.length;
-
-        int field_len = (length >>> 6) + 1;
-        bitfield = new long[field_len];
-        sums = new int[(length >>> 8) + 1];
-        sums[0] = 0;
-        sumsSecondLevel = new byte[field_len];
-        sumsSecondLevel[0] = 0;
+        blocks = new long[getNBlocks(length) * BLOCK_LENGTH];
 
         for (int i = 0; i < length; ++i) {
-            int cell = i >>> shift;
-            int pos = i & mask;
-            if (pos == 0) {
-                bitfield[cell] = 0;
-            }
-            long bit = (aAlphabet[text[i] >>> shift] >>> (text[i] & mask)) & 1L;
-            bitfield[cell] |= (bit << pos);
-
-            if (pos == 0 && i != 0) {
-                if ((i & 255) == 0) {
-                    sumsSecondLevel[cell] = 0;
-                } else {
-                    sumsSecondLevel[cell] = (byte) (sumsSecondLevel[cell - 1] + (byte) (Long.bitCount(bitfield[cell - 1])));
-                }
-            }
-            if (((i & 255) == 0) && i != 0) {
-                sums[i >>> 8] = sums[(i >>> 8) - 1] + (sumsSecondLevel[cell - 1] & 0xFF) + Long.bitCount(bitfield[cell - 1]);
-            }
+            long bit = (aAlphabet[text[i] >>> 6] >>> (text[i] & 63)) & 1L;
+            blocks[getWordIndex(i)] |= (bit << (i & 63));
         }
+        setHeaders();
     }
     
     /**
@@ -78,30 +53,122 @@ public class Rank {
      */
     public Rank(long[] originalBitfield, int length) {
         this.length = length;
+        blocks = new long[getNBlocks(length) * BLOCK_LENGTH];
+
+        int nWords = Math.min(originalBitfield.length, (length >>> 6) + 1);
+        for (int i = 0; i < nWords; ++i) {
+            blocks[getWordIndex(i << 6)] = originalBitfield[i];
+        }
+        setHeaders();
+    }
 
-        int field_len = (length >>> 6) + 1;
-        bitfield = originalBitfield;
-        sums = new int[(length >>> 8) + 1];
-        sums[0] = 0;
-        sumsSecondLevel = new byte[field_len];
-        sumsSecondLevel[0] = 0;
+    /**
+     * Constructor reading the rank from an index file.
+     *
+     * @param indexFile the index file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    Rank(MappedIndexFile indexFile) throws IOException {
+        length = indexFile.readInt();
+        blocks = indexFile.readLongArray();
+    }
 
-        for (int i = 0; i < length; ++i) {
-            int cell = i >>> shift;
-            int pos = i & mask;
-            if (pos == 0 && i != 0) {
-                if ((i & 255) == 0) {
-                    sumsSecondLevel[cell] = 0;
-                } else {
-                    sumsSecondLevel[cell] = (byte) (sumsSecondLevel[cell - 1] + (byte) (Long.bitCount(bitfield[cell - 1])));
-                }
-            }
-            if (((i & 255) == 0) && i != 0) {
-                sums[i >>> 8] = sums[(i >>> 8) - 1] + (sumsSecondLevel[cell - 1] & 0xFF) + Long.bitCount(bitfield[cell - 1]);
+    /**
+     * Writes the rank to an index file.
+     *
+     * @param out the stream to write to
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(length);
+        MappedIndexFile.writeLongArray(out, blocks);
+    }
+
+    /**
+     * Returns the number of blocks needed for a bit vector of the given
+     * length.
+     *
+     * @param length the length of the bit vector
+     *
+     * @return the number of blocks
+     */
+    private static int getNBlocks(int length) {
+        return (length >>> 8) + 1;
+    }
+
+    /**
+     * Returns the index of the word containing the bit at the given index in
+     * the blocks.
+     *
+     * @param index the index of the bit
+     *
+     * @return the index of the word
+     */
+    private static int getWordIndex(int index) {
+        return (index >>> 8) * BLOCK_LENGTH + 1 + ((index >>> 6) & 3);
+    }
+
+    /**
+     * Sets the headers of the blocks from the bits.
+     */
+    private void setHeaders() {
+        long cumulativeSum = 0;
+        for (int block = 0; block < blocks.length; block += BLOCK_LENGTH) {
+            long header = cumulativeSum << 32;
+            int blockSum = 0;
+            for (int word = 0; word < 4; ++word) {
+                header |= ((long) blockSum) << (word << 3);
+                blockSum += Long.bitCount(blocks[block + 1 + word]);
             }
+            blocks[block] = header;
+            cumulativeSum += blockSum;
         }
     }
 
+    /**
+     * Returns the blocks of headers and bits.
+     *
+     * @return the blocks of headers and bits
+     */
+    long[] getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Returns the number of ones until the given index in blocks starting at
+     * the given offset.
+     *
+     * @param blocks the blocks of headers and bits
+     * @param offset the offset of the first block
+     * @param index the index
+     *
+     * @return the rank
+     */
+    static int getRankOne(long[] blocks, int offset, int index) {
+        final int block = offset + (index >>> 8) * BLOCK_LENGTH;
+        final int word = (index >>> 6) & 3;
+        final long header = blocks[block];
+        return (int) (header >>> 32) + (int) ((header >>> (word << 3)) & 0xFF) + Long.bitCount(blocks[block + 1 + word] << (63 - (index & 63)));
+    }
+
+    /**
+     * Returns the bit at the given index in blocks starting at the given
+     * offset.
+     *
+     * @param blocks the blocks of headers and bits
+     * @param offset the offset of the first block
+     * @param index the index
+     *
+     * @return the bit
+     */
+    static int getBit(long[] blocks, int offset, int index) {
+        return (int) ((blocks[offset + getWordIndex(index)] >>> (index & 63)) & 1L);
+    }
+
     /**
      * Returns the rank.
      *
@@ -110,10 +177,7 @@ public class Rank {
      * @return the rank
      */
     public int getRank(int index, boolean zeros) {
-        int cell = index >>> shift;
-        int pos = index & mask;
-        long active_ones = bitfield[cell] << (mask - pos);
-        int count_ones = (sumsSecondLevel[cell] & 0xFF) + sums[index >>> 8] + Long.bitCount(active_ones);
+        int count_ones = getRankOne(blocks, 0, index);
         return zeros ? index + 1 - count_ones : count_ones;
     }
 
@@ -124,11 +188,7 @@ public class Rank {
      * @return the rank
      */
     public final int getRankOne(int index) {
-        final int cell = index >>> shift;
-        final int pos = index & mask;
-        final long active_ones = bitfield[cell] << (mask - pos);
-        final int count_ones = (sumsSecondLevel[cell] & 0xFF) + sums[index >>> 8] + Long.bitCount(active_ones);
-        return count_ones;
+        return getRankOne(blocks, 0, index);
     }
 
     /**
@@ -138,11 +198,7 @@ public class Rank {
      * @return the rank
      */
     public int getRankZero(int index) {
-        int cell = index >>> shift;
-        int pos = index & mask;
-        long active_ones = bitfield[cell] << (mask - pos);
-        int count_ones = (sumsSecondLevel[cell] & 0xFF) + sums[index >>> 8] + Long.bitCount(active_ones);
-        return index + 1 - count_ones;
+        return index + 1 - getRankOne(blocks, 0, index);
     }
 
     /**
@@ -152,9 +208,7 @@ public class Rank {
      * @return true if the value is equal to one
      */
     public boolean isOne(int index) {
-        int cell = index >>> shift;
-        int pos = index & mask;
-        return (((bitfield[cell] >>> pos) & 1L) == 1);
+        return getBit(blocks, 0, index) == 1;
     }
 
     /**
@@ -164,9 +218,7 @@ public class Rank {
      * @return the bit 
      */
     public int isOneInt(int index) {
-        int cell = index >>> shift;
-        int pos = index & mask;
-        return (int)((bitfield[cell] >>> pos) & 1L);
+        return getBit(blocks, 0, index);
     }
 
     /**
@@ -175,6 +227,6 @@ public class Rank {
      * @return the number of bytes for the allocated arrays
      */
     public int getAllocatedBytes() {
-        return (bitfield.length << 3) + (sums.length << 2) + sumsSecondLevel.length;
+        return blocks.length << 3;
     }
 }
@@ -0,0 +1,131 @@
+package com.compomics.util.experiment.identification.protein_inference.fm_index;
+
+import com.compomics.util.maps.SecondChanceCache;
+import java.util.ArrayList;
+
+/**
+ * Cache for the intermediate results of the mapping of tags in the FM index.
+ * The results are stored per index part, sequence and mass of the tag. The
+ * size of the cache is the number of matrix contents it holds.
+ *
+ * @author Marc Vaudel
+ */
+public class TagMappingCache extends SecondChanceCache<TagMappingCache.Key, ArrayList<MatrixContent>> {
+
+    /**
+     * The default capacity in number of matrix contents.
+     */
+    public static final int DEFAULT_CAPACITY = 500000;
+    /**
+     * When evicting, entries are removed until the size of the cache gets
+     * below this share of its capacity.
+     */
+    private static final double EVICTION_TARGET = 0.75;
+    /**
+     * The precision of the masses in the keys.
+     */
+    private static final double MASS_PRECISION = 100000.0;
+
+    /**
+     * Constructor with default capacity.
+     */
+    public TagMappingCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the capacity of the cache in number of matrix contents
+     */
+    public TagMappingCache(int capacity) {
+        super(capacity, EVICTION_TARGET);
+    }
+
+    @Override
+    protected long getWeight(ArrayList<MatrixContent> matrixContents) {
+        return matrixContents.size() + 1;
+    }
+
+    /**
+     * Returns the cached matrix contents for the given tag, null if not in
+     * cache.
+     *
+     * @param indexPart the index part
+     * @param sequence the amino acid sequence of the tag
+     * @param mass the mass of the tag following the sequence
+     *
+     * @return the cached matrix contents
+     */
+    public ArrayList<MatrixContent> get(int indexPart, String sequence, double mass) {
+        return get(new Key(indexPart, sequence, mass));
+    }
+
+    /**
+     * Adds matrix contents to the cache if no contents were cached for this
+     * tag, and evicts entries if the cache exceeds its capacity.
+     *
+     * @param indexPart the index part
+     * @param sequence the amino acid sequence of the tag
+     * @param mass the mass of the tag following the sequence
+     * @param matrixContents the matrix contents
+     */
+    public void put(int indexPart, String sequence, double mass, ArrayList<MatrixContent> matrixContents) {
+        put(new Key(indexPart, sequence, mass), matrixContents);
+    }
+
+    /**
+     * Key of a cache entry.
+     */
+    static class Key {
+
+        /**
+         * The index part.
+         */
+        private final int indexPart;
+        /**
+         * The amino acid sequence of the tag.
+         */
+        private final String sequence;
+        /**
+         * The mass of the tag rounded to the precision of the cache.
+         */
+        private final long mass;
+        /**
+         * The hash code.
+         */
+        private final int hash;
+
+        /**
+         * Constructor.
+         *
+         * @param indexPart the index part
+         * @param sequence the amino acid sequence of the tag
+         * @param mass the mass of the tag
+         */
+        Key(int indexPart, String sequence, double mass) {
+            this.indexPart = indexPart;
+            this.sequence = sequence;
+            this.mass = Math.round(mass * MASS_PRECISION);
+            int result = 31 * indexPart + sequence.hashCode();
+            hash = 31 * result + (int) (this.mass ^ (this.mass >>> 32));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && indexPart == other.indexPart && mass == other.mass && sequence.equals(other.sequence);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.compomics.util.experiment.identification.protein_inference.fm_index;
 
 import com.compomics.util.waiting.WaitingHandler;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 
@@ -14,22 +16,22 @@ public class WaveletTree {
     /**
      * Instance of a rank.
      */
-    private Rank rank;
+    Rank rank;
     
     /**
      * Stored alphabet in a 128 bitfield.
      */
-    private long[] alphabetDirections = new long[2];  // 1 equals left child
+    long[] alphabetDirections = new long[2];  // 1 equals left child
     
     /**
      * First character in alphabet.
      */
-    private int firstChar;
+    int firstChar;
     
     /**
      * Last character in alphabet.
      */
-    private int lastChar;
+    int lastChar;
     
     /**
      * Text length.
@@ -39,22 +41,22 @@ public class WaveletTree {
     /**
      * Continue range query for left child.
      */
-    private boolean continueLeftRangeQuery = false;
+    boolean continueLeftRangeQuery = false;
     
     /**
      * Continue range query for right child.
      */
-    private boolean continueRightRangeQuery = false;
+    boolean continueRightRangeQuery = false;
     
     /**
      * Left child of the wavelet tree.
      */
-    private WaveletTree leftChild;
+    WaveletTree leftChild;
     
     /**
      * Right child of the wavelet tree.
      */
-    private WaveletTree rightChild;
+    WaveletTree rightChild;
     
     /**
      * Shift number for fast bitwise divisions.
@@ -69,7 +71,7 @@ public class WaveletTree {
     /**
      * number of masses
      */
-    private int numMasses;
+    int numMasses;
     
     /**
      * left right mask
@@ -77,6 +79,11 @@ public class WaveletTree {
     private int leftRightMask;
     
     private int[] less;
+
+    /**
+     * The tree flattened in level order, null if not flattened.
+     */
+    private FlatWaveletTree flatTree = null;
     
 
     /**
@@ -214,6 +221,117 @@ public class WaveletTree {
     
     
 
+    /**
+     * Constructor reading the tree and its children from an index file.
+     *
+     * @param indexFile the index file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    WaveletTree(MappedIndexFile indexFile) throws IOException {
+        this(indexFile, 0);
+    }
+
+    /**
+     * Constructor reading the tree and its children from an index file.
+     *
+     * @param indexFile the index file
+     * @param depth the depth of the tree
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private WaveletTree(MappedIndexFile indexFile, int depth) throws IOException {
+        if (depth > 128) {
+            throw new IOException("Corrupted index file, wavelet tree too deep.");
+        }
+        if (indexFile.readBoolean()) {
+            lenText = indexFile.readInt();
+            less = indexFile.readIntArray();
+            flatTree = new FlatWaveletTree(indexFile);
+            numMasses = flatTree.getNumMasses();
+            return;
+        }
+        alphabetDirections[0] = indexFile.readLong();
+        alphabetDirections[1] = indexFile.readLong();
+        firstChar = indexFile.readInt();
+        lastChar = indexFile.readInt();
+        lenText = indexFile.readInt();
+        continueLeftRangeQuery = indexFile.readBoolean();
+        continueRightRangeQuery = indexFile.readBoolean();
+        numMasses = indexFile.readInt();
+        leftRightMask = indexFile.readInt();
+        less = indexFile.readIntArray();
+        rank = new Rank(indexFile);
+        if (indexFile.readBoolean()) {
+            leftChild = new WaveletTree(indexFile, depth + 1);
+        }
+        if (indexFile.readBoolean()) {
+            rightChild = new WaveletTree(indexFile, depth + 1);
+        }
+    }
+
+    /**
+     * Writes the tree and its children to an index file.
+     *
+     * @param out the stream to write to
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeBoolean(flatTree != null);
+        if (flatTree != null) {
+            out.writeInt(lenText);
+            MappedIndexFile.writeIntArray(out, less);
+            flatTree.write(out);
+            return;
+        }
+        out.writeLong(alphabetDirections[0]);
+        out.writeLong(alphabetDirections[1]);
+        out.writeInt(firstChar);
+        out.writeInt(lastChar);
+        out.writeInt(lenText);
+        out.writeBoolean(continueLeftRangeQuery);
+        out.writeBoolean(continueRightRangeQuery);
+        out.writeInt(numMasses);
+        out.writeInt(leftRightMask);
+        MappedIndexFile.writeIntArray(out, less);
+        rank.write(out);
+        out.writeBoolean(leftChild != null);
+        if (leftChild != null) {
+            leftChild.write(out);
+        }
+        out.writeBoolean(rightChild != null);
+        if (rightChild != null) {
+            rightChild.write(out);
+        }
+    }
+
+    /**
+     * Flattens the tree in level order. The rank blocks of all nodes are then
+     * stored in a single array and the nodes are not referenced as objects
+     * anymore. The tree must not be queried while being flattened.
+     */
+    public void flatten() {
+        if (flatTree == null) {
+            flatTree = new FlatWaveletTree(this);
+            rank = null;
+            leftChild = null;
+            rightChild = null;
+        }
+    }
+
+    /**
+     * Indicates whether the tree is flattened.
+     *
+     * @return a boolean indicating whether the tree is flattened
+     */
+    public boolean isFlat() {
+        return flatTree != null;
+    }
+
     /**
      * Create wavelet tree huffman.
      *
@@ -225,6 +343,7 @@ public class WaveletTree {
      */
     public void createWaveletTreeHuffman(byte[] text, WaitingHandler waitingHandler, HuffmanNode root, int numMasses, boolean hasPTMatTerminus) {
         this.numMasses = numMasses;
+        flatTree = null;
         long[] alphabet = new long[2];
         alphabet[0] = root.alphabet[0];
         alphabet[1] = root.alphabet[1];
@@ -349,6 +468,9 @@ public class WaveletTree {
      * @return the rank
      */
     public int getRankRecursive(int index, int character) {
+        if (flatTree != null) {
+            return flatTree.getRank(index, character);
+        }
         if (index >= 0) {
             int cell = character >>> shift;
             int pos = character & mask;
@@ -373,6 +495,9 @@ public class WaveletTree {
      */
     public int[] getCharacterInfo(int index) {
         if (index < lenText) {
+            if (flatTree != null) {
+                return flatTree.getCharacterInfo(index);
+            }
             boolean left = !rank.isOne(index);
             int result = rank.getRank(index, left);
             if (result == 0) {
@@ -401,6 +526,9 @@ public class WaveletTree {
      * @return number of allocated bytes
      */
     public int getAllocatedBytes() {
+        if (flatTree != null) {
+            return flatTree.getAllocatedBytes();
+        }
         int bytes = rank.getAllocatedBytes();
         if (leftChild != null) {
             bytes += leftChild.getAllocatedBytes();
@@ -436,6 +564,10 @@ public class WaveletTree {
      * @param setCharacter list of counted characters
      */
     public void rangeQuery(int leftIndex, int rightIndex, int[][] setCharacter) {
+        if (flatTree != null) {
+            flatTree.rangeQuery(0, leftIndex, rightIndex, setCharacter);
+            return;
+        }
         int newLeftIndex = (leftIndex >= 0) ? rank.getRankOne(leftIndex) : 0;
         int newRightIndex = (rightIndex >= 0) ? rank.getRankOne(rightIndex) : 0;
         
@@ -466,6 +598,10 @@ public class WaveletTree {
      * @param setCharacter list of counted characters
      */
     public void rangeQueryOneValue(int index, int[][] setCharacter) {
+        if (flatTree != null) {
+            flatTree.rangeQueryOneValue(index, setCharacter);
+            return;
+        }
         int switchOption = rank.isOneInt(index);
         switchOption += leftRightMask & (4 >> switchOption);
         switch(switchOption){
@@ -506,6 +642,9 @@ public class WaveletTree {
      * recursively
      */
     public int[] singleRangeQuery(int leftIndex, int rightIndex, int character) {
+        if (flatTree != null) {
+            return flatTree.singleRangeQuery(leftIndex, rightIndex, character);
+        }
         boolean left = ((alphabetDirections[character >>> shift] >>> (character & mask)) & 1) == 1;
 
         if (left) {
@@ -0,0 +1,261 @@
+package com.compomics.util.experiment.identification.protein_inference.proteintree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache for the nodes of the protein tree. The nodes are stored by tag and
+ * retrieved without locking. The size of the cache is the sum of the sizes of
+ * the nodes in accession*node. When it exceeds its capacity, a single thread
+ * evicts the least recently used nodes while the other threads keep using the
+ * cache.
+ *
+ * @author Marc Vaudel
+ */
+public class NodeCache {
+
+    /**
+     * When evicting, nodes are removed until the size of the cache gets below
+     * this share of its capacity.
+     */
+    private static final double EVICTION_TARGET = 0.9;
+    /**
+     * The cached entries.
+     */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    /**
+     * The capacity of the cache in accession*node.
+     */
+    private volatile long capacity;
+    /**
+     * The current size of the cache in accession*node.
+     */
+    private final AtomicLong size = new AtomicLong();
+    /**
+     * Clock used to order the accesses to the nodes.
+     */
+    private final AtomicLong clock = new AtomicLong();
+    /**
+     * Indicates whether a thread is evicting nodes.
+     */
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the capacity of the cache in accession*node
+     */
+    public NodeCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the node of the given tag, null if not in cache.
+     *
+     * @param tag the tag of interest
+     *
+     * @return the cached node
+     */
+    public Node get(String tag) {
+        Entry entry = entries.get(tag);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastAccess = clock.incrementAndGet();
+        return entry.node;
+    }
+
+    /**
+     * Adds a node to the cache and evicts the least recently used nodes if
+     * the cache exceeds its capacity. If a node was already cached for this
+     * tag, the cached node is returned.
+     *
+     * @param tag the tag of the node
+     * @param node the node
+     *
+     * @return the node in cache for this tag
+     */
+    public Node put(String tag, Node node) {
+        Entry entry = new Entry(node, clock.incrementAndGet());
+        Entry previous = entries.putIfAbsent(tag, entry);
+        if (previous != null) {
+            previous.lastAccess = entry.lastAccess;
+            return previous.node;
+        }
+        size.addAndGet(entry.weight);
+        boolean evicted = true;
+        while (evicted && size.get() > capacity && evicting.compareAndSet(false, true)) {
+            try {
+                evicted = evict((long) (EVICTION_TARGET * capacity));
+            } finally {
+                evicting.set(false);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Evicts the least recently used nodes until the size of the cache gets
+     * below the given target.
+     *
+     * @param target the target size in accession*node
+     *
+     * @return true if nodes were evicted
+     */
+    private boolean evict(long target) {
+        ArrayList<Candidate> candidates = new ArrayList<Candidate>(entries.size());
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            candidates.add(new Candidate(mapEntry.getKey(), mapEntry.getValue()));
+        }
+        Collections.sort(candidates);
+        boolean evicted = false;
+        for (int i = 0; i < candidates.size() && size.get() > target; i++) {
+            Candidate candidate = candidates.get(i);
+            if (entries.remove(candidate.tag, candidate.entry)) {
+                size.addAndGet(-candidate.entry.weight);
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes the given share of the nodes, starting with the least recently
+     * used ones. If less than 100 nodes are cached they are all removed. No
+     * effect if another thread is already evicting nodes.
+     *
+     * @param share the share of the cache to remove. 0.5 means 50%
+     */
+    public void reduce(double share) {
+        if (entries.size() <= 100) {
+            clear();
+        } else if (evicting.compareAndSet(false, true)) {
+            try {
+                evict((long) ((1 - share) * size.get()));
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public void clear() {
+        for (String tag : entries.keySet()) {
+            Entry entry = entries.remove(tag);
+            if (entry != null) {
+                size.addAndGet(-entry.weight);
+            }
+        }
+    }
+
+    /**
+     * Returns the capacity of the cache in accession*node.
+     *
+     * @return the capacity of the cache
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the capacity of the cache in accession*node. Nodes are evicted at
+     * the next insertion if the cache exceeds the new capacity.
+     *
+     * @param capacity the capacity of the cache
+     */
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the current size of the cache in accession*node.
+     *
+     * @return the current size of the cache
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Returns the number of nodes in the cache.
+     *
+     * @return the number of nodes in the cache
+     */
+    public int getNNodes() {
+        return entries.size();
+    }
+
+    /**
+     * A cache entry.
+     */
+    private static class Entry {
+
+        /**
+         * The cached node.
+         */
+        final Node node;
+        /**
+         * The weight of the entry in the cache.
+         */
+        final long weight;
+        /**
+         * The time of the last access to the node.
+         */
+        volatile long lastAccess;
+
+        /**
+         * Constructor.
+         *
+         * @param node the cached node
+         * @param lastAccess the time of the last access to the node
+         */
+        Entry(Node node, long lastAccess) {
+            this.node = node;
+            this.weight = node.getSize();
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * An entry considered for eviction with the time of its last access when
+     * the eviction started.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+
+        /**
+         * The tag of the node.
+         */
+        final String tag;
+        /**
+         * The cache entry.
+         */
+        final Entry entry;
+        /**
+         * The time of the last access to the node.
+         */
+        final long lastAccess;
+
+        /**
+         * Constructor.
+         *
+         * @param tag the tag of the node
+         * @param entry the cache entry
+         */
+        Candidate(String tag, Entry entry) {
+            this.tag = tag;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return lastAccess < other.lastAccess ? -1 : (lastAccess == other.lastAccess ? 0 : 1);
+        }
+    }
+}
@@ -33,6 +33,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -57,17 +58,13 @@ public class ProteinTree implements PeptideMapper {
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
     /**
-     * The tree containing the accessions indexed by sequence tags.
+     * The nodes of the tree being imported indexed by sequence tags.
      */
     private HashMap<String, Node> tree = new HashMap<String, Node>();
     /**
-     * List of the nodes in tree.
+     * The cache of the nodes retrieved from the database.
      */
-    private ArrayDeque<String> tagsInTree = new ArrayDeque<String>();
-    /**
-     * The size of the tree in memory in accession*node.
-     */
-    private long treeSize = 0;
+    private final NodeCache nodeCache;
     /**
      * Indicates whether a debug file with speed metrics shall be created.
      */
@@ -95,7 +92,7 @@ public class ProteinTree implements PeptideMapper {
     /**
      * Cache of the last queried peptides.
      */
-    private HashMap<String, ArrayList<PeptideProteinMapping>> lastQueriedPeptidesCache;
+    private ConcurrentHashMap<String, ArrayList<PeptideProteinMapping>> lastQueriedPeptidesCache;
     /**
      * Peptide sequences in cache.
      */
@@ -107,7 +104,7 @@ public class ProteinTree implements PeptideMapper {
     /**
      * Cache of the last queried peptides where the query took long.
      */
-    private HashMap<String, ArrayList<PeptideProteinMapping>> lastSlowQueriedPeptidesCache;
+    private ConcurrentHashMap<String, ArrayList<PeptideProteinMapping>> lastSlowQueriedPeptidesCache;
     /**
      * Peptide sequences in slow cache.
      */
@@ -115,11 +112,11 @@ public class ProteinTree implements PeptideMapper {
     /**
      * The version of the protein tree.
      */
-    public static final String version = "1.1.2";
+    public static final String version = "1.1.3";
     /**
      * The sequence matching preferences of the matches in cache.
      */
-    private SequenceMatchingPreferences cacheSequenceMatchingPreferences = null;
+    private volatile SequenceMatchingPreferences cacheSequenceMatchingPreferences = null;
     /**
      * Indicates whether the main thread is listening or preparing to wait.
      */
@@ -131,7 +128,7 @@ public class ProteinTree implements PeptideMapper {
     /**
      * Cache for the protein lengths.
      */
-    private HashMap<String, Integer> proteinLengthsCache = new HashMap<String, Integer>();
+    private ConcurrentHashMap<String, Integer> proteinLengthsCache = new ConcurrentHashMap<String, Integer>();
 
     /**
      * Creates a tree based on the proteins present in the sequence factory.
@@ -147,8 +144,9 @@ public class ProteinTree implements PeptideMapper {
 
         this.memoryAllocation = memoryAllocation;
         this.cacheSize = cacheSize;
-        lastSlowQueriedPeptidesCache = new HashMap<String, ArrayList<PeptideProteinMapping>>(cacheSize);
-        lastQueriedPeptidesCache = new HashMap<String, ArrayList<PeptideProteinMapping>>(cacheSize);
+        lastSlowQueriedPeptidesCache = new ConcurrentHashMap<String, ArrayList<PeptideProteinMapping>>(cacheSize);
+        lastQueriedPeptidesCache = new ConcurrentHashMap<String, ArrayList<PeptideProteinMapping>>(cacheSize);
+        nodeCache = new NodeCache(memoryAllocation * cacheScale);
 
         if (debugSpeed) {
             try {
@@ -175,6 +173,7 @@ public class ProteinTree implements PeptideMapper {
      */
     public void setMemoryAllocation(int memoryAllocation) {
         this.memoryAllocation = memoryAllocation;
+        nodeCache.setCapacity(memoryAllocation * cacheScale);
     }
 
     /**
@@ -241,6 +240,7 @@ public class ProteinTree implements PeptideMapper {
             throws IOException, InterruptedException, IOException, InterruptedException, ClassNotFoundException, SQLException {
 
         tree.clear();
+        nodeCache.clear();
 
         componentsFactory = ProteinTreeComponentsFactory.getInstance();
 
@@ -487,10 +487,10 @@ public class ProteinTree implements PeptideMapper {
             }
         }
 
-        tagsInTree.addAll(tree.keySet());
-        for (Node node : tree.values()) {
-            treeSize += node.getSize();
+        for (String tag : tree.keySet()) {
+            nodeCache.put(tag, tree.get(tag));
         }
+        tree.clear();
 
         if (waitingHandler != null && waitingHandler.isRunCanceled()) {
             return;
@@ -1078,14 +1078,14 @@ public class ProteinTree implements PeptideMapper {
             lastQueriedPeptidesCache.put(peptideSequence, mapping);
             lastQueriedPeptidesCacheContent.add(peptideSequence);
             if (lastQueriedPeptidesCacheContent.size() > cacheSize) {
-                String key = lastQueriedPeptidesCacheContent.pollLast();
+                String key = lastQueriedPeptidesCacheContent.pollFirst();
                 lastQueriedPeptidesCache.remove(key);
             }
         } else {
             lastSlowQueriedPeptidesCache.put(peptideSequence, mapping);
             lastSlowQueriedPeptidesCacheContent.add(peptideSequence);
             if (lastSlowQueriedPeptidesCacheContent.size() > cacheSize) {
-                String key = lastSlowQueriedPeptidesCacheContent.pollLast();
+                String key = lastSlowQueriedPeptidesCacheContent.pollFirst();
                 lastSlowQueriedPeptidesCache.remove(key);
             }
         }
@@ -1314,53 +1314,12 @@ public class ProteinTree implements PeptideMapper {
      */
     private Node getNode(String tag) throws SQLException, ClassNotFoundException, IOException, InterruptedException {
 
-        Node result = tree.get(tag);
+        Node result = nodeCache.get(tag);
 
         if (result == null) {
-            result = getNodeSynchronized(tag);
-        }
-
-        return result;
-    }
-
-    /**
-     * Returns a node related to a tag and updates the cache. Null if not found.
-     *
-     * @param tag the tag of interest
-     *
-     * @return the corresponding node
-     *
-     * @throws IOException exception thrown whenever an error occurs while
-     * reading or writing a file.
-     * @throws ClassNotFoundException exception thrown whenever an error occurs
-     * while deserializing an object.
-     * @throws InterruptedException exception thrown whenever a threading issue
-     * occurred while interacting with the tree.
-     * @throws SQLException if an SQLException exception thrown whenever a
-     * problem occurred while interacting with the tree database.
-     */
-    private synchronized Node getNodeSynchronized(String tag) throws SQLException, ClassNotFoundException, IOException, InterruptedException {
-
-        Node result = tree.get(tag);
-
-        if (result == null) {
-
             result = componentsFactory.getNode(tag);
-
             if (result != null) {
-
-                long capacity = memoryAllocation * cacheScale;
-
-                while (treeSize > capacity && !tagsInTree.isEmpty()) {
-                    String tempTag = tagsInTree.pollLast();
-                    Node tempNode = tree.get(tempTag);
-                    treeSize -= tempNode.getSize();
-                    tree.remove(tempTag);
-                }
-
-                tree.put(tag, result);
-                treeSize += result.getSize();
-                tagsInTree.addFirst(tag);
+                result = nodeCache.put(tag, result);
             }
         }
 
@@ -1411,9 +1370,9 @@ public class ProteinTree implements PeptideMapper {
     /**
      * Empties the cache.
      */
-    public void emptyCache() {
+    public synchronized void emptyCache() {
         tree.clear();
-        tagsInTree.clear();
+        nodeCache.clear();
         lastQueriedPeptidesCache.clear();
         lastQueriedPeptidesCacheContent.clear();
         lastSlowQueriedPeptidesCache.clear();
@@ -1427,21 +1386,8 @@ public class ProteinTree implements PeptideMapper {
      *
      * @param share the share of the cache to remove. 0.5 means 50%
      */
-    public synchronized void reduceNodeCacheSize(double share) {
-        double limit = tree.size();
-        if (limit > 100) {
-            limit = share * limit;
-        }
-        for (int i = 0; i < limit; i++) {
-            String tempTag = tagsInTree.pollLast();
-            Node tempNode = tree.get(tempTag);
-            if (tempNode == null) {
-                // another thread already reduced the cache size
-                break;
-            }
-            treeSize -= tempNode.getSize();
-            tree.remove(tempTag);
-        }
+    public void reduceNodeCacheSize(double share) {
+        nodeCache.reduce(share);
     }
 
     /**
@@ -1450,7 +1396,7 @@ public class ProteinTree implements PeptideMapper {
      * @return the number of nodes currently loaded in cache
      */
     public int getNodesInCache() {
-        return tree.size();
+        return nodeCache.getNNodes();
     }
 
     /**
@@ -16,6 +16,8 @@ import java.util.HashSet;
 
 /**
  * This factory stores and returns protein trees components from databases.
+ * The components are stored in the memory-mapped tables of the embedded key
+ * value store, the nodes can thus be retrieved concurrently.
  *
  * @author Marc Vaudel
  */
@@ -61,6 +63,10 @@ public class ProteinTreeComponentsFactory {
      * List of all tags in tree.
      */
     private HashSet<String> tagsInTree = null;
+    /**
+     * The initial tag size, null if not loaded.
+     */
+    private volatile Integer initialSize = null;
 
     /**
      * Constructor.
@@ -113,7 +119,9 @@ public class ProteinTreeComponentsFactory {
             }
         }
 
-        objectsDB = new ObjectsDB(dbFolder.getAbsolutePath(), dbName, false, objectsCache);
+        tagsInTree = null;
+        initialSize = null;
+        objectsDB = new ObjectsDB(dbFolder.getAbsolutePath(), dbName, false, objectsCache, true);
 
         if (!exists) {
             objectsDB.addTable(nodeTable);
@@ -171,6 +179,7 @@ public class ProteinTreeComponentsFactory {
             objectsDB.close();
             objectsCache = new ObjectsCache();
         }
+        initialSize = null;
     }
 
     /**
@@ -281,10 +290,12 @@ public class ProteinTreeComponentsFactory {
      */
     public void saveInitialSize(int size) throws SQLException, IOException, InterruptedException {
         objectsDB.insertObject(parametersTable, "initialSize", size, false);
+        initialSize = size;
     }
 
     /**
-     * Retrieves the initial tag size from the db.
+     * Retrieves the initial tag size from the db. The value is kept in memory
+     * after the first call.
      *
      * @return the initial tag size
      *
@@ -294,7 +305,12 @@ public class ProteinTreeComponentsFactory {
      * @throws SQLException if an SQLException occurs
      */
     public Integer getInitialSize() throws SQLException, IOException, ClassNotFoundException, InterruptedException {
-        return (Integer) objectsDB.retrieveObject(parametersTable, "initialSize", true);
+        Integer result = initialSize;
+        if (result == null) {
+            result = (Integer) objectsDB.retrieveObject(parametersTable, "initialSize", true);
+            initialSize = result;
+        }
+        return result;
     }
 
     /**
@@ -511,7 +527,7 @@ public class ProteinTreeComponentsFactory {
 
                     try {
                         ObjectsCache tempCache = new ObjectsCache();
-                        ObjectsDB objectsDB = new ObjectsDB(dbFolder.getAbsolutePath(), dbName, false, tempCache);
+                        ObjectsDB objectsDB = new ObjectsDB(dbFolder.getAbsolutePath(), dbName, false, tempCache, true);
                         boolean upToDate = true;
 
                         try {
@@ -539,7 +555,7 @@ public class ProteinTreeComponentsFactory {
 
                         if (!upToDate) {
                             DerbyUtil.closeConnection(); //TODO: Restore connections?
-                            Util.deleteDir(folder);
+                            Util.deleteDir(dbFolder);
                         }
                     } catch (Exception e) {
                         // Possibly not a tree, skip
@@ -0,0 +1,340 @@
+package com.compomics.util.experiment.identification.protein_sequences;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A region of a FASTA file. Regions start at the beginning of a header line,
+ * or at the beginning of the file, and end where the next region starts. The
+ * proteins of a FASTA file can thus be processed region by region in
+ * parallel.
+ *
+ * @author Marc Vaudel
+ */
+public class FastaRegion {
+
+    /**
+     * The size of the buffers used to read the file.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * The charset used to decode the lines, every byte is mapped to one
+     * character like when reading the file using a random access file.
+     */
+    public static final Charset CHARSET = Charset.forName("ISO-8859-1");
+    /**
+     * The FASTA file.
+     */
+    private final File file;
+    /**
+     * The index of the region in the file.
+     */
+    private final int index;
+    /**
+     * The position of the first byte of the region.
+     */
+    private final long start;
+    /**
+     * The position after the last byte of the region.
+     */
+    private final long end;
+
+    /**
+     * Constructor.
+     *
+     * @param file the FASTA file
+     * @param index the index of the region in the file
+     * @param start the position of the first byte of the region
+     * @param end the position after the last byte of the region
+     */
+    public FastaRegion(File file, int index, long start, long end) {
+        this.file = file;
+        this.index = index;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Splits the given FASTA file in regions of similar size. Regions which
+     * would not contain a header are merged with the previous region, less
+     * regions than requested can thus be returned.
+     *
+     * @param file the FASTA file
+     * @param nRegions the number of regions desired
+     *
+     * @return the regions of the file in the order of the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public static ArrayList<FastaRegion> getRegions(File file, int nRegions) throws IOException {
+
+        ArrayList<FastaRegion> regions = new ArrayList<FastaRegion>(nRegions);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            long length = randomAccessFile.length();
+            long regionStart = 0;
+            for (int i = 1; i < nRegions; i++) {
+                long boundary = getNextHeaderStart(randomAccessFile, Math.max(regionStart + 1, i * (length / nRegions)), length);
+                if (boundary >= length) {
+                    break;
+                }
+                regions.add(new FastaRegion(file, regions.size(), regionStart, boundary));
+                regionStart = boundary;
+            }
+            regions.add(new FastaRegion(file, regions.size(), regionStart, length));
+        } finally {
+            randomAccessFile.close();
+        }
+
+        return regions;
+    }
+
+    /**
+     * Returns the position of the first header line starting at or after the
+     * given position, the length of the file if none.
+     *
+     * @param randomAccessFile the file
+     * @param position the position where to start looking
+     * @param length the length of the file
+     *
+     * @return the position of the next header line
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static long getNextHeaderStart(RandomAccessFile randomAccessFile, long position, long length) throws IOException {
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        // include the previous byte to know whether the position is at the start of a line
+        long bufferStart = position - 1;
+        randomAccessFile.seek(bufferStart);
+
+        while (bufferStart < length) {
+            int nBytes = randomAccessFile.read(buffer);
+            if (nBytes <= 0) {
+                break;
+            }
+            for (int i = 1; i < nBytes; i++) {
+                if (buffer[i] == '>' && (buffer[i - 1] == '\n' || buffer[i - 1] == '\r')) {
+                    return bufferStart + i;
+                }
+            }
+            // keep the last byte for the next buffer
+            bufferStart += nBytes - 1;
+            randomAccessFile.seek(bufferStart);
+            if (nBytes == 1) {
+                break;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Returns the FASTA file.
+     *
+     * @return the FASTA file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the index of the region in the file.
+     *
+     * @return the index of the region in the file
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the position of the first byte of the region.
+     *
+     * @return the position of the first byte of the region
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the position after the last byte of the region.
+     *
+     * @return the position after the last byte of the region
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the length of the region in bytes.
+     *
+     * @return the length of the region in bytes
+     */
+    public long length() {
+        return end - start;
+    }
+
+    /**
+     * Returns a reader for the lines of this region.
+     *
+     * @return a reader for the lines of this region
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * opening the file
+     */
+    public LineReader getLineReader() throws IOException {
+        return new LineReader(this);
+    }
+
+    /**
+     * Reader for the lines of a region. Lines are terminated like in
+     * RandomAccessFile.readLine, i.e. by '\n', '\r' or "\r\n", and decoded
+     * using one character per byte.
+     */
+    public static class LineReader {
+
+        /**
+         * The stream reading the file.
+         */
+        private final FileInputStream inputStream;
+        /**
+         * The buffer.
+         */
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        /**
+         * The position of the next byte to read in the buffer.
+         */
+        private int bufferPosition = 0;
+        /**
+         * The number of bytes in the buffer.
+         */
+        private int bufferLength = 0;
+        /**
+         * The bytes of the current line.
+         */
+        private byte[] line = new byte[256];
+        /**
+         * The position of the next byte to read in the file.
+         */
+        private long filePointer;
+        /**
+         * The position after the last byte of the region.
+         */
+        private final long end;
+
+        /**
+         * Constructor.
+         *
+         * @param region the region to read
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while opening the file
+         */
+        private LineReader(FastaRegion region) throws IOException {
+            inputStream = new FileInputStream(region.getFile());
+            inputStream.getChannel().position(region.getStart());
+            filePointer = region.getStart();
+            end = region.getEnd();
+        }
+
+        /**
+         * Returns the position of the next line in the file.
+         *
+         * @return the position of the next line in the file
+         */
+        public long getFilePointer() {
+            return filePointer;
+        }
+
+        /**
+         * Reads the next byte, -1 if the end of the region is reached.
+         *
+         * @return the next byte
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while reading the file
+         */
+        private int read() throws IOException {
+            if (filePointer >= end) {
+                return -1;
+            }
+            if (bufferPosition == bufferLength) {
+                bufferLength = inputStream.read(buffer, 0, (int) Math.min(buffer.length, end - filePointer));
+                bufferPosition = 0;
+                if (bufferLength <= 0) {
+                    bufferLength = 0;
+                    return -1;
+                }
+            }
+            filePointer++;
+            return buffer[bufferPosition++] & 0xFF;
+        }
+
+        /**
+         * Returns the next line of the region, null if the end of the region
+         * is reached.
+         *
+         * @return the next line
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while reading the file
+         */
+        public String readLine() throws IOException {
+            return readLine(CHARSET);
+        }
+
+        /**
+         * Returns the next line of the region decoded using the given
+         * charset, null if the end of the region is reached.
+         *
+         * @param charset the charset to use
+         *
+         * @return the next line
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while reading the file
+         */
+        public String readLine(Charset charset) throws IOException {
+            int c = read();
+            if (c == -1) {
+                return null;
+            }
+            int length = 0;
+            while (c != -1 && c != '\n' && c != '\r') {
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, 2 * length);
+                }
+                line[length++] = (byte) c;
+                c = read();
+            }
+            if (c == '\r') {
+                c = read();
+                if (c != '\n' && c != -1) {
+                    // not a "\r\n" line break, unread the byte
+                    bufferPosition--;
+                    filePointer--;
+                }
+            }
+            return new String(line, 0, length, charset);
+        }
+
+        /**
+         * Closes the reader.
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while closing the file
+         */
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+}
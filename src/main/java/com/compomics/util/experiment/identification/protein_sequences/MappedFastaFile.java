@@ -0,0 +1,290 @@
+package com.compomics.util.experiment.identification.protein_sequences;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A FASTA file mapped in memory. The file is mapped in segments and read using
+ * absolute positions only. The positions of the proteins are stored in arrays
+ * sorted by accession. Multiple threads can thus retrieve headers and
+ * sequences from the same file in parallel without synchronization.
+ *
+ * @author Marc Vaudel
+ */
+public class MappedFastaFile {
+
+    /**
+     * The number of bits used for the position in a segment.
+     */
+    private static final int SEGMENT_BITS = 30;
+    /**
+     * The size of the segments mapped in memory.
+     */
+    public static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    /**
+     * The charset used to decode the file, every byte is mapped to one
+     * character like when reading the file using a random access file.
+     */
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+    /**
+     * The mapped file.
+     */
+    private final File file;
+    /**
+     * The length of the file.
+     */
+    private final long length;
+    /**
+     * The mapped segments of the file.
+     */
+    private volatile MappedByteBuffer[] segments;
+    /**
+     * The accessions of the proteins in alphabetical order.
+     */
+    private final String[] accessions;
+    /**
+     * The positions of the headers of the proteins in the file, in the order
+     * of the accessions.
+     */
+    private final long[] positions;
+
+    /**
+     * Constructor. Maps the given file in memory and indexes the positions of
+     * the proteins.
+     *
+     * @param file the FASTA file
+     * @param fastaIndex the index of the FASTA file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * mapping the file
+     */
+    public MappedFastaFile(File file, FastaIndex fastaIndex) throws IOException {
+        this.file = file;
+
+        HashMap<String, Long> indexes = fastaIndex.getIndexes();
+        accessions = indexes.keySet().toArray(new String[indexes.size()]);
+        Arrays.sort(accessions);
+        positions = new long[accessions.length];
+        for (Map.Entry<String, Long> entry : indexes.entrySet()) {
+            positions[Arrays.binarySearch(accessions, entry.getKey())] = entry.getValue();
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            length = channel.size();
+            int nSegments = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+            MappedByteBuffer[] mappedSegments = new MappedByteBuffer[nSegments];
+            for (int i = 0; i < nSegments; i++) {
+                long start = i * SEGMENT_SIZE;
+                mappedSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+            segments = mappedSegments;
+        } finally {
+            // the mapping remains valid after closing the channel
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the mapped file.
+     *
+     * @return the mapped file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the length of the file.
+     *
+     * @return the length of the file
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns the number of proteins indexed.
+     *
+     * @return the number of proteins indexed
+     */
+    public int getNProteins() {
+        return accessions.length;
+    }
+
+    /**
+     * Returns the position of the header of the given protein in the file, -1
+     * if not found.
+     *
+     * @param accession the accession of the protein
+     *
+     * @return the position of the header of the protein
+     */
+    public long getPosition(String accession) {
+        int index = Arrays.binarySearch(accessions, accession);
+        return index >= 0 ? positions[index] : -1;
+    }
+
+    /**
+     * Returns the byte at the given position.
+     *
+     * @param mappedSegments the mapped segments
+     * @param position the position in the file
+     *
+     * @return the byte at the given position
+     */
+    private static byte get(MappedByteBuffer[] mappedSegments, long position) {
+        return mappedSegments[(int) (position >>> SEGMENT_BITS)].get((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * Returns the mapped segments.
+     *
+     * @return the mapped segments
+     *
+     * @throws IOException exception thrown whenever the file was closed
+     */
+    private MappedByteBuffer[] getSegments() throws IOException {
+        MappedByteBuffer[] mappedSegments = segments;
+        if (mappedSegments == null) {
+            throw new IOException("FASTA file " + file.getName() + " was closed.");
+        }
+        return mappedSegments;
+    }
+
+    /**
+     * Returns the end of the line starting at the given position, i.e. the
+     * position of the next '\n' or '\r', or the length of the file.
+     *
+     * @param mappedSegments the mapped segments
+     * @param position the position in the file
+     *
+     * @return the end of the line
+     */
+    private long getLineEnd(MappedByteBuffer[] mappedSegments, long position) {
+        long end = position;
+        while (end < length) {
+            byte b = get(mappedSegments, end);
+            if (b == '\n' || b == '\r') {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Returns the start of the line following the line end at the given
+     * position. Lines are terminated by '\n', '\r' or "\r\n" like in
+     * RandomAccessFile.readLine.
+     *
+     * @param mappedSegments the mapped segments
+     * @param lineEnd the end of the current line
+     *
+     * @return the start of the next line
+     */
+    private long getNextLineStart(MappedByteBuffer[] mappedSegments, long lineEnd) {
+        if (lineEnd >= length) {
+            return length;
+        }
+        if (get(mappedSegments, lineEnd) == '\r' && lineEnd + 1 < length && get(mappedSegments, lineEnd + 1) == '\n') {
+            return lineEnd + 2;
+        }
+        return lineEnd + 1;
+    }
+
+    /**
+     * Returns the header line of the protein at the given position.
+     *
+     * @param position the position of the header in the file
+     *
+     * @return the header line
+     *
+     * @throws IOException exception thrown whenever the file was closed
+     */
+    public String getHeaderLine(long position) throws IOException {
+        MappedByteBuffer[] mappedSegments = getSegments();
+        long end = getLineEnd(mappedSegments, position);
+        byte[] line = new byte[(int) (end - position)];
+        for (int i = 0; i < line.length; i++) {
+            line[i] = get(mappedSegments, position + i);
+        }
+        return new String(line, CHARSET).trim();
+    }
+
+    /**
+     * Returns the sequence of the protein whose header is at the given
+     * position. The lines of the sequence are trimmed and concatenated, and a
+     * trailing stop codon is removed, see
+     * SequenceFactory.importSequenceFromFasta.
+     *
+     * @param position the position of the header in the file
+     *
+     * @return the sequence of the protein
+     *
+     * @throws IOException exception thrown whenever the file was closed
+     */
+    public String getSequence(long position) throws IOException {
+
+        MappedByteBuffer[] mappedSegments = getSegments();
+
+        // skip the header
+        long lineStart = getNextLineStart(mappedSegments, getLineEnd(mappedSegments, position));
+
+        byte[] sequence = new byte[256];
+        int sequenceLength = 0;
+
+        while (lineStart < length) {
+            long lineEnd = getLineEnd(mappedSegments, lineStart);
+            long start = lineStart, end = lineEnd;
+            while (start < end && get(mappedSegments, start) <= ' ') {
+                start++;
+            }
+            while (end > start && get(mappedSegments, end - 1) <= ' ') {
+                end--;
+            }
+            if (start < end && get(mappedSegments, start) == '>') {
+                break;
+            }
+            int newLength = sequenceLength + (int) (end - start);
+            if (newLength > sequence.length) {
+                sequence = Arrays.copyOf(sequence, Math.max(newLength, 2 * sequence.length));
+            }
+            for (long i = start; i < end; i++) {
+                sequence[sequenceLength++] = get(mappedSegments, i);
+            }
+            lineStart = getNextLineStart(mappedSegments, lineEnd);
+        }
+
+        if (sequenceLength > 0 && sequence[sequenceLength - 1] == '*') {
+            sequenceLength--;
+        }
+
+        return new String(sequence, 0, sequenceLength, CHARSET);
+    }
+
+    /**
+     * Indicates whether the file was closed.
+     *
+     * @return a boolean indicating whether the file was closed
+     */
+    public boolean isClosed() {
+        return segments == null;
+    }
+
+    /**
+     * Releases the mapped segments. The memory is freed once the segments are
+     * garbage collected.
+     */
+    public void close() {
+        segments = null;
+    }
+}
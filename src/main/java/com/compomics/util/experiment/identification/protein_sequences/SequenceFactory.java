@@ -18,13 +18,26 @@ import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.preferences.UtilitiesUserPreferences;
 import com.compomics.util.protein.Header;
 import java.io.*;
+import java.nio.charset.Charset;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 import javax.swing.JProgressBar;
 import uk.ac.ebi.pride.tools.braf.BufferedRandomAccessFile;
 
@@ -44,11 +57,11 @@ public class SequenceFactory {
     /**
      * Map of the currently loaded Headers.
      */
-    private HashMap<String, Header> currentHeaderMap = new HashMap<String, Header>();
+    private ConcurrentHashMap<String, Header> currentHeaderMap = new ConcurrentHashMap<String, Header>();
     /**
      * Map of the currently loaded proteins.
      */
-    private HashMap<String, Protein> currentProteinMap = new HashMap<String, Protein>();
+    private ConcurrentHashMap<String, Protein> currentProteinMap = new ConcurrentHashMap<String, Protein>();
     /**
      * Index of the FASTA file.
      */
@@ -57,6 +70,14 @@ public class SequenceFactory {
      * Random access file of the current FASTA file.
      */
     private BufferedRandomAccessFile currentRandomAccessFile = null;
+    /**
+     * The current FASTA file mapped in memory, null if not mapped.
+     */
+    private volatile MappedFastaFile mappedFastaFile = null;
+    /**
+     * Indicates whether the FASTA files should be mapped in memory.
+     */
+    private boolean memoryMappedFasta = false;
     /**
      * The FASTA file currently loaded.
      */
@@ -67,13 +88,26 @@ public class SequenceFactory {
      */
     private int nCache = 1000000;
     /**
-     * List of accessions of the loaded proteins.
+     * Accessions of the loaded proteins in the order they were loaded.
      */
-    private ArrayList<String> loadedProteins = new ArrayList<String>();
+    private ConcurrentLinkedQueue<String> loadedProteins = new ConcurrentLinkedQueue<String>();
+    /**
+     * The number of loaded proteins.
+     */
+    private AtomicInteger nLoadedProteins = new AtomicInteger();
     /**
      * Recognized flags for a decoy protein.
      */
     private static final String[] DECOY_FLAGS = {"REVERSED", "RND", "SHUFFLED", "DECOY"};
+    /**
+     * The maximal size in bytes of the regions of a FASTA file processed in
+     * parallel.
+     */
+    private static final long MAX_REGION_SIZE = 8 * 1024 * 1024;
+    /**
+     * The number of regions of a FASTA file processed per thread.
+     */
+    private static final int REGIONS_PER_THREAD = 4;
     /**
      * HashMap of the currently calculated protein molecular weights.
      */
@@ -94,6 +128,11 @@ public class SequenceFactory {
      * Indicates whether the decoy hits should be kept in memory.
      */
     private boolean decoyInMemory = true;
+    /**
+     * Indicates whether the FM index of the default peptide mapper should be
+     * saved to and loaded from an index file next to the FASTA file.
+     */
+    private boolean fmIndexFileUsed = true;
     /**
      * The minimal protein count required for reliable target/decoy based
      * statistics.
@@ -158,8 +197,10 @@ public class SequenceFactory {
         currentProteinMap.clear();
         fastaIndex = null;
         currentRandomAccessFile = null;
+        mappedFastaFile = null;
         currentFastaFile = null;
         loadedProteins.clear();
+        nLoadedProteins.set(0);
         molecularWeights.clear();
     }
 
@@ -170,6 +211,7 @@ public class SequenceFactory {
         currentHeaderMap.clear();
         currentProteinMap.clear();
         loadedProteins.clear();
+        nLoadedProteins.set(0);
         molecularWeights.clear();
         if (defaultPeptideMapper != null) {
             defaultPeptideMapper.emptyCache();
@@ -223,6 +265,19 @@ public class SequenceFactory {
             }
         }
 
+        if (currentProtein == null) {
+            MappedFastaFile currentMappedFastaFile = mappedFastaFile;
+            if (currentMappedFastaFile != null) {
+                try {
+                    currentProtein = getProtein(currentMappedFastaFile, accession);
+                } catch (IOException e) {
+                    if (!currentMappedFastaFile.isClosed()) {
+                        throw e;
+                    }
+                    // the mapping was replaced in the meantime, use the synchronized access
+                }
+            }
+        }
         if (currentProtein == null) {
             currentProtein = getProteinSynchronized(accession, reindex);
         }
@@ -233,6 +288,33 @@ public class SequenceFactory {
         return currentProtein;
     }
 
+    /**
+     * Returns the desired protein from the FASTA file mapped in memory, null
+     * if not found. No lock is acquired, the protein is added to the cache.
+     *
+     * @param mappedFastaFile the FASTA file mapped in memory
+     * @param accession accession of the desired protein
+     *
+     * @return the desired protein
+     *
+     * @throws IOException thrown whenever an error is encountered while reading
+     * the FASTA file
+     */
+    private Protein getProtein(MappedFastaFile mappedFastaFile, String accession) throws IOException {
+
+        long position = mappedFastaFile.getPosition(accession);
+
+        if (position < 0) {
+            return null;
+        }
+
+        Header header = getHeader(mappedFastaFile, accession, position);
+        Protein protein = new Protein(accession, header.getDatabaseType(), mappedFastaFile.getSequence(position), isDecoyAccession(accession));
+        addProteinToCache(accession, protein);
+
+        return protein;
+    }
+
     /**
      * Returns a decoy protein from a target protein or looks for the sequence
      * in the cache if not found.
@@ -320,6 +402,9 @@ public class SequenceFactory {
             if (index == null) {
                 if (reindex) {
                     fastaIndex = getFastaIndex(true, null);
+                    if (mappedFastaFile != null) {
+                        mapFastaFile();
+                    }
                     return getProtein(accession, false);
                 }
                 throw new IllegalArgumentException("Protein not found: " + accession + ".");
@@ -439,16 +524,20 @@ public class SequenceFactory {
      * @param accession the accession of the protein to add
      * @param protein the protein to add
      */
-    private synchronized void addProteinToCache(String accession, Protein protein) {
-        while (loadedProteins.size() >= nCache) {
-            String accessionToRemove = loadedProteins.get(0);
-            currentProteinMap.remove(accessionToRemove);
-            currentHeaderMap.remove(accessionToRemove);
-            loadedProteins.remove(0);
+    private void addProteinToCache(String accession, Protein protein) {
+        if (currentProteinMap.put(accession, protein) == null) {
+            loadedProteins.add(accession);
+            nLoadedProteins.incrementAndGet();
+            while (nLoadedProteins.get() > nCache) {
+                String accessionToRemove = loadedProteins.poll();
+                if (accessionToRemove == null) {
+                    break;
+                }
+                currentProteinMap.remove(accessionToRemove);
+                currentHeaderMap.remove(accessionToRemove);
+                nLoadedProteins.decrementAndGet();
+            }
         }
-
-        loadedProteins.add(accession);
-        currentProteinMap.put(accession, protein);
     }
 
     /**
@@ -483,6 +572,23 @@ public class SequenceFactory {
 
         Header result = currentHeaderMap.get(accession);
 
+        if (result == null) {
+            MappedFastaFile currentMappedFastaFile = mappedFastaFile;
+            if (currentMappedFastaFile != null) {
+                long position = currentMappedFastaFile.getPosition(accession);
+                if (position >= 0) {
+                    try {
+                        return getHeader(currentMappedFastaFile, accession, position);
+                    } catch (IOException e) {
+                        if (!currentMappedFastaFile.isClosed()) {
+                            throw e;
+                        }
+                        // the mapping was replaced in the meantime, use the synchronized access
+                    }
+                }
+            }
+        }
+
         if (result == null) {
 
             Long index = fastaIndex.getIndex(accession);
@@ -490,6 +596,9 @@ public class SequenceFactory {
             if (index == null) {
                 if (reindex) {
                     fastaIndex = getFastaIndex(true, null);
+                    if (mappedFastaFile != null) {
+                        mapFastaFile();
+                    }
                     result = getHeader(accession, false);
                 }
                 throw new IllegalArgumentException("Protein not found: " + accession + ".");
@@ -503,6 +612,32 @@ public class SequenceFactory {
         return result;
     }
 
+    /**
+     * Returns the header of the given protein from the FASTA file mapped in
+     * memory and adds it to the cache.
+     *
+     * @param mappedFastaFile the FASTA file mapped in memory
+     * @param accession the accession of the protein
+     * @param position the position of the header in the file
+     *
+     * @return the header of the protein
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the FASTA file
+     */
+    private Header getHeader(MappedFastaFile mappedFastaFile, String accession, long position) throws IOException {
+        Header result = currentHeaderMap.get(accession);
+        if (result == null) {
+            String line = mappedFastaFile.getHeaderLine(position);
+            result = Header.parseFromFASTA(line);
+            if (result == null) {
+                throw new IllegalArgumentException("Could not parse FASTA header \"" + line + "\".");
+            }
+            currentHeaderMap.put(accession, result);
+        }
+        return result;
+    }
+
     /**
      * Returns the header indexed by the given index. It can be that the IO is
      * busy (especially when working on distant servers) thus returning an
@@ -577,6 +712,49 @@ public class SequenceFactory {
         currentFastaFile = fastaFile;
         currentRandomAccessFile = new BufferedRandomAccessFile(fastaFile, "r", 1024 * 100);
         fastaIndex = getFastaIndex(false, waitingHandler);
+        if (memoryMappedFasta) {
+            mapFastaFile();
+        } else if (mappedFastaFile != null) {
+            mappedFastaFile.close();
+            mappedFastaFile = null;
+        }
+    }
+
+    /**
+     * Maps the current FASTA file in memory using the current index and
+     * closes the previous mapping, if any.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * mapping the file
+     */
+    private void mapFastaFile() throws IOException {
+        MappedFastaFile previousMappedFastaFile = mappedFastaFile;
+        mappedFastaFile = new MappedFastaFile(currentFastaFile, fastaIndex);
+        if (previousMappedFastaFile != null) {
+            previousMappedFastaFile.close();
+        }
+    }
+
+    /**
+     * Indicates whether the FASTA files are mapped in memory.
+     *
+     * @return a boolean indicating whether the FASTA files are mapped in
+     * memory
+     */
+    public boolean isMemoryMappedFasta() {
+        return memoryMappedFasta;
+    }
+
+    /**
+     * Sets whether the FASTA files loaded afterwards should be mapped in
+     * memory. Mapped files are read without synchronization, multiple threads
+     * can thus retrieve proteins in parallel.
+     *
+     * @param memoryMappedFasta a boolean indicating whether the FASTA files
+     * should be mapped in memory
+     */
+    public void setMemoryMappedFasta(boolean memoryMappedFasta) {
+        this.memoryMappedFasta = memoryMappedFasta;
     }
 
     /**
@@ -658,6 +836,33 @@ public class SequenceFactory {
      * found
      */
     public static synchronized FastaIndex getFastaIndex(File fastaFile, boolean overwrite, WaitingHandler waitingHandler) throws IOException, StringIndexOutOfBoundsException {
+        int nThreads = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+        return getFastaIndex(fastaFile, overwrite, waitingHandler, nThreads);
+    }
+
+    /**
+     * Returns the file index of the given FASTA file. If a problem occurs while
+     * reading an older index the file will be automatically overwritten and the
+     * stacktrace printed. When indexing on multiple threads, the file is split
+     * in regions parsed in parallel and merged in the order of the file, the
+     * index is therefore the same as when indexing on a single thread.
+     *
+     * @param fastaFile the FASTA file to index
+     * @param overwrite boolean indicating whether the index .cui file shall be
+     * overwritten if present, even if the file has not been changed
+     * @param waitingHandler a waitingHandler showing the progress
+     * @param nThreads the number of threads to use for the indexing
+     *
+     * @return the index of the FASTA file
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * the FASTA file
+     * @throws StringIndexOutOfBoundsException thrown if issues occur during the
+     * parsing of the protein headers
+     * @throws IllegalArgumentException if non unique accession numbers are
+     * found
+     */
+    public static synchronized FastaIndex getFastaIndex(File fastaFile, boolean overwrite, WaitingHandler waitingHandler, int nThreads) throws IOException, StringIndexOutOfBoundsException {
 
         FastaIndex tempFastaIndex;
         String fileName = fastaFile.getName();
@@ -705,7 +910,7 @@ public class SequenceFactory {
         }
 
         System.out.println("Reindexing: " + fileName + ".");
-        tempFastaIndex = createFastaIndex(fastaFile, name, decoyTag, version, waitingHandler);
+        tempFastaIndex = createFastaIndex(fastaFile, name, decoyTag, version, waitingHandler, nThreads);
         tempFastaIndex.setDescription(description);
         tempFastaIndex.setAccessionParsingRule(accessionParsingRule);
 
@@ -860,6 +1065,162 @@ public class SequenceFactory {
 
         bufferedRandomAccessFile.close();
 
+        return createFastaIndex(fastaFile, name, version, decoyTag, indexes, decoyAccessions, decoy, defaultReversed, nTarget, databaseTypes, species);
+    }
+
+    /**
+     * Static method to create a FASTA index for a FASTA file using multiple
+     * threads. The file is split in regions whose headers are parsed in
+     * parallel. The regions are then merged in the order of the file so that
+     * the index, the statistics and the errors are the same as when parsing
+     * the file on a single thread. Non-valid FASTA files will throw an
+     * exception.
+     *
+     * @param fastaFile the FASTA file
+     * @param name the name of the database. Set to file name if null.
+     * @param decoyTag the decoy tag. Will be inferred if null.
+     * @param version the version. last modification of the file will be used
+     * if null.
+     * @param waitingHandler a waiting handler showing the progress
+     * @param nThreads the number of threads to use
+     *
+     * @return the corresponding FASTA index
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static FastaIndex createFastaIndex(File fastaFile, String name, String decoyTag, String version,
+            WaitingHandler waitingHandler, int nThreads) throws IOException {
+
+        if (nThreads <= 1) {
+            return createFastaIndex(fastaFile, name, decoyTag, version, waitingHandler);
+        }
+
+        ArrayList<FastaRegion> regions = FastaRegion.getRegions(fastaFile, getNRegions(fastaFile, nThreads));
+
+        if (waitingHandler != null) {
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(regions.size());
+        }
+
+        HashMap<String, Long> indexes = new HashMap<String, Long>();
+        HashSet<String> decoyAccessions = new HashSet<String>();
+        HashMap<Header.DatabaseType, Integer> databaseTypes = new HashMap<Header.DatabaseType, Integer>();
+        HashMap<String, Integer> species = new HashMap<String, Integer>();
+        boolean decoy = false, defaultReversed = false;
+        int nTarget = 0;
+        int lineOffset = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            LinkedList<Future<FastaRegionIndex>> futures = new LinkedList<Future<FastaRegionIndex>>();
+            int nextRegion = 0;
+            while (nextRegion < regions.size() || !futures.isEmpty()) {
+
+                // keep a limited number of regions in memory
+                while (nextRegion < regions.size() && futures.size() < nThreads * REGIONS_PER_THREAD) {
+                    FastaRegion region = regions.get(nextRegion++);
+                    futures.add(pool.submit(new FastaRegionIndex(region, decoyTag, nextRegion < regions.size(), waitingHandler)));
+                }
+
+                FastaRegionIndex regionIndex = getRegionResult(futures.poll());
+
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    break;
+                }
+
+                for (int i = 0; i < regionIndex.accessions.size(); i++) {
+
+                    String accession = regionIndex.accessions.get(i);
+
+                    // check if the accession number is unique
+                    if (indexes.containsKey(accession)) {
+                        throw new IllegalArgumentException("Non unique accession number found \'" + accession + "\'!\nPlease check your FASTA file.");
+                    }
+
+                    indexes.put(accession, regionIndex.positions[i]);
+                    String decoyFlag = regionIndex.decoyFlags.get(i);
+                    if (decoyTag == null) {
+                        decoyTag = decoyFlag;
+                    }
+                    if (decoyFlag == null || !decoyFlag.equals(decoyTag) && !isDecoy(accession, decoyTag)) {
+                        nTarget++;
+
+                        // get the database type
+                        Header.DatabaseType tempDatabaseType = regionIndex.databaseTypes.get(i);
+                        Integer typeCounter = databaseTypes.get(tempDatabaseType);
+
+                        if (typeCounter == null) {
+                            databaseTypes.put(tempDatabaseType, 1);
+                        } else {
+                            databaseTypes.put(tempDatabaseType, typeCounter + 1);
+                        }
+
+                        // get the species
+                        String taxonomy = regionIndex.taxonomies.get(i);
+                        Integer occurrence = species.get(taxonomy);
+                        if (occurrence == null) {
+                            species.put(taxonomy, 1);
+                        } else {
+                            species.put(taxonomy, occurrence + 1);
+                        }
+
+                    } else {
+                        decoyAccessions.add(accession);
+                        if (!decoy) {
+                            decoy = true;
+                            if (accession.endsWith(getDefaultDecoyAccessionSuffix())) {
+                                defaultReversed = true;
+                            }
+                        }
+                    }
+                }
+
+                RuntimeException error = regionIndex.getError(lineOffset);
+                if (error != null) {
+                    throw error;
+                }
+                lineOffset += regionIndex.nLines;
+
+                if (waitingHandler != null) {
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        }
+
+        return createFastaIndex(fastaFile, name, version, decoyTag, indexes, decoyAccessions, decoy, defaultReversed, nTarget, databaseTypes, species);
+    }
+
+    /**
+     * Creates the index of a FASTA file from the information gathered while
+     * parsing the file.
+     *
+     * @param fastaFile the FASTA file
+     * @param name the name of the database. Set to file name if null.
+     * @param version the version. last modification of the file will be used
+     * if null.
+     * @param decoyTag the decoy tag
+     * @param indexes the positions of the proteins in the file
+     * @param decoyAccessions the accessions of the decoy proteins
+     * @param decoy boolean indicating whether the file contains decoy proteins
+     * @param defaultReversed boolean indicating whether the decoy accessions
+     * are built using the default decoy suffix
+     * @param nTarget the number of target proteins
+     * @param databaseTypes the occurrence of the database types
+     * @param species the occurrence of the species
+     *
+     * @return the corresponding FASTA index
+     */
+    private static FastaIndex createFastaIndex(File fastaFile, String name, String version, String decoyTag, HashMap<String, Long> indexes,
+            HashSet<String> decoyAccessions, boolean decoy, boolean defaultReversed, int nTarget,
+            HashMap<Header.DatabaseType, Integer> databaseTypes, HashMap<String, Integer> species) {
+
         long lastModified = fastaFile.lastModified();
 
         if (version == null) {
@@ -886,6 +1247,51 @@ public class SequenceFactory {
         return new FastaIndex(indexes, decoyAccessions, fileName, name, decoy, defaultReversed, nTarget, lastModified, mainDatabaseType, databaseTypes, decoyTag, version, species);
     }
 
+    /**
+     * Returns the number of regions to split a FASTA file in when processing
+     * it on the given number of threads.
+     *
+     * @param fastaFile the FASTA file
+     * @param nThreads the number of threads
+     *
+     * @return the number of regions
+     */
+    private static int getNRegions(File fastaFile, int nThreads) {
+        long nRegions = Math.max((long) nThreads * REGIONS_PER_THREAD, fastaFile.length() / MAX_REGION_SIZE + 1);
+        return (int) Math.min(nRegions, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Waits for the processing of a region of a FASTA file and returns the
+     * result.
+     *
+     * @param <T> the type of result
+     * @param future the future result of the processing of the region
+     *
+     * @return the result of the processing of the region
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     */
+    private static <T> T getRegionResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing the FASTA file.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Error while processing the FASTA file.", cause);
+        }
+    }
+
     /**
      * Serializes the FASTA file index in a given directory.
      *
@@ -935,6 +1341,10 @@ public class SequenceFactory {
             currentRandomAccessFile.close();
             currentFastaFile = null;
         }
+        if (mappedFastaFile != null) {
+            mappedFastaFile.close();
+            mappedFastaFile = null;
+        }
         if (defaultPeptideMapper != null) {
             defaultPeptideMapper.close();
         }
@@ -1056,6 +1466,27 @@ public class SequenceFactory {
      */
     public void appendDecoySequences(File destinationFile, WaitingHandler waitingHandler)
             throws IOException, InterruptedException, ClassNotFoundException {
+        int nThreads = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+        appendDecoySequences(destinationFile, waitingHandler, nThreads);
+    }
+
+    /**
+     * Appends decoy sequences to the desired file while displaying progress.
+     * When using multiple threads, the regions of the file are processed in
+     * parallel and written in the order of the file, the destination file is
+     * therefore the same as when using a single thread.
+     *
+     * @param destinationFile the destination file
+     * @param waitingHandler the waiting handler
+     * @param nThreads the number of threads to use
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws InterruptedException if an InterruptedException occurs
+     * @throws ClassNotFoundException if an ClassNotFoundException occurs
+     */
+    public void appendDecoySequences(File destinationFile, WaitingHandler waitingHandler, int nThreads)
+            throws IOException, InterruptedException, ClassNotFoundException {
 
         if (waitingHandler != null) {
             waitingHandler.resetSecondaryProgressCounter();
@@ -1067,61 +1498,11 @@ public class SequenceFactory {
         String lineBreak = System.getProperty("line.separator");
 
         try {
-            ProteinIterator proteinIterator = getProteinIterator(true);
-
-            while (proteinIterator.hasNext()) {
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
-                }
-
-                if (waitingHandler != null) {
-                    waitingHandler.increaseSecondaryProgressCounter();
-                }
-
-                Protein currentProtein = proteinIterator.getNextProtein();
-                String accession = currentProtein.getAccession();
-                Header currentHeader = getHeader(accession);
-
-                String decoyAccession = getDefaultDecoyAccession(currentProtein.getAccession());
-//                String decoyAccession ="rev_" + currentProtein.getAccession(); Header for the TPP
-                String currentRawHeader = currentHeader.getRawHeader();
-
-                // replace the accession number
-                String escapedString = java.util.regex.Pattern.quote(accession);
-                currentRawHeader = currentRawHeader.replaceAll(escapedString, decoyAccession);
-
-                // add decoy to the description
-                if (currentHeader.getDescription() != null && !currentHeader.getDescription().isEmpty()) {
-                    escapedString = java.util.regex.Pattern.quote(currentHeader.getDescription());
-                    currentRawHeader = currentRawHeader.replaceAll(escapedString, getDefaultDecoyDescription(currentHeader.getDescription()));
-                }
-
-                // write the target protein to the fasta file
-                bufferedWriter.write(currentHeader.getRawHeader() + lineBreak);
-                bufferedWriter.write(currentProtein.getSequence() + lineBreak);
-
-                // write the decoy protein to the fasta file
-                bufferedWriter.write(currentRawHeader + lineBreak);
-                bufferedWriter.write(reverseSequence(currentProtein.getSequence()) + lineBreak);
-
-                // possible fix for the dbtoolkit uniprot format
-//            Protein currentProtein = getProtein(accession);
-//            Header currentHeader = getHeader(accession);
-//            String reversedSequence = reverseSequence(currentProtein.getSequence());
-//
-//            bufferedWriter.write(currentHeader.toString() + System.getProperty("line.separator"));
-//            bufferedWriter.write(currentProtein.getSequence() + System.getProperty("line.separator"));
-//
-//            // @TODO: this might not be the best way of doing this, but was easier than trying to change the parsing in the Header class...
-//            if (currentHeader.toString("_" + decoyFlags[0]).equalsIgnoreCase(currentHeader.toString())) {
-//                currentHeader.setRest(currentProtein.getAccession() + "_" + decoyFlags[0]);
-//            }
-//
-//            bufferedWriter.write(currentHeader.toString("_" + decoyFlags[0]) + System.getProperty("line.separator"));
-//            bufferedWriter.write(reversedSequence + System.getProperty("line.separator"));
+            if (nThreads > 1) {
+                writeTargetDecoySequences(bufferedWriter, lineBreak, waitingHandler, nThreads);
+            } else {
+                writeTargetDecoySequences(bufferedWriter, lineBreak, waitingHandler);
             }
-
         } finally {
             bufferedWriter.close();
         }
@@ -1147,12 +1528,146 @@ public class SequenceFactory {
     }
 
     /**
-     * Reverses a protein sequence.
+     * Writes the target proteins of the loaded file followed by their decoy
+     * version.
      *
-     * @param sequence the protein sequence
-     * @return the reversed protein sequence
-     */
-    public static String reverseSequence(String sequence) {
+     * @param bufferedWriter the writer to write to
+     * @param lineBreak the line break to use
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws InterruptedException if an InterruptedException occurs
+     */
+    private void writeTargetDecoySequences(BufferedWriter bufferedWriter, String lineBreak, WaitingHandler waitingHandler) throws IOException, InterruptedException {
+
+        ProteinIterator proteinIterator = getProteinIterator(true);
+
+        while (proteinIterator.hasNext()) {
+
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                break;
+            }
+
+            if (waitingHandler != null) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            Protein currentProtein = proteinIterator.getNextProtein();
+            String accession = currentProtein.getAccession();
+            Header currentHeader = getHeader(accession);
+
+            String currentRawHeader = getDecoyRawHeader(accession, currentHeader);
+
+            // write the target protein to the fasta file
+            bufferedWriter.write(currentHeader.getRawHeader() + lineBreak);
+            bufferedWriter.write(currentProtein.getSequence() + lineBreak);
+
+            // write the decoy protein to the fasta file
+            bufferedWriter.write(currentRawHeader + lineBreak);
+            bufferedWriter.write(reverseSequence(currentProtein.getSequence()) + lineBreak);
+
+            // possible fix for the dbtoolkit uniprot format
+//            Protein currentProtein = getProtein(accession);
+//            Header currentHeader = getHeader(accession);
+//            String reversedSequence = reverseSequence(currentProtein.getSequence());
+//
+//            bufferedWriter.write(currentHeader.toString() + System.getProperty("line.separator"));
+//            bufferedWriter.write(currentProtein.getSequence() + System.getProperty("line.separator"));
+//
+//            // @TODO: this might not be the best way of doing this, but was easier than trying to change the parsing in the Header class...
+//            if (currentHeader.toString("_" + decoyFlags[0]).equalsIgnoreCase(currentHeader.toString())) {
+//                currentHeader.setRest(currentProtein.getAccession() + "_" + decoyFlags[0]);
+//            }
+//
+//            bufferedWriter.write(currentHeader.toString("_" + decoyFlags[0]) + System.getProperty("line.separator"));
+//            bufferedWriter.write(reversedSequence + System.getProperty("line.separator"));
+        }
+    }
+
+    /**
+     * Writes the target proteins of the loaded file followed by their decoy
+     * version using multiple threads. The regions of the file are processed
+     * in parallel and written in the order of the file.
+     *
+     * @param bufferedWriter the writer to write to
+     * @param lineBreak the line break to use
+     * @param waitingHandler the waiting handler
+     * @param nThreads the number of threads to use
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     */
+    private void writeTargetDecoySequences(BufferedWriter bufferedWriter, String lineBreak, WaitingHandler waitingHandler, int nThreads) throws IOException {
+
+        ArrayList<FastaRegion> regions = FastaRegion.getRegions(currentFastaFile, getNRegions(currentFastaFile, nThreads));
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            LinkedList<Future<TargetDecoyRegion>> futures = new LinkedList<Future<TargetDecoyRegion>>();
+            int nextRegion = 0;
+            while (nextRegion < regions.size() || !futures.isEmpty()) {
+
+                // keep a limited number of regions in memory
+                while (nextRegion < regions.size() && futures.size() < nThreads * REGIONS_PER_THREAD) {
+                    futures.add(pool.submit(new TargetDecoyRegion(regions.get(nextRegion++), lineBreak, waitingHandler)));
+                }
+
+                TargetDecoyRegion targetDecoyRegion = getRegionResult(futures.poll());
+
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    break;
+                }
+
+                bufferedWriter.write(targetDecoyRegion.output.toString());
+
+                if (targetDecoyRegion.error != null) {
+                    throw targetDecoyRegion.error;
+                }
+
+                if (waitingHandler != null) {
+                    waitingHandler.increaseSecondaryProgressCounter(targetDecoyRegion.nTarget);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the raw header of the decoy version of a target protein.
+     *
+     * @param accession the accession of the target protein
+     * @param header the header of the target protein
+     *
+     * @return the raw header of the decoy protein
+     */
+    private static String getDecoyRawHeader(String accession, Header header) {
+
+        String decoyAccession = getDefaultDecoyAccession(accession);
+//                String decoyAccession ="rev_" + currentProtein.getAccession(); Header for the TPP
+        String rawHeader = header.getRawHeader();
+
+        // replace the accession number
+        String escapedString = java.util.regex.Pattern.quote(accession);
+        rawHeader = rawHeader.replaceAll(escapedString, decoyAccession);
+
+        // add decoy to the description
+        if (header.getDescription() != null && !header.getDescription().isEmpty()) {
+            escapedString = java.util.regex.Pattern.quote(header.getDescription());
+            rawHeader = rawHeader.replaceAll(escapedString, getDefaultDecoyDescription(header.getDescription()));
+        }
+
+        return rawHeader;
+    }
+
+    /**
+     * Reverses a protein sequence.
+     *
+     * @param sequence the protein sequence
+     * @return the reversed protein sequence
+     */
+    public static String reverseSequence(String sequence) {
         return new StringBuilder(sequence).reverse().toString();
     }
 
@@ -1201,35 +1716,61 @@ public class SequenceFactory {
      * @throws ClassNotFoundException if an ClassNotFoundException occurs
      */
     public HashMap<String, Integer> getAAOccurrences(JProgressBar progressBar) throws IOException, InterruptedException, ClassNotFoundException {
+        int nThreads = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+        return getAAOccurrences(progressBar, nThreads);
+    }
 
-        HashMap<String, Integer> aaMap = new HashMap<String, Integer>();
-        Set<String> accessions = getAccessions();
+    /**
+     * Returns the occurrence of every amino acid in the target proteins of the
+     * database. The regions of the file are counted in parallel.
+     *
+     * @param progressBar a progress bar, can be null
+     * @param nThreads the number of threads to use
+     *
+     * @return a map containing all amino acid occurrence in the database
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the database
+     */
+    public HashMap<String, Integer> getAAOccurrences(JProgressBar progressBar, int nThreads) throws IOException {
 
         if (progressBar != null) {
-            progressBar.setIndeterminate(false);
-            progressBar.setMaximum(accessions.size());
-            progressBar.setValue(0);
+            progressBar.setIndeterminate(true);
         }
 
-        for (String accession : accessions) {
-
-            if (!isDecoyAccession(accession)) {
-                Protein protein = getProtein(accession);
-                for (String aa : protein.getSequence().split("")) {
-                    Integer n = aaMap.get(aa);
-                    if (n == null) {
-                        n = 0;
+        ArrayList<HashMap<Character, Integer>> regionOccurrences = processProteins(new RegionProcessor<HashMap<Character, Integer>>() {
+            @Override
+            public HashMap<Character, Integer> process(RegionProteinIterator proteinIterator) throws IOException {
+                int[] asciiOccurrences = new int[128];
+                HashMap<Character, Integer> occurrences = new HashMap<Character, Integer>();
+                while (proteinIterator.hasNext()) {
+                    String sequence = proteinIterator.getNextProtein().getSequence();
+                    for (int i = 0; i < sequence.length(); i++) {
+                        char aa = sequence.charAt(i);
+                        if (aa < 128) {
+                            asciiOccurrences[aa]++;
+                        } else {
+                            Integer n = occurrences.get(aa);
+                            occurrences.put(aa, n == null ? 1 : n + 1);
+                        }
                     }
-                    aaMap.put(aa, n + 1);
                 }
+                for (char aa = 0; aa < 128; aa++) {
+                    if (asciiOccurrences[aa] > 0) {
+                        occurrences.put(aa, asciiOccurrences[aa]);
+                    }
+                }
+                return occurrences;
             }
-            if (progressBar != null) {
-                progressBar.setValue(progressBar.getValue() + 1);
-            }
-        }
+        }, true, nThreads);
 
-        if (progressBar != null) {
-            progressBar.setIndeterminate(true);
+        HashMap<String, Integer> aaMap = new HashMap<String, Integer>();
+        for (HashMap<Character, Integer> occurrences : regionOccurrences) {
+            for (Map.Entry<Character, Integer> entry : occurrences.entrySet()) {
+                String aa = entry.getKey().toString();
+                Integer n = aaMap.get(aa);
+                aaMap.put(aa, n == null ? entry.getValue() : n + entry.getValue());
+            }
         }
 
         return aaMap;
@@ -1446,7 +1987,7 @@ public class SequenceFactory {
             PeptideMapperType peptideMapperType = sequenceMatchingPreferences.getPeptideMapperType();
             switch (peptideMapperType) {
                 case fm_index:
-                    defaultPeptideMapper = new FMIndex(waitingHandler, displayProgress, peptideVariantsPreferences, searchParameters);
+                    defaultPeptideMapper = new FMIndex(waitingHandler, displayProgress, peptideVariantsPreferences, searchParameters, fmIndexFileUsed, nThreads);
                     break;
                 case tree:
 
@@ -1514,6 +2055,89 @@ public class SequenceFactory {
         return new ProteinIterator(currentFastaFile, targetOnly);
     }
 
+    /**
+     * Splits the loaded FASTA file in regions which can be iterated
+     * independently, see getProteinIterator(FastaRegion, boolean).
+     *
+     * @param nRegions the number of regions desired
+     *
+     * @return the regions of the file in the order of the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public ArrayList<FastaRegion> getRegions(int nRegions) throws IOException {
+        return FastaRegion.getRegions(currentFastaFile, nRegions);
+    }
+
+    /**
+     * Returns an iterator of the proteins in the given region of the FASTA
+     * file. The iterators of different regions do not share any state and can
+     * be used concurrently. Note: when reaching the end of the region the
+     * connection will be closed. Do it using the close() method if the end is
+     * never reached.
+     *
+     * @param region the region to iterate
+     * @param targetOnly boolean indicating whether only target accessions shall
+     * be iterated
+     *
+     * @return a protein iterator
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * opening the file
+     */
+    public RegionProteinIterator getProteinIterator(FastaRegion region, boolean targetOnly) throws IOException {
+        return new RegionProteinIterator(region, targetOnly);
+    }
+
+    /**
+     * Processes the proteins of the loaded FASTA file in parallel. The file is
+     * split in regions which are processed independently by the given
+     * processor. The results are returned in the order of the file and can
+     * thus be combined as if the proteins were processed sequentially.
+     *
+     * @param <T> the type of result
+     * @param processor the processor to use on every region
+     * @param targetOnly boolean indicating whether only target accessions shall
+     * be iterated
+     * @param nThreads the number of threads to use
+     *
+     * @return the results of the regions in the order of the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public <T> ArrayList<T> processProteins(final RegionProcessor<T> processor, final boolean targetOnly, int nThreads) throws IOException {
+
+        ArrayList<FastaRegion> regions = getRegions(getNRegions(currentFastaFile, nThreads));
+        ArrayList<T> results = new ArrayList<T>(regions.size());
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            ArrayList<Future<T>> futures = new ArrayList<Future<T>>(regions.size());
+            for (final FastaRegion region : regions) {
+                futures.add(pool.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        RegionProteinIterator proteinIterator = new RegionProteinIterator(region, targetOnly);
+                        try {
+                            return processor.process(proteinIterator);
+                        } finally {
+                            proteinIterator.close();
+                        }
+                    }
+                }));
+            }
+            for (Future<T> future : futures) {
+                results.add(getRegionResult(future));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return results;
+    }
+
     /**
      * Returns whether decoys should be kept in memory.
      *
@@ -1532,6 +2156,26 @@ public class SequenceFactory {
         this.decoyInMemory = decoyInMemory;
     }
 
+    /**
+     * Returns whether the FM index of the default peptide mapper is saved to
+     * and loaded from an index file next to the FASTA file.
+     *
+     * @return true if the FM index file is used
+     */
+    public boolean isFmIndexFileUsed() {
+        return fmIndexFileUsed;
+    }
+
+    /**
+     * Sets whether the FM index of the default peptide mapper should be saved
+     * to and loaded from an index file next to the FASTA file.
+     *
+     * @param fmIndexFileUsed true if the FM index file should be used
+     */
+    public void setFmIndexFileUsed(boolean fmIndexFileUsed) {
+        this.fmIndexFileUsed = fmIndexFileUsed;
+    }
+
     /**
      * Convenience iterator iterating the headers of a FASTA file without using
      * the cache. The order is the one in the FASTA file.
@@ -1764,4 +2408,502 @@ public class SequenceFactory {
             br.close();
         }
     }
+
+    /**
+     * Iterator of the proteins in a region of a FASTA file. Contrary to the
+     * ProteinIterator, it is not meant to be shared between threads: every
+     * thread should iterate its own region. The proteins are the same as the
+     * ones returned by the ProteinIterator.
+     */
+    public class RegionProteinIterator {
+
+        /**
+         * The reader of the region.
+         */
+        private final FastaRegion.LineReader lineReader;
+        /**
+         * Boolean indicating whether target protein only should be iterated.
+         */
+        private final boolean targetOnly;
+        /**
+         * The charset used to decode the sequences, the default charset like
+         * for the ProteinIterator.
+         */
+        private final Charset charset = Charset.defaultCharset();
+        /**
+         * The header of the protein being read, null if none.
+         */
+        private Header nextHeader = null;
+        /**
+         * Indicates whether the lines read belong to a protein which is not
+         * iterated.
+         */
+        private boolean skipProtein = false;
+        /**
+         * The sequence of the protein being read.
+         */
+        private StringBuilder sequence = new StringBuilder();
+        /**
+         * The next protein, null if not read yet.
+         */
+        private Protein nextProtein = null;
+        /**
+         * The header of the next protein.
+         */
+        private Header nextProteinHeader = null;
+        /**
+         * The header of the last protein returned.
+         */
+        private Header header = null;
+
+        /**
+         * Constructor.
+         *
+         * @param region the region to iterate
+         * @param targetOnly if true only target proteins will be iterated
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while opening the file
+         */
+        public RegionProteinIterator(FastaRegion region, boolean targetOnly) throws IOException {
+            this.targetOnly = targetOnly;
+            lineReader = region.getLineReader();
+        }
+
+        /**
+         * Returns true if there is another protein in the region.
+         *
+         * @return true if there is another protein
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while reading the file
+         */
+        public boolean hasNext() throws IOException {
+
+            if (nextProtein != null) {
+                return true;
+            }
+
+            String line;
+            while ((line = lineReader.readLine()) != null) {
+                if (line.startsWith(">")) {
+                    Header tempHeader = Header.parseFromFASTA(line);
+                    Header proteinHeader = nextHeader;
+                    skipProtein = targetOnly && isDecoyAccession(tempHeader.getAccessionOrRest());
+                    nextHeader = skipProtein ? null : tempHeader;
+                    if (proteinHeader != null) {
+                        setNextProtein(proteinHeader);
+                        return true;
+                    }
+                } else if (!skipProtein) {
+                    if (!isAscii(line)) {
+                        line = new String(line.getBytes(FastaRegion.CHARSET), charset);
+                    }
+                    sequence.append(line.trim());
+                }
+            }
+
+            if (nextHeader != null) {
+                setNextProtein(nextHeader);
+                nextHeader = null;
+                return true;
+            }
+
+            close();
+            return false;
+        }
+
+        /**
+         * Creates the next protein from the sequence read and resets the
+         * sequence.
+         *
+         * @param proteinHeader the header of the protein
+         */
+        private void setNextProtein(Header proteinHeader) {
+            String accession = proteinHeader.getAccessionOrRest();
+            nextProtein = new Protein(accession, proteinHeader.getDatabaseType(), importSequenceFromFasta(sequence), isDecoyAccession(accession));
+            nextProteinHeader = proteinHeader;
+            sequence = new StringBuilder();
+        }
+
+        /**
+         * Returns the next protein.
+         *
+         * @return the next protein
+         */
+        public Protein getNextProtein() {
+            Protein result = nextProtein;
+            header = nextProteinHeader;
+            nextProtein = null;
+            nextProteinHeader = null;
+            return result;
+        }
+
+        /**
+         * Returns the header of the last protein returned by getNextProtein.
+         *
+         * @return the header of the last protein returned
+         */
+        public Header getHeader() {
+            return header;
+        }
+
+        /**
+         * Closes the connection to the file.
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while closing the file
+         */
+        public void close() throws IOException {
+            lineReader.close();
+        }
+
+        /**
+         * Indicates whether the given line contains only ASCII characters.
+         *
+         * @param line the line
+         *
+         * @return true if the line contains only ASCII characters
+         */
+        private boolean isAscii(String line) {
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) > 127) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Processor of the proteins of a region of a FASTA file, see
+     * processProteins.
+     *
+     * @param <T> the type of result
+     */
+    public interface RegionProcessor<T> {
+
+        /**
+         * Processes the proteins of a region. The processors of the different
+         * regions are run in parallel.
+         *
+         * @param proteinIterator an iterator of the proteins of the region
+         *
+         * @return the result for this region
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while reading the file
+         */
+        public T process(RegionProteinIterator proteinIterator) throws IOException;
+    }
+
+    /**
+     * The index of a region of a FASTA file. The headers of the region are
+     * parsed and the information needed to build the index is kept in the
+     * order of the file. Errors are recorded and thrown when merging the
+     * regions, in the order they would be encountered when reading the file
+     * on a single thread.
+     */
+    private static class FastaRegionIndex implements Callable<FastaRegionIndex> {
+
+        /**
+         * The region to index.
+         */
+        private final FastaRegion region;
+        /**
+         * The decoy tag, null if it should be inferred.
+         */
+        private final String decoyTag;
+        /**
+         * Indicates whether the sequence of the last protein of the region
+         * should be validated, i.e. whether a header follows the region.
+         */
+        private final boolean validateLastSequence;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * The accessions of the proteins.
+         */
+        final ArrayList<String> accessions = new ArrayList<String>();
+        /**
+         * The positions of the headers in the file.
+         */
+        long[] positions = new long[1024];
+        /**
+         * The decoy flag matched by the accession of every protein, null if
+         * none.
+         */
+        final ArrayList<String> decoyFlags = new ArrayList<String>();
+        /**
+         * The database type of every protein.
+         */
+        final ArrayList<Header.DatabaseType> databaseTypes = new ArrayList<Header.DatabaseType>();
+        /**
+         * The taxonomy of every protein.
+         */
+        final ArrayList<String> taxonomies = new ArrayList<String>();
+        /**
+         * The number of lines read.
+         */
+        int nLines = 0;
+        /**
+         * Error found in the region, null if none.
+         */
+        private RuntimeException error = null;
+        /**
+         * The line in the region where a line dependent error was found, -1
+         * if none.
+         */
+        private int errorLine = -1;
+        /**
+         * The accession of the protein whose sequence could not be parsed,
+         * null if the accession of a header could not be parsed.
+         */
+        private String errorAccession = null;
+        /**
+         * The exception thrown while validating a sequence.
+         */
+        private Exception errorCause = null;
+
+        /**
+         * Constructor.
+         *
+         * @param region the region to index
+         * @param decoyTag the decoy tag, null if it should be inferred
+         * @param validateLastSequence indicates whether the sequence of the
+         * last protein of the region should be validated
+         * @param waitingHandler the waiting handler
+         */
+        FastaRegionIndex(FastaRegion region, String decoyTag, boolean validateLastSequence, WaitingHandler waitingHandler) {
+            this.region = region;
+            this.decoyTag = decoyTag;
+            this.validateLastSequence = validateLastSequence;
+            this.waitingHandler = waitingHandler;
+        }
+
+        @Override
+        public FastaRegionIndex call() throws IOException {
+
+            FastaRegion.LineReader lineReader = region.getLineReader();
+
+            try {
+                String[] flags = null;
+                Pattern[] flagPatterns = null;
+                HashMap<String, String> taxonomyMap = new HashMap<String, String>();
+                StringBuilder sequenceBuilder = new StringBuilder();
+                String accession = null;
+                long index = lineReader.getFilePointer();
+                String line;
+
+                while ((line = lineReader.readLine()) != null) {
+
+                    nLines++;
+
+                    if (line.startsWith(">")) {
+
+                        if (sequenceBuilder.length() != 0 && accession != null && !validate(accession, sequenceBuilder, nLines)) {
+                            return this;
+                        }
+
+                        try {
+                            Header fastaHeader = Header.parseFromFASTA(line);
+                            accession = fastaHeader.getAccessionOrRest();
+                            if (accession == null) {
+                                errorLine = nLines;
+                                return this;
+                            }
+
+                            // check accessions for quotation marks
+                            if (accession.lastIndexOf("'") != -1 || accession.lastIndexOf("\"") != -1) {
+                                error = new IllegalArgumentException("Accession numbers cannot contain quotation marks: \'" + accession + "\'!\nPlease check your FASTA file.");
+                                return this;
+                            }
+
+                            if (flags == null) {
+                                flags = decoyTag == null ? DECOY_FLAGS : decoyTag.isEmpty() ? new String[0] : new String[]{decoyTag};
+                                flagPatterns = new Pattern[2 * flags.length];
+                                for (int i = 0; i < flags.length; i++) {
+                                    flagPatterns[2 * i] = Pattern.compile(flags[i] + ".*");
+                                    flagPatterns[2 * i + 1] = Pattern.compile(".*" + flags[i]);
+                                }
+                            }
+                            String decoyFlag = null;
+                            for (int i = 0; i < flags.length && decoyFlag == null; i++) {
+                                if (flagPatterns[2 * i].matcher(accession).matches() || flagPatterns[2 * i + 1].matcher(accession).matches()) {
+                                    decoyFlag = flags[i];
+                                }
+                            }
+
+                            String taxonomy = fastaHeader.getTaxonomy();
+                            if (taxonomy == null || taxonomy.equals("")) {
+                                taxonomy = SpeciesFactory.UNKNOWN;
+                            }
+                            String sharedTaxonomy = taxonomyMap.get(taxonomy);
+                            if (sharedTaxonomy == null) {
+                                taxonomyMap.put(taxonomy, taxonomy);
+                                sharedTaxonomy = taxonomy;
+                            }
+
+                            int proteinIndex = accessions.size();
+                            if (proteinIndex == positions.length) {
+                                positions = Arrays.copyOf(positions, 2 * proteinIndex);
+                            }
+                            positions[proteinIndex] = index;
+                            accessions.add(accession);
+                            decoyFlags.add(decoyFlag);
+                            databaseTypes.add(fastaHeader.getDatabaseType());
+                            taxonomies.add(sharedTaxonomy);
+
+                        } catch (RuntimeException e) {
+                            error = e;
+                            return this;
+                        }
+
+                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                            return this;
+                        }
+                        sequenceBuilder = new StringBuilder();
+                    } else {
+                        sequenceBuilder.append(line.trim());
+                    }
+                    index = lineReader.getFilePointer();
+                }
+
+                // the last sequence is validated when reaching the next header
+                if (validateLastSequence && sequenceBuilder.length() != 0 && accession != null) {
+                    validate(accession, sequenceBuilder, nLines + 1);
+                }
+
+            } finally {
+                lineReader.close();
+            }
+
+            return this;
+        }
+
+        /**
+         * Validates the given sequence and records the error if any.
+         *
+         * @param accession the accession of the protein
+         * @param sequenceBuilder the sequence as present in the FASTA file
+         * @param lineNumber the number of the line in the region
+         *
+         * @return true if the sequence is valid
+         */
+        private boolean validate(String accession, StringBuilder sequenceBuilder, int lineNumber) {
+            try {
+                validateSequence(importSequenceFromFasta(sequenceBuilder));
+                return true;
+            } catch (Exception e) {
+                errorAccession = accession;
+                errorCause = e;
+                errorLine = lineNumber;
+                return false;
+            }
+        }
+
+        /**
+         * Returns the error found in this region, null if none.
+         *
+         * @param lineOffset the number of lines in the file before this region
+         *
+         * @return the error found in this region
+         */
+        RuntimeException getError(int lineOffset) {
+            if (error != null) {
+                return error;
+            }
+            if (errorLine == -1) {
+                return null;
+            }
+            int lineNumber = lineOffset + errorLine;
+            if (errorAccession == null) {
+                return new IllegalArgumentException("No accession found for header at line " + lineNumber + ".");
+            }
+            return new IllegalArgumentException("An error occurred while parsing the sequence of " + errorAccession + " at line " + lineNumber + ": " + errorCause.toString());
+        }
+    }
+
+    /**
+     * The target proteins of a region of a FASTA file followed by their decoy
+     * version, formatted like by appendDecoySequences.
+     */
+    private class TargetDecoyRegion implements Callable<TargetDecoyRegion> {
+
+        /**
+         * The region to process.
+         */
+        private final FastaRegion region;
+        /**
+         * The line break to use.
+         */
+        private final String lineBreak;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * The target and decoy proteins of the region.
+         */
+        final StringBuilder output = new StringBuilder();
+        /**
+         * The number of target proteins in the region.
+         */
+        int nTarget = 0;
+        /**
+         * Error found in the region after the proteins written in the output,
+         * null if none.
+         */
+        RuntimeException error = null;
+
+        /**
+         * Constructor.
+         *
+         * @param region the region to process
+         * @param lineBreak the line break to use
+         * @param waitingHandler the waiting handler
+         */
+        TargetDecoyRegion(FastaRegion region, String lineBreak, WaitingHandler waitingHandler) {
+            this.region = region;
+            this.lineBreak = lineBreak;
+            this.waitingHandler = waitingHandler;
+        }
+
+        @Override
+        public TargetDecoyRegion call() throws IOException {
+
+            RegionProteinIterator proteinIterator = new RegionProteinIterator(region, true);
+
+            try {
+                while (proteinIterator.hasNext()) {
+
+                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                        break;
+                    }
+
+                    Protein protein = proteinIterator.getNextProtein();
+                    Header header = proteinIterator.getHeader();
+                    String sequence = protein.getSequence();
+
+                    // write the target protein
+                    output.append(header.getRawHeader()).append(lineBreak);
+                    output.append(sequence).append(lineBreak);
+
+                    // write the decoy protein
+                    output.append(getDecoyRawHeader(protein.getAccession(), header)).append(lineBreak);
+                    output.append(reverseSequence(sequence)).append(lineBreak);
+
+                    nTarget++;
+                }
+            } catch (RuntimeException e) {
+                error = e;
+            } finally {
+                proteinIterator.close();
+            }
+
+            return this;
+        }
+    }
 }
@@ -0,0 +1,282 @@
+package com.compomics.util.experiment.identification.protein_sequences.digestion;
+
+import com.compomics.util.experiment.biology.AminoAcid;
+import com.compomics.util.experiment.biology.AminoAcidPattern;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Digestion cursor keeping the current peptide as indexes on the protein
+ * sequence. The mass and fixed modifications of the peptide are computed
+ * like in ProteinIteratorUtils.getPeptideFromProtein, one amino acid at a
+ * time, without copying the sequence.
+ *
+ * @author Marc Vaudel
+ */
+public abstract class AbstractDigestionCursor implements DigestionCursor {
+
+    /**
+     * Utilities classes for the digestion.
+     */
+    protected final ProteinIteratorUtils proteinIteratorUtils;
+    /**
+     * The protein sequence.
+     */
+    protected final String proteinSequence;
+    /**
+     * The protein sequence as char array.
+     */
+    protected final char[] proteinSequenceAsCharArray;
+    /**
+     * The minimal mass to consider.
+     */
+    protected final Double massMin;
+    /**
+     * The maximal mass to consider.
+     */
+    protected final Double massMax;
+    /**
+     * The index of the first amino acid of the current peptide.
+     */
+    private int start = 0;
+    /**
+     * The index after the last amino acid of the current peptide.
+     */
+    private int end = 0;
+    /**
+     * The mass of the N-terminal modification and the amino acids of the
+     * current peptide with their fixed modifications.
+     */
+    private double sequenceMass = 0.0;
+    /**
+     * The mass of the current peptide.
+     */
+    private double mass = 0.0;
+    /**
+     * The N-terminal modification of the current peptide.
+     */
+    private String nTermModification = null;
+    /**
+     * The C-terminal modification of the current peptide.
+     */
+    private String cTermModification = null;
+    /**
+     * The number of fixed modifications on the amino acids of the current
+     * peptide.
+     */
+    private int nFixedModifications = 0;
+    /**
+     * The sites of the fixed modifications on the amino acids.
+     */
+    private int[] fixedModificationSites = new int[4];
+    /**
+     * The names of the fixed modifications on the amino acids.
+     */
+    private String[] fixedModifications = new String[4];
+
+    /**
+     * Constructor.
+     *
+     * @param proteinIteratorUtils utils for the creation of the peptides
+     * @param proteinSequence the sequence to iterate
+     * @param massMin the minimal mass of a peptide
+     * @param massMax the maximal mass of a peptide
+     */
+    protected AbstractDigestionCursor(ProteinIteratorUtils proteinIteratorUtils, String proteinSequence, Double massMin, Double massMax) {
+        this.proteinIteratorUtils = proteinIteratorUtils;
+        this.proteinSequence = proteinSequence;
+        this.proteinSequenceAsCharArray = proteinSequence.toCharArray();
+        this.massMin = massMin;
+        this.massMax = massMax;
+    }
+
+    /**
+     * Starts a new peptide with no amino acid at the given index.
+     *
+     * @param start the index of the first amino acid of the peptide
+     */
+    protected void startPeptide(int start) {
+        this.start = start;
+        end = start;
+        nTermModification = proteinIteratorUtils.getNtermModification(start == 0, proteinSequenceAsCharArray[start], proteinSequence);
+        sequenceMass = proteinIteratorUtils.getModificationMass(nTermModification);
+        cTermModification = null;
+        nFixedModifications = 0;
+    }
+
+    /**
+     * Adds the next amino acid of the protein to the current peptide. Returns
+     * false if the peptide, and hence all its extensions, exceeds the maximal
+     * mass.
+     *
+     * @return a boolean indicating whether the peptide is below the maximal
+     * mass
+     */
+    protected boolean extendPeptide() {
+
+        char aaChar = proteinSequenceAsCharArray[end];
+        AminoAcid aminoAcid = AminoAcid.getAminoAcid(aaChar);
+        sequenceMass += aminoAcid.getMonoisotopicMass();
+
+        if (massMax != null && sequenceMass + proteinIteratorUtils.getMinCtermMass() > massMax) {
+            return false;
+        }
+
+        String modificationAtAa = proteinIteratorUtils.getFixedModificationAtAa(aaChar);
+
+        if (modificationAtAa != null) {
+            int i = end - start;
+            AminoAcidPattern aminoAcidPattern = proteinIteratorUtils.getModificationPattern(modificationAtAa);
+            if (aminoAcidPattern == null || aminoAcidPattern.matchesAt(proteinSequence, SequenceMatchingPreferences.defaultStringMatching, i)) {
+                if (nFixedModifications == fixedModificationSites.length) {
+                    fixedModificationSites = Arrays.copyOf(fixedModificationSites, 2 * nFixedModifications);
+                    fixedModifications = Arrays.copyOf(fixedModifications, 2 * nFixedModifications);
+                }
+                fixedModificationSites[nFixedModifications] = i + 1;
+                fixedModifications[nFixedModifications] = modificationAtAa;
+                nFixedModifications++;
+                sequenceMass += proteinIteratorUtils.getModificationMass(modificationAtAa);
+            }
+        }
+
+        end++;
+        return true;
+    }
+
+    /**
+     * Sets the current peptide to the sequence between the given indexes.
+     * Returns false if the peptide exceeds the maximal mass.
+     *
+     * @param start the index of the first amino acid of the peptide
+     * @param end the index after the last amino acid of the peptide
+     *
+     * @return a boolean indicating whether the peptide is below the maximal
+     * mass
+     */
+    protected boolean setPeptide(int start, int end) {
+        startPeptide(start);
+        while (this.end < end) {
+            if (!extendPeptide()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the C-terminal modification and mass of the current peptide and
+     * returns whether the peptide passes the mass filters.
+     *
+     * @return a boolean indicating whether the current peptide passes the
+     * mass filters
+     */
+    protected boolean completePeptide() {
+
+        double peptideMass = sequenceMass;
+        cTermModification = proteinIteratorUtils.getCtermModification(proteinSequenceAsCharArray[end - 1], end - start, proteinSequence, start);
+        if (cTermModification != null) {
+            peptideMass += proteinIteratorUtils.getModificationMass(cTermModification);
+        }
+        mass = peptideMass + ProteinIteratorUtils.WATER_MASS;
+
+        return (massMax == null || mass <= massMax)
+                && (massMin == null || mass >= massMin);
+    }
+
+    /**
+     * Returns the current peptide with its position if its mass passes the
+     * filters, null otherwise.
+     *
+     * @return the current peptide with its position
+     */
+    protected PeptideWithPosition getFilteredPeptide() {
+        Peptide peptide = getPeptide();
+        if ((massMin == null || peptide.getMass() >= massMin)
+                && (massMax == null || peptide.getMass() <= massMax)) {
+            return new PeptideWithPosition(peptide, start);
+        }
+        return null;
+    }
+
+    @Override
+    public int getStart() {
+        return start;
+    }
+
+    @Override
+    public int getEnd() {
+        return end;
+    }
+
+    @Override
+    public double getMass() {
+        return mass;
+    }
+
+    @Override
+    public String getNTermModification() {
+        return nTermModification;
+    }
+
+    @Override
+    public String getCTermModification() {
+        return cTermModification;
+    }
+
+    @Override
+    public int getNFixedModifications() {
+        return nFixedModifications;
+    }
+
+    @Override
+    public int getFixedModificationSite(int index) {
+        return fixedModificationSites[index];
+    }
+
+    @Override
+    public String getFixedModification(int index) {
+        return fixedModifications[index];
+    }
+
+    @Override
+    public Peptide getPeptide() {
+
+        // The modifications are listed like in PeptideDraft
+        HashMap<Integer, String> fixedAaModifications = new HashMap<Integer, String>(1);
+        for (int i = 0; i < nFixedModifications; i++) {
+            fixedAaModifications.put(fixedModificationSites[i], fixedModifications[i]);
+        }
+
+        ArrayList<ModificationMatch> modificationMatches = null;
+
+        if (nTermModification != null) {
+            modificationMatches = new ArrayList<ModificationMatch>(nFixedModifications);
+            modificationMatches.add(new ModificationMatch(nTermModification, false, 1));
+        }
+
+        if (cTermModification != null) {
+
+            if (modificationMatches == null) {
+                modificationMatches = new ArrayList<ModificationMatch>(nFixedModifications);
+            }
+
+            modificationMatches.add(new ModificationMatch(cTermModification, false, end - start));
+        }
+
+        for (Integer site : fixedAaModifications.keySet()) {
+
+            if (modificationMatches == null) {
+                modificationMatches = new ArrayList<ModificationMatch>(nFixedModifications);
+            }
+
+            String modificationName = fixedAaModifications.get(site);
+            modificationMatches.add(new ModificationMatch(modificationName, false, site));
+        }
+
+        return new Peptide(proteinSequence.substring(start, end), modificationMatches, false);
+    }
+}
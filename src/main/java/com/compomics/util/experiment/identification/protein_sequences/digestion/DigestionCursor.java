@@ -0,0 +1,99 @@
+package com.compomics.util.experiment.identification.protein_sequences.digestion;
+
+import com.compomics.util.experiment.biology.Peptide;
+
+/**
+ * Cursor moving along the peptides of a protein sequence. Contrary to the
+ * sequence iterators, the cursor does not create objects for the peptides: the
+ * position, mass and fixed modifications of the current peptide are exposed
+ * as primitives and a peptide object is only created upon request.
+ *
+ * @author Marc Vaudel
+ */
+public interface DigestionCursor {
+
+    /**
+     * Moves the cursor to the next peptide. Returns false if none left.
+     *
+     * @return a boolean indicating whether the cursor was moved to a new
+     * peptide
+     */
+    public boolean next();
+
+    /**
+     * Returns the index of the first amino acid of the current peptide on the
+     * protein.
+     *
+     * @return the index of the first amino acid of the current peptide on the
+     * protein
+     */
+    public int getStart();
+
+    /**
+     * Returns the index after the last amino acid of the current peptide on
+     * the protein.
+     *
+     * @return the index after the last amino acid of the current peptide on
+     * the protein
+     */
+    public int getEnd();
+
+    /**
+     * Returns the monoisotopic mass of the current peptide including its fixed
+     * modifications.
+     *
+     * @return the mass of the current peptide
+     */
+    public double getMass();
+
+    /**
+     * Returns the fixed N-terminal modification of the current peptide, null
+     * if none.
+     *
+     * @return the fixed N-terminal modification of the current peptide
+     */
+    public String getNTermModification();
+
+    /**
+     * Returns the fixed C-terminal modification of the current peptide, null
+     * if none.
+     *
+     * @return the fixed C-terminal modification of the current peptide
+     */
+    public String getCTermModification();
+
+    /**
+     * Returns the number of fixed modifications on the amino acids of the
+     * current peptide.
+     *
+     * @return the number of fixed modifications on the amino acids of the
+     * current peptide
+     */
+    public int getNFixedModifications();
+
+    /**
+     * Returns the site of the fixed modification at the given index, 1 being
+     * the first amino acid of the peptide. Sites are in increasing order.
+     *
+     * @param index the index of the modification
+     *
+     * @return the site of the fixed modification at the given index
+     */
+    public int getFixedModificationSite(int index);
+
+    /**
+     * Returns the name of the fixed modification at the given index.
+     *
+     * @param index the index of the modification
+     *
+     * @return the name of the fixed modification at the given index
+     */
+    public String getFixedModification(int index);
+
+    /**
+     * Creates the peptide at the current position of the cursor.
+     *
+     * @return the peptide at the current position of the cursor
+     */
+    public Peptide getPeptide();
+}
@@ -5,6 +5,7 @@ import com.compomics.util.experiment.biology.Enzyme;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.iterators.SpecificSingleEnzymeIterator;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.iterators.NoDigestionIterator;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.iterators.NoDigestionCombinationIterator;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.iterators.SequenceIteratorCursor;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.iterators.SpecificSingleEnzymeCombinationIterator;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.iterators.UnspecificCombinationIterator;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.iterators.UnspecificIterator;
@@ -83,4 +84,24 @@ public class IteratorFactory {
                 throw new UnsupportedOperationException("Cleavage preference of type " + digestionPreferences.getCleavagePreference() + " not supported.");
         }
     }
+
+    /**
+     * Returns a digestion cursor for the given protein sequence and digestion
+     * preferences. The cursor does not create objects for the peptides of
+     * sequences without amino acid combinations.
+     *
+     * @param sequence the sequence to iterate
+     * @param digestionPreferences the digestion preferences to use
+     * @param massMin the minimal mass of a peptide
+     * @param massMax the maximal mass of a peptide
+     *
+     * @return a digestion cursor
+     */
+    public DigestionCursor getDigestionCursor(String sequence, DigestionPreferences digestionPreferences, Double massMin, Double massMax) {
+        SequenceIterator sequenceIterator = getSequenceIterator(sequence, digestionPreferences, massMin, massMax);
+        if (sequenceIterator instanceof DigestionCursor) {
+            return (DigestionCursor) sequenceIterator;
+        }
+        return new SequenceIteratorCursor(sequenceIterator);
+    }
 }
@@ -290,7 +290,23 @@ public class ProteinIteratorUtils {
         char[] peptideSequence = peptideDraft.getSequence();
         char aaChar = peptideSequence[peptideSequence.length - 1];
 
-        if (indexOnProtein == proteinSequence.length() - peptideDraft.length()) {
+        return getCtermModification(aaChar, peptideDraft.length(), proteinSequence, indexOnProtein);
+    }
+
+    /**
+     * Returns the c-terminal modification for the peptide of the given length
+     * ending with the given amino acid.
+     *
+     * @param aaChar the c-terminal amino acid of the peptide as character
+     * @param peptideLength the length of the peptide
+     * @param proteinSequence the protein sequence
+     * @param indexOnProtein the index of the peptide on the protein
+     *
+     * @return the c-terminal modification for the given peptide
+     */
+    public String getCtermModification(char aaChar, int peptideLength, String proteinSequence, int indexOnProtein) {
+
+        if (indexOnProtein == proteinSequence.length() - peptideLength) {
 
             if (fixedProteinCtermModification != null) {
                 return fixedProteinCtermModification;
@@ -314,7 +330,7 @@ public class ProteinIteratorUtils {
 
             AminoAcidPattern aminoAcidPattern = modificationPatternMap.get(fixedPeptideCtermModificationAtAa);
 
-            if (aminoAcidPattern == null || aminoAcidPattern.matchesAt(proteinSequence, SequenceMatchingPreferences.defaultStringMatching, indexOnProtein + peptideDraft.length())) {
+            if (aminoAcidPattern == null || aminoAcidPattern.matchesAt(proteinSequence, SequenceMatchingPreferences.defaultStringMatching, indexOnProtein + peptideLength)) {
                 return fixedPeptideCtermModificationAtAa;
             }
         }
@@ -0,0 +1,149 @@
+package com.compomics.util.experiment.identification.protein_sequences.digestion.iterators;
+
+import com.compomics.util.experiment.biology.PTM;
+import com.compomics.util.experiment.biology.PTMFactory;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.DigestionCursor;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.PeptideWithPosition;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.SequenceIterator;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Digestion cursor backed by a sequence iterator. Used for the sequences
+ * containing amino acid combinations, where the peptides are created by the
+ * iterator.
+ *
+ * @author Marc Vaudel
+ */
+public class SequenceIteratorCursor implements DigestionCursor {
+
+    /**
+     * The sequence iterator.
+     */
+    private final SequenceIterator sequenceIterator;
+    /**
+     * The current peptide.
+     */
+    private Peptide peptide = null;
+    /**
+     * The index of the current peptide on the protein.
+     */
+    private int start = 0;
+    /**
+     * The N-terminal modification of the current peptide.
+     */
+    private String nTermModification = null;
+    /**
+     * The C-terminal modification of the current peptide.
+     */
+    private String cTermModification = null;
+    /**
+     * The sites of the fixed modifications on the amino acids.
+     */
+    private int[] fixedModificationSites = new int[0];
+    /**
+     * The names of the fixed modifications on the amino acids.
+     */
+    private String[] fixedModifications = new String[0];
+
+    /**
+     * Constructor.
+     *
+     * @param sequenceIterator the sequence iterator
+     */
+    public SequenceIteratorCursor(SequenceIterator sequenceIterator) {
+        this.sequenceIterator = sequenceIterator;
+    }
+
+    @Override
+    public boolean next() {
+
+        PeptideWithPosition peptideWithPosition = sequenceIterator.getNextPeptide();
+
+        if (peptideWithPosition == null) {
+            peptide = null;
+            return false;
+        }
+
+        peptide = peptideWithPosition.getPeptide();
+        start = peptideWithPosition.getPosition();
+        nTermModification = null;
+        cTermModification = null;
+        TreeMap<Integer, String> fixedAaModifications = new TreeMap<Integer, String>();
+
+        ArrayList<ModificationMatch> modificationMatches = peptide.getModificationMatches();
+        if (modificationMatches != null) {
+            PTMFactory ptmFactory = PTMFactory.getInstance();
+            for (ModificationMatch modificationMatch : modificationMatches) {
+                String modificationName = modificationMatch.getTheoreticPtm();
+                PTM ptm = ptmFactory.getPTM(modificationName);
+                if (ptm.isNTerm()) {
+                    nTermModification = modificationName;
+                } else if (ptm.isCTerm()) {
+                    cTermModification = modificationName;
+                } else {
+                    fixedAaModifications.put(modificationMatch.getModificationSite(), modificationName);
+                }
+            }
+        }
+
+        fixedModificationSites = new int[fixedAaModifications.size()];
+        fixedModifications = new String[fixedAaModifications.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : fixedAaModifications.entrySet()) {
+            fixedModificationSites[i] = entry.getKey();
+            fixedModifications[i] = entry.getValue();
+            i++;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int getStart() {
+        return start;
+    }
+
+    @Override
+    public int getEnd() {
+        return start + peptide.getSequence().length();
+    }
+
+    @Override
+    public double getMass() {
+        return peptide.getMass();
+    }
+
+    @Override
+    public String getNTermModification() {
+        return nTermModification;
+    }
+
+    @Override
+    public String getCTermModification() {
+        return cTermModification;
+    }
+
+    @Override
+    public int getNFixedModifications() {
+        return fixedModificationSites.length;
+    }
+
+    @Override
+    public int getFixedModificationSite(int index) {
+        return fixedModificationSites[index];
+    }
+
+    @Override
+    public String getFixedModification(int index) {
+        return fixedModifications[index];
+    }
+
+    @Override
+    public Peptide getPeptide() {
+        return peptide;
+    }
+}
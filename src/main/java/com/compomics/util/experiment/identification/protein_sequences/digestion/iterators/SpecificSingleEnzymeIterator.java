@@ -1,13 +1,10 @@
 package com.compomics.util.experiment.identification.protein_sequences.digestion.iterators;
 
 import com.compomics.util.experiment.biology.Enzyme;
-import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.AbstractDigestionCursor;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.ProteinIteratorUtils;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.PeptideWithPosition;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.SequenceIterator;
-import com.compomics.util.general.BoxedObject;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -15,28 +12,8 @@ import java.util.HashMap;
  *
  * @author Marc Vaudel
  */
-public class SpecificSingleEnzymeIterator implements SequenceIterator {
+public class SpecificSingleEnzymeIterator extends AbstractDigestionCursor implements SequenceIterator {
 
-    /**
-     * Utilities classes for the digestion.
-     */
-    private ProteinIteratorUtils proteinIteratorUtils;
-    /**
-     * The protein sequence.
-     */
-    private String proteinSequence;
-    /**
-     * The protein sequence as char array.
-     */
-    private char[] proteinSequenceAsCharArray;
-    /**
-     * The minimal mass to consider.
-     */
-    private Double massMin;
-    /**
-     * The maximal mass to consider.
-     */
-    private Double massMax;
     /**
      * The enzyme to use to digest the sequence.
      */
@@ -49,18 +26,29 @@ public class SpecificSingleEnzymeIterator implements SequenceIterator {
      * Map of the previous peptide starts to number of missed cleavages.
      */
     private HashMap<Integer, Integer> peptideStartMap;
+    /**
+     * Map of the peptide starts to number of missed cleavages to use for the
+     * next cleavage site. Null if the peptide start map should not be
+     * replaced.
+     */
+    private HashMap<Integer, Integer> newPeptideStartMap = null;
     /**
      * Index of the sequence iterator.
      */
     private int sequenceIndex = 0;
     /**
-     * The peptides found.
+     * The starts of the peptides ending at the current cleavage site, the
+     * peptide without missed cleavage first.
      */
-    private ArrayList<PeptideWithPosition> result;
+    private int[] peptideStarts;
     /**
-     * Index of the result iterator.
+     * The number of peptide starts.
      */
-    private int resultIndex = -1;
+    private int nPeptideStarts = 0;
+    /**
+     * Index of the peptide start iterator.
+     */
+    private int peptideStartIndex = 0;
 
     /**
      * Constructor.
@@ -73,38 +61,76 @@ public class SpecificSingleEnzymeIterator implements SequenceIterator {
      * @param massMax the maximal mass of a peptide
      */
     public SpecificSingleEnzymeIterator(ProteinIteratorUtils proteinIteratorUtils, String proteinSequence, Enzyme enzyme, int nMissedCleavages, Double massMin, Double massMax) {
-        this.proteinIteratorUtils = proteinIteratorUtils;
-        this.proteinSequence = proteinSequence;
-        this.proteinSequenceAsCharArray = proteinSequence.toCharArray();
+        super(proteinIteratorUtils, proteinSequence, massMin, massMax);
         this.enzyme = enzyme;
         this.nMissedCleavages = nMissedCleavages;
-        this.massMin = massMin;
-        this.massMax = massMax;
         this.peptideStartMap = new HashMap<Integer, Integer>(nMissedCleavages + 1);
-        this.result = new ArrayList<PeptideWithPosition>(nMissedCleavages + 1);
+        this.peptideStarts = new int[nMissedCleavages + 1];
     }
 
     @Override
     public PeptideWithPosition getNextPeptide() {
 
-        // Return the next result if any
-        resultIndex++;
-        if (resultIndex < result.size()) {
-            return result.get(resultIndex);
+        while (next()) {
+            PeptideWithPosition peptideWithPosition = getFilteredPeptide();
+            if (peptideWithPosition != null) {
+                return peptideWithPosition;
+            }
         }
 
-        if (sequenceIndex == proteinSequenceAsCharArray.length) {
-            return null;
-        }
+        return null;
+    }
+
+    @Override
+    public boolean next() {
+
+        while (true) {
 
-        // Get the next peptides from the sequence and return the first result
-        iterateSequence();
-        return getNextPeptide();
+            // Iterate the peptides ending at the current cleavage site
+            while (peptideStartIndex < nPeptideStarts) {
+
+                int peptideStart = peptideStarts[peptideStartIndex++];
+                boolean smallMass = setPeptide(peptideStart, sequenceIndex);
+                boolean passesFilters = smallMass && completePeptide();
+
+                if (nMissedCleavages > 0) {
+                    if (peptideStartIndex == 1) {
+                        if (smallMass) {
+                            newPeptideStartMap = new HashMap<Integer, Integer>(peptideStartMap.size());
+                            newPeptideStartMap.put(peptideStart, 0);
+                        } else {
+                            peptideStartMap.clear();
+                            nPeptideStarts = 1;
+                        }
+                    } else {
+                        int peptideMissedCleavages = peptideStartMap.get(peptideStart);
+                        if (smallMass && peptideMissedCleavages + 1 < nMissedCleavages) {
+                            newPeptideStartMap.put(peptideStart, peptideMissedCleavages + 1);
+                        }
+                    }
+                }
+
+                if (passesFilters) {
+                    return true;
+                }
+            }
+
+            if (newPeptideStartMap != null) {
+                peptideStartMap = newPeptideStartMap;
+                newPeptideStartMap = null;
+            }
+
+            if (sequenceIndex == proteinSequenceAsCharArray.length) {
+                return false;
+            }
+
+            iterateSequence();
+        }
     }
 
     /**
-     * Iterates the sequence to the next missed cleavage and stores the peptides
-     * found in the result list.
+     * Iterates the sequence to the next cleavage site and stores the starts of
+     * the peptides ending there.
      */
     private void iterateSequence() {
 
@@ -119,39 +145,15 @@ public class SpecificSingleEnzymeIterator implements SequenceIterator {
             }
         }
 
-        result.clear();
-        char[] newSequence = Arrays.copyOfRange(proteinSequenceAsCharArray, initialIndex, sequenceIndex);
-        BoxedObject<Boolean> smallMass = new BoxedObject<Boolean>(Boolean.TRUE);
-        Peptide peptide = proteinIteratorUtils.getPeptideFromProtein(newSequence, proteinSequence, initialIndex, massMin, massMax, smallMass);
-        if (peptide != null
-                && (massMin == null || peptide.getMass() >= massMin)
-                && (massMax == null || peptide.getMass() <= massMax)) {
-            result.add(new PeptideWithPosition(peptide, initialIndex));
-        }
+        peptideStarts[0] = initialIndex;
+        nPeptideStarts = 1;
 
         if (nMissedCleavages > 0) {
-            if (smallMass.getObject()) {
-                HashMap<Integer, Integer> newPeptideStartMap = new HashMap<Integer, Integer>(peptideStartMap.size());
-                newPeptideStartMap.put(initialIndex, 0);
-                for (int peptideStart : peptideStartMap.keySet()) {
-                    newSequence = Arrays.copyOfRange(proteinSequenceAsCharArray, peptideStart, sequenceIndex);
-                    smallMass.setObject(Boolean.TRUE);
-                    peptide = proteinIteratorUtils.getPeptideFromProtein(newSequence, proteinSequence, peptideStart, massMin, massMax, smallMass);
-                    if (peptide != null
-                            && (massMin == null || peptide.getMass() >= massMin)
-                            && (massMax == null || peptide.getMass() <= massMax)) {
-                        result.add(new PeptideWithPosition(peptide, peptideStart));
-                    }
-                    int peptideMissedCleavages = peptideStartMap.get(peptideStart);
-                    if (smallMass.getObject() && peptideMissedCleavages + 1 < nMissedCleavages) {
-                        newPeptideStartMap.put(peptideStart, peptideMissedCleavages + 1);
-                    }
-                }
-                peptideStartMap = newPeptideStartMap;
-            } else {
-                peptideStartMap.clear();
+            for (int peptideStart : peptideStartMap.keySet()) {
+                peptideStarts[nPeptideStarts++] = peptideStart;
             }
         }
-        resultIndex = -1;
+
+        peptideStartIndex = 0;
     }
 }
@@ -1,39 +1,17 @@
 package com.compomics.util.experiment.identification.protein_sequences.digestion.iterators;
 
-import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.AbstractDigestionCursor;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.ProteinIteratorUtils;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.PeptideWithPosition;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.SequenceIterator;
-import com.compomics.util.general.BoxedObject;
-import java.util.Arrays;
 
 /**
  * Iterator for unspecific cleavage.
  *
  * @author Marc Vaudel
  */
-public class UnspecificIterator implements SequenceIterator {
+public class UnspecificIterator extends AbstractDigestionCursor implements SequenceIterator {
 
-    /**
-     * Utilities classes for the digestion.
-     */
-    private ProteinIteratorUtils proteinIteratorUtils;
-    /**
-     * The protein sequence.
-     */
-    private String proteinSequence;
-    /**
-     * The protein sequence as char array.
-     */
-    private char[] proteinSequenceAsCharArray;
-    /**
-     * The minimal mass to consider.
-     */
-    private Double massMin;
-    /**
-     * The maximal mass to consider.
-     */
-    private Double massMax;
     /**
      * The peptide beginning index of the iterator.
      */
@@ -52,45 +30,45 @@ public class UnspecificIterator implements SequenceIterator {
      * @param massMax the maximal mass of a peptide
      */
     public UnspecificIterator(ProteinIteratorUtils proteinIteratorUtils, String proteinSequence, Double massMin, Double massMax) {
-        this.proteinIteratorUtils = proteinIteratorUtils;
-        this.proteinSequence = proteinSequence;
-        this.proteinSequenceAsCharArray = proteinSequence.toCharArray();
-        this.massMin = massMin;
-        this.massMax = massMax;
+        super(proteinIteratorUtils, proteinSequence, massMin, massMax);
     }
 
     @Override
     public PeptideWithPosition getNextPeptide() {
 
-        // Increase indices
-        if (!increaseIndex()) {
-            return null;
+        while (next()) {
+            PeptideWithPosition peptideWithPosition = getFilteredPeptide();
+            if (peptideWithPosition != null) {
+                return peptideWithPosition;
+            }
         }
 
-        // Get the next sequence
-        char[] sequence = Arrays.copyOfRange(proteinSequenceAsCharArray, index1, index2);
+        return null;
+    }
 
-        // Construct the peptide
-        BoxedObject<Boolean> smallMass = new BoxedObject<Boolean>(Boolean.TRUE);
-        Peptide peptide = proteinIteratorUtils.getPeptideFromProtein(sequence, proteinSequence, index1, massMin, massMax, smallMass);
+    @Override
+    public boolean next() {
 
-        // Skip too heavy peptides
-        if (!smallMass.getObject()) {
-            index1++;
-            if (index1 == proteinSequenceAsCharArray.length) {
-                return null;
+        while (increaseIndex()) {
+
+            // Extend the current peptide by one amino acid, the previous peptide being its prefix
+            if (index2 == index1 + 1) {
+                startPeptide(index1);
             }
-            index2 = index1;
-        }
 
-        // Return the peptide if it passes the filters, continue iterating otherwise
-        if (peptide != null
-                && (massMin == null || peptide.getMass() >= massMin)
-                && (massMax == null || peptide.getMass() <= massMax)) {
-            return new PeptideWithPosition(peptide, index1);
-        } else {
-            return getNextPeptide();
+            // Skip too heavy peptides
+            if (!extendPeptide()) {
+                index1++;
+                if (index1 == proteinSequenceAsCharArray.length) {
+                    return false;
+                }
+                index2 = index1;
+            } else if (completePeptide()) {
+                return true;
+            }
         }
+
+        return false;
     }
 
     /**
@@ -0,0 +1,329 @@
+package com.compomics.util.experiment.identification.psm_scoring;
+
+import com.compomics.util.experiment.biology.Ion;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.biology.ions.PeptideFragmentIon;
+import com.compomics.util.experiment.identification.matches.IonMatch;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import com.compomics.util.experiment.massspectrometry.indexes.SpectrumIndex;
+import com.compomics.util.math.BasicMathFunctions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.apache.commons.math.util.FastMath;
+
+/**
+ * This class computes the scores based on the annotation of a spectrum from a
+ * single annotation. The ion matches are copied in primitive arrays which are
+ * then used to compute all scores in one pass. The scores are identical to
+ * the scores of the classes of the psm_scores package. The engine has no
+ * state and can be used by multiple threads.
+ *
+ * @author Marc Vaudel
+ */
+public class PsmScoresEngine {
+
+    /**
+     * Log2.
+     */
+    private static final double log2 = FastMath.log(2.0);
+    /**
+     * The number of bins for the spectrum intensities in the amino acid
+     * intensity rank score.
+     */
+    private static final int nIntensityBins = 10;
+
+    /**
+     * Indicates whether the given score can be computed from the spectrum
+     * annotation by this engine.
+     *
+     * @param psmScore the score of interest
+     *
+     * @return a boolean indicating whether the given score can be computed by
+     * this engine
+     */
+    public static boolean isAnnotationScore(PsmScore psmScore) {
+        switch (psmScore) {
+            case hyperScore:
+            case ms2_mz_fidelity:
+            case aa_ms2_mz_fidelity:
+            case aa_intensity:
+            case complementarity:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the scores of a peptide spectrum match computed from the given
+     * annotation. The scores are returned in the order of the given scores.
+     * Scores which are not annotation scores are set to NaN.
+     *
+     * @param peptide the peptide of interest
+     * @param spectrum the spectrum of interest
+     * @param annotationSettings the general spectrum annotation settings
+     * @param specificAnnotationSettings the annotation settings specific to
+     * this PSM
+     * @param ionMatches the ion matches obtained from spectrum annotation
+     * @param psmScores the scores to compute
+     *
+     * @return the scores of the match
+     *
+     * @throws java.lang.InterruptedException exception thrown if the thread is
+     * interrupted
+     */
+    public double[] getScores(Peptide peptide, MSnSpectrum spectrum, AnnotationSettings annotationSettings,
+            SpecificAnnotationSettings specificAnnotationSettings, ArrayList<IonMatch> ionMatches, PsmScore[] psmScores)
+            throws InterruptedException {
+
+        int sequenceLength = peptide.getSequence().length();
+        int nMatches = ionMatches.size();
+        double[] spectrumMz = spectrum.getMzValues();
+
+        // Copy the ion matches in arrays
+        int[] peakIndexes = new int[nMatches];
+        double[] peakIntensities = new double[nMatches];
+        double[] errors = new double[nMatches];
+        int[] numbers = new int[nMatches];
+        int[] subTypes = new int[nMatches];
+        boolean[] fragmentIons = new boolean[nMatches];
+        boolean[] neutralLosses = new boolean[nMatches];
+
+        for (int i = 0; i < nMatches; i++) {
+            IonMatch ionMatch = ionMatches.get(i);
+            Ion ion = ionMatch.ion;
+            int peakIndex = Arrays.binarySearch(spectrumMz, ionMatch.peak.mz);
+            peakIndexes[i] = peakIndex >= 0 ? peakIndex : spectrumMz.length + i;
+            peakIntensities[i] = ionMatch.peak.intensity;
+            errors[i] = ionMatch.getAbsoluteError();
+            fragmentIons[i] = ion.getType() == Ion.IonType.PEPTIDE_FRAGMENT_ION;
+            neutralLosses[i] = ion.hasNeutralLosses();
+            subTypes[i] = ion.getSubType();
+            numbers[i] = ion instanceof PeptideFragmentIon ? ((PeptideFragmentIon) ion).getNumber() : -1;
+        }
+
+        // Find the first match of every peak, and the first match of every peak among the ions used by the hyperscore
+        boolean[] firstOfPeak = new boolean[nMatches];
+        boolean[] firstOfPeakHyperscore = new boolean[nMatches];
+        long[] peakKeys = new long[nMatches];
+        for (int i = 0; i < nMatches; i++) {
+            peakKeys[i] = (((long) peakIndexes[i]) << 32) | i;
+        }
+        Arrays.sort(peakKeys);
+        for (int i = 0; i < nMatches; i++) {
+            int peakIndex = (int) (peakKeys[i] >>> 32);
+            if (i == 0 || peakIndex != (int) (peakKeys[i - 1] >>> 32)) {
+                firstOfPeak[(int) peakKeys[i]] = true;
+                for (int j = i; j < nMatches && (int) (peakKeys[j] >>> 32) == peakIndex; j++) {
+                    int matchIndex = (int) peakKeys[j];
+                    if (fragmentIons[matchIndex] && !neutralLosses[matchIndex] && numbers[matchIndex] > 1) {
+                        firstOfPeakHyperscore[matchIndex] = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Single pass on the matches
+        double fragmentAccuracy = specificAnnotationSettings.getFragmentIonAccuracyInDa(spectrum.getMaxMz());
+        boolean peakMatched = false;
+        double coveredIntensity = 0.0;
+        double[] residueMatches = new double[sequenceLength + 1];
+        double[] residueIntensities = new double[sequenceLength + 1];
+        double[] residueErrors = new double[sequenceLength + 1];
+        Arrays.fill(residueErrors, fragmentAccuracy);
+
+        for (int i = 0; i < nMatches; i++) {
+            if (firstOfPeak[i]) {
+                coveredIntensity += peakIntensities[i];
+            }
+            if (fragmentIons[i] && !neutralLosses[i] && numbers[i] >= 2) {
+                peakMatched = true;
+            }
+            int number = numbers[i];
+            if (number != -1) {
+                residueMatches[number] = residueMatches[number] + 1;
+                if (peakIntensities[i] > residueIntensities[number]) {
+                    residueIntensities[number] = peakIntensities[i];
+                }
+                double error = Math.abs(errors[i]);
+                if (error < residueErrors[number]) {
+                    residueErrors[number] = error;
+                }
+            }
+        }
+
+        double[] scores = new double[psmScores.length];
+
+        for (int k = 0; k < psmScores.length; k++) {
+
+            PsmScore psmScore = psmScores[k];
+
+            switch (psmScore) {
+
+                case hyperScore:
+                    scores[k] = peakMatched ? getHyperScore(spectrum, annotationSettings, specificAnnotationSettings, coveredIntensity,
+                            peakIntensities, numbers, subTypes, firstOfPeakHyperscore, sequenceLength) : 0.0;
+                    break;
+
+                case ms2_mz_fidelity:
+                    if (nMatches < 2) {
+                        scores[k] = fragmentAccuracy;
+                    } else {
+                        double[] deviations = Arrays.copyOf(errors, nMatches);
+                        double deviationUp = BasicMathFunctions.percentile(deviations, 0.75);
+                        double deviationDown = BasicMathFunctions.percentile(deviations, 0.25);
+                        scores[k] = (deviationUp - deviationDown) / 2;
+                    }
+                    break;
+
+                case aa_ms2_mz_fidelity:
+                    if (sequenceLength == 0) {
+                        scores[k] = fragmentAccuracy;
+                    } else {
+                        double sum = 0;
+                        for (int number = 1; number <= sequenceLength; number++) {
+                            sum += residueErrors[number];
+                        }
+                        scores[k] = sum / sequenceLength;
+                    }
+                    break;
+
+                case aa_intensity:
+                    scores[k] = getAAIntensityRankScore(spectrum, residueIntensities, sequenceLength);
+                    break;
+
+                case complementarity:
+                    double mean = 0;
+                    if (sequenceLength > 0) {
+                        double sum = 0;
+                        for (int number = 1; number <= sequenceLength; number++) {
+                            sum += FastMath.log(residueMatches[number]) / log2;
+                        }
+                        mean = sum / sequenceLength;
+                    }
+                    scores[k] = Math.pow(2, mean);
+                    break;
+
+                default:
+                    scores[k] = Double.NaN;
+            }
+        }
+
+        return scores;
+    }
+
+    /**
+     * Returns the hyperscore for the given matches.
+     *
+     * @param spectrum the spectrum of interest
+     * @param annotationSettings the general spectrum annotation settings
+     * @param specificAnnotationSettings the annotation settings specific to
+     * this PSM
+     * @param coveredIntensity the intensity of the matched peaks
+     * @param peakIntensities the intensities of the matched peaks
+     * @param numbers the numbers of the fragment ions, -1 for other ions
+     * @param subTypes the ion sub types
+     * @param firstOfPeakHyperscore indicates the first match of every peak
+     * among the ions used by the score
+     * @param sequenceLength the length of the peptide sequence
+     *
+     * @return the hyperscore
+     */
+    private double getHyperScore(MSnSpectrum spectrum, AnnotationSettings annotationSettings, SpecificAnnotationSettings specificAnnotationSettings,
+            double coveredIntensity, double[] peakIntensities, int[] numbers, int[] subTypes, boolean[] firstOfPeakHyperscore, int sequenceLength) {
+
+        SpectrumIndex spectrumIndex = spectrum.getSpectrumIndex(spectrum.getIntensityLimit(annotationSettings.getAnnotationIntensityLimit()),
+                annotationSettings.getFragmentIonAccuracy(), annotationSettings.isFragmentIonPpm());
+
+        double totalIntensity = spectrumIndex.getTotalIntensity() - coveredIntensity;
+
+        double xCorr = 0;
+        boolean[] ionsForward = new boolean[sequenceLength + 1];
+        boolean[] ionsRewind = new boolean[sequenceLength + 1];
+        int nForward = 0;
+        int nRewind = 0;
+
+        for (int i = 0; i < peakIntensities.length; i++) {
+            if (firstOfPeakHyperscore[i]) {
+                int number = numbers[i];
+                xCorr += peakIntensities[i] / totalIntensity;
+                int subType = subTypes[i];
+                if (subType == PeptideFragmentIon.X_ION
+                        || subType == PeptideFragmentIon.Y_ION
+                        || subType == PeptideFragmentIon.Z_ION) {
+                    if (!ionsForward[number]) {
+                        ionsForward[number] = true;
+                        nForward++;
+                    }
+                } else if (subType == PeptideFragmentIon.A_ION
+                        || subType == PeptideFragmentIon.B_ION
+                        || subType == PeptideFragmentIon.C_ION) {
+                    if (!ionsRewind[number]) {
+                        ionsRewind[number] = true;
+                        nRewind++;
+                    }
+                }
+            }
+        }
+
+        nForward = nForward / (Math.max(specificAnnotationSettings.getPrecursorCharge() - 1, 1));
+        nRewind = nRewind / (Math.max(specificAnnotationSettings.getPrecursorCharge() - 1, 1));
+        nForward = nForward > 20 ? 20 : nForward;
+        nRewind = nRewind > 20 ? 20 : nRewind;
+        long forwardFactorial = BasicMathFunctions.factorial(nForward);
+        long rewindFactorial = BasicMathFunctions.factorial(nRewind);
+        return xCorr * forwardFactorial * rewindFactorial;
+    }
+
+    /**
+     * Returns the amino acid intensity rank score for the given most intense
+     * peak per residue.
+     *
+     * @param spectrum the spectrum of interest
+     * @param residueIntensities the intensity of the most intense peak
+     * annotating every residue
+     * @param sequenceLength the length of the peptide sequence
+     *
+     * @return the amino acid intensity rank score
+     */
+    private double getAAIntensityRankScore(MSnSpectrum spectrum, double[] residueIntensities, int sequenceLength) {
+
+        // Take every percentile-th distinct intensity by decreasing intensity as threshold
+        int percentile = spectrum.getNPeaks() / nIntensityBins;
+        double[] intensities = Arrays.copyOf(spectrum.getIntensityValues(), spectrum.getNPeaks());
+        Arrays.sort(intensities);
+        double[] thresholds = new double[intensities.length];
+        int nThresholds = 0;
+        int count = 0;
+        for (int i = intensities.length - 1; i >= 0; i--) {
+            if (i == intensities.length - 1 || Double.compare(intensities[i], intensities[i + 1]) != 0) {
+                if (++count == percentile) {
+                    thresholds[nThresholds++] = intensities[i];
+                    count = 0;
+                }
+            }
+        }
+
+        double sum = 0;
+        for (int number = 1; number <= sequenceLength; number++) {
+            double intensity = residueIntensities[number];
+            double rank = nIntensityBins;
+            if (intensity > 0) {
+                rank = 0;
+                for (int i = 0; i < nThresholds; i++) {
+                    if (intensity >= thresholds[i]) {
+                        break;
+                    } else {
+                        rank++;
+                    }
+                }
+            }
+            sum += rank;
+        }
+
+        return sum / sequenceLength;
+    }
+}
@@ -1,6 +1,7 @@
 package com.compomics.util.experiment.identification.psm_scoring;
 
 import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.matches.IonMatch;
 import com.compomics.util.experiment.identification.peptide_fragmentation.PeptideFragmentationModel;
 import com.compomics.util.experiment.identification.psm_scoring.psm_scores.AAIntensityRankScore;
 import com.compomics.util.experiment.identification.psm_scoring.psm_scores.AAMS2MzFidelityScore;
@@ -9,10 +10,12 @@ import com.compomics.util.experiment.identification.psm_scoring.psm_scores.Hyper
 import com.compomics.util.experiment.identification.psm_scoring.psm_scores.IntensityRankScore;
 import com.compomics.util.experiment.identification.psm_scoring.psm_scores.MS2MzFidelityScore;
 import com.compomics.util.experiment.identification.psm_scoring.psm_scores.PrecursorAccuracy;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.preferences.IdentificationParameters;
+import java.util.ArrayList;
 
 /**
  * This class can be used to estimate PSM scores.
@@ -54,6 +57,11 @@ public class PsmScoresEstimator {
      * Instance of the PrecursorAccuracy.
      */
     private PrecursorAccuracy precursorAccuracy;
+    /**
+     * Engine computing the scores based on the spectrum annotation in a single
+     * pass.
+     */
+    private PsmScoresEngine psmScoresEngine;
 
     /**
      * Constructor.
@@ -76,6 +84,7 @@ public class PsmScoresEstimator {
         intensityRankScore = new IntensityRankScore();
         ms2MzFidelityScore = new MS2MzFidelityScore();
         precursorAccuracy = new PrecursorAccuracy();
+        psmScoresEngine = new PsmScoresEngine();
     }
 
     /**
@@ -192,4 +201,55 @@ public class PsmScoresEstimator {
                 throw new UnsupportedOperationException("Score not implemented.");
         }
     }
+
+    /**
+     * Scores the match between the given peptide and spectrum using the given
+     * scores. The spectrum is annotated only once and the scores based on the
+     * annotation are computed together, see PsmScoresEngine. The scores are
+     * returned in the order of the given scores.
+     *
+     * @param peptide the peptide of interest
+     * @param peptideCharge the charge of the peptide
+     * @param spectrum the spectrum of interest
+     * @param identificationParameters the identification parameters
+     * @param specificAnnotationPreferences the annotation preferences specific
+     * to this psm
+     * @param peptideSpectrumAnnotator the spectrum annotator to use
+     * @param psmScores the scores to use
+     *
+     * @return the scores of the match
+     *
+     * @throws java.lang.InterruptedException exception thrown if the thread is
+     * interrupted
+     */
+    public double[] getScores(Peptide peptide, Integer peptideCharge, MSnSpectrum spectrum, IdentificationParameters identificationParameters,
+            SpecificAnnotationSettings specificAnnotationPreferences, PeptideSpectrumAnnotator peptideSpectrumAnnotator, PsmScore[] psmScores)
+            throws InterruptedException {
+
+        boolean annotationScore = false;
+        for (PsmScore psmScore : psmScores) {
+            if (PsmScoresEngine.isAnnotationScore(psmScore)) {
+                annotationScore = true;
+                break;
+            }
+        }
+
+        double[] scores;
+        if (annotationScore) {
+            AnnotationSettings annotationSettings = identificationParameters.getAnnotationPreferences();
+            ArrayList<IonMatch> ionMatches = peptideSpectrumAnnotator.getSpectrumAnnotation(annotationSettings, specificAnnotationPreferences, spectrum, peptide);
+            scores = psmScoresEngine.getScores(peptide, spectrum, annotationSettings, specificAnnotationPreferences, ionMatches, psmScores);
+        } else {
+            scores = new double[psmScores.length];
+        }
+
+        for (int i = 0; i < psmScores.length; i++) {
+            PsmScore psmScore = psmScores[i];
+            if (!PsmScoresEngine.isAnnotationScore(psmScore)) {
+                scores[i] = getScore(peptide, peptideCharge, spectrum, identificationParameters, specificAnnotationPreferences, peptideSpectrumAnnotator, psmScore);
+            }
+        }
+
+        return scores;
+    }
 }
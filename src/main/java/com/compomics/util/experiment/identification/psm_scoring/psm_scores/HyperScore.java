@@ -121,14 +121,8 @@ public class HyperScore {
             return 0.0;
         }
 
-        SpectrumIndex spectrumIndex = new SpectrumIndex();
-        spectrumIndex = (SpectrumIndex) spectrum.getUrParam(spectrumIndex);
-        if (spectrumIndex == null) {
-            // Create new index
-            spectrumIndex = new SpectrumIndex(spectrum.getPeakMap(), spectrum.getIntensityLimit(annotationSettings.getAnnotationIntensityLimit()),
-                    annotationSettings.getFragmentIonAccuracy(), annotationSettings.isFragmentIonPpm());
-            spectrum.addUrParam(spectrumIndex);
-        }
+        SpectrumIndex spectrumIndex = spectrum.getSpectrumIndex(spectrum.getIntensityLimit(annotationSettings.getAnnotationIntensityLimit()),
+                annotationSettings.getFragmentIonAccuracy(), annotationSettings.isFragmentIonPpm());
 
         Double totalIntensity = spectrumIndex.getTotalIntensity() - coveredIntensity;
 
@@ -8,7 +8,6 @@ import com.compomics.util.experiment.identification.spectrum_annotation.Annotati
 import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
-import com.compomics.util.experiment.massspectrometry.Peak;
 import com.compomics.util.experiment.massspectrometry.SimpleNoiseDistribution;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -103,12 +102,13 @@ public class SnrScore {
         
         Double pAnnotatedMinusLog = 0.0;
         Double pNotAnnotatedMinusLog = 0.0;
-        HashMap<Double, Peak> peakMap = spectrum.getPeakMap();
+        double[] mzValues = spectrum.getMzValues();
+        double[] intensityValues = spectrum.getIntensityValues();
         SimpleNoiseDistribution binnedCumulativeFunction = spectrum.getIntensityLogDistribution();
         
-        for (Double mz : spectrum.getOrderedMzValues()) {
-            Peak peak = peakMap.get(mz);
-            double intensity = peak.intensity;
+        for (int i = 0; i < mzValues.length; i++) {
+            double mz = mzValues[i];
+            double intensity = intensityValues[i];
             double pMinusLog = -binnedCumulativeFunction.getBinnedCumulativeProbabilityLog(intensity);
             ArrayList<IonMatch> peakMatches = ionMatches.get(mz);
             if (peakMatches == null) {
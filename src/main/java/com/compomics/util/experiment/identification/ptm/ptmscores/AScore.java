@@ -1,6 +1,7 @@
 package com.compomics.util.experiment.identification.ptm.ptmscores;
 
 import com.compomics.util.experiment.biology.Ion;
+import com.compomics.util.experiment.biology.IonFactory;
 import com.compomics.util.experiment.biology.NeutralLoss;
 import com.compomics.util.experiment.biology.PTM;
 import com.compomics.util.experiment.biology.Peptide;
@@ -8,9 +9,11 @@ import com.compomics.util.experiment.biology.ions.PeptideFragmentIon;
 import com.compomics.util.experiment.identification.spectrum_annotation.NeutralLossesMap;
 import com.compomics.util.experiment.identification.matches.IonMatch;
 import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpectrumAnnotator;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.Peak;
+import com.compomics.util.experiment.massspectrometry.indexes.SpectrumIndex;
 import com.compomics.util.math.statistics.distributions.BinomialDistribution;
 import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
@@ -28,6 +31,10 @@ import org.apache.commons.math.util.MathUtils;
  * http://www.ncbi.nlm.nih.gov/pubmed/16964243 Note: Here the window size is
  * adapted to mz tolerance and the score is not restricted to phosphorylation.
  *
+ * The modification sites are scored by counting their expected ions in the
+ * indexes of the spectra (see SiteScoringIons) without annotating the spectra.
+ * The scoring does not use shared state and PSMs can be scored in parallel.
+ *
  * @author Marc Vaudel
  */
 public class AScore {
@@ -61,7 +68,8 @@ public class AScore {
      * peptide to protein mapping
      * @param ptmSequenceMatchingPreferences the sequence matching preferences
      * for PTM to peptide mapping
-     * @param spectrumAnnotator a spectrum annotator to annotate the spectra
+     * @param spectrumAnnotator not used anymore, the sites are scored using
+     * the spectrum indexes, can be null
      *
      * @return a map containing the best or two best PTM location(s) and the
      * corresponding A-score
@@ -165,7 +173,7 @@ public class AScore {
                 Double lowestScore = null;
                 for (int secondPosition : secondScoringSites) {
                     int bestDepth = getBestDepth(positionToScoreMap, bestPosition, secondPosition);
-                    tempMap = getScoreForPositions(peptide, noModPeptide, refPTM, bestPosition, secondPosition, annotationPreferences, specificAnnotationPreferences, spectrumAnnotator, bestDepth, spectrumMap.get(bestDepth));
+                    tempMap = getScoreForPositions(peptide, noModPeptide, refPTM, bestPosition, secondPosition, annotationPreferences, specificAnnotationPreferences, bestDepth, spectrumMap.get(bestDepth));
                     Double tempMapLowestScore = null;
                     for (int tempPos : tempMap.keySet()) {
                         double tempScore = tempMap.get(tempPos);
@@ -199,7 +207,7 @@ public class AScore {
                     for (int secondPosition : bestScoringSites) {
                         if (bestPosition != secondPosition) {
                             int bestDepth = getBestDepth(positionToScoreMap, bestPosition, secondPosition);
-                            tempMap = getScoreForPositions(peptide, noModPeptide, refPTM, bestPosition, secondPosition, annotationPreferences, specificAnnotationPreferences, spectrumAnnotator, bestDepth, spectrumMap.get(bestDepth));
+                            tempMap = getScoreForPositions(peptide, noModPeptide, refPTM, bestPosition, secondPosition, annotationPreferences, specificAnnotationPreferences, bestDepth, spectrumMap.get(bestDepth));
                             Double tempMapLowestScore = null;
                             for (int tempPos : tempMap.keySet()) {
                                 double tempScore = tempMap.get(tempPos);
@@ -279,8 +287,6 @@ public class AScore {
      * @param annotationPreferences the global annotation preferences
      * @param specificAnnotationPreferences the annotation preferences specific
      * to this peptide and spectrum
-     * @param spectrumAnnotator the spectrum annotator which should be used to
-     * annotate the spectrum
      * @param bestDepth the depth maximizing the score difference between the
      * best and second best scoring sites (see getBestDepth)
      * @param spectrumAtBestDepth the spectrum extracted from the original
@@ -292,7 +298,7 @@ public class AScore {
      * math error occurred while computing the score.
      */
     private static HashMap<Integer, Double> getScoreForPositions(Peptide peptide, Peptide noModPeptide, PTM refPTM, int bestPosition, int secondPosition, AnnotationSettings annotationPreferences,
-            SpecificAnnotationSettings specificAnnotationPreferences, PeptideSpectrumAnnotator spectrumAnnotator, int bestDepth, MSnSpectrum spectrumAtBestDepth) throws MathException {
+            SpecificAnnotationSettings specificAnnotationPreferences, int bestDepth, MSnSpectrum spectrumAtBestDepth) throws MathException {
 
         HashMap<Integer, Double> result = new HashMap<Integer, Double>(2);
 
@@ -300,7 +306,7 @@ public class AScore {
         int posMin = Math.min(bestPosition, secondPosition);
         int posMax = Math.max(bestPosition, secondPosition);
 
-        for (ArrayList<Ion> ions : spectrumAnnotator.getExpectedIons(specificAnnotationPreferences, peptide).values()) {
+        for (ArrayList<Ion> ions : getExpectedIons(specificAnnotationPreferences, peptide).values()) {
             for (Ion ion : ions) {
                 if (ion.getType() == Ion.IonType.PEPTIDE_FRAGMENT_ION) {
                     PeptideFragmentIon fragmentIon = ((PeptideFragmentIon) ion);
@@ -326,7 +332,7 @@ public class AScore {
         double p = ((double) bestDepth + 1) / 100;
         Peptide tempPeptide = new Peptide(noModPeptide.getSequence(), noModPeptide.getModificationMatches());
         tempPeptide.addModificationMatch(new ModificationMatch(refPTM.getName(), true, posMin));
-        ArrayList<IonMatch> matches = spectrumAnnotator.getSpectrumAnnotation(annotationPreferences, specificAnnotationPreferences,
+        ArrayList<IonMatch> matches = PeptideSpectrumAnnotator.getIonMatches(annotationPreferences, specificAnnotationPreferences,
                 spectrumAtBestDepth, tempPeptide);
         int n = 0;
 
@@ -358,7 +364,7 @@ public class AScore {
 
         tempPeptide = new Peptide(noModPeptide.getSequence(), noModPeptide.getModificationMatches());
         tempPeptide.addModificationMatch(new ModificationMatch(refPTM.getName(), true, posMax));
-        matches = spectrumAnnotator.getSpectrumAnnotation(annotationPreferences, specificAnnotationPreferences,
+        matches = PeptideSpectrumAnnotator.getIonMatches(annotationPreferences, specificAnnotationPreferences,
                 spectrumAtBestDepth, tempPeptide);
         n = 0;
 
@@ -496,8 +502,8 @@ public class AScore {
      * @param annotationPreferences the global annotation preferences
      * @param specificAnnotationPreferences the annotation preferences specific
      * to this peptide and spectrum
-     * @param spectrumAnnotator the spectrum annotator which should be used to
-     * annotate the spectrum
+     * @param spectrumAnnotator not used anymore, the sites are scored using
+     * the spectrum indexes, can be null
      * @param spectrum the spectrum of interest
      * @param spectrumMap the map of the extracted spectra: depth &gt; extracted
      * spectrum
@@ -515,34 +521,37 @@ public class AScore {
 
         int N = 0;
 
-        for (ArrayList<Ion> fragmentIons : spectrumAnnotator.getExpectedIons(specificAnnotationPreferences, peptide).values()) {
+        for (ArrayList<Ion> fragmentIons : getExpectedIons(specificAnnotationPreferences, peptide).values()) {
             N += fragmentIons.size();
         }
 
         String sequence = noModPeptide.getSequence();
         int sequenceLength = sequence.length();
 
+        // The expected ions of every site are computed once and matched against every depth
+        HashMap<Integer, SiteScoringIons> siteToScoringIons = new HashMap<Integer, SiteScoringIons>(possibleSites.size());
+        for (int pos : possibleSites) {
+            Peptide tempPeptide = new Peptide(noModPeptide.getSequence(), noModPeptide.getModificationMatches());
+            int position;
+            if (pos == 0) {
+                position = 1;
+            } else if (pos == sequenceLength + 1) {
+                position = sequenceLength;
+            } else {
+                position = pos;
+            }
+            tempPeptide.addModificationMatch(new ModificationMatch(refPTM.getName(), true, position));
+            siteToScoringIons.put(pos, new SiteScoringIons(tempPeptide, specificAnnotationPreferences));
+        }
+
         for (int i = 0; i < spectrumMap.size(); i++) {
 
             double p = ((double) i + 1) / 100;
+            BinomialDistribution distribution = new BinomialDistribution(N, p);
+            SpectrumIndex spectrumIndex = SiteScoringIons.getSpectrumIndex(spectrumMap.get(i), annotationPreferences, specificAnnotationPreferences);
 
             for (int pos : possibleSites) {
-                Peptide tempPeptide = new Peptide(noModPeptide.getSequence(), noModPeptide.getModificationMatches());
-                int position;
-                if (pos == 0) {
-                    position = 1;
-                } else if (pos == sequenceLength + 1) {
-                    position = sequenceLength;
-                } else {
-                    position = pos;
-                }
-                tempPeptide.addModificationMatch(new ModificationMatch(refPTM.getName(), true, position));
-
-                ArrayList<IonMatch> matches = spectrumAnnotator.getSpectrumAnnotation(annotationPreferences, specificAnnotationPreferences,
-                        spectrumMap.get(i), tempPeptide);
-                int n = matches.size();
-
-                BinomialDistribution distribution = new BinomialDistribution(N, p);
+                int n = siteToScoringIons.get(pos).getNMatches(spectrumIndex);
                 Double bigP = distribution.getDescendingCumulativeProbabilityAt((double) n);
                 Double score = -10 * MathUtils.log(10, bigP);
                 HashMap<Integer, Double> scoresAtPosition = positionToScoreMap.get(pos);
@@ -556,6 +565,22 @@ public class AScore {
         return positionToScoreMap;
     }
 
+    /**
+     * Returns the expected ions of the given peptide in a map indexed by the
+     * possible charges. The fragment ions are taken from the cache of the
+     * IonFactory.
+     *
+     * @param specificAnnotationPreferences the annotation preferences specific
+     * to this peptide and spectrum
+     * @param peptide the peptide of interest
+     *
+     * @return the expected ions of the given peptide
+     */
+    private static HashMap<Integer, ArrayList<Ion>> getExpectedIons(SpecificAnnotationSettings specificAnnotationPreferences, Peptide peptide) {
+        HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> fragmentIons = IonFactory.getInstance().getTheoreticalFragmentIons(peptide, specificAnnotationPreferences).getIons();
+        return SpectrumAnnotator.getExpectedIons(specificAnnotationPreferences, fragmentIons, specificAnnotationPreferences.getPrecursorCharge());
+    }
+
     /**
      * Generates a map containing the spectra filtered on intensity with a basis
      * of 20*m/z tolerance indexed by the depth used. (see A-score paper for
@@ -605,8 +630,10 @@ public class AScore {
             currentmzMin += 200 * mzTolerance;
         }
 
+        // the peaks are gathered per depth and set once per spectrum
+        ArrayList<ArrayList<Peak>> peaksAtDepth = new ArrayList<ArrayList<Peak>>(Math.max(depthMax, 0));
         for (int i = 0; i < depthMax; i++) {
-            result.put(i, new MSnSpectrum(2, baseSpectrum.getPrecursor(), baseSpectrum.getSpectrumTitle() + "_" + i, new HashMap<Double, Peak>(), "a score"));
+            peaksAtDepth.add(new ArrayList<Peak>());
         }
 
         cpt = 0;
@@ -628,12 +655,18 @@ public class AScore {
 
             for (int i = 0; i < intensities.size(); i++) {
                 for (int j = i; j < depthMax; j++) {
-                    result.get(j).addPeak(tempMap.get(intensities.get(i)));
+                    peaksAtDepth.get(j).add(tempMap.get(intensities.get(i)));
                 }
             }
 
             currentmzMin += 200 * mzTolerance;
         }
+
+        for (int i = 0; i < depthMax; i++) {
+            MSnSpectrum reducedSpectrum = new MSnSpectrum(2, baseSpectrum.getPrecursor(), baseSpectrum.getSpectrumTitle() + "_" + i, new HashMap<Double, Peak>(), "a score");
+            reducedSpectrum.setPeaks(peaksAtDepth.get(i));
+            result.put(i, reducedSpectrum);
+        }
         return result;
     }
 }
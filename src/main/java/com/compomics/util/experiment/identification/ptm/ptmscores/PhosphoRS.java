@@ -7,12 +7,13 @@ import com.compomics.util.experiment.biology.NeutralLoss;
 import com.compomics.util.experiment.biology.PTM;
 import com.compomics.util.experiment.biology.Peptide;
 import com.compomics.util.experiment.identification.spectrum_annotation.NeutralLossesMap;
-import com.compomics.util.experiment.identification.matches.IonMatch;
 import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpectrumAnnotator;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.Peak;
 import com.compomics.util.experiment.massspectrometry.Spectrum;
+import com.compomics.util.experiment.massspectrometry.indexes.SpectrumIndex;
 import com.compomics.util.math.statistics.distributions.BinomialDistribution;
 import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
@@ -25,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.util.FastMath;
 
@@ -35,6 +37,10 @@ import org.apache.commons.math.util.FastMath;
  * modification sites, and noisy spectra. Typically, avoid scoring deamidation
  * sites.
  *
+ * The modification profiles are scored by counting their expected ions in the
+ * indexes of the spectra (see SiteScoringIons) without annotating the spectra.
+ * The scoring does not use shared state and PSMs can be scored in parallel.
+ *
  * @author Marc Vaudel
  */
 public class PhosphoRS {
@@ -59,7 +65,7 @@ public class PhosphoRS {
     /**
      * The binomial distributions cache.
      */
-    private static HashMap<Double, HashMap<Integer, BinomialDistribution>> distributionCache = new HashMap<Double, HashMap<Integer, BinomialDistribution>>();
+    private static final ConcurrentHashMap<Double, ConcurrentHashMap<Integer, BinomialDistribution>> distributionCache = new ConcurrentHashMap<Double, ConcurrentHashMap<Integer, BinomialDistribution>>();
 
     /**
      * Returns the PhosphoRS sequence probabilities for the PTM possible
@@ -90,8 +96,8 @@ public class PhosphoRS {
      * peptide to protein mapping
      * @param ptmSequenceMatchingPreferences the sequence matching preferences
      * for PTM to peptide mapping
-     * @param spectrumAnnotator the peptide spectrum annotator to use for
-     * spectrum annotation, can be null
+     * @param spectrumAnnotator not used anymore, the modification profiles are
+     * scored using the spectrum indexes, can be null
      *
      * @return a map site &gt; phosphoRS site probability
      *
@@ -116,10 +122,6 @@ public class PhosphoRS {
             throw new IllegalArgumentException("No PTM given for PhosphoRS calculation.");
         }
 
-        if (spectrumAnnotator == null) {
-            spectrumAnnotator = new PeptideSpectrumAnnotator();
-        }
-
         int nPTM = 0;
         if (peptide.isModified()) {
             for (ModificationMatch modMatch : peptide.getModificationMatches()) {
@@ -199,11 +201,13 @@ public class PhosphoRS {
             }
 
             HashMap<String, Peptide> profileToPeptide = getPossiblePeptidesMap(peptide, ptms, possibleProfiles);
-            HashMap<String, HashMap<Integer, HashMap<Integer, ArrayList<Ion>>>> profileToPossibleFragments = getPossiblePeptideFragments(profileToPeptide, scoringAnnotationSetttings);
-            HashMap<String, Integer> profileToN = getPossiblePeptideToN(profileToPeptide, profileToPossibleFragments, spectrumAnnotator, scoringAnnotationSetttings);
+            HashMap<String, SiteScoringIons> profileToScoringIons = getPossiblePeptideScoringIons(profileToPeptide, scoringAnnotationSetttings);
+            HashMap<String, Integer> profileToN = getPossiblePeptideToN(profileToScoringIons, scoringAnnotationSetttings);
 
-            HashMap<Double, ArrayList<String>> siteDeterminingIonsMap = getSiteDeterminingIons(noModPeptide, possibleProfiles, ptms, spectrumAnnotator, scoringAnnotationSetttings);
+            HashMap<Double, ArrayList<String>> siteDeterminingIonsMap = getSiteDeterminingIons(noModPeptide, possibleProfiles, ptms, scoringAnnotationSetttings);
             ArrayList<Double> siteDeterminingIons = new ArrayList<Double>(siteDeterminingIonsMap.keySet());
+            Collections.sort(siteDeterminingIons);
+            int siteDeterminingIonsIndex = 0;
 
             double minMz = spectrum.getMinMz(), maxMz = spectrum.getMaxMz(), tempMax;
 
@@ -236,62 +240,55 @@ public class PhosphoRS {
 
                     ArrayList<MSnSpectrum> spectra = getReducedSpectra(tempSpectrum);
 
-                    HashMap<String, HashSet<Double>> profileToSiteDeterminingIonsMz = new HashMap<String, HashSet<Double>>(siteDeterminingIons.size());
-                    for (double ionMz : siteDeterminingIons) {
-                        if (ionMz > minMz && ionMz <= tempMax) {
-                            ArrayList<String> profiles = siteDeterminingIonsMap.get(ionMz);
-                            for (String profileKey : profiles) {
-                                HashSet<Double> mzs = profileToSiteDeterminingIonsMz.get(profileKey);
-                                if (mzs == null) {
-                                    mzs = new HashSet<Double>(1);
-                                    profileToSiteDeterminingIonsMz.put(profileKey, mzs);
-                                }
-                                mzs.add(ionMz);
+                    // the site determining ions are sorted, only the ones in this window are inspected
+                    while (siteDeterminingIonsIndex < siteDeterminingIons.size() && siteDeterminingIons.get(siteDeterminingIonsIndex) <= minMz) {
+                        siteDeterminingIonsIndex++;
+                    }
+                    HashMap<String, HashSet<Double>> profileToSiteDeterminingIonsMz = new HashMap<String, HashSet<Double>>(possibleProfileKeys.size());
+                    for (int i = siteDeterminingIonsIndex; i < siteDeterminingIons.size() && siteDeterminingIons.get(i) <= tempMax; i++) {
+                        double ionMz = siteDeterminingIons.get(i);
+                        ArrayList<String> profiles = siteDeterminingIonsMap.get(ionMz);
+                        for (String profileKey : profiles) {
+                            HashSet<Double> mzs = profileToSiteDeterminingIonsMz.get(profileKey);
+                            if (mzs == null) {
+                                mzs = new HashSet<Double>(1);
+                                profileToSiteDeterminingIonsMz.put(profileKey, mzs);
                             }
+                            mzs.add(ionMz);
                         }
                     }
 
                     if (!profileToSiteDeterminingIonsMz.isEmpty()) {
 
+                        // Only one profile is scored per set of site determining ions in this window, and one for the profiles without
+                        ArrayList<String> profilesToScore = new ArrayList<String>();
+                        HashSet<HashSet<Double>> scored = new HashSet<HashSet<Double>>(profileToSiteDeterminingIonsMz.size());
+                        boolean profileWithNoSiteDeterminingIonsScored = false;
+                        for (String profileKey : possibleProfileKeys) {
+                            HashSet<Double> tempSiteDeterminingIons = profileToSiteDeterminingIonsMz.get(profileKey);
+                            if (tempSiteDeterminingIons == null) {
+                                if (!profileWithNoSiteDeterminingIonsScored) {
+                                    profileWithNoSiteDeterminingIonsScored = true;
+                                    profilesToScore.add(profileKey);
+                                }
+                            } else if (scored.add(tempSiteDeterminingIons)) {
+                                profilesToScore.add(profileKey);
+                            }
+                        }
+
                         ArrayList<ArrayList<Double>> deltas = new ArrayList<ArrayList<Double>>(spectra.size());
                         int nDeltas = 0;
 
                         for (MSnSpectrum currentSpectrum : spectra) {
-                            ArrayList<Double> bigPs = new ArrayList<Double>(possibleProfileKeys.size());
-                            ArrayList<Double> currentDeltas = new ArrayList<Double>(possibleProfileKeys.size());
-                            ArrayList<HashSet<Double>> scored = new ArrayList<HashSet<Double>>(possibleProfileKeys.size());
-                            boolean profileWithNoSiteDeterminingIonsScored = false;
+                            ArrayList<Double> bigPs = new ArrayList<Double>(profilesToScore.size());
+                            ArrayList<Double> currentDeltas = new ArrayList<Double>(profilesToScore.size());
                             double currentP = getp(currentSpectrum, WINDOW_SIZE, d, nDecimals);
-                            for (String profileKey : possibleProfileKeys) {
-                                HashSet<Double> tempSiteDeterminingIons = profileToSiteDeterminingIonsMz.get(profileKey);
-                                if (tempSiteDeterminingIons == null) {
-                                    if (!profileWithNoSiteDeterminingIonsScored) {
-                                        profileWithNoSiteDeterminingIonsScored = true;
-                                        Peptide tempPeptide = profileToPeptide.get(profileKey);
-                                        HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> possibleFragmentIons = profileToPossibleFragments.get(profileKey);
-                                        Integer n = profileToN.get(profileKey);
-                                        Double bigP = getPhosphoRsScoreP(tempPeptide, possibleFragmentIons, currentSpectrum, currentP, n, spectrumAnnotator, annotationSettings, scoringAnnotationSetttings);
-                                        BasicMathFunctions.checkProbabilityRange(bigP);
-                                        bigPs.add(bigP);
-                                    }
-                                } else {
-                                    boolean alreadyScored = false;
-                                    for (HashSet<Double> scoredIons : scored) {
-                                        if (Util.sameSets(tempSiteDeterminingIons, scoredIons)) {
-                                            alreadyScored = true;
-                                            break;
-                                        }
-                                    }
-                                    if (!alreadyScored) {
-                                        Peptide tempPeptide = profileToPeptide.get(profileKey);
-                                        Integer n = profileToN.get(profileKey);
-                                        HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> possibleFragmentIons = profileToPossibleFragments.get(profileKey);
-                                        Double bigP = getPhosphoRsScoreP(tempPeptide, possibleFragmentIons, currentSpectrum, currentP, n, spectrumAnnotator, annotationSettings, scoringAnnotationSetttings);
-                                        BasicMathFunctions.checkProbabilityRange(bigP);
-                                        bigPs.add(bigP);
-                                        scored.add(tempSiteDeterminingIons);
-                                    }
-                                }
+                            SpectrumIndex spectrumIndex = SiteScoringIons.getSpectrumIndex(currentSpectrum, annotationSettings, scoringAnnotationSetttings);
+                            for (String profileKey : profilesToScore) {
+                                Integer n = profileToN.get(profileKey);
+                                Double bigP = getPhosphoRsScoreP(profileToScoringIons.get(profileKey), spectrumIndex, currentP, n);
+                                BasicMathFunctions.checkProbabilityRange(bigP);
+                                bigPs.add(bigP);
                             }
                             Collections.sort(bigPs);
                             for (int j = 0; j < bigPs.size() - 1; j++) {
@@ -333,17 +330,13 @@ public class PhosphoRS {
                         Double bestP = 0.0;
                         int bestI = 0;
 
-                        HashMap<Integer, ArrayList<Ion>> expectedFragmentIons = spectrumAnnotator.getExpectedIons(scoringAnnotationSetttings, peptide);
-                        int nExpectedFragmentIons = 0;
-                        for (ArrayList<Ion> expectedIons : expectedFragmentIons.values()) {
-                            nExpectedFragmentIons += expectedIons.size();
-                        }
-                        IonFactory fragmentFactory = IonFactory.getInstance();
-                        HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> possibleFragmentIons = fragmentFactory.getFragmentIons(peptide, scoringAnnotationSetttings);
+                        SiteScoringIons scoringIons = new SiteScoringIons(peptide, scoringAnnotationSetttings);
+                        int nExpectedFragmentIons = getNExpectedIons(scoringIons, scoringAnnotationSetttings);
                         for (int i = 0; i < spectra.size(); i++) {
                             MSnSpectrum currentSpectrum = spectra.get(i);
                             double currentP = getp(currentSpectrum, WINDOW_SIZE, d, nDecimals);
-                            Double bigP = getPhosphoRsScoreP(peptide, possibleFragmentIons, currentSpectrum, currentP, nExpectedFragmentIons, spectrumAnnotator, annotationSettings, scoringAnnotationSetttings);
+                            SpectrumIndex spectrumIndex = SiteScoringIons.getSpectrumIndex(currentSpectrum, annotationSettings, scoringAnnotationSetttings);
+                            Double bigP = getPhosphoRsScoreP(scoringIons, spectrumIndex, currentP, nExpectedFragmentIons);
                             BasicMathFunctions.checkProbabilityRange(bigP);
                             if (bigP < bestP) {
                                 bestP = bigP;
@@ -371,12 +364,11 @@ public class PhosphoRS {
             double currentP = getp(phosphoRsSpectrum, w, d, nDecimals);
             HashMap<String, Double> pInvMap = new HashMap<String, Double>(possibleProfileKeys.size());
             Double pInvTotal = 0.0;
+            SpectrumIndex spectrumIndex = SiteScoringIons.getSpectrumIndex(phosphoRsSpectrum, annotationSettings, scoringAnnotationSetttings);
 
             for (String profileKey : possibleProfileKeys) {
-                Peptide tempPeptide = profileToPeptide.get(profileKey);
                 Integer n = profileToN.get(profileKey);
-                HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> possibleFragmentIons = profileToPossibleFragments.get(profileKey);
-                Double bigP = getPhosphoRsScoreP(tempPeptide, possibleFragmentIons, phosphoRsSpectrum, currentP, n, spectrumAnnotator, annotationSettings, scoringAnnotationSetttings);
+                Double bigP = getPhosphoRsScoreP(profileToScoringIons.get(profileKey), spectrumIndex, currentP, n);
                 BasicMathFunctions.checkProbabilityRange(bigP);
                 Double pInv = 1.0 / bigP;
                 pInvMap.put(profileKey, pInv);
@@ -429,23 +421,18 @@ public class PhosphoRS {
      * Returns the PhosphoRS score of the given peptide on the given spectrum.
      * This method returns P and not -10.log(P).
      *
-     * @param peptide the peptide of interest
-     * @param spectrum the spectrum of interest
+     * @param scoringIons the expected ions of the peptide of interest
+     * @param spectrumIndex the index of the spectrum of interest
      * @param p the probability for a calculated fragment matching one of the
      * experimental masses by chance as estimated by PhosphoRS
      * @param n the number of expected ions
-     * @param spectrumAnnotator spectrum annotator
-     * @param annotationSettings the global annotation settings
-     * @param scoringAnnotationSettings the annotation settings specific to this
-     * peptide and spectrum
      *
      * @return the phosphoRS score
      */
-    private static Double getPhosphoRsScoreP(Peptide peptide, HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> possiblePeptideFragments, MSnSpectrum spectrum, double p, int n, PeptideSpectrumAnnotator spectrumAnnotator,
-            AnnotationSettings annotationSettings, SpecificAnnotationSettings scoringAnnotationSettings) throws MathException {
+    private static Double getPhosphoRsScoreP(SiteScoringIons scoringIons, SpectrumIndex spectrumIndex, double p, int n) throws MathException {
 
         BinomialDistribution distribution = null;
-        HashMap<Integer, BinomialDistribution> distributionsAtP = distributionCache.get(p);
+        ConcurrentHashMap<Integer, BinomialDistribution> distributionsAtP = distributionCache.get(p);
         boolean inCache = true;
         if (distributionsAtP != null) {
             distribution = distributionsAtP.get(n);
@@ -455,13 +442,8 @@ public class PhosphoRS {
             inCache = false;
         }
 
-        ArrayList<IonMatch> matches = spectrumAnnotator.getSpectrumAnnotation(annotationSettings, scoringAnnotationSettings, spectrum, peptide, possiblePeptideFragments);
-        int k = 0;
-        for (IonMatch ionMatch : matches) {
-            if (ionMatch.ion.getType() == Ion.IonType.PEPTIDE_FRAGMENT_ION) {
-                k++;
-            }
-        }
+        // the scoring settings only select peptide fragment ions
+        int k = scoringIons.getNMatches(spectrumIndex);
         if (k == 0) {
             return 1.0;
         }
@@ -481,17 +463,16 @@ public class PhosphoRS {
      */
     private static synchronized void addDistributionToCache(double p, int n, BinomialDistribution binomialDistribution) {
         if (distributionCache.size() >= distributionCacheSize) {
-            HashSet<Double> keys = new HashSet<Double>(distributionCache.keySet());
-            for (Double key : keys) {
+            for (Double key : distributionCache.keySet()) {
                 distributionCache.remove(key);
                 if (distributionCache.size() < distributionCacheSize) {
                     break;
                 }
             }
         }
-        HashMap<Integer, BinomialDistribution> distributionsAtP = distributionCache.get(p);
+        ConcurrentHashMap<Integer, BinomialDistribution> distributionsAtP = distributionCache.get(p);
         if (distributionsAtP == null) {
-            distributionsAtP = new HashMap<Integer, BinomialDistribution>(2);
+            distributionsAtP = new ConcurrentHashMap<Integer, BinomialDistribution>(2);
             distributionCache.put(p, distributionsAtP);
         }
         distributionsAtP.put(n, binomialDistribution);
@@ -568,46 +549,57 @@ public class PhosphoRS {
      * Returns a map of the number of possible fragment ions for every peptide
      * indexed by the corresponding profile.
      *
-     * @param possiblePeptides map of the possible peptides for every profile
-     * @param possiblePeptideFragments the possible peptide fragments for every
-     * peptide
-     * @param spectrumAnnotator the spectrum annotator
+     * @param possiblePeptideScoringIons the expected ions of the possible
+     * peptide of every profile
      * @param scoringAnnotationSetttings the spectrum scoring annotation
      * settings
      *
      * @return a map of the number of possible fragment ions for every peptide
      */
-    private static HashMap<String, Integer> getPossiblePeptideToN(HashMap<String, Peptide> possiblePeptides, HashMap<String, HashMap<Integer, HashMap<Integer, ArrayList<Ion>>>> possiblePeptideFragments, PeptideSpectrumAnnotator spectrumAnnotator, SpecificAnnotationSettings scoringAnnotationSetttings) {
-        HashMap<String, Integer> result = new HashMap<String, Integer>(possiblePeptides.size());
-        for (String profileKey : possiblePeptides.keySet()) {
-            Peptide peptide = possiblePeptides.get(profileKey);
-            HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> fragmentsForProfile = possiblePeptideFragments.get(profileKey);
-            HashMap<Integer, ArrayList<Ion>> expectedFragmentIons = spectrumAnnotator.getExpectedIons(scoringAnnotationSetttings, peptide, fragmentsForProfile);
-            int n = 0;
-            for (ArrayList<Ion> ions : expectedFragmentIons.values()) {
-                n += ions.size();
-            }
-            result.put(profileKey, n);
+    private static HashMap<String, Integer> getPossiblePeptideToN(HashMap<String, SiteScoringIons> possiblePeptideScoringIons, SpecificAnnotationSettings scoringAnnotationSetttings) {
+        HashMap<String, Integer> result = new HashMap<String, Integer>(possiblePeptideScoringIons.size());
+        for (String profileKey : possiblePeptideScoringIons.keySet()) {
+            result.put(profileKey, getNExpectedIons(possiblePeptideScoringIons.get(profileKey), scoringAnnotationSetttings));
         }
         return result;
     }
 
     /**
-     * Returns a map of the possible ions for every peptide of every profile.
+     * Returns the number of expected ions of a peptide, every charge counted
+     * separately.
+     *
+     * @param scoringIons the expected ions of the peptide
+     * @param scoringAnnotationSetttings the spectrum scoring annotation
+     * settings
+     *
+     * @return the number of expected ions of the peptide
+     */
+    private static int getNExpectedIons(SiteScoringIons scoringIons, SpecificAnnotationSettings scoringAnnotationSetttings) {
+        HashMap<Integer, ArrayList<Ion>> expectedFragmentIons = SpectrumAnnotator.getExpectedIons(scoringAnnotationSetttings,
+                scoringIons.getFragmentIons().getIons(), scoringAnnotationSetttings.getPrecursorCharge());
+        int n = 0;
+        for (ArrayList<Ion> ions : expectedFragmentIons.values()) {
+            n += ions.size();
+        }
+        return n;
+    }
+
+    /**
+     * Returns a map of the expected ions of the possible peptide of every
+     * profile. The fragment ions are taken from the cache of the IonFactory,
+     * profiles sharing a peptide thus share its fragment ions.
      *
      * @param possiblePeptides map of the possible peptides for every profile
      * @param scoringAnnotationSetttings the spectrum scoring annotation
      * settings
      *
-     * @return a map of the possible ions for every peptide of every profile
+     * @return a map of the expected ions of the possible peptide of every
+     * profile
      */
-    private static HashMap<String, HashMap<Integer, HashMap<Integer, ArrayList<Ion>>>> getPossiblePeptideFragments(HashMap<String, Peptide> possiblePeptides, SpecificAnnotationSettings scoringAnnotationSetttings) {
-        HashMap<String, HashMap<Integer, HashMap<Integer, ArrayList<Ion>>>> result = new HashMap<String, HashMap<Integer, HashMap<Integer, ArrayList<Ion>>>>(possiblePeptides.size());
-        IonFactory fragmentFactory = IonFactory.getInstance();
+    private static HashMap<String, SiteScoringIons> getPossiblePeptideScoringIons(HashMap<String, Peptide> possiblePeptides, SpecificAnnotationSettings scoringAnnotationSetttings) {
+        HashMap<String, SiteScoringIons> result = new HashMap<String, SiteScoringIons>(possiblePeptides.size());
         for (String profileKey : possiblePeptides.keySet()) {
-            Peptide peptide = possiblePeptides.get(profileKey);
-            HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> possibleFragmentIons = fragmentFactory.getFragmentIons(peptide, scoringAnnotationSetttings);
-            result.put(profileKey, possibleFragmentIons);
+            result.put(profileKey, new SiteScoringIons(possiblePeptides.get(profileKey), scoringAnnotationSetttings));
         }
         return result;
     }
@@ -659,19 +651,19 @@ public class PhosphoRS {
      * modification of interest
      * @param possibleProfiles the possible modification profiles to inspect
      * @param ptms the PTMs scored
-     * @param spectrumAnnotator the spectrum annotator used throughout the
-     * scoring
      * @param scoringAnnotationSetttings the annotation settings specific to
      * this peptide and spectrum
      *
      * @return a map of all potential site determining ions indexed by their m/z
      */
-    private static HashMap<Double, ArrayList<String>> getSiteDeterminingIons(Peptide noModPeptide, ArrayList<ArrayList<Integer>> possibleProfiles, ArrayList<PTM> ptms, PeptideSpectrumAnnotator spectrumAnnotator, SpecificAnnotationSettings scoringAnnotationSetttings) {
+    private static HashMap<Double, ArrayList<String>> getSiteDeterminingIons(Peptide noModPeptide, ArrayList<ArrayList<Integer>> possibleProfiles, ArrayList<PTM> ptms, SpecificAnnotationSettings scoringAnnotationSetttings) {
 
         String sequence = noModPeptide.getSequence();
         Peptide peptide = new Peptide(sequence, noModPeptide.getModificationMatches());
         int sequenceLength = sequence.length();
         String representativePTM = ptms.get(0).getName();
+        IonFactory fragmentFactory = IonFactory.getInstance();
+        int precursorCharge = scoringAnnotationSetttings.getPrecursorCharge();
 
         HashMap<Double, ArrayList<String>> siteDeterminingIons = new HashMap<Double, ArrayList<String>>();
         HashMap<Double, ArrayList<String>> commonIons = new HashMap<Double, ArrayList<String>>();
@@ -692,7 +684,8 @@ public class PhosphoRS {
 
             HashSet<Double> mzs = new HashSet<Double>(2);
 
-            for (ArrayList<Ion> ions : spectrumAnnotator.getExpectedIons(scoringAnnotationSetttings, peptide).values()) {
+            HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> fragmentIons = fragmentFactory.getFragmentIons(peptide, scoringAnnotationSetttings);
+            for (ArrayList<Ion> ions : SpectrumAnnotator.getExpectedIons(scoringAnnotationSetttings, fragmentIons, precursorCharge).values()) {
                 for (Ion ion : ions) {
                     if (ion.getType() == Ion.IonType.PEPTIDE_FRAGMENT_ION) {
                         for (int charge : scoringAnnotationSetttings.getSelectedCharges()) {
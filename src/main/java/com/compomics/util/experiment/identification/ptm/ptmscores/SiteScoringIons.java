@@ -0,0 +1,151 @@
+package com.compomics.util.experiment.identification.ptm.ptmscores;
+
+import com.compomics.util.experiment.biology.Ion;
+import com.compomics.util.experiment.biology.IonFactory;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.biology.TheoreticalFragmentIons;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.NeutralLossesMap;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpectrumAnnotator;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import com.compomics.util.experiment.massspectrometry.indexes.SpectrumIndex;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The m/z values of the ions expected for a peptide carrying a given
+ * modification profile, sorted to count the ions matching a spectrum without
+ * annotating it. The number of matches is the number of ion matches returned
+ * by the PeptideSpectrumAnnotator for the same peptide, spectrum and settings.
+ *
+ * The fragment ions are taken from the cache of the IonFactory and are thus
+ * shared between the modification profiles and between threads. Instances are
+ * not modified after creation and can be used from multiple threads.
+ *
+ * @author Marc Vaudel
+ */
+public class SiteScoringIons {
+
+    /**
+     * The theoretic fragment ions of the peptide.
+     */
+    private final TheoreticalFragmentIons fragmentIons;
+    /**
+     * The m/z of every expected ion at every possible charge sorted in
+     * ascending order.
+     */
+    private final double[] mzValues;
+
+    /**
+     * Constructor.
+     *
+     * @param peptide the peptide carrying the modification profile
+     * @param specificAnnotationSettings the annotation settings used for the
+     * scoring
+     */
+    public SiteScoringIons(Peptide peptide, SpecificAnnotationSettings specificAnnotationSettings) {
+        fragmentIons = IonFactory.getInstance().getTheoreticalFragmentIons(peptide, specificAnnotationSettings);
+        mzValues = getExpectedMz(specificAnnotationSettings, fragmentIons);
+    }
+
+    /**
+     * Returns the m/z of the ions expected with the given settings at every
+     * possible charge, sorted in ascending order. The ions and charges are
+     * selected like in PeptideSpectrumAnnotator.getIonMatches.
+     *
+     * @param specificAnnotationSettings the specific annotation settings
+     * @param fragmentIons the theoretic fragment ions of the peptide
+     *
+     * @return the m/z of the expected ions sorted in ascending order
+     */
+    private static double[] getExpectedMz(SpecificAnnotationSettings specificAnnotationSettings, TheoreticalFragmentIons fragmentIons) {
+
+        double[] result = new double[fragmentIons.getNIons() * 4];
+        int nMz = 0;
+
+        int precursorCharge = specificAnnotationSettings.getPrecursorCharge();
+        NeutralLossesMap neutralLossesMap = specificAnnotationSettings.getNeutralLossesMap();
+
+        ArrayList<Integer> precursorCharges = new ArrayList<Integer>(precursorCharge);
+        for (int i = 1; i <= precursorCharge; i++) {
+            precursorCharges.add(i);
+        }
+
+        HashMap<Ion.IonType, HashSet<Integer>> ionTypes = specificAnnotationSettings.getIonTypes();
+        for (Ion.IonType ionType : ionTypes.keySet()) {
+
+            ArrayList<Integer> ionPossibleCharges = (ionType == Ion.IonType.PRECURSOR_ION) ? precursorCharges : specificAnnotationSettings.getSelectedCharges();
+
+            for (int subType : ionTypes.get(ionType)) {
+                ArrayList<Ion> ions = fragmentIons.getIons(ionType.index, subType);
+                if (ions != null) {
+
+                    double[][] ionsMz = new double[ionPossibleCharges.size()][];
+                    for (int j = 0; j < ionsMz.length; j++) {
+                        ionsMz[j] = fragmentIons.getMz(ionType.index, subType, ionPossibleCharges.get(j));
+                    }
+
+                    for (int i = 0; i < ions.size(); i++) {
+                        Ion ion = ions.get(i);
+                        if (SpectrumAnnotator.lossesValidated(neutralLossesMap, ion)) {
+                            for (int j = 0; j < ionsMz.length; j++) {
+                                if (SpectrumAnnotator.chargeValidated(ion, ionPossibleCharges.get(j), precursorCharge)) {
+                                    if (nMz == result.length) {
+                                        result = Arrays.copyOf(result, 2 * nMz + 1);
+                                    }
+                                    result[nMz++] = ionsMz[j][i];
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        result = Arrays.copyOf(result, nMz);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the number of expected ions matching a peak in the given
+     * spectrum index.
+     *
+     * @param spectrumIndex the index of the spectrum, built with the tolerance
+     * of the scoring annotation settings
+     *
+     * @return the number of expected ions matching a peak
+     */
+    public int getNMatches(SpectrumIndex spectrumIndex) {
+        return spectrumIndex.getNMatches(mzValues);
+    }
+
+    /**
+     * Returns the theoretic fragment ions of the peptide. The ions must not be
+     * modified.
+     *
+     * @return the theoretic fragment ions of the peptide
+     */
+    public TheoreticalFragmentIons getFragmentIons() {
+        return fragmentIons;
+    }
+
+    /**
+     * Returns the index of the given spectrum used to annotate it with the
+     * given settings. The index is stored in the spectrum and shared by all
+     * the modification profiles scored on this spectrum.
+     *
+     * @param spectrum the spectrum
+     * @param annotationSettings the annotation settings
+     * @param specificAnnotationSettings the specific annotation settings
+     *
+     * @return the index of the spectrum
+     */
+    public static SpectrumIndex getSpectrumIndex(MSnSpectrum spectrum, AnnotationSettings annotationSettings, SpecificAnnotationSettings specificAnnotationSettings) {
+        double intensityLimit = spectrum.getIntensityLimit(annotationSettings.getAnnotationIntensityLimit());
+        return spectrum.getSpectrumIndex(intensityLimit, specificAnnotationSettings.getFragmentIonAccuracy(), specificAnnotationSettings.isFragmentIonPpm());
+    }
+}
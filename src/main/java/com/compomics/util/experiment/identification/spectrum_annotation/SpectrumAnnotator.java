@@ -25,6 +25,7 @@ import com.compomics.util.preferences.SequenceMatchingPreferences;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Vector;
@@ -153,19 +154,36 @@ public abstract class SpectrumAnnotator {
      * @return the IonMatch between the ion and the peak
      */
     protected IonMatch matchInSpectrum(Ion theoreticIon, Integer inspectedCharge) {
+        return matchInSpectrum(theoreticIon, inspectedCharge, theoreticIon.getTheoreticMz(inspectedCharge), spectrumIndex, tiesResolution, isPpm);
+    }
 
-        double fragmentMz = theoreticIon.getTheoreticMz(inspectedCharge);
+    /**
+     * Matches a theoretic ion in the spectrum index. Returns an IonMatch
+     * containing the ion and the peak. Null if not found.
+     *
+     * @param theoreticIon the theoretic ion
+     * @param inspectedCharge the expected charge
+     * @param fragmentMz the theoretic m/z of the ion at the expected charge
+     * @param spectrumIndex the index of the spectrum
+     * @param tiesResolution the method used to resolve ties
+     * @param isPpm a boolean indicating whether the mass tolerance is in ppm
+     * or in Da
+     *
+     * @return the IonMatch between the ion and the peak
+     */
+    protected static IonMatch matchInSpectrum(Ion theoreticIon, int inspectedCharge, double fragmentMz, SpectrumIndex spectrumIndex, TiesResolution tiesResolution, boolean isPpm) {
 
         // Get the peaks matching the desired m/z
-        ArrayList<Peak> matchedPeaks = spectrumIndex.getMatchingPeaks(fragmentMz);
+        int start = spectrumIndex.getMatchingPeaksStart(fragmentMz);
+        int end = spectrumIndex.getMatchingPeaksEnd(fragmentMz);
 
-        if (matchedPeaks.isEmpty()) {
+        if (start == end) {
             return null;
         }
 
         // Select the most accurate or most intense according to the annotation settings
         IonMatch ionMatch = new IonMatch(null, theoreticIon, inspectedCharge);
-        ionMatch.peak = (matchedPeaks.size() == 1) ? matchedPeaks.get(0) : getBestPeak(matchedPeaks, ionMatch);
+        ionMatch.peak = (end - start == 1) ? spectrumIndex.getPeak(start) : getBestPeak(spectrumIndex.getMatchingPeaks(fragmentMz), ionMatch, tiesResolution, isPpm);
         return ionMatch;
     }
 
@@ -179,6 +197,22 @@ public abstract class SpectrumAnnotator {
      * @return the peak to retain
      */
     protected Peak getBestPeak(ArrayList<Peak> matchedPeaks, IonMatch ionMatch) {
+        return getBestPeak(matchedPeaks, ionMatch, tiesResolution, isPpm);
+    }
+
+    /**
+     * Returns the peak to retain of the matched peaks according to the given
+     * ties resolution method.
+     *
+     * @param matchedPeaks the peaks matched
+     * @param ionMatch an ion match with the ion to be matched
+     * @param tiesResolution the method used to resolve ties
+     * @param isPpm a boolean indicating whether the mass tolerance is in ppm
+     * or in Da
+     *
+     * @return the peak to retain
+     */
+    protected static Peak getBestPeak(ArrayList<Peak> matchedPeaks, IonMatch ionMatch, TiesResolution tiesResolution, boolean isPpm) {
         Peak bestPeak = null;
         switch (tiesResolution) {
             case mostAccurateMz:
@@ -233,13 +267,8 @@ public abstract class SpectrumAnnotator {
             spectrumKey = spectrum.getSpectrumKey();
             this.intensityLimit = intensityLimit;
 
-            // See whether the index was previously stored
-            spectrumIndex = new SpectrumIndex();
-            spectrumIndex = (SpectrumIndex) spectrum.getUrParam(spectrumIndex);
-
-            // Create new index
-            spectrumIndex = new SpectrumIndex(spectrum.getPeakMap(), intensityLimit, mzTolerance, isPpm);
-            spectrum.addUrParam(spectrumIndex);
+            // Get the index of the spectrum, created if not previously stored
+            spectrumIndex = spectrum.getSpectrumIndex(intensityLimit, mzTolerance, isPpm);
         }
     }
 
@@ -274,7 +303,7 @@ public abstract class SpectrumAnnotator {
      *
      * @return boolean indicating whether the neutral loss should be considered
      */
-    public boolean isAccounted(NeutralLossesMap neutralLosses, NeutralLoss neutralLoss, Ion ion) {
+    public static boolean isAccounted(NeutralLossesMap neutralLosses, NeutralLoss neutralLoss, Ion ion) {
 
         if (neutralLosses == null || neutralLosses.isEmpty()) {
             return false;
@@ -332,7 +361,7 @@ public abstract class SpectrumAnnotator {
      * @return a boolean indicating whether the neutral losses of the given
      * fragment ion are fit the requirement of the given neutral losses map
      */
-    public boolean lossesValidated(NeutralLossesMap neutralLosses, Ion theoreticIon) {
+    public static boolean lossesValidated(NeutralLossesMap neutralLosses, Ion theoreticIon) {
         if (theoreticIon.hasNeutralLosses()) {
             for (NeutralLoss neutralLoss : theoreticIon.getNeutralLosses()) {
                 if (!isAccounted(neutralLosses, neutralLoss, theoreticIon)) {
@@ -354,7 +383,7 @@ public abstract class SpectrumAnnotator {
      * @return a boolean indicating whether the given charge can be found on the
      * given fragment ion
      */
-    public boolean chargeValidated(Ion theoreticIon, int charge, int precursorCharge) {
+    public static boolean chargeValidated(Ion theoreticIon, int charge, int precursorCharge) {
         if (charge == 1) {
             return true;
         }
@@ -639,6 +668,24 @@ public abstract class SpectrumAnnotator {
      * given settings
      */
     protected HashMap<Integer, ArrayList<Ion>> getExpectedIons(SpecificAnnotationSettings specificAnnotationSettings) {
+        return getExpectedIons(specificAnnotationSettings, theoreticalFragmentIons, precursorCharge);
+    }
+
+    /**
+     * Returns the expected ions in a map indexed by the possible charges.
+     *
+     * Note that, except for +1 precursors, fragments ions will be expected to
+     * have a charge strictly smaller than the precursor ion charge.
+     *
+     * @param specificAnnotationSettings the specific annotation settings
+     * @param theoreticalFragmentIons the theoretic fragment ions
+     * @param precursorCharge the precursor charge
+     *
+     * @return an ArrayList of IonMatch containing the ion matches with the
+     * given settings
+     */
+    public static HashMap<Integer, ArrayList<Ion>> getExpectedIons(SpecificAnnotationSettings specificAnnotationSettings,
+            HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> theoreticalFragmentIons, int precursorCharge) {
 
         HashMap<Integer, ArrayList<Ion>> result = new HashMap<Integer, ArrayList<Ion>>();
 
@@ -689,9 +736,16 @@ public abstract class SpectrumAnnotator {
     public static ArrayList<IonMatch> matchReporterIon(Ion theoreticIon, int charge, Spectrum spectrum, double massTolerance) throws InterruptedException {
         ArrayList<IonMatch> result = new ArrayList<IonMatch>(1);
         double targetMass = theoreticIon.getTheoreticMz(charge);
-        for (double mz : spectrum.getOrderedMzValues()) {
+        double[] mzValues = spectrum.getMzValues();
+        double[] intensityValues = spectrum.getIntensityValues();
+        int start = Arrays.binarySearch(mzValues, targetMass - massTolerance);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        for (int i = start; i < mzValues.length; i++) {
+            double mz = mzValues[i];
             if (Math.abs(mz - targetMass) <= massTolerance) {
-                result.add(new IonMatch(spectrum.getPeakMap().get(mz), theoreticIon, charge));
+                result.add(new IonMatch(new Peak(mz, intensityValues[i]), theoreticIon, charge));
             }
             if (mz > targetMass + massTolerance) {
                 break;
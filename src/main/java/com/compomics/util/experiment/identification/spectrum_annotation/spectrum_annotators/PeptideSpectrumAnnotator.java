@@ -6,6 +6,7 @@ import com.compomics.util.experiment.biology.NeutralLoss;
 import com.compomics.util.experiment.biology.PTM;
 import com.compomics.util.experiment.biology.PTMFactory;
 import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.biology.TheoreticalFragmentIons;
 import com.compomics.util.experiment.biology.ions.PeptideFragmentIon;
 import com.compomics.util.experiment.identification.spectrum_annotation.NeutralLossesMap;
 import com.compomics.util.experiment.identification.spectrum_annotation.SpectrumAnnotator;
@@ -13,6 +14,7 @@ import com.compomics.util.experiment.identification.matches.IonMatch;
 import com.compomics.util.experiment.identification.matches.ModificationMatch;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.Peak;
+import com.compomics.util.experiment.massspectrometry.indexes.SpectrumIndex;
 import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
@@ -25,7 +27,8 @@ import java.util.HashSet;
 
 /**
  * Annotates a spectrum with peptide fragments. Warning: not multi-thread safe,
- * use different annotators for each thread.
+ * use different annotators for each thread, or the static getIonMatches
+ * methods which do not use the state of an annotator.
  *
  * @author Marc Vaudel
  */
@@ -35,6 +38,17 @@ public class PeptideSpectrumAnnotator extends SpectrumAnnotator {
      * The theoretic peptide to match.
      */
     private Peptide peptide;
+    /**
+     * The annotation settings used to get the theoretic fragment ions of the
+     * peptide.
+     */
+    private SpecificAnnotationSettings fragmentIonsSettings;
+    /**
+     * Indicates whether the theoretic fragment ions are shared through the
+     * fragment ion cache of the factory, in which case they must not be
+     * modified.
+     */
+    private boolean sharedFragmentIons = false;
 
     /**
      * Constructor.
@@ -76,10 +90,16 @@ public class PeptideSpectrumAnnotator extends SpectrumAnnotator {
             // Set new values
             this.peptide = peptide;
             this.precursorCharge = precursorCharge;
-            if (possibleFragmentIons == null) {
+            fragmentIonsSettings = specificAnnotationSettings;
+            if (possibleFragmentIons != null) {
+                theoreticalFragmentIons = possibleFragmentIons;
+                sharedFragmentIons = false;
+            } else if (massShift != 0 || massShiftNTerm != 0 || massShiftCTerm != 0) {
                 theoreticalFragmentIons = fragmentFactory.getFragmentIons(peptide, specificAnnotationSettings);
+                sharedFragmentIons = false;
             } else {
-                theoreticalFragmentIons = possibleFragmentIons;
+                theoreticalFragmentIons = fragmentFactory.getTheoreticalFragmentIons(peptide, specificAnnotationSettings).getIons();
+                sharedFragmentIons = true;
             }
             if (massShift != 0 || massShiftNTerm != 0 || massShiftCTerm != 0) {
                 updateMassShifts();
@@ -87,6 +107,16 @@ public class PeptideSpectrumAnnotator extends SpectrumAnnotator {
         }
     }
 
+    @Override
+    protected void updateMassShifts() {
+        if (sharedFragmentIons) {
+            // The cached ions are shared, shift a copy
+            theoreticalFragmentIons = fragmentFactory.getFragmentIons(peptide, fragmentIonsSettings);
+            sharedFragmentIons = false;
+        }
+        super.updateMassShifts();
+    }
+
     /**
      * This method matches the potential fragment ions of a given peptide with a
      * given peak according to the annotation settings.
@@ -186,6 +216,99 @@ public class PeptideSpectrumAnnotator extends SpectrumAnnotator {
         return result;
     }
 
+    /**
+     * Returns the spectrum annotations of a spectrum in a list of IonMatches.
+     * Contrary to getSpectrumAnnotation, this method neither uses nor changes
+     * the state of an annotator and can be called from multiple threads: the
+     * fragment ions are taken from the cache of the IonFactory and the index
+     * from the spectrum. Mass shifts are not applied.
+     *
+     * Note that, except for +1 precursors, fragments ions will be expected to
+     * have a charge strictly smaller than the precursor ion charge.
+     *
+     * @param annotationSettings the annotation settings
+     * @param specificAnnotationSettings the specific annotation settings
+     * @param spectrum the spectrum to match
+     * @param peptide the peptide of interest
+     *
+     * @return an ArrayList of IonMatch containing the ion matches with the
+     * given settings
+     */
+    public static ArrayList<IonMatch> getIonMatches(AnnotationSettings annotationSettings,
+            SpecificAnnotationSettings specificAnnotationSettings, MSnSpectrum spectrum, Peptide peptide) {
+        double intensityLimit = spectrum.getIntensityLimit(annotationSettings.getAnnotationIntensityLimit());
+        SpectrumIndex spectrumIndex = spectrum.getSpectrumIndex(intensityLimit, specificAnnotationSettings.getFragmentIonAccuracy(), specificAnnotationSettings.isFragmentIonPpm());
+        TheoreticalFragmentIons fragmentIons = IonFactory.getInstance().getTheoreticalFragmentIons(peptide, specificAnnotationSettings);
+        return getIonMatches(specificAnnotationSettings, annotationSettings.getTiesResolution(), spectrumIndex, fragmentIons);
+    }
+
+    /**
+     * Returns the matches of the given fragment ions in the given spectrum
+     * index. This method does not use the state of an annotator and can be
+     * called from multiple threads.
+     *
+     * Note that, except for +1 precursors, fragments ions will be expected to
+     * have a charge strictly smaller than the precursor ion charge.
+     *
+     * @param specificAnnotationSettings the specific annotation settings
+     * @param tiesResolution the method used to resolve ties
+     * @param spectrumIndex the index of the spectrum to match, built with the
+     * tolerance of the specific annotation settings
+     * @param fragmentIons the theoretic fragment ions of the peptide
+     *
+     * @return an ArrayList of IonMatch containing the ion matches with the
+     * given settings
+     */
+    public static ArrayList<IonMatch> getIonMatches(SpecificAnnotationSettings specificAnnotationSettings, TiesResolution tiesResolution,
+            SpectrumIndex spectrumIndex, TheoreticalFragmentIons fragmentIons) {
+
+        ArrayList<IonMatch> result = new ArrayList<IonMatch>();
+
+        int precursorCharge = specificAnnotationSettings.getPrecursorCharge();
+        boolean isPpm = specificAnnotationSettings.isFragmentIonPpm();
+        NeutralLossesMap neutralLossesMap = specificAnnotationSettings.getNeutralLossesMap();
+
+        // possible charges for the precursor
+        ArrayList<Integer> precursorCharges = new ArrayList<Integer>(precursorCharge);
+        for (int i = 1; i <= precursorCharge; i++) {
+            precursorCharges.add(i);
+        }
+
+        HashMap<Ion.IonType, HashSet<Integer>> ionTypes = specificAnnotationSettings.getIonTypes();
+        for (Ion.IonType ionType : ionTypes.keySet()) {
+
+            ArrayList<Integer> ionPossibleCharges = (ionType == Ion.IonType.PRECURSOR_ION) ? precursorCharges : specificAnnotationSettings.getSelectedCharges();
+
+            for (int subType : ionTypes.get(ionType)) {
+                ArrayList<Ion> ions = fragmentIons.getIons(ionType.index, subType);
+                if (ions != null) {
+
+                    double[][] ionsMz = new double[ionPossibleCharges.size()][];
+                    for (int j = 0; j < ionsMz.length; j++) {
+                        ionsMz[j] = fragmentIons.getMz(ionType.index, subType, ionPossibleCharges.get(j));
+                    }
+
+                    for (int i = 0; i < ions.size(); i++) {
+                        Ion ion = ions.get(i);
+                        if (lossesValidated(neutralLossesMap, ion)) {
+                            for (int j = 0; j < ionsMz.length; j++) {
+                                int charge = ionPossibleCharges.get(j);
+                                if (chargeValidated(ion, charge, precursorCharge)) {
+                                    IonMatch ionMatch = matchInSpectrum(ion, charge, ionsMz[j][i], spectrumIndex, tiesResolution, isPpm);
+                                    if (ionMatch != null) {
+                                        result.add(ionMatch);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
     /**
      * Returns the ion matches corresponding to fragment ions indexed by amino
      * acid number in the sequence. 1 is first amino acid.
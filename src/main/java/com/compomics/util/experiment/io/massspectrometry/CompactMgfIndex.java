@@ -0,0 +1,525 @@
+package com.compomics.util.experiment.io.massspectrometry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * An mgf index storing the spectrum information in primitive arrays. Titles
+ * are kept in file order together with a sorted dictionary used for lookups.
+ * The index can be written to and read from a versioned binary file where
+ * every column is stored contiguously.
+ *
+ * @author Marc Vaudel
+ */
+public class CompactMgfIndex extends MgfIndex {
+
+    /**
+     * The magic number at the start of the binary files.
+     */
+    public static final int MAGIC = 0x4D474649;
+    /**
+     * The version of the binary format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The encoding used for strings.
+     */
+    private static final String ENCODING = "UTF-8";
+    /**
+     * The spectrum titles in file order.
+     */
+    private final String[] titles;
+    /**
+     * The offset in the file of the spectrum of every title.
+     */
+    private final long[] offsets;
+    /**
+     * The number of the spectrum of every title, 0 for the first spectrum.
+     */
+    private final int[] spectrumNumbers;
+    /**
+     * The precursor m/z of every spectrum, NaN if not found.
+     */
+    private final double[] precursorMzs;
+    /**
+     * The precursor retention time of every spectrum in seconds, NaN if not
+     * found.
+     */
+    private final float[] precursorRts;
+    /**
+     * The indexes of the titles sorted by title.
+     */
+    private final int[] sortedTitles;
+
+    /**
+     * Constructor converting an mgf index.
+     *
+     * @param mgfIndex the mgf index to convert
+     */
+    public CompactMgfIndex(MgfIndex mgfIndex) {
+        this(mgfIndex, null);
+    }
+
+    /**
+     * Constructor converting an mgf index.
+     *
+     * @param mgfIndex the mgf index to convert
+     * @param precursorRtMap the precursor retention times indexed by spectrum
+     * number, can be null
+     */
+    public CompactMgfIndex(MgfIndex mgfIndex, HashMap<Integer, Double> precursorRtMap) {
+        super(null, mgfIndex.getDuplicatedSpectrumTitles(), null, null, null, mgfIndex.getFileName(), 0, 0, 0, 0, 0, 0, true, false,
+                0, mgfIndex.getNSpectra());
+        setSummary(mgfIndex.getMinRT(), mgfIndex.getMaxRT(), mgfIndex.getMaxMz(), mgfIndex.getMaxIntensity(), mgfIndex.getMaxCharge(),
+                mgfIndex.getMaxPeakCount(), mgfIndex.isPeakPicked(), mgfIndex.isPrecursorChargesMissing(), mgfIndex.getLastModified());
+        ArrayList<String> titlesList = mgfIndex.getSpectrumTitles();
+        int nTitles = titlesList.size();
+        titles = titlesList.toArray(new String[nTitles]);
+        offsets = new long[nTitles];
+        spectrumNumbers = new int[nTitles];
+        for (int i = 0; i < nTitles; i++) {
+            offsets[i] = mgfIndex.getIndex(titles[i]);
+            Integer spectrumNumber = mgfIndex.getSpectrumIndex(titles[i]);
+            spectrumNumbers[i] = spectrumNumber == null ? -1 : spectrumNumber;
+        }
+        int nSpectra = mgfIndex.getNSpectra();
+        precursorMzs = new double[nSpectra];
+        precursorRts = new float[nSpectra];
+        for (int i = 0; i < nSpectra; i++) {
+            Double mz = mgfIndex.getPrecursorMz(i);
+            precursorMzs[i] = mz == null ? Double.NaN : mz;
+            Double rt = precursorRtMap == null ? null : precursorRtMap.get(i);
+            precursorRts[i] = rt == null ? Float.NaN : rt.floatValue();
+        }
+        sortedTitles = sortTitles(titles);
+    }
+
+    /**
+     * Constructor used when reading an index.
+     *
+     * @param fileName the name of the indexed file
+     * @param duplicatedSpectrumTitles the duplicated titles
+     * @param spectrumCount the number of spectra
+     * @param titles the titles in file order
+     * @param offsets the offsets of the titles
+     * @param spectrumNumbers the spectrum numbers of the titles
+     * @param precursorMzs the precursor m/z of the spectra
+     * @param precursorRts the precursor retention times of the spectra
+     * @param sortedTitles the indexes of the titles sorted by title
+     */
+    private CompactMgfIndex(String fileName, HashMap<String, Integer> duplicatedSpectrumTitles, int spectrumCount, String[] titles, long[] offsets,
+            int[] spectrumNumbers, double[] precursorMzs, float[] precursorRts, int[] sortedTitles) {
+        super(null, duplicatedSpectrumTitles, null, null, null, fileName, 0, 0, 0, 0, 0, 0, true, false, 0, spectrumCount);
+        this.titles = titles;
+        this.offsets = offsets;
+        this.spectrumNumbers = spectrumNumbers;
+        this.precursorMzs = precursorMzs;
+        this.precursorRts = precursorRts;
+        this.sortedTitles = sortedTitles;
+    }
+
+    /**
+     * Sets the summary statistics of the file.
+     *
+     * @param minRT the minimum retention time
+     * @param maxRT the maximum retention time
+     * @param maxMz the maximum m/z value
+     * @param maxIntensity the maximum precursor intensity
+     * @param maxCharge the maximum precursor charge
+     * @param maxPeakCount the maximum peak count
+     * @param peakPicked indicates if the spectra seem to be peak picked
+     * @param precursorChargesMissing indicates if at least one spectrum is
+     * missing the precursor charge tag
+     * @param lastModified the last time the indexed file was modified
+     */
+    private void setSummary(Double minRT, Double maxRT, Double maxMz, Double maxIntensity, Integer maxCharge, Integer maxPeakCount,
+            Boolean peakPicked, Boolean precursorChargesMissing, Long lastModified) {
+        setMinRT(minRT);
+        setMaxRT(maxRT);
+        setMaxMz(maxMz);
+        setMaxIntensity(maxIntensity);
+        setMaxCharge(maxCharge);
+        setMaxPeakCount(maxPeakCount);
+        setPeakPicked(peakPicked);
+        setPrecursorChargesMissing(precursorChargesMissing);
+        setLastModified(lastModified);
+    }
+
+    /**
+     * Returns the indexes of the given titles sorted by title.
+     *
+     * @param titles the titles
+     *
+     * @return the indexes of the titles sorted by title
+     */
+    private static int[] sortTitles(final String[] titles) {
+        ArrayList<Integer> order = new ArrayList<Integer>(titles.length);
+        for (int i = 0; i < titles.length; i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return titles[o1].compareTo(titles[o2]);
+            }
+        });
+        int[] result = new int[titles.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = order.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the position of the given title in the file order, -1 if not
+     * found.
+     *
+     * @param spectrumTitle the spectrum title
+     *
+     * @return the position of the given title
+     */
+    private int getTitlePosition(String spectrumTitle) {
+        if (spectrumTitle == null) {
+            return -1;
+        }
+        int low = 0, high = sortedTitles.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int position = sortedTitles[middle];
+            int comparison = titles[position].compareTo(spectrumTitle);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Long getIndex(String spectrumTitle) {
+        int position = getTitlePosition(spectrumTitle);
+        return position == -1 ? null : offsets[position];
+    }
+
+    @Override
+    public Integer getSpectrumIndex(String spectrumTitle) {
+        int position = getTitlePosition(spectrumTitle);
+        return position == -1 ? -1 : spectrumNumbers[position];
+    }
+
+    @Override
+    public Double getPrecursorMz(int spectrumIndex) {
+        if (spectrumIndex < 0 || spectrumIndex >= precursorMzs.length || Double.isNaN(precursorMzs[spectrumIndex])) {
+            return null;
+        }
+        return precursorMzs[spectrumIndex];
+    }
+
+    @Override
+    public Double getPrecursorRt(int spectrumIndex) {
+        if (spectrumIndex < 0 || spectrumIndex >= precursorRts.length || Float.isNaN(precursorRts[spectrumIndex])) {
+            return null;
+        }
+        return (double) precursorRts[spectrumIndex];
+    }
+
+    @Override
+    public String getSpectrumTitle(int number) {
+        return titles[number];
+    }
+
+    @Override
+    public boolean containsSpectrum(String spectrumTitle) {
+        return getTitlePosition(spectrumTitle) != -1;
+    }
+
+    /**
+     * Returns an ordered list of all spectrum titles. The list is created upon
+     * every call.
+     *
+     * @return an ordered list of all spectrum titles
+     */
+    @Override
+    public ArrayList<String> getSpectrumTitles() {
+        return new ArrayList<String>(Arrays.asList(titles));
+    }
+
+    /**
+     * Writes the index to the given file.
+     *
+     * @param file the destination file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            writeString(dos, getFileName());
+            Long lastModified = getLastModified();
+            dos.writeLong(lastModified == null ? Long.MIN_VALUE : lastModified);
+            writeDouble(dos, getMinRT());
+            writeDouble(dos, getMaxRT());
+            writeDouble(dos, getMaxMz());
+            writeDouble(dos, getMaxIntensity());
+            writeInteger(dos, getMaxCharge());
+            writeInteger(dos, getMaxPeakCount());
+            writeBoolean(dos, isPeakPicked());
+            writeBoolean(dos, isPrecursorChargesMissing());
+            dos.writeInt(precursorMzs.length);
+            dos.writeInt(titles.length);
+            for (long offset : offsets) {
+                dos.writeLong(offset);
+            }
+            for (double mz : precursorMzs) {
+                dos.writeDouble(mz);
+            }
+            for (int spectrumNumber : spectrumNumbers) {
+                dos.writeInt(spectrumNumber);
+            }
+            for (int position : sortedTitles) {
+                dos.writeInt(position);
+            }
+            for (float rt : precursorRts) {
+                dos.writeFloat(rt);
+            }
+            for (String title : titles) {
+                writeString(dos, title);
+            }
+            HashMap<String, Integer> duplicatedTitles = getDuplicatedSpectrumTitles();
+            if (duplicatedTitles == null) {
+                dos.writeInt(-1);
+            } else {
+                dos.writeInt(duplicatedTitles.size());
+                for (String title : duplicatedTitles.keySet()) {
+                    writeString(dos, title);
+                    dos.writeInt(duplicatedTitles.get(title));
+                }
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Indicates whether the given file is a binary index file.
+     *
+     * @param file the file
+     *
+     * @return a boolean indicating whether the given file is a binary index
+     * file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public static boolean isCompactIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.length() >= 8 && raf.readInt() == MAGIC;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads an index from a binary index file. The file is memory mapped and
+     * the columns are copied in bulk to the arrays of the index.
+     *
+     * @param file the binary index file
+     *
+     * @return the index
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file or if the file is not a binary index of a supported
+     * version
+     */
+    public static CompactMgfIndex read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a binary mgf index.");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Version " + version + " of the mgf index " + file.getName() + " not supported.");
+            }
+            String fileName = readString(buffer);
+            long lastModified = buffer.getLong();
+            Double minRT = readDouble(buffer), maxRT = readDouble(buffer), maxMz = readDouble(buffer), maxIntensity = readDouble(buffer);
+            Integer maxCharge = readInteger(buffer), maxPeakCount = readInteger(buffer);
+            Boolean peakPicked = readBoolean(buffer), precursorChargesMissing = readBoolean(buffer);
+            int nSpectra = buffer.getInt();
+            int nTitles = buffer.getInt();
+
+            long[] offsets = new long[nTitles];
+            buffer.asLongBuffer().get(offsets);
+            buffer.position(buffer.position() + 8 * nTitles);
+            double[] precursorMzs = new double[nSpectra];
+            buffer.asDoubleBuffer().get(precursorMzs);
+            buffer.position(buffer.position() + 8 * nSpectra);
+            int[] spectrumNumbers = new int[nTitles];
+            buffer.asIntBuffer().get(spectrumNumbers);
+            buffer.position(buffer.position() + 4 * nTitles);
+            int[] sortedTitles = new int[nTitles];
+            buffer.asIntBuffer().get(sortedTitles);
+            buffer.position(buffer.position() + 4 * nTitles);
+            float[] precursorRts = new float[nSpectra];
+            buffer.asFloatBuffer().get(precursorRts);
+            buffer.position(buffer.position() + 4 * nSpectra);
+            String[] titles = new String[nTitles];
+            for (int i = 0; i < nTitles; i++) {
+                titles[i] = readString(buffer);
+            }
+            HashMap<String, Integer> duplicatedTitles = null;
+            int nDuplicates = buffer.getInt();
+            if (nDuplicates >= 0) {
+                duplicatedTitles = new HashMap<String, Integer>(nDuplicates);
+                for (int i = 0; i < nDuplicates; i++) {
+                    String title = readString(buffer);
+                    duplicatedTitles.put(title, buffer.getInt());
+                }
+            }
+
+            CompactMgfIndex index = new CompactMgfIndex(fileName, duplicatedTitles, nSpectra, titles, offsets, spectrumNumbers, precursorMzs, precursorRts, sortedTitles);
+            index.setSummary(minRT, maxRT, maxMz, maxIntensity, maxCharge, maxPeakCount, peakPicked, precursorChargesMissing,
+                    lastModified == Long.MIN_VALUE ? null : lastModified);
+            return index;
+        } catch (RuntimeException e) {
+            throw new IOException("An error occurred while reading the mgf index " + file.getName() + ".", e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a string.
+     *
+     * @param dos the output stream
+     * @param value the string, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    private static void writeString(DataOutputStream dos, String value) throws IOException {
+        if (value == null) {
+            dos.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(ENCODING);
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a string.
+     *
+     * @param buffer the buffer
+     *
+     * @return the string, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * decoding the string
+     */
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, ENCODING);
+    }
+
+    /**
+     * Writes a double, NaN for null.
+     *
+     * @param dos the output stream
+     * @param value the value
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    private static void writeDouble(DataOutputStream dos, Double value) throws IOException {
+        dos.writeDouble(value == null ? Double.NaN : value);
+    }
+
+    /**
+     * Reads a double written by writeDouble.
+     *
+     * @param buffer the buffer
+     *
+     * @return the value
+     */
+    private static Double readDouble(ByteBuffer buffer) {
+        double value = buffer.getDouble();
+        return Double.isNaN(value) ? null : value;
+    }
+
+    /**
+     * Writes an integer, Integer.MIN_VALUE for null.
+     *
+     * @param dos the output stream
+     * @param value the value
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    private static void writeInteger(DataOutputStream dos, Integer value) throws IOException {
+        dos.writeInt(value == null ? Integer.MIN_VALUE : value);
+    }
+
+    /**
+     * Reads an integer written by writeInteger.
+     *
+     * @param buffer the buffer
+     *
+     * @return the value
+     */
+    private static Integer readInteger(ByteBuffer buffer) {
+        int value = buffer.getInt();
+        return value == Integer.MIN_VALUE ? null : value;
+    }
+
+    /**
+     * Writes a boolean, 2 for null.
+     *
+     * @param dos the output stream
+     * @param value the value
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    private static void writeBoolean(DataOutputStream dos, Boolean value) throws IOException {
+        dos.writeByte(value == null ? 2 : value ? 1 : 0);
+    }
+
+    /**
+     * Reads a boolean written by writeBoolean.
+     *
+     * @param buffer the buffer
+     *
+     * @return the value
+     */
+    private static Boolean readBoolean(ByteBuffer buffer) {
+        byte value = buffer.get();
+        return value == 2 ? null : value == 1;
+    }
+}
@@ -0,0 +1,193 @@
+package com.compomics.util.experiment.io.massspectrometry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * An mgf file mapped in memory. The file is mapped in segments and read using
+ * absolute positions only, multiple threads can thus read spectra from the
+ * same file in parallel without synchronization.
+ *
+ * @author Marc Vaudel
+ */
+public class MappedMgfFile {
+
+    /**
+     * The number of bits used for the position in a segment.
+     */
+    private static final int SEGMENT_BITS = 30;
+    /**
+     * The size of the segments mapped in memory.
+     */
+    public static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    /**
+     * The charset used to decode the lines, every byte is mapped to one
+     * character like when reading the file using a random access file.
+     */
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+    /**
+     * The mapped file.
+     */
+    private final File file;
+    /**
+     * The length of the file.
+     */
+    private final long length;
+    /**
+     * The mapped segments of the file.
+     */
+    private volatile MappedByteBuffer[] segments;
+
+    /**
+     * Constructor. Maps the given file in memory.
+     *
+     * @param file the mgf file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * mapping the file
+     */
+    public MappedMgfFile(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            length = channel.size();
+            int nSegments = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+            MappedByteBuffer[] mappedSegments = new MappedByteBuffer[nSegments];
+            for (int i = 0; i < nSegments; i++) {
+                long start = i * SEGMENT_SIZE;
+                mappedSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+            segments = mappedSegments;
+        } finally {
+            // the mapping remains valid after closing the channel
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the mapped file.
+     *
+     * @return the mapped file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the length of the file.
+     *
+     * @return the length of the file
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns the byte at the given position.
+     *
+     * @param mappedSegments the mapped segments
+     * @param position the position in the file
+     *
+     * @return the byte at the given position
+     */
+    private static byte get(MappedByteBuffer[] mappedSegments, long position) {
+        return mappedSegments[(int) (position >>> SEGMENT_BITS)].get((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * Returns a reader for the lines of the file starting at the given
+     * position. Readers are not thread safe, every thread should use its own
+     * reader.
+     *
+     * @param position the position in the file
+     *
+     * @return a reader for the lines of the file
+     *
+     * @throws IOException exception thrown whenever the file was closed
+     */
+    LineReader getLineReader(long position) throws IOException {
+        MappedByteBuffer[] mappedSegments = segments;
+        if (mappedSegments == null) {
+            throw new IOException("Mgf file " + file.getName() + " was closed.");
+        }
+        if (position < 0 || position > length) {
+            throw new IllegalArgumentException("Position " + position + " out of the bounds of file " + file.getName() + ".");
+        }
+        return new LineReader(mappedSegments, position);
+    }
+
+    /**
+     * Releases the mapped segments. The memory is freed once the segments are
+     * garbage collected.
+     */
+    public void close() {
+        segments = null;
+    }
+
+    /**
+     * Reads the lines of the mapped file from a given position.
+     */
+    class LineReader implements MgfReader.LineSource {
+
+        /**
+         * The mapped segments.
+         */
+        private final MappedByteBuffer[] mappedSegments;
+        /**
+         * The current position in the file.
+         */
+        private long position;
+        /**
+         * Buffer for the bytes of the current line.
+         */
+        private byte[] buffer = new byte[256];
+
+        /**
+         * Constructor.
+         *
+         * @param mappedSegments the mapped segments
+         * @param position the position where to start reading
+         */
+        private LineReader(MappedByteBuffer[] mappedSegments, long position) {
+            this.mappedSegments = mappedSegments;
+            this.position = position;
+        }
+
+        /**
+         * Returns the current position in the file, i.e. the start of the
+         * next line.
+         *
+         * @return the current position in the file
+         */
+        long getPosition() {
+            return position;
+        }
+
+        public String getNextLine() {
+            if (position >= length) {
+                return null;
+            }
+            int lineLength = 0;
+            while (position < length) {
+                byte b = get(mappedSegments, position++);
+                if (b == '\n') {
+                    break;
+                }
+                if (lineLength == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, 2 * lineLength);
+                }
+                buffer[lineLength++] = b;
+            }
+            if (lineLength > 0 && buffer[lineLength - 1] == '\r') {
+                lineLength--;
+            }
+            return new String(buffer, 0, lineLength, CHARSET);
+        }
+    }
+}
@@ -227,6 +227,18 @@ public class MgfIndex extends ExperimentObject {
         }
     }
 
+    /**
+     * Returns the precursor retention time in seconds for the spectrum at the
+     * given index. Returns null if not indexed, or the value cannot be found.
+     *
+     * @param spectrumIndex the index of the spectrum, 0 for the first spectrum
+     * in the file, 1 for the second, etc
+     * @return the precursor retention time
+     */
+    public Double getPrecursorRt(int spectrumIndex) {
+        return null;
+    }
+
     /**
      * Returns the spectrum title corresponding to the given spectrum number. 0
      * is the first spectrum.
@@ -412,6 +424,15 @@ public class MgfIndex extends ExperimentObject {
         return lastModified;
     }
 
+    /**
+     * Sets when the file was last modified.
+     *
+     * @param lastModified a long indicating when the file was last modified
+     */
+    public void setLastModified(Long lastModified) {
+        this.lastModified = lastModified;
+    }
+
     /**
      * Returns true if the indexed file seems to contain only peak picked
      * spectra.
@@ -2,7 +2,6 @@ package com.compomics.util.experiment.io.massspectrometry;
 
 import com.compomics.util.experiment.massspectrometry.Charge;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
-import com.compomics.util.experiment.massspectrometry.Peak;
 import com.compomics.util.experiment.massspectrometry.Precursor;
 import com.compomics.util.preferences.UtilitiesUserPreferences;
 import com.compomics.util.waiting.WaitingHandler;
@@ -10,6 +9,7 @@ import com.compomics.util.waiting.WaitingHandler;
 import java.io.*;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -42,7 +42,8 @@ public class MgfReader {
     public static MSnSpectrum getSpectrum(BufferedReader br, String fileName) throws IOException {
 
         String line;
-        HashMap<Double, Peak> spectrum = new HashMap<Double, Peak>();
+        double[] mzValues = new double[256], intensityValues = new double[256];
+        int nPeaks = 0;
         double precursorMz = 0;
         double precursorIntensity = 0;
         double rt = -1.0;
@@ -132,7 +133,7 @@ public class MgfReader {
                 } else {
                     precursor = new Precursor(rt, precursorMz, precursorIntensity, precursorCharges);
                 }
-                MSnSpectrum msnSpectrum = new MSnSpectrum(2, precursor, spectrumTitle, spectrum, fileName);
+                MSnSpectrum msnSpectrum = new MSnSpectrum(2, precursor, spectrumTitle, Arrays.copyOf(mzValues, nPeaks), Arrays.copyOf(intensityValues, nPeaks), fileName);
                 if (scanNumber.length() > 0) {
                     msnSpectrum.setScanNumber(scanNumber);
                 }
@@ -140,9 +141,15 @@ public class MgfReader {
             } else if (insideSpectrum && !line.equals("")) {
                 try {
                     String values[] = line.split("\\s+");
-                    Double mz = new Double(values[0]);
-                    Double intensity = new Double(values[1]);
-                    spectrum.put(mz, new Peak(mz, intensity));
+                    double mz = Double.parseDouble(values[0]);
+                    double intensity = Double.parseDouble(values[1]);
+                    if (nPeaks == mzValues.length) {
+                        mzValues = Arrays.copyOf(mzValues, 2 * nPeaks);
+                        intensityValues = Arrays.copyOf(intensityValues, 2 * nPeaks);
+                    }
+                    mzValues[nPeaks] = mz;
+                    intensityValues[nPeaks] = intensity;
+                    nPeaks++;
                 } catch (Exception e1) {
                     // ignore comments and all other lines
                 }
@@ -194,7 +201,8 @@ public class MgfReader {
     }
 
     /**
-     * Returns the index of all spectra in the given MGF file.
+     * Returns the index of all spectra in the given MGF file. Large files are
+     * indexed using one thread per available processor.
      *
      * @param mgfFile the given MGF file
      * @param waitingHandler a waitingHandler showing the progress
@@ -205,10 +213,53 @@ public class MgfReader {
      * reading the file
      */
     public static MgfIndex getIndexMap(File mgfFile, WaitingHandler waitingHandler) throws FileNotFoundException, IOException {
+        return getIndexMap(mgfFile, waitingHandler, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns the index of all spectra in the given MGF file. Files larger
+     * than twice the minimal chunk size are split in chunks starting at a
+     * BEGIN IONS tag which are indexed in parallel.
+     *
+     * @param mgfFile the given MGF file
+     * @param waitingHandler a waitingHandler showing the progress
+     * @param nThreads the number of threads to use
+     * @return the index of all spectra
+     * @throws FileNotFoundException Exception thrown whenever the file is not
+     * found
+     * @throws IOException Exception thrown whenever an error occurs while
+     * reading the file
+     */
+    public static MgfIndex getIndexMap(File mgfFile, WaitingHandler waitingHandler, int nThreads) throws FileNotFoundException, IOException {
+        return getIndexMap(mgfFile, waitingHandler, nThreads, ParallelMgfIndexer.MIN_CHUNK_SIZE);
+    }
+
+    /**
+     * Returns the index of all spectra in the given MGF file. Files larger
+     * than twice the minimal chunk size are split in chunks starting at a
+     * BEGIN IONS tag which are indexed in parallel.
+     *
+     * @param mgfFile the given MGF file
+     * @param waitingHandler a waitingHandler showing the progress
+     * @param nThreads the number of threads to use
+     * @param minChunkSize the minimal size in bytes of the chunks indexed in
+     * parallel
+     * @return the index of all spectra
+     * @throws FileNotFoundException Exception thrown whenever the file is not
+     * found
+     * @throws IOException Exception thrown whenever an error occurs while
+     * reading the file
+     */
+    public static MgfIndex getIndexMap(File mgfFile, WaitingHandler waitingHandler, int nThreads, long minChunkSize) throws FileNotFoundException, IOException {
+
+        if (nThreads > 1 && mgfFile.length() >= 2 * minChunkSize) {
+            return new ParallelMgfIndexer(mgfFile, waitingHandler, minChunkSize).getIndex(nThreads);
+        }
 
         HashMap<String, Long> indexes = new HashMap<String, Long>();
         HashMap<String, Integer> spectrumIndexes = new HashMap<String, Integer>();
         HashMap<Integer, Double> precursorMzMap = new HashMap<Integer, Double>();
+        HashMap<Integer, Double> precursorRtMap = new HashMap<Integer, Double>();
         LinkedHashSet<String> spectrumTitles = new LinkedHashSet<String>();
         HashMap<String, Integer> duplicateTitles = new HashMap<String, Integer>();
         BufferedRandomAccessFile bufferedRandomAccessFile = new BufferedRandomAccessFile(mgfFile, "r", 1024 * 100);
@@ -324,6 +375,7 @@ public class MgfReader {
                         if (rt < minRT) {
                             minRT = rt;
                         }
+                        precursorRtMap.put(spectrumCounter - 1, rt);
                     } else if (rtWindow.length == 2 && !rtWindow[0].equals("")) {
                         double rt1 = new Double(rtWindow[0]);
                         if (rt1 > maxRT) {
@@ -339,6 +391,7 @@ public class MgfReader {
                         if (rt2 < minRT) {
                             minRT = rt2;
                         }
+                        precursorRtMap.put(spectrumCounter - 1, (rt1 + rt2) / 2);
                     }
                 } catch (NumberFormatException e) {
                     throw new IllegalArgumentException("Cannot parse retention time: " + rtInput);
@@ -385,8 +438,9 @@ public class MgfReader {
             spectrumTitlesAsArrayList.add(temp);
         }
 
-        return new MgfIndex(spectrumTitlesAsArrayList, duplicateTitles, indexes, spectrumIndexes, precursorMzMap, mgfFile.getName(), minRT, maxRT,
+        MgfIndex mgfIndex = new MgfIndex(spectrumTitlesAsArrayList, duplicateTitles, indexes, spectrumIndexes, precursorMzMap, mgfFile.getName(), minRT, maxRT,
                 maxMz, maxIntensity, maxCharge, maxPeakCount, peakPicked, precursorChargesMissing, mgfFile.lastModified(), spectrumCounter);
+        return new CompactMgfIndex(mgfIndex, precursorRtMap);
     }
 
     /**
@@ -1051,14 +1105,49 @@ public class MgfReader {
 
         // @TODO get fileName from the random access file?
         bufferedRandomAccessFile.seek(index);
+        return getSpectrum(getLineSource(bufferedRandomAccessFile), fileName);
+    }
+
+    /**
+     * Returns the next spectrum starting from the given index in a memory
+     * mapped mgf file. This method can be used by multiple threads on the same
+     * file.
+     *
+     * @param mappedMgfFile the memory mapped mgf file
+     * @param index the index where to start looking for the spectrum
+     * @param fileName the name of the mgf file
+     * @return the next spectrum encountered
+     * @throws IOException exception thrown whenever an error is encountered
+     * while reading the spectrum
+     * @throws IllegalArgumentException exception thrown whenever the file is
+     * not of a compatible format
+     */
+    public static MSnSpectrum getSpectrum(MappedMgfFile mappedMgfFile, long index, String fileName) throws IOException, IllegalArgumentException {
+        return getSpectrum(mappedMgfFile.getLineReader(index), fileName);
+    }
+
+    /**
+     * Returns the next spectrum read from the given line source.
+     *
+     * @param lineSource the source of the lines of the mgf file
+     * @param fileName the name of the mgf file
+     * @return the next spectrum encountered
+     * @throws IOException exception thrown whenever an error is encountered
+     * while reading the spectrum
+     * @throws IllegalArgumentException exception thrown whenever the file is
+     * not of a compatible format
+     */
+    private static MSnSpectrum getSpectrum(LineSource lineSource, String fileName) throws IOException, IllegalArgumentException {
+
         double precursorMz = 0, precursorIntensity = 0, rt = -1.0, rt1 = -1, rt2 = -1;
         ArrayList<Charge> precursorCharges = new ArrayList<Charge>();
         String scanNumber = "", spectrumTitle = "";
-        HashMap<Double, Peak> spectrum = new HashMap<Double, Peak>();
+        double[] mzValues = new double[256], intensityValues = new double[256];
+        int nPeaks = 0;
         String line;
         boolean insideSpectrum = false;
 
-        while ((line = bufferedRandomAccessFile.getNextLine()) != null) {
+        while ((line = lineSource.getNextLine()) != null) {
 
             // fix for lines ending with \r
             if (line.endsWith("\r")) {
@@ -1067,7 +1156,7 @@ public class MgfReader {
 
             if (line.startsWith("BEGIN IONS")) {
                 insideSpectrum = true;
-                spectrum = new HashMap<Double, Peak>();
+                nPeaks = 0;
             } else if (line.startsWith("TITLE")) {
                 insideSpectrum = true;
                 spectrumTitle = line.substring(line.indexOf('=') + 1);
@@ -1136,15 +1225,21 @@ public class MgfReader {
                 } else {
                     precursor = new Precursor(rt, precursorMz, precursorIntensity, precursorCharges);
                 }
-                MSnSpectrum msnSpectrum = new MSnSpectrum(2, precursor, spectrumTitle, spectrum, fileName);
+                MSnSpectrum msnSpectrum = new MSnSpectrum(2, precursor, spectrumTitle, Arrays.copyOf(mzValues, nPeaks), Arrays.copyOf(intensityValues, nPeaks), fileName);
                 msnSpectrum.setScanNumber(scanNumber);
                 return msnSpectrum;
             } else if (insideSpectrum && !line.equals("")) {
                 try {
                     String values[] = line.split("\\s+");
-                    Double mz = new Double(values[0]);
-                    Double intensity = new Double(values[1]);
-                    spectrum.put(mz, new Peak(mz, intensity));
+                    double mz = Double.parseDouble(values[0]);
+                    double intensity = Double.parseDouble(values[1]);
+                    if (nPeaks == mzValues.length) {
+                        mzValues = Arrays.copyOf(mzValues, 2 * nPeaks);
+                        intensityValues = Arrays.copyOf(intensityValues, 2 * nPeaks);
+                    }
+                    mzValues[nPeaks] = mz;
+                    intensityValues[nPeaks] = intensity;
+                    nPeaks++;
                 } catch (Exception e1) {
                     // ignore comments and all other lines
                 }
@@ -1161,7 +1256,7 @@ public class MgfReader {
      * @return the possible charges found
      * @throws IllegalArgumentException
      */
-    private static ArrayList<Charge> parseCharges(String chargeLine) throws IllegalArgumentException {
+    static ArrayList<Charge> parseCharges(String chargeLine) throws IllegalArgumentException {
 
         ArrayList<Charge> result = new ArrayList<Charge>(1);
         String tempLine = chargeLine.substring(chargeLine.indexOf("=") + 1);
@@ -1222,11 +1317,45 @@ public class MgfReader {
 
         // @TODO: get fileName from the random access file?
         bufferedRandomAccessFile.seek(index);
+        return getPrecursor(getLineSource(bufferedRandomAccessFile), fileName);
+    }
+
+    /**
+     * Returns the next precursor starting from the given index in a memory
+     * mapped mgf file. This method can be used by multiple threads on the same
+     * file.
+     *
+     * @param mappedMgfFile the memory mapped mgf file
+     * @param index the index where to start looking for the spectrum
+     * @param fileName the name of the mgf file
+     * @return the next precursor encountered
+     * @throws IOException exception thrown whenever an error is encountered
+     * while reading the spectrum
+     * @throws IllegalArgumentException exception thrown whenever the file is
+     * not of a compatible format
+     */
+    public static Precursor getPrecursor(MappedMgfFile mappedMgfFile, long index, String fileName) throws IOException, IllegalArgumentException {
+        return getPrecursor(mappedMgfFile.getLineReader(index), fileName);
+    }
+
+    /**
+     * Returns the next precursor read from the given line source.
+     *
+     * @param lineSource the source of the lines of the mgf file
+     * @param fileName the name of the mgf file
+     * @return the next precursor encountered
+     * @throws IOException exception thrown whenever an error is encountered
+     * while reading the spectrum
+     * @throws IllegalArgumentException exception thrown whenever the file is
+     * not of a compatible format
+     */
+    private static Precursor getPrecursor(LineSource lineSource, String fileName) throws IOException, IllegalArgumentException {
+
         String line, title = null;
         double precursorMz = 0, precursorIntensity = 0, rt = -1.0, rt1 = -1, rt2 = -1;
         ArrayList<Charge> precursorCharges = new ArrayList<Charge>(1);
 
-        while ((line = bufferedRandomAccessFile.getNextLine()) != null) {
+        while ((line = lineSource.getNextLine()) != null) {
 
             // fix for lines ending with \r
             if (line.endsWith("\r")) {
@@ -1283,6 +1412,36 @@ public class MgfReader {
         throw new IllegalArgumentException("End of the file reached before encountering the tag \"END IONS\". File: " + fileName + ", title: " + title);
     }
 
+    /**
+     * Returns a line source reading the given random access file from its
+     * current position.
+     *
+     * @param bufferedRandomAccessFile the random access file
+     * @return a line source reading the given random access file
+     */
+    private static LineSource getLineSource(final BufferedRandomAccessFile bufferedRandomAccessFile) {
+        return new LineSource() {
+            public String getNextLine() throws IOException {
+                return bufferedRandomAccessFile.getNextLine();
+            }
+        };
+    }
+
+    /**
+     * A source of lines of an mgf file.
+     */
+    interface LineSource {
+
+        /**
+         * Returns the next line, null if the end of the file is reached.
+         *
+         * @return the next line
+         * @throws IOException exception thrown whenever an error occurred
+         * while reading the file
+         */
+        public String getNextLine() throws IOException;
+    }
+
     /**
      * Writes an apl file from an MGF file. @TODO: move to
      * massspectrometry.export
@@ -1329,12 +1488,11 @@ public class MgfReader {
                 aplWriter.write("fragmentation=" + fragmentation + "\n");
                 aplWriter.write("charge=" + spectrum.getPrecursor().getPossibleCharges().get(0).value + "\n"); //@TODO what if many/no charge is present?
                 aplWriter.write("header=" + spectrum.getSpectrumTitle() + "\n");
-                HashMap<Double, Peak> peakMap = spectrum.getPeakMap();
-                ArrayList<Double> fragmentMasses = new ArrayList<Double>(peakMap.keySet());
-                Collections.sort(fragmentMasses);
+                double[] fragmentMasses = spectrum.getMzValues();
+                double[] intensities = spectrum.getIntensityValues();
 
-                for (double fragmentMass : fragmentMasses) {
-                    aplWriter.write(fragmentMass + "\t" + peakMap.get(fragmentMass).intensity + "\n");
+                for (int i = 0; i < fragmentMasses.length; i++) {
+                    aplWriter.write(fragmentMasses[i] + "\t" + intensities[i] + "\n");
                 }
 
                 aplWriter.write("peaklist end\n\n");
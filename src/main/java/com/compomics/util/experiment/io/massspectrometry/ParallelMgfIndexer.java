@@ -0,0 +1,481 @@
+package com.compomics.util.experiment.io.massspectrometry;
+
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Indexes an mgf file using multiple threads. The file is split in byte
+ * ranges starting at a BEGIN IONS line, the ranges are indexed in parallel and
+ * merged in file order, yielding the same index as the single threaded
+ * indexer for files where every spectrum is closed by an END IONS line.
+ *
+ * @author Marc Vaudel
+ */
+class ParallelMgfIndexer {
+
+    /**
+     * The default minimal size of a chunk in bytes.
+     */
+    static final long MIN_CHUNK_SIZE = 64 * 1024 * 1024;
+    /**
+     * The number of chunks per thread, more chunks than threads balance the
+     * load between threads.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+    /**
+     * The tag starting a spectrum.
+     */
+    private static final String BEGIN_IONS = "BEGIN IONS";
+    /**
+     * The mgf file.
+     */
+    private final File mgfFile;
+    /**
+     * The memory mapped mgf file.
+     */
+    private final MappedMgfFile mappedMgfFile;
+    /**
+     * The waiting handler.
+     */
+    private final WaitingHandler waitingHandler;
+    /**
+     * The minimal size of a chunk in bytes.
+     */
+    private final long minChunkSize;
+    /**
+     * The number of bytes indexed.
+     */
+    private long bytesIndexed = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param mgfFile the mgf file
+     * @param waitingHandler a waiting handler showing the progress, can be
+     * null
+     * @param minChunkSize the minimal size of a chunk in bytes
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * mapping the file
+     */
+    ParallelMgfIndexer(File mgfFile, WaitingHandler waitingHandler, long minChunkSize) throws IOException {
+        if (minChunkSize < 1) {
+            throw new IllegalArgumentException("The minimal chunk size must be positive.");
+        }
+        this.mgfFile = mgfFile;
+        this.mappedMgfFile = new MappedMgfFile(mgfFile);
+        this.waitingHandler = waitingHandler;
+        this.minChunkSize = minChunkSize;
+    }
+
+    /**
+     * Indexes the file.
+     *
+     * @param nThreads the number of threads to use
+     *
+     * @return the index of the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    MgfIndex getIndex(int nThreads) throws IOException {
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.setMaxSecondaryProgressCounter(100);
+            waitingHandler.setSecondaryProgressCounter(0);
+        }
+
+        try {
+            ArrayList<Long> boundaries = getChunkBoundaries(nThreads * CHUNKS_PER_THREAD);
+            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+            ArrayList<Future<ChunkIndex>> futures = new ArrayList<Future<ChunkIndex>>(boundaries.size() - 1);
+            try {
+                for (int i = 0; i < boundaries.size() - 1; i++) {
+                    final long start = boundaries.get(i), end = boundaries.get(i + 1);
+                    futures.add(pool.submit(new Callable<ChunkIndex>() {
+                        public ChunkIndex call() throws Exception {
+                            return indexChunk(start, end);
+                        }
+                    }));
+                }
+                ArrayList<ChunkIndex> chunks = new ArrayList<ChunkIndex>(futures.size());
+                for (Future<ChunkIndex> future : futures) {
+                    chunks.add(future.get());
+                }
+                if (waitingHandler != null) {
+                    waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+                }
+                return merge(chunks);
+            } catch (InterruptedException e) {
+                throw new IOException("Indexing of " + mgfFile.getName() + " interrupted.", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("An error occurred while indexing " + mgfFile.getName() + ".", cause);
+            } finally {
+                pool.shutdownNow();
+            }
+        } finally {
+            mappedMgfFile.close();
+        }
+    }
+
+    /**
+     * Splits the file in chunks starting at a BEGIN IONS line. The first chunk
+     * starts at the beginning of the file.
+     *
+     * @param nChunks the targeted number of chunks
+     *
+     * @return the positions of the chunk boundaries, including the start and
+     * the end of the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private ArrayList<Long> getChunkBoundaries(int nChunks) throws IOException {
+        long length = mappedMgfFile.length();
+        long chunkSize = Math.max(minChunkSize, length / nChunks);
+        ArrayList<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(0L);
+        long nominalBoundary = chunkSize;
+        while (nominalBoundary < length) {
+            long boundary = getNextSpectrumStart(nominalBoundary);
+            if (boundary >= length) {
+                break;
+            }
+            if (boundary > boundaries.get(boundaries.size() - 1)) {
+                boundaries.add(boundary);
+            }
+            nominalBoundary = Math.max(boundary + 1, nominalBoundary + chunkSize);
+        }
+        boundaries.add(length);
+        return boundaries;
+    }
+
+    /**
+     * Returns the position of the first BEGIN IONS line starting at or after
+     * the given position, the length of the file if none.
+     *
+     * @param position the position in the file
+     *
+     * @return the position of the first BEGIN IONS line
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private long getNextSpectrumStart(long position) throws IOException {
+        MappedMgfFile.LineReader reader = mappedMgfFile.getLineReader(position - 1);
+        // the line containing position - 1 is either before the position or empty
+        reader.getNextLine();
+        long lineStart = reader.getPosition();
+        String line;
+        while ((line = reader.getNextLine()) != null) {
+            if (line.replace("\r", "").equals(BEGIN_IONS)) {
+                return lineStart;
+            }
+            lineStart = reader.getPosition();
+        }
+        return mappedMgfFile.length();
+    }
+
+    /**
+     * Indexes a chunk of the file. The parsing mirrors the single threaded
+     * indexer of the MgfReader.
+     *
+     * @param start the start of the chunk
+     * @param end the end of the chunk
+     *
+     * @return the index of the chunk
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private ChunkIndex indexChunk(long start, long end) throws IOException {
+
+        ChunkIndex chunk = new ChunkIndex();
+        MappedMgfFile.LineReader reader = mappedMgfFile.getLineReader(start);
+        long currentIndex = 0;
+        String title = null;
+        int spectrumCounter = 0, peakCount = 0;
+        boolean insideSpectrum = false, chargeTagFound = false;
+        long lastProgress = start;
+        String line;
+
+        while (reader.getPosition() < end && (line = reader.getNextLine()) != null) {
+
+            // fix for lines ending with \r
+            if (line.endsWith("\r")) {
+                line = line.replace("\r", "");
+            }
+
+            if (line.equals(BEGIN_IONS)) {
+                insideSpectrum = true;
+                chargeTagFound = false;
+                currentIndex = reader.getPosition();
+                spectrumCounter++;
+                peakCount = 0;
+                if (waitingHandler != null) {
+                    if (waitingHandler.isRunCanceled()) {
+                        break;
+                    }
+                    if (currentIndex - lastProgress > minChunkSize / 16) {
+                        increaseProgress(currentIndex - lastProgress);
+                        lastProgress = currentIndex;
+                    }
+                }
+            } else if (line.startsWith("TITLE")) {
+                title = line.substring(line.indexOf('=') + 1);
+                try {
+                    title = URLDecoder.decode(title, "utf-8");
+                } catch (UnsupportedEncodingException e) {
+                    if (waitingHandler != null) {
+                        waitingHandler.appendReport("An exception was thrown when trying to decode an mgf title: " + title, true, true);
+                    }
+                    System.out.println("An exception was thrown when trying to decode an mgf title: " + title);
+                    e.printStackTrace();
+                }
+                chunk.titles.add(title);
+                chunk.offsets.add(currentIndex);
+                chunk.spectrumIndexes.add(spectrumCounter - 1);
+            } else if (line.startsWith("CHARGE")) {
+                ArrayList<Charge> precursorCharges = MgfReader.parseCharges(line);
+                for (Charge charge : precursorCharges) {
+                    if (charge.value > chunk.maxCharge) {
+                        chunk.maxCharge = charge.value;
+                    }
+                }
+                chargeTagFound = true;
+            } else if (line.startsWith("PEPMASS")) {
+                String temp = line.substring(line.indexOf("=") + 1);
+                String[] values = temp.split("\\s");
+                double precursorMz = Double.parseDouble(values[0]);
+                if (precursorMz > chunk.maxMz) {
+                    chunk.maxMz = precursorMz;
+                }
+                if (values.length > 1) {
+                    double precursorIntensity = Double.parseDouble(values[1]);
+                    if (precursorIntensity > chunk.maxIntensity) {
+                        chunk.maxIntensity = precursorIntensity;
+                    }
+                }
+                chunk.precursorMzMap.put(spectrumCounter - 1, precursorMz);
+            } else if (line.startsWith("RTINSECONDS")) {
+                String rtInput = "";
+                try {
+                    rtInput = line.substring(line.indexOf('=') + 1);
+                    String[] rtWindow = rtInput.split("-");
+                    if (rtWindow.length == 1) {
+                        String tempRt = rtWindow[0];
+                        // possible fix for values like RTINSECONDS=PT121.250000S
+                        if (tempRt.startsWith("PT") && tempRt.endsWith("S")) {
+                            tempRt = tempRt.substring(2, tempRt.length() - 1);
+                        }
+                        double rt = new Double(tempRt);
+                        chunk.addRt(rt);
+                        chunk.precursorRtMap.put(spectrumCounter - 1, rt);
+                    } else if (rtWindow.length == 2 && !rtWindow[0].equals("")) {
+                        double rt1 = new Double(rtWindow[0]);
+                        double rt2 = new Double(rtWindow[1]);
+                        chunk.addRt(rt1);
+                        chunk.addRt(rt2);
+                        chunk.precursorRtMap.put(spectrumCounter - 1, (rt1 + rt2) / 2);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Cannot parse retention time: " + rtInput);
+                }
+            } else if (line.startsWith("END IONS")) {
+                insideSpectrum = false;
+                if (title != null && peakCount > chunk.maxPeakCount) {
+                    chunk.maxPeakCount = peakCount;
+                }
+                title = null;
+                if (!chargeTagFound) {
+                    chunk.precursorChargesMissing = true;
+                }
+            } else if (insideSpectrum && !line.equals("")) {
+                try {
+                    String values[] = line.split("\\s+");
+                    Double intensity = new Double(values[1]);
+                    if (chunk.peakPicked && intensity == 0) {
+                        chunk.peakPicked = false;
+                    }
+                    peakCount++;
+                } catch (Exception e1) {
+                    // ignore comments and all other lines
+                }
+            }
+        }
+
+        chunk.spectrumCount = spectrumCounter;
+        increaseProgress(end - lastProgress);
+        return chunk;
+    }
+
+    /**
+     * Adds the given number of bytes to the progress.
+     *
+     * @param nBytes the number of bytes indexed
+     */
+    private synchronized void increaseProgress(long nBytes) {
+        bytesIndexed += nBytes;
+        if (waitingHandler != null && mappedMgfFile.length() > 0) {
+            waitingHandler.setSecondaryProgressCounter((int) (100 * bytesIndexed / mappedMgfFile.length()));
+        }
+    }
+
+    /**
+     * Merges the indexes of the chunks in file order.
+     *
+     * @param chunks the indexes of the chunks
+     *
+     * @return the index of the file
+     */
+    private MgfIndex merge(ArrayList<ChunkIndex> chunks) {
+
+        HashMap<String, Long> indexes = new HashMap<String, Long>();
+        HashMap<String, Integer> spectrumIndexes = new HashMap<String, Integer>();
+        HashMap<Integer, Double> precursorMzMap = new HashMap<Integer, Double>();
+        HashMap<Integer, Double> precursorRtMap = new HashMap<Integer, Double>();
+        LinkedHashSet<String> spectrumTitles = new LinkedHashSet<String>();
+        HashMap<String, Integer> duplicateTitles = new HashMap<String, Integer>();
+        double maxRT = -1, minRT = Double.MAX_VALUE, maxMz = -1, maxIntensity = 0;
+        int maxCharge = 0, maxPeakCount = 0, spectrumCount = 0;
+        boolean peakPicked = true, precursorChargesMissing = false;
+
+        for (ChunkIndex chunk : chunks) {
+            for (int i = 0; i < chunk.titles.size(); i++) {
+                String title = chunk.titles.get(i);
+                Integer nDuplicates = duplicateTitles.get(title);
+                if (nDuplicates != null || spectrumTitles.contains(title)) {
+                    if (nDuplicates == null) {
+                        nDuplicates = 0;
+                        System.err.println("Warning: Spectrum title " + title + " is not unique in " + mgfFile.getName() + "!");
+                    }
+                    duplicateTitles.put(title, ++nDuplicates);
+                    title += "_" + nDuplicates;
+                }
+                spectrumTitles.add(title);
+                indexes.put(title, chunk.offsets.get(i));
+                spectrumIndexes.put(title, spectrumCount + chunk.spectrumIndexes.get(i));
+            }
+            for (Integer spectrumIndex : chunk.precursorMzMap.keySet()) {
+                precursorMzMap.put(spectrumCount + spectrumIndex, chunk.precursorMzMap.get(spectrumIndex));
+            }
+            for (Integer spectrumIndex : chunk.precursorRtMap.keySet()) {
+                precursorRtMap.put(spectrumCount + spectrumIndex, chunk.precursorRtMap.get(spectrumIndex));
+            }
+            spectrumCount += chunk.spectrumCount;
+            maxRT = Math.max(maxRT, chunk.maxRT);
+            minRT = Math.min(minRT, chunk.minRT);
+            maxMz = Math.max(maxMz, chunk.maxMz);
+            maxIntensity = Math.max(maxIntensity, chunk.maxIntensity);
+            maxCharge = Math.max(maxCharge, chunk.maxCharge);
+            maxPeakCount = Math.max(maxPeakCount, chunk.maxPeakCount);
+            peakPicked = peakPicked && chunk.peakPicked;
+            precursorChargesMissing = precursorChargesMissing || chunk.precursorChargesMissing;
+        }
+
+        if (minRT == Double.MAX_VALUE) {
+            minRT = 0;
+        }
+
+        MgfIndex mgfIndex = new MgfIndex(new ArrayList<String>(spectrumTitles), duplicateTitles, indexes, spectrumIndexes, precursorMzMap, mgfFile.getName(), minRT, maxRT,
+                maxMz, maxIntensity, maxCharge, maxPeakCount, peakPicked, precursorChargesMissing, mgfFile.lastModified(), spectrumCount);
+        return new CompactMgfIndex(mgfIndex, precursorRtMap);
+    }
+
+    /**
+     * The index of a chunk of the file. Spectrum indexes are relative to the
+     * start of the chunk.
+     */
+    private static class ChunkIndex {
+
+        /**
+         * The titles in file order, not yet deduplicated.
+         */
+        private final ArrayList<String> titles = new ArrayList<String>();
+        /**
+         * The offsets of the spectra of the titles.
+         */
+        private final ArrayList<Long> offsets = new ArrayList<Long>();
+        /**
+         * The indexes in the chunk of the spectra of the titles.
+         */
+        private final ArrayList<Integer> spectrumIndexes = new ArrayList<Integer>();
+        /**
+         * The precursor m/z indexed by spectrum index in the chunk.
+         */
+        private final HashMap<Integer, Double> precursorMzMap = new HashMap<Integer, Double>();
+        /**
+         * The precursor retention time indexed by spectrum index in the chunk.
+         */
+        private final HashMap<Integer, Double> precursorRtMap = new HashMap<Integer, Double>();
+        /**
+         * The number of BEGIN IONS tags in the chunk.
+         */
+        private int spectrumCount = 0;
+        /**
+         * The maximal retention time.
+         */
+        private double maxRT = -1;
+        /**
+         * The minimal retention time.
+         */
+        private double minRT = Double.MAX_VALUE;
+        /**
+         * The maximal precursor m/z.
+         */
+        private double maxMz = -1;
+        /**
+         * The maximal precursor intensity.
+         */
+        private double maxIntensity = 0;
+        /**
+         * The maximal precursor charge.
+         */
+        private int maxCharge = 0;
+        /**
+         * The maximal peak count.
+         */
+        private int maxPeakCount = 0;
+        /**
+         * Indicates whether the spectra seem to be peak picked.
+         */
+        private boolean peakPicked = true;
+        /**
+         * Indicates whether a spectrum without precursor charge was found.
+         */
+        private boolean precursorChargesMissing = false;
+
+        /**
+         * Updates the retention time range with the given retention time.
+         *
+         * @param rt the retention time
+         */
+        private void addRt(double rt) {
+            if (rt > maxRT) {
+                maxRT = rt;
+            }
+            if (rt < minRT) {
+                minRT = rt;
+            }
+        }
+    }
+}
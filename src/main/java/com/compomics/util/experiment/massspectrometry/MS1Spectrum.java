@@ -30,14 +30,26 @@ public class MS1Spectrum extends Spectrum {
      */
     public MS1Spectrum(String fileName, String spectrumTitle, double scanStartTime, HashMap<Double, Peak> spectrum) {
         this.spectrumTitle = spectrumTitle;
-        this.peakList = spectrum;
         this.fileName = fileName;
         this.scanStartTime = scanStartTime;
         this.level = 1;
+        setPeakList(spectrum);
     }
 
-    @Override
-    public void removePeakList() {
-        this.peakList.clear();
+    /**
+     * Constructor for an MS1 spectrum.
+     *
+     * @param fileName          name of the file
+     * @param spectrumTitle     title of the spectrum
+     * @param scanStartTime     scan start time
+     * @param mz                the m/z values of the peaks
+     * @param intensity         the intensities of the peaks
+     */
+    public MS1Spectrum(String fileName, String spectrumTitle, double scanStartTime, double[] mz, double[] intensity) {
+        this.spectrumTitle = spectrumTitle;
+        this.fileName = fileName;
+        this.scanStartTime = scanStartTime;
+        this.level = 1;
+        setPeaks(mz, intensity);
     }
 }
@@ -55,8 +55,26 @@ public class MSnSpectrum extends Spectrum {
         this.level = level;
         this.precursor = precursor;
         this.spectrumTitle = spectrumTitle;
-        this.peakList = peakMap;
         this.fileName = fileName;
+        setPeakList(peakMap);
+    }
+
+    /**
+     * Constructor for the spectrum.
+     *
+     * @param level MS level
+     * @param precursor precursor
+     * @param spectrumTitle spectrum title
+     * @param mz the m/z values of the peaks
+     * @param intensity the intensities of the peaks
+     * @param fileName file name
+     */
+    public MSnSpectrum(int level, Precursor precursor, String spectrumTitle, double[] mz, double[] intensity, String fileName) {
+        this.level = level;
+        this.precursor = precursor;
+        this.spectrumTitle = spectrumTitle;
+        this.fileName = fileName;
+        setPeaks(mz, intensity);
     }
 
     /**
@@ -73,9 +91,9 @@ public class MSnSpectrum extends Spectrum {
         this.level = level;
         this.precursor = precursor;
         this.spectrumTitle = spectrumTitle;
-        this.peakList = peakMap;
         this.fileName = fileName;
         this.scanStartTime = scanStartTime;
+        setPeakList(peakMap);
     }
 
     /**
@@ -157,15 +175,12 @@ public class MSnSpectrum extends Spectrum {
             results.append("SCANS=").append(scanNumber).append(lineBreak);
         }
 
-        // add the values to a tree map to get them sorted in mz    
-        TreeMap<Double, Double> sortedPeakList = new TreeMap<Double, Double>();
-
-        for (Peak peak : peakList.values()) {
-            sortedPeakList.put(peak.mz, peak.intensity);
-        }
+        // the peaks are sorted by mz
+        double[] mz = mzValues;
+        double[] intensity = intensityValues;
 
-        for (Map.Entry<Double, Double> entry : sortedPeakList.entrySet()) {
-            results.append(entry.getKey()).append(" ").append(entry.getValue()).append(lineBreak);
+        for (int i = 0; i < mz.length; i++) {
+            results.append(mz[i]).append(" ").append(intensity[i]).append(lineBreak);
         }
 
         results.append("END IONS").append(lineBreak).append(lineBreak);
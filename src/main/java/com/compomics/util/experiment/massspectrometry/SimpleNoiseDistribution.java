@@ -40,10 +40,20 @@ public class SimpleNoiseDistribution {
      * @throws MathException thrown if a math error occurs
      */
     public SimpleNoiseDistribution(HashMap<Double, Peak> peakList) throws MathException {
+        this(getIntensities(peakList));
+    }
 
-        ArrayList<Double> intensitiesLog = new ArrayList<Double>(peakList.size());
-        for (Peak peak : peakList.values()) {
-            double log = FastMath.log10(peak.intensity);
+    /**
+     * Constructor.
+     * 
+     * @param intensities the intensities of the peaks
+     * @throws MathException thrown if a math error occurs
+     */
+    public SimpleNoiseDistribution(double[] intensities) throws MathException {
+
+        ArrayList<Double> intensitiesLog = new ArrayList<Double>(intensities.length);
+        for (double intensity : intensities) {
+            double log = FastMath.log10(intensity);
             intensitiesLog.add(log);
         }
         Collections.sort(intensitiesLog);
@@ -61,6 +71,21 @@ public class SimpleNoiseDistribution {
         }
     }
 
+    /**
+     * Returns the intensities of the peaks of the given peak list.
+     * 
+     * @param peakList the peak list
+     * @return the intensities of the peaks
+     */
+    private static double[] getIntensities(HashMap<Double, Peak> peakList) {
+        double[] intensities = new double[peakList.size()];
+        int i = 0;
+        for (Peak peak : peakList.values()) {
+            intensities[i++] = peak.intensity;
+        }
+        return intensities;
+    }
+
     /**
      * Get the binned cumulative probability.
      * 
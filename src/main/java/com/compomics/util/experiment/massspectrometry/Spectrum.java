@@ -1,18 +1,24 @@
 package com.compomics.util.experiment.massspectrometry;
 
 import com.compomics.util.experiment.identification.matches.IonMatch;
+import com.compomics.util.experiment.massspectrometry.indexes.SpectrumIndex;
 import com.compomics.util.experiment.personalization.ExperimentObject;
 import com.compomics.util.math.BasicMathFunctions;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.concurrent.Semaphore;
 import org.apache.commons.math.MathException;
 
 /**
- * This class models a spectrum.
+ * This class models a spectrum. The peaks are stored in two arrays of m/z and
+ * intensity sorted by ascending m/z. The arrays returned by the getters are
+ * the arrays of the spectrum and should not be modified.
  *
  * @author Marc Vaudel
  * @author Harald Barsnes
@@ -23,6 +29,10 @@ public abstract class Spectrum extends ExperimentObject {
      * The version UID for Serialization/Deserialization compatibility.
      */
     static final long serialVersionUID = 7152424141470431489L;
+    /**
+     * Empty array used for spectra without peaks.
+     */
+    private static final double[] EMPTY_ARRAY = new double[0];
     /**
      * Spectrum title.
      */
@@ -36,9 +46,28 @@ public abstract class Spectrum extends ExperimentObject {
      */
     protected int level;
     /**
-     * mz indexed Peak list.
+     * The m/z values of the peaks sorted in ascending order.
+     */
+    protected double[] mzValues = EMPTY_ARRAY;
+    /**
+     * The intensities of the peaks in the order of the m/z values.
+     */
+    protected double[] intensityValues = EMPTY_ARRAY;
+    /**
+     * The retention time of the peaks, e.g. the scan start time for spectra
+     * read from mzML files.
      */
-    protected HashMap<Double, Peak> peakList;
+    private double peaksRetentionTime = 0.0;
+    /**
+     * mz indexed Peak list of former versions of this class. Only used to
+     * migrate deserialized spectra to the peak arrays, null otherwise.
+     */
+    private HashMap<Double, Peak> peakList = null;
+    /**
+     * mz indexed Peak map built from the peak arrays. Null until set by the
+     * getter, not serialized.
+     */
+    private transient volatile HashMap<Double, Peak> peakMap = null;
     /**
      * Intensity indexed Peak map.
      */
@@ -60,24 +89,11 @@ public abstract class Spectrum extends ExperimentObject {
      * The peak list as an array directly plottable by JFreeChart.
      */
     private double[][] jFreePeakList = null;
-    /**
-     * The mz values as array. Null until set by the getter.
-     */
-    private double[] mzValuesAsArray = null;
-    /**
-     * The mz values sorted in acceding order as array. Null until set by the
-     * getter.
-     */
-    private double[] mzValuesOrderedAsArray = null;
     /**
      * The peak list as an array list formatted as text, e.g. [[303.17334
      * 3181.14],[318.14542 37971.93], ... ].
      */
     private String peakListAsString = null;
-    /**
-     * The intensity values as array. Null until set by the getter.
-     */
-    private double[] intensityValuesAsArray = null;
     /**
      * The intensity values as array normalized against the most intense peak.
      * Null until set by the getter.
@@ -95,31 +111,25 @@ public abstract class Spectrum extends ExperimentObject {
      * The maximal intensity.
      */
     private Double maxIntensity;
-    /**
-     * The maximal m/z.
-     */
-    private Double maxMz;
-    /**
-     * The minimal m/z.
-     */
-    private Double minMz;
     /**
      * Mutex for the setting of the attributes in cache.
      */
     private Semaphore mutex = new Semaphore(1);
     /**
-     * Cache for the intensity limit.
-     */
-    private Double intensityLimit = null;
-    /**
-     * Intensity level corresponding to the value in cache.
+     * Cache for the intensity limit and the intensity level it corresponds
+     * to. Null until set by the getter.
      */
-    private double intensityLimitLevel = -1.0;
+    private transient volatile IntensityLimit intensityLimit = null;
     /**
      * The binned cumulative function of the distribution of the log of the
      * peaks intensities.
      */
     private SimpleNoiseDistribution binnedCumulativeFunction = null;
+    /**
+     * The index of the peaks used for peak matching. Null until set by the
+     * getter.
+     */
+    private transient volatile SpectrumIndex spectrumIndex = null;
 
     /**
      * Convenience method returning the key for a spectrum.
@@ -197,22 +207,16 @@ public abstract class Spectrum extends ExperimentObject {
         if (jFreePeakList == null) {
             mutex.acquire();
             if (jFreePeakList == null) {
-                double[] mz = new double[peakList.size()];
-                double[] intensity = new double[peakList.size()];
-                int cpt = 0;
-                for (Peak currentPeak : peakList.values()) {
-                    mz[cpt] = currentPeak.mz;
-                    intensity[cpt] = currentPeak.intensity;
-                    cpt++;
-                }
-
-                jFreePeakList = new double[6][mz.length];
-                jFreePeakList[0] = mz;
-                jFreePeakList[1] = mz;
-                jFreePeakList[2] = mz;
-                jFreePeakList[3] = intensity;
-                jFreePeakList[4] = intensity;
-                jFreePeakList[5] = intensity;
+                double[] mz = mzValues;
+                double[] intensity = intensityValues;
+                double[][] peakList = new double[6][];
+                peakList[0] = mz;
+                peakList[1] = mz;
+                peakList[2] = mz;
+                peakList[3] = intensity;
+                peakList[4] = intensity;
+                peakList[5] = intensity;
+                jFreePeakList = peakList;
             }
             mutex.release();
         }
@@ -220,48 +224,182 @@ public abstract class Spectrum extends ExperimentObject {
     }
 
     /**
-     * Returns a peak map where peaks are indexed by their m/z.
+     * Returns a peak map where peaks are indexed by their m/z. The map is
+     * created from the peak arrays upon first call. Modifications of the map
+     * are not reflected in the spectrum, use setPeakList instead.
      *
      * @return a peak map
      */
     public HashMap<Double, Peak> getPeakMap() {
-        return peakList;
+        HashMap<Double, Peak> result = peakMap;
+        if (result == null) {
+            synchronized (this) {
+                result = peakMap;
+                if (result == null) {
+                    double[] mz = mzValues;
+                    double[] intensity = intensityValues;
+                    result = new HashMap<Double, Peak>(mz.length);
+                    for (int i = 0; i < mz.length; i++) {
+                        result.put(mz[i], new Peak(mz[i], intensity[i], peaksRetentionTime));
+                    }
+                    peakMap = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns an index of the peaks for the given settings. The index is
+     * created upon first call and kept in cache as long as the peaks are not
+     * changed and the same settings are used. The index can be shared between
+     * threads.
+     *
+     * @param intensityLimit the lower limit for the intensity of the peaks to
+     * index, ignored if null
+     * @param tolerance the m/z tolerance to use
+     * @param ppm boolean indicating whether the tolerance is in ppm
+     *
+     * @return an index of the peaks
+     */
+    public SpectrumIndex getSpectrumIndex(Double intensityLimit, double tolerance, boolean ppm) {
+        SpectrumIndex result = spectrumIndex;
+        if (result == null || !result.isIndexOf(intensityLimit, tolerance, ppm)) {
+            synchronized (this) {
+                result = spectrumIndex;
+                if (result == null || !result.isIndexOf(intensityLimit, tolerance, ppm)) {
+                    result = new SpectrumIndex(mzValues, intensityValues, intensityLimit, tolerance, ppm);
+                    spectrumIndex = result;
+                }
+            }
+        }
+        return result;
     }
 
     /**
-     * Adds a peak to the spectrum peak list.
+     * Adds a peak to the spectrum peak list. If a peak is already present at
+     * this m/z it is replaced.
      *
      * @param aPeak the peak to add
      */
     public synchronized void addPeak(Peak aPeak) {
-        if (peakList == null) {
-            peakList = new HashMap<Double, Peak>();
+        int index = Arrays.binarySearch(mzValues, aPeak.mz);
+        if (index >= 0) {
+            double[] newIntensities = intensityValues.clone();
+            newIntensities[index] = aPeak.intensity;
+            intensityValues = newIntensities;
+        } else {
+            index = -index - 1;
+            int nPeaks = mzValues.length;
+            double[] newMz = new double[nPeaks + 1];
+            double[] newIntensities = new double[nPeaks + 1];
+            System.arraycopy(mzValues, 0, newMz, 0, index);
+            System.arraycopy(intensityValues, 0, newIntensities, 0, index);
+            newMz[index] = aPeak.mz;
+            newIntensities[index] = aPeak.intensity;
+            System.arraycopy(mzValues, index, newMz, index + 1, nPeaks - index);
+            System.arraycopy(intensityValues, index, newIntensities, index + 1, nPeaks - index);
+            mzValues = newMz;
+            intensityValues = newIntensities;
         }
-        this.peakList.put(aPeak.mz, aPeak);
         resetSavedData();
     }
 
     /**
-     * Set the peaks.
+     * Set the peaks. The retention time of the peaks is retained if shared by
+     * all peaks.
      *
      * @param peaks the peaks to set
      */
     public synchronized void setPeaks(ArrayList<Peak> peaks) {
+        double[] mz = new double[peaks.size()];
+        double[] intensity = new double[peaks.size()];
+        double rt = peaks.isEmpty() ? 0.0 : peaks.get(0).rt;
+        for (int i = 0; i < mz.length; i++) {
+            Peak peak = peaks.get(i);
+            mz[i] = peak.mz;
+            intensity[i] = peak.intensity;
+            if (peak.rt != rt) {
+                rt = 0.0;
+            }
+        }
+        peaksRetentionTime = rt;
+        setPeaks(mz, intensity);
+    }
 
-        if (peakList != null) {
-            this.peakList.clear();
-        } else {
-            peakList = new HashMap<Double, Peak>();
+    /**
+     * Sets the peaks. The arrays are used as such if the m/z values are
+     * strictly increasing, sorted copies are used otherwise. For peaks sharing
+     * the same m/z, the last peak is retained.
+     *
+     * @param mz the m/z values of the peaks
+     * @param intensity the intensities of the peaks
+     */
+    public synchronized void setPeaks(double[] mz, double[] intensity) {
+
+        if (mz.length != intensity.length) {
+            throw new IllegalArgumentException("The number of m/z values (" + mz.length + ") and intensities (" + intensity.length + ") differ.");
+        }
+
+        boolean sorted = true;
+        for (int i = 1; i < mz.length; i++) {
+            if (!(mz[i - 1] < mz[i])) {
+                sorted = false;
+                break;
+            }
         }
 
-        for (Peak p : peaks) {
-            double mz = p.mz;
-            peakList.put(mz, p);
+        if (sorted) {
+            mzValues = mz;
+            intensityValues = intensity;
+        } else {
+            sortPeaks(mz, intensity);
         }
 
         resetSavedData();
     }
 
+    /**
+     * Sets the peak arrays from unsorted m/z and intensity arrays.
+     *
+     * @param mz the m/z values of the peaks
+     * @param intensity the intensities of the peaks
+     */
+    private void sortPeaks(final double[] mz, double[] intensity) {
+
+        Integer[] order = new Integer[mz.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // the sort is stable, the last of the peaks sharing an m/z thus comes last
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(mz[o1], mz[o2]);
+            }
+        });
+
+        double[] sortedMz = new double[mz.length];
+        double[] sortedIntensity = new double[mz.length];
+        int nPeaks = 0;
+        for (int index : order) {
+            if (nPeaks > 0 && sortedMz[nPeaks - 1] == mz[index]) {
+                sortedIntensity[nPeaks - 1] = intensity[index];
+            } else {
+                sortedMz[nPeaks] = mz[index];
+                sortedIntensity[nPeaks] = intensity[index];
+                nPeaks++;
+            }
+        }
+
+        if (nPeaks < mz.length) {
+            sortedMz = Arrays.copyOf(sortedMz, nPeaks);
+            sortedIntensity = Arrays.copyOf(sortedIntensity, nPeaks);
+        }
+
+        mzValues = sortedMz;
+        intensityValues = sortedIntensity;
+    }
+
     /**
      * Getter for the scan number.
      *
@@ -288,10 +426,10 @@ public abstract class Spectrum extends ExperimentObject {
     public String getFileName() {
         return fileName;
     }
-    
+
     /**
      * Sets the file name.
-     * 
+     *
      * @param fileName the file name
      */
     public void setFileName(String fileName) {
@@ -313,7 +451,7 @@ public abstract class Spectrum extends ExperimentObject {
      * @return the peak list
      */
     public Collection<Peak> getPeakList() {
-        return peakList.values();
+        return getPeakMap().values();
     }
 
     /**
@@ -322,8 +460,11 @@ public abstract class Spectrum extends ExperimentObject {
      * @param peakList HashSet of peaks containing the peaks of the spectrum
      */
     public synchronized void setPeakList(HashMap<Double, Peak> peakList) {
-        this.peakList = peakList;
-        resetSavedData();
+        if (peakList == null) {
+            removePeakList();
+        } else {
+            setPeaks(new ArrayList<Peak>(peakList.values()));
+        }
     }
 
     /**
@@ -339,24 +480,23 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (peakListAsString == null) {
 
-            double[] mzValues = getOrderedMzValues();
+            double[] mz = mzValues;
+            double[] intensity = intensityValues;
             mutex.acquire();
 
             StringBuilder sb = new StringBuilder();
             sb.append("[");
 
-            for (double mzValue : mzValues) {
+            for (int i = 0; i < mz.length; i++) {
 
-                if (sb.length() > 1) {
+                if (i > 0) {
                     sb.append(",");
                 }
 
-                Peak currentPeak = peakList.get(mzValue);
-
                 sb.append("[");
-                sb.append(currentPeak.mz);
+                sb.append(mz[i]);
                 sb.append(",");
-                sb.append(currentPeak.intensity);
+                sb.append(intensity[i]);
                 sb.append("]");
             }
 
@@ -369,6 +509,25 @@ public abstract class Spectrum extends ExperimentObject {
         return peakListAsString;
     }
 
+    /**
+     * Returns the retention time of the peaks.
+     *
+     * @return the retention time of the peaks
+     */
+    public double getPeaksRetentionTime() {
+        return peaksRetentionTime;
+    }
+
+    /**
+     * Sets the retention time of the peaks.
+     *
+     * @param peaksRetentionTime the retention time of the peaks
+     */
+    public synchronized void setPeaksRetentionTime(double peaksRetentionTime) {
+        this.peaksRetentionTime = peaksRetentionTime;
+        resetSavedData();
+    }
+
     /**
      * Returns the scan start time.
      *
@@ -392,14 +551,33 @@ public abstract class Spectrum extends ExperimentObject {
      * consumption of the model.
      */
     public synchronized void removePeakList() {
-        if (peakList != null) {
-            peakList.clear();
-        }
+        mzValues = EMPTY_ARRAY;
+        intensityValues = EMPTY_ARRAY;
+        resetSavedData();
+    }
+
+    /**
+     * Returns the m/z values of the peaks sorted in ascending order. The array
+     * should not be modified.
+     *
+     * @return the m/z values of the peaks
+     */
+    public double[] getMzValues() {
+        return mzValues;
+    }
+
+    /**
+     * Returns the intensities of the peaks in the order of the m/z values. The
+     * array should not be modified.
+     *
+     * @return the intensities of the peaks
+     */
+    public double[] getIntensityValues() {
+        return intensityValues;
     }
 
     /**
-     * Returns the mz values as an array. Note: the array is not necessarily
-     * ordered.
+     * Returns the mz values as an array sorted in ascending order.
      *
      * @return the mz values as an array
      *
@@ -407,20 +585,7 @@ public abstract class Spectrum extends ExperimentObject {
      * interrupted
      */
     public double[] getMzValuesAsArray() throws InterruptedException {
-
-        if (mzValuesAsArray == null) {
-            mutex.acquire();
-            if (mzValuesAsArray == null) {
-                mzValuesAsArray = new double[peakList.size()];
-                int counter = 0;
-                for (double currentMz : peakList.keySet()) {
-                    mzValuesAsArray[counter++] = currentMz;
-                }
-            }
-            mutex.release();
-        }
-
-        return mzValuesAsArray;
+        return mzValues;
     }
 
     /**
@@ -432,30 +597,24 @@ public abstract class Spectrum extends ExperimentObject {
      * interrupted
      */
     public double[] getOrderedMzValues() throws InterruptedException {
-        if (mzValuesOrderedAsArray == null) {
-            getMzValuesAsArray();
-            if (mzValuesOrderedAsArray == null) {
-                mutex.acquire();
-                mzValuesOrderedAsArray = mzValuesAsArray.clone();
-                Arrays.sort(mzValuesOrderedAsArray);
-                mutex.release();
-            }
-        }
-        return mzValuesOrderedAsArray;
+        return mzValues;
     }
 
     /**
-     * Setter for the intensityValuesAsArray.
+     * Sets the intensities of the peaks in the order of the m/z values.
      *
      * @param intensityValuesAsArray the intensity values array
      */
     public synchronized void setIntensityValuesAsArray(double[] intensityValuesAsArray) {
-        this.intensityValuesAsArray = intensityValuesAsArray;
-        removePeakList();
+        if (intensityValuesAsArray.length != mzValues.length) {
+            throw new IllegalArgumentException("The number of intensities (" + intensityValuesAsArray.length + ") and peaks (" + mzValues.length + ") differ.");
+        }
+        this.intensityValues = intensityValuesAsArray;
+        resetSavedData();
     }
 
     /**
-     * Returns the intensity values as an array.
+     * Returns the intensity values as an array in the order of the m/z values.
      *
      * @return the intensity values as an array
      *
@@ -463,20 +622,7 @@ public abstract class Spectrum extends ExperimentObject {
      * interrupted
      */
     public double[] getIntensityValuesAsArray() throws InterruptedException {
-
-        if (intensityValuesAsArray == null || (intensityValuesAsArray.length != peakList.size())) {
-            mutex.acquire();
-            if (intensityValuesAsArray == null || (intensityValuesAsArray.length != peakList.size())) {
-                intensityValuesAsArray = new double[peakList.size()];
-                int counter = 0;
-                for (Peak currentPeak : peakList.values()) {
-                    intensityValuesAsArray[counter++] = currentPeak.intensity;
-                }
-            }
-            mutex.release();
-        }
-
-        return intensityValuesAsArray;
+        return intensityValues;
     }
 
     /**
@@ -492,27 +638,20 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (intensityValuesNormaizedAsArray == null) {
 
+            double highestIntensity = getMaxIntensity();
             mutex.acquire();
 
             if (intensityValuesNormaizedAsArray == null) {
 
-                intensityValuesNormaizedAsArray = new double[peakList.size()];
-
-                double highestIntensity = 0.0;
-                int counter = 0;
-
-                for (Peak currentPeak : peakList.values()) {
-                    intensityValuesNormaizedAsArray[counter++] = currentPeak.intensity;
-                    if (currentPeak.intensity > highestIntensity) {
-                        highestIntensity = currentPeak.intensity;
-                    }
-                }
+                double[] normalizedIntensities = intensityValues.clone();
 
                 if (highestIntensity > 0) {
-                    for (int i = 0; i < intensityValuesNormaizedAsArray.length; i++) {
-                        intensityValuesNormaizedAsArray[i] = intensityValuesNormaizedAsArray[i] / highestIntensity * 100;
+                    for (int i = 0; i < normalizedIntensities.length; i++) {
+                        normalizedIntensities[i] = normalizedIntensities[i] / highestIntensity * 100;
                     }
                 }
+
+                intensityValuesNormaizedAsArray = normalizedIntensities;
             }
 
             mutex.release();
@@ -534,20 +673,10 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (mzAndIntensityAsArray == null) {
 
-            double[] orderedMzValues = getOrderedMzValues();
             mutex.acquire();
 
             if (mzAndIntensityAsArray == null) {
-
-                mzAndIntensityAsArray = new double[2][peakList.size()];
-                int counter = 0;
-
-                for (double mz : orderedMzValues) {
-                    Peak currentPeak = peakList.get(mz);
-                    mzAndIntensityAsArray[0][counter] = currentPeak.mz;
-                    mzAndIntensityAsArray[1][counter] = currentPeak.intensity;
-                    counter++;
-                }
+                mzAndIntensityAsArray = new double[][]{mzValues, intensityValues};
             }
 
             mutex.release();
@@ -572,11 +701,13 @@ public abstract class Spectrum extends ExperimentObject {
 
             if (totalIntensity == null) {
 
-                totalIntensity = 0.0;
+                double total = 0.0;
 
-                for (Peak currentPeak : peakList.values()) {
-                    totalIntensity += currentPeak.intensity;
+                for (double intensity : intensityValues) {
+                    total += intensity;
                 }
+
+                totalIntensity = total;
             }
 
             mutex.release();
@@ -601,13 +732,15 @@ public abstract class Spectrum extends ExperimentObject {
 
             if (maxIntensity == null) {
 
-                maxIntensity = 0.0;
+                double max = 0.0;
 
-                for (Peak currentPeak : peakList.values()) {
-                    if (currentPeak.intensity > maxIntensity) {
-                        maxIntensity = currentPeak.intensity;
+                for (double intensity : intensityValues) {
+                    if (intensity > max) {
+                        max = intensity;
                     }
                 }
+
+                maxIntensity = max;
             }
 
             mutex.release();
@@ -625,23 +758,11 @@ public abstract class Spectrum extends ExperimentObject {
      * interrupted
      */
     public double getMaxMz() throws InterruptedException {
-
-        if (maxMz == null) {
-
-            mutex.acquire();
-            if (maxMz == null) {
-
-                if (peakList.keySet().isEmpty()) {
-                    maxMz = 0.0;
-                } else {
-                    maxMz = Collections.max(peakList.keySet());
-                }
-            }
-
-            mutex.release();
+        double[] mz = mzValues;
+        if (mz.length == 0) {
+            return 0.0;
         }
-
-        return maxMz;
+        return mz[mz.length - 1];
     }
 
     /**
@@ -653,23 +774,11 @@ public abstract class Spectrum extends ExperimentObject {
      * interrupted
      */
     public double getMinMz() throws InterruptedException {
-
-        if (minMz == null) {
-
-            mutex.acquire();
-
-            if (minMz == null) {
-                if (peakList.keySet().isEmpty()) {
-                    minMz = 0.0;
-                } else {
-                    minMz = Collections.min(peakList.keySet());
-                }
-            }
-
-            mutex.release();
+        double[] mz = mzValues;
+        if (mz.length == 0) {
+            return 0.0;
         }
-
-        return minMz;
+        return mz[0];
     }
 
     /**
@@ -685,9 +794,9 @@ public abstract class Spectrum extends ExperimentObject {
 
         ArrayList<Double> peakIntensities = new ArrayList<Double>();
 
-        for (Peak currentPeak : peakList.values()) {
-            if (currentPeak.intensity > threshold) {
-                peakIntensities.add(currentPeak.intensity);
+        for (double intensity : intensityValues) {
+            if (intensity > threshold) {
+                peakIntensities.add(intensity);
             }
         }
 
@@ -703,12 +812,17 @@ public abstract class Spectrum extends ExperimentObject {
      * @return the intensity limit
      */
     public double getIntensityLimit(double intensityFraction) {
-
-        if (intensityLimit == null || intensityLimitLevel != intensityFraction) {
-            intensityLimit = estimateIntneistyLimit(intensityFraction);
-            intensityLimitLevel = intensityFraction;
+        IntensityLimit result = intensityLimit;
+        if (result == null || result.level != intensityFraction) {
+            synchronized (this) {
+                result = intensityLimit;
+                if (result == null || result.level != intensityFraction) {
+                    result = new IntensityLimit(intensityFraction, estimateIntneistyLimit(intensityFraction));
+                    intensityLimit = result;
+                }
+            }
         }
-        return intensityLimit;
+        return result.limit;
     }
 
     /**
@@ -720,20 +834,20 @@ public abstract class Spectrum extends ExperimentObject {
      * @return the intensity limit
      */
     private double estimateIntneistyLimit(double intensityFraction) {
-        ArrayList<Double> intensities = new ArrayList<Double>(peakList.size());
 
-        for (Peak peak : peakList.values()) {
-            double mz = peak.mz;
-            // Skip the low mass region of the spectrum @TODO: skip precursor as well
-            if (mz > 200) {
-                intensities.add(peak.intensity);
-            }
-        }
+        double[] mz = mzValues;
+        double[] intensity = intensityValues;
+
+        // Skip the low mass region of the spectrum @TODO: skip precursor as well
+        int start = Arrays.binarySearch(mz, 200);
+        start = start >= 0 ? start + 1 : -start - 1;
 
-        if (intensities.isEmpty()) {
+        if (start == mz.length) {
             return 0;
         }
 
+        double[] intensities = Arrays.copyOfRange(intensity, start, intensity.length);
+
         return BasicMathFunctions.percentile(intensities, intensityFraction);
     }
 
@@ -746,13 +860,15 @@ public abstract class Spectrum extends ExperimentObject {
      */
     public HashMap<Double, Peak> getRecalibratedPeakList(HashMap<Double, Double> mzCorrections) {
 
-        HashMap<Double, Peak> result = new HashMap<Double, Peak>(peakList.size());
+        double[] mz = mzValues;
+        double[] intensity = intensityValues;
+        HashMap<Double, Peak> result = new HashMap<Double, Peak>(mz.length);
         ArrayList<Double> keys = new ArrayList<Double>(mzCorrections.keySet());
         Collections.sort(keys);
 
-        for (Peak peak : peakList.values()) {
+        for (int j = 0; j < mz.length; j++) {
 
-            double fragmentMz = peak.mz;
+            double fragmentMz = mz[j];
             double key1 = keys.get(0);
             double correction = 0.0;
 
@@ -787,7 +903,7 @@ public abstract class Spectrum extends ExperimentObject {
                 }
             }
 
-            result.put(peak.mz - correction, new Peak(peak.mz - correction, peak.intensity));
+            result.put(fragmentMz - correction, new Peak(fragmentMz - correction, intensity[j]));
         }
 
         return result;
@@ -801,7 +917,7 @@ public abstract class Spectrum extends ExperimentObject {
      * @return a peak list which does not contain the peak matched
      */
     public HashMap<Double, Peak> getDesignaledPeakList(ArrayList<IonMatch> matches) {
-        HashMap<Double, Peak> result = new HashMap<Double, Peak>(peakList);
+        HashMap<Double, Peak> result = new HashMap<Double, Peak>(getPeakMap());
         for (IonMatch ionMatch : matches) {
             result.remove(ionMatch.peak.mz);
         }
@@ -822,13 +938,15 @@ public abstract class Spectrum extends ExperimentObject {
      * interrupted
      */
     public HashMap<Double, Peak> getSubSpectrum(double mzMin, double mzMax) throws InterruptedException {
+        double[] mz = mzValues;
+        double[] intensity = intensityValues;
         HashMap<Double, Peak> result = new HashMap<Double, Peak>();
-        for (double mz : getOrderedMzValues()) {
-            if (mz >= mzMin && mz < mzMax) {
-                result.put(mz, peakList.get(mz));
-            } else if (mz >= mzMax) {
-                break;
-            }
+        int start = Arrays.binarySearch(mz, mzMin);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        for (int i = start; i < mz.length && mz[i] < mzMax; i++) {
+            result.put(mz[i], new Peak(mz[i], intensity[i], peaksRetentionTime));
         }
         return result;
     }
@@ -846,24 +964,27 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (intensityPeakMap == null) {
 
+            HashMap<Double, Peak> peaks = getPeakMap();
             mutex.acquire();
 
             if (intensityPeakMap == null) {
 
-                intensityPeakMap = new HashMap<Double, ArrayList<Peak>>(peakList.size());
+                HashMap<Double, ArrayList<Peak>> intensityMap = new HashMap<Double, ArrayList<Peak>>(peaks.size());
 
-                for (Peak peak : peakList.values()) {
+                for (Peak peak : peaks.values()) {
 
                     double intensity = peak.intensity;
-                    ArrayList<Peak> peaksAtIntensity = intensityPeakMap.get(intensity);
+                    ArrayList<Peak> peaksAtIntensity = intensityMap.get(intensity);
 
                     if (peaksAtIntensity == null) {
                         peaksAtIntensity = new ArrayList<Peak>();
-                        intensityPeakMap.put(intensity, peaksAtIntensity);
+                        intensityMap.put(intensity, peaksAtIntensity);
                     }
 
                     peaksAtIntensity.add(peak);
                 }
+
+                intensityPeakMap = intensityMap;
             }
 
             mutex.release();
@@ -878,10 +999,7 @@ public abstract class Spectrum extends ExperimentObject {
      * @return the number of peaks in the spectrum
      */
     public int getNPeaks() {
-        if (peakList == null) {
-            return 0;
-        }
-        return peakList.size();
+        return mzValues.length;
     }
 
     /**
@@ -897,18 +1015,15 @@ public abstract class Spectrum extends ExperimentObject {
      * Resets all the saved values to null. Used after altering the peak data.
      */
     private void resetSavedData() {
+        peakMap = null;
+        spectrumIndex = null;
         jFreePeakList = null;
         peakListAsString = null;
-        mzValuesAsArray = null;
-        mzValuesOrderedAsArray = null;
-        intensityValuesAsArray = null;
         intensityValuesNormaizedAsArray = null;
         binnedCumulativeFunction = null;
         mzAndIntensityAsArray = null;
         totalIntensity = null;
         maxIntensity = null;
-        maxMz = null;
-        minMz = null;
         intensityPeakMap = null;
         intensityLimit = null;
     }
@@ -927,10 +1042,60 @@ public abstract class Spectrum extends ExperimentObject {
         if (binnedCumulativeFunction == null) {
             mutex.acquire();
             if (binnedCumulativeFunction == null) {
-                binnedCumulativeFunction = new SimpleNoiseDistribution(peakList);
+                binnedCumulativeFunction = new SimpleNoiseDistribution(intensityValues);
             }
             mutex.release();
         }
         return binnedCumulativeFunction;
     }
+
+    /**
+     * Reads the spectrum from a stream and migrates the peak list of spectra
+     * serialized by former versions of this class to the peak arrays.
+     *
+     * @param in the stream to read from
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the stream
+     * @throws ClassNotFoundException exception thrown whenever a class of the
+     * stream could not be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (mzValues == null || intensityValues == null) {
+            mzValues = EMPTY_ARRAY;
+            intensityValues = EMPTY_ARRAY;
+        }
+        if (peakList != null) {
+            HashMap<Double, Peak> legacyPeaks = peakList;
+            peakList = null;
+            setPeaks(new ArrayList<Peak>(legacyPeaks.values()));
+        }
+    }
+
+    /**
+     * An intensity limit and the intensity level it was estimated for.
+     */
+    private static class IntensityLimit {
+
+        /**
+         * The fraction of the intensity used as limit.
+         */
+        final double level;
+        /**
+         * The intensity limit.
+         */
+        final double limit;
+
+        /**
+         * Constructor.
+         *
+         * @param level the fraction of the intensity used as limit
+         * @param limit the intensity limit
+         */
+        IntensityLimit(double level, double limit) {
+            this.level = level;
+            this.limit = limit;
+        }
+    }
 }
@@ -1,5 +1,7 @@
 package com.compomics.util.experiment.massspectrometry;
 
+import com.compomics.util.experiment.io.massspectrometry.MappedMgfFile;
+import com.compomics.util.experiment.io.massspectrometry.CompactMgfIndex;
 import com.compomics.util.experiment.io.massspectrometry.MgfIndex;
 import com.compomics.util.experiment.io.massspectrometry.MgfReader;
 import com.compomics.util.waiting.WaitingHandler;
@@ -9,6 +11,7 @@ import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
 import uk.ac.ebi.jmzml.model.mzml.BinaryDataArray;
 import uk.ac.ebi.jmzml.model.mzml.CVParam;
@@ -34,11 +37,11 @@ public class SpectrumFactory {
     /**
      * Map of already loaded spectra.
      */
-    private HashMap<String, HashMap<String, Spectrum>> currentSpectrumMap = new HashMap<String, HashMap<String, Spectrum>>();
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, Spectrum>> currentSpectrumMap = new ConcurrentHashMap<String, ConcurrentHashMap<String, Spectrum>>();
     /**
      * Map of already loaded precursors.
      */
-    private HashMap<String, HashMap<String, Precursor>> loadedPrecursorsMap = new HashMap<String, HashMap<String, Precursor>>();
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, Precursor>> loadedPrecursorsMap = new ConcurrentHashMap<String, ConcurrentHashMap<String, Precursor>>();
     /**
      * Maximal number of spectra in cache. By default 1000000, which corresponds to approx. 110MB.
      */
@@ -56,10 +59,19 @@ public class SpectrumFactory {
      * random access file).
      */
     private HashMap<String, BufferedRandomAccessFile> mgfRandomAccessFilesMap = new HashMap<String, BufferedRandomAccessFile>();
+    /**
+     * Map of the memory mapped mgf files (filename &gt; mapped file). Read
+     * without lock by the memory mapped spectrum accessors.
+     */
+    private ConcurrentHashMap<String, MappedMgfFile> mappedMgfFilesMap = new ConcurrentHashMap<String, MappedMgfFile>();
+    /**
+     * Boolean indicating whether the mgf files should be memory mapped.
+     */
+    private boolean memoryMappedMgf = false;
     /**
      * Map of the mgf indexes (fileName &gt; mgf index).
      */
-    private HashMap<String, MgfIndex> mgfIndexesMap = new HashMap<String, MgfIndex>();
+    private ConcurrentHashMap<String, MgfIndex> mgfIndexesMap = new ConcurrentHashMap<String, MgfIndex>();
     /**
      * Map of the mzML unmarshallers (fileName &gt; unmarshaller).
      */
@@ -116,6 +128,7 @@ public class SpectrumFactory {
         loadedSpectra.clear();
         filesMap.clear();
         mgfRandomAccessFilesMap.clear();
+        mappedMgfFilesMap.clear();
         mgfIndexesMap.clear();
         mzMLUnmarshallers.clear();
         idToSpectrumName.clear();
@@ -148,6 +161,28 @@ public class SpectrumFactory {
         return nSpectraCache;
     }
 
+    /**
+     * Indicates whether the mgf files are memory mapped.
+     *
+     * @return a boolean indicating whether the mgf files are memory mapped
+     */
+    public boolean isMemoryMappedMgf() {
+        return memoryMappedMgf;
+    }
+
+    /**
+     * Sets whether the mgf files added from now on should be memory mapped.
+     * Spectra and precursors of memory mapped files are parsed from the
+     * mapped bytes without locking the factory, allowing multiple threads to
+     * read spectra in parallel.
+     *
+     * @param memoryMappedMgf a boolean indicating whether the mgf files should
+     * be memory mapped
+     */
+    public void setMemoryMappedMgf(boolean memoryMappedMgf) {
+        this.memoryMappedMgf = memoryMappedMgf;
+    }
+
     /**
      * Add spectra to the factory.
      *
@@ -221,7 +256,11 @@ public class SpectrumFactory {
                 throw new IllegalArgumentException("An error occurred while indexing " + spectrumFile.getAbsolutePath());
             }
 
-            mgfRandomAccessFilesMap.put(fileName, new BufferedRandomAccessFile(spectrumFile, "r", 1024 * 100));
+            if (memoryMappedMgf) {
+                mappedMgfFilesMap.put(fileName, new MappedMgfFile(spectrumFile));
+            } else {
+                mgfRandomAccessFilesMap.put(fileName, new BufferedRandomAccessFile(spectrumFile, "r", 1024 * 100));
+            }
             mgfIndexesMap.put(fileName, mgfIndex);
 
         } else if (fileName.toLowerCase().endsWith(".mzml")) {
@@ -276,23 +315,57 @@ public class SpectrumFactory {
      * not parsed correctly
      */
     public Precursor getPrecursor(String fileName, String spectrumTitle, boolean save) throws IOException, MzMLUnmarshallerException {
-        HashMap<String, Spectrum> fileSpectrumMap = currentSpectrumMap.get(fileName);
+        ConcurrentHashMap<String, Spectrum> fileSpectrumMap = currentSpectrumMap.get(fileName);
         if (fileSpectrumMap != null) {
             Spectrum spectrum = fileSpectrumMap.get(spectrumTitle);
             if (spectrum != null) {
                 return ((MSnSpectrum) spectrum).getPrecursor();
             }
         }
-        HashMap<String, Precursor> filePrecursorMap = loadedPrecursorsMap.get(fileName);
+        ConcurrentHashMap<String, Precursor> filePrecursorMap = loadedPrecursorsMap.get(fileName);
         if (filePrecursorMap != null) {
             Precursor currentPrecursor = filePrecursorMap.get(spectrumTitle);
             if (currentPrecursor != null) {
                 return currentPrecursor;
             }
         }
+        MappedMgfFile mappedMgfFile = mappedMgfFilesMap.get(fileName);
+        if (mappedMgfFile != null) {
+            return getPrecursor(mappedMgfFile, fileName, spectrumTitle, save);
+        }
         return getPrecursor(fileName, spectrumTitle, save, 1);
     }
 
+    /**
+     * Returns the precursor of the desired spectrum from a memory mapped mgf
+     * file. The factory is not locked while parsing the precursor.
+     *
+     * @param mappedMgfFile the memory mapped mgf file
+     * @param fileName the name of the spectrum file
+     * @param spectrumTitle the title of the spectrum
+     * @param save if true the precursor will be saved in cache
+     *
+     * @return the corresponding precursor
+     *
+     * @throws IOException exception thrown whenever the file was not parsed
+     * correctly
+     */
+    private Precursor getPrecursor(MappedMgfFile mappedMgfFile, String fileName, String spectrumTitle, boolean save) throws IOException {
+
+        // a special fix for mgf files with strange titles...
+        spectrumTitle = fixMgfTitle(spectrumTitle, fileName);
+
+        Long index = mgfIndexesMap.get(fileName).getIndex(spectrumTitle);
+        if (index == null) {
+            throw new IOException("Spectrum \'" + spectrumTitle + "\' in mgf file \'" + fileName + "\' not found.");
+        }
+        Precursor precursor = MgfReader.getPrecursor(mappedMgfFile, index, fileName);
+        if (save) {
+            savePrecursor(fileName, spectrumTitle, precursor);
+        }
+        return precursor;
+    }
+
     /**
      * Returns the precursor of the desired spectrum. The value will be saved in
      * cache.
@@ -695,17 +768,28 @@ public class SpectrumFactory {
             throw new IllegalArgumentException("Spectrum file format not supported.");
         }
         if (save) {
-            HashMap<String, Precursor> fileMap = loadedPrecursorsMap.get(fileName);
-            if (fileMap == null) {
-                fileMap = new HashMap<String, Precursor>();
-                loadedPrecursorsMap.put(fileName, fileMap);
-            }
-            fileMap.put(spectrumTitle, currentPrecursor);
+            savePrecursor(fileName, spectrumTitle, currentPrecursor);
         }
 
         return currentPrecursor;
     }
 
+    /**
+     * Saves a precursor in cache.
+     *
+     * @param fileName the name of the spectrum file
+     * @param spectrumTitle the title of the spectrum
+     * @param precursor the precursor
+     */
+    private synchronized void savePrecursor(String fileName, String spectrumTitle, Precursor precursor) {
+        ConcurrentHashMap<String, Precursor> fileMap = loadedPrecursorsMap.get(fileName);
+        if (fileMap == null) {
+            fileMap = new ConcurrentHashMap<String, Precursor>();
+            loadedPrecursorsMap.put(fileName, fileMap);
+        }
+        fileMap.put(spectrumTitle, precursor);
+    }
+
     /**
      * Returns the desired spectrum.
      *
@@ -720,16 +804,47 @@ public class SpectrumFactory {
      * occurred while parsing the mzML file
      */
     public Spectrum getSpectrum(String spectrumFile, String spectrumTitle) throws IOException, MzMLUnmarshallerException {
-        HashMap<String, Spectrum> fileMap = currentSpectrumMap.get(spectrumFile);
+        ConcurrentHashMap<String, Spectrum> fileMap = currentSpectrumMap.get(spectrumFile);
         if (fileMap != null) {
             Spectrum currentSpectrum = fileMap.get(spectrumTitle);
             if (currentSpectrum != null) {
                 return currentSpectrum;
             }
         }
+        MappedMgfFile mappedMgfFile = mappedMgfFilesMap.get(spectrumFile);
+        if (mappedMgfFile != null) {
+            return getSpectrum(mappedMgfFile, spectrumFile, spectrumTitle);
+        }
         return getSpectrum(spectrumFile, spectrumTitle, 1);
     }
 
+    /**
+     * Returns the desired spectrum from a memory mapped mgf file. The factory
+     * is not locked while parsing the spectrum.
+     *
+     * @param mappedMgfFile the memory mapped mgf file
+     * @param spectrumFile the name of the spectrum file
+     * @param spectrumTitle the title of the spectrum
+     *
+     * @return the desired spectrum
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private Spectrum getSpectrum(MappedMgfFile mappedMgfFile, String spectrumFile, String spectrumTitle) throws IOException {
+
+        // a special fix for mgf files with strange titles...
+        spectrumTitle = fixMgfTitle(spectrumTitle, spectrumFile);
+
+        Long index = mgfIndexesMap.get(spectrumFile).getIndex(spectrumTitle);
+        if (index == null) {
+            throw new IOException("Spectrum \'" + spectrumTitle + "\' in mgf file \'" + spectrumFile + "\' not found!");
+        }
+        Spectrum spectrum = MgfReader.getSpectrum(mappedMgfFile, index, spectrumFile);
+        saveSpectrum(spectrumFile, spectrumTitle, spectrum);
+        return spectrum;
+    }
+
     /**
      * Returns the desired spectrum.
      *
@@ -851,44 +966,64 @@ public class SpectrumFactory {
             Number[] mzNumbers = mzBinaryDataArray.getBinaryDataAsNumberArray();
             BinaryDataArray intBinaryDataArray = (BinaryDataArray) bdal.get(1);
             Number[] intNumbers = intBinaryDataArray.getBinaryDataAsNumberArray();
-            HashMap<Double, Peak> peakList = new HashMap<Double, Peak>();
+            double[] mzValues = new double[mzNumbers.length];
+            double[] intensityValues = new double[mzNumbers.length];
             for (int i = 0; i < mzNumbers.length; i++) {
-                peakList.put(mzNumbers[i].doubleValue(), new Peak(mzNumbers[i].doubleValue(), intNumbers[i].doubleValue(), scanTime));
+                mzValues[i] = mzNumbers[i].doubleValue();
+                intensityValues[i] = intNumbers[i].doubleValue();
             }
             if (level == 1) {
-                currentSpectrum = new MS1Spectrum(spectrumFile, spectrumTitle, scanTime, peakList);
+                currentSpectrum = new MS1Spectrum(spectrumFile, spectrumTitle, scanTime, mzValues, intensityValues);
+                currentSpectrum.setPeaksRetentionTime(scanTime);
             } else {
                 //@TODO: is this the correct way to set the precursor..?
                 ArrayList<Charge> charges = new ArrayList<Charge>();
                 charges.add(new Charge(Charge.PLUS, chargePrec));
                 Precursor precursor = new Precursor(scanTime, mzPrec, charges);
-                currentSpectrum = new MSnSpectrum(level, precursor, spectrumTitle, peakList, spectrumFile, scanTime);
+                MSnSpectrum msnSpectrum = new MSnSpectrum(level, precursor, spectrumTitle, mzValues, intensityValues, spectrumFile);
+                msnSpectrum.setScanStartTime(scanTime);
+                msnSpectrum.setPeaksRetentionTime(scanTime);
+                currentSpectrum = msnSpectrum;
             }
         } else {
             throw new IllegalArgumentException("Spectrum file format not supported.");
         }
-        if (loadedSpectra.size() == nSpectraCache) {
+        saveSpectrum(spectrumFile, spectrumTitle, currentSpectrum);
+        return currentSpectrum;
+    }
+
+    /**
+     * Saves a spectrum in cache, the oldest spectrum is removed from the cache
+     * if full.
+     *
+     * @param spectrumFile the name of the spectrum file
+     * @param spectrumTitle the title of the spectrum
+     * @param spectrum the spectrum
+     */
+    private synchronized void saveSpectrum(String spectrumFile, String spectrumTitle, Spectrum spectrum) {
+        if (loadedSpectra.size() >= nSpectraCache) {
             String tempKey = loadedSpectra.pollFirst();
             String tempFile = Spectrum.getSpectrumFile(tempKey);
-            HashMap<String, Spectrum> fileMap = currentSpectrumMap.get(tempFile);
+            ConcurrentHashMap<String, Spectrum> fileMap = currentSpectrumMap.get(tempFile);
             if (fileMap != null) {
                 String tempTitle = Spectrum.getSpectrumTitle(tempKey);
                 fileMap.remove(tempTitle);
             }
         }
-        HashMap<String, Spectrum> fileMap = currentSpectrumMap.get(spectrumFile);
+        ConcurrentHashMap<String, Spectrum> fileMap = currentSpectrumMap.get(spectrumFile);
         if (fileMap == null) {
-            fileMap = new HashMap<String, Spectrum>();
+            fileMap = new ConcurrentHashMap<String, Spectrum>();
             currentSpectrumMap.put(spectrumFile, fileMap);
         }
-        fileMap.put(spectrumTitle, currentSpectrum);
-        String spectrumKey = Spectrum.getSpectrumKey(spectrumFile, spectrumTitle);
-        loadedSpectra.add(spectrumKey);
-        return currentSpectrum;
+        if (fileMap.put(spectrumTitle, spectrum) == null) {
+            String spectrumKey = Spectrum.getSpectrumKey(spectrumFile, spectrumTitle);
+            loadedSpectra.add(spectrumKey);
+        }
     }
 
     /**
-     * Writes the given mgf file index in the given directory.
+     * Writes the given mgf file index in the given directory using the binary
+     * format of the compact mgf index.
      *
      * @param mgfIndex the mgf file index
      * @param directory the destination directory
@@ -897,11 +1032,14 @@ public class SpectrumFactory {
      */
     public void writeIndex(MgfIndex mgfIndex, File directory) throws IOException {
         File indexFile = new File(directory, getIndexName(mgfIndex.getFileName()));
-        SerializationUtils.writeObject(mgfIndex, indexFile);
+        CompactMgfIndex compactMgfIndex = mgfIndex instanceof CompactMgfIndex ? (CompactMgfIndex) mgfIndex : new CompactMgfIndex(mgfIndex);
+        compactMgfIndex.write(indexFile);
     }
 
     /**
-     * Deserializes the index of an mgf file.
+     * Reads the index of an mgf file. Binary index files are mapped in memory,
+     * serialized indexes of previous versions are deserialized and converted
+     * to compact indexes.
      *
      * @param mgfIndex the mgf index cui file
      * @return the corresponding mgf index object
@@ -913,7 +1051,10 @@ public class SpectrumFactory {
      * occurred while deserializing the object
      */
     public MgfIndex getIndex(File mgfIndex) throws FileNotFoundException, IOException, ClassNotFoundException {
-        return (MgfIndex) SerializationUtils.readObject(mgfIndex);
+        if (CompactMgfIndex.isCompactIndex(mgfIndex)) {
+            return CompactMgfIndex.read(mgfIndex);
+        }
+        return new CompactMgfIndex((MgfIndex) SerializationUtils.readObject(mgfIndex));
     }
 
     /**
@@ -926,6 +1067,9 @@ public class SpectrumFactory {
         for (BufferedRandomAccessFile randomAccessFile : mgfRandomAccessFilesMap.values()) {
             randomAccessFile.close();
         }
+        for (MappedMgfFile mappedMgfFile : mappedMgfFilesMap.values()) {
+            mappedMgfFile.close();
+        }
     }
 
     /**
@@ -934,7 +1078,7 @@ public class SpectrumFactory {
      * @return a list of loaded mgf files
      */
     public ArrayList<String> getMgfFileNames() {
-        return new ArrayList<String>(mgfRandomAccessFilesMap.keySet());
+        return new ArrayList<String>(mgfIndexesMap.keySet());
     }
 
     /**
@@ -3,29 +3,49 @@ package com.compomics.util.experiment.massspectrometry.indexes;
 import com.compomics.util.experiment.massspectrometry.Peak;
 import com.compomics.util.experiment.personalization.UrParameter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import org.apache.commons.math.util.FastMath;
 
 /**
- * This map stores the fragment ions indexed by mass.
+ * This index stores the peaks of a spectrum in arrays sorted by m/z. The peaks
+ * matching an m/z are found by binary search. The index is not modified after
+ * creation and can be shared between threads.
  *
  * @author Marc Vaudel
  */
 public class SpectrumIndex implements UrParameter {
 
+    /**
+     * Empty array used for indexes without peaks.
+     */
+    private static final double[] EMPTY_ARRAY = new double[0];
     /**
      * The precursor mass tolerance.
      */
-    double precursorTolerance;
+    final double precursorTolerance;
     /**
      * Boolean indicating whether the precursor mass tolerance is in ppm.
      */
-    boolean ppm;
+    final boolean ppm;
+    /**
+     * The intensity limit used to select the peaks, null if none.
+     */
+    private final Double intensityLimit;
+    /**
+     * The m/z of the indexed peaks sorted in ascending order.
+     */
+    private final double[] mzValues;
     /**
-     * Map of the precursors by bin and m/z.
+     * The intensities of the indexed peaks in the order of the m/z values.
      */
-    private HashMap<Integer, HashMap<Double, Peak>> peaksMap;
+    private final double[] intensityValues;
+    /**
+     * The indexed peaks in the order of the m/z values.
+     */
+    private final Peak[] peaks;
     /**
      * An m/z anchor to determine the bins in ppm
      */
@@ -37,25 +57,17 @@ public class SpectrumIndex implements UrParameter {
     /**
      * The scaling factor used for the bins in ppm.
      */
-    private double scalingFactor;
-    /**
-     * The highest bin in index.
-     */
-    private Integer binMax;
-    /**
-     * The lowest bin in index.
-     */
-    private Integer binMin;
+    private final double scalingFactor;
     /**
      * The total intensity above the intensity threshold.
      */
-    private Double totalIntensity;
+    private final Double totalIntensity;
 
     /**
      * Constructor for an empty index.
      */
     public SpectrumIndex() {
-
+        this(0.0, false, null, new Peak[0], 0.0);
     }
 
     /**
@@ -68,33 +80,163 @@ public class SpectrumIndex implements UrParameter {
      * @param ppm boolean indicating whether the tolerance is in ppm
      */
     public SpectrumIndex(HashMap<Double, Peak> peaks, Double intenstiyLimit, double tolerance, boolean ppm) {
-        this.peaksMap = new HashMap<Integer, HashMap<Double, Peak>>();
+        this(tolerance, ppm, intenstiyLimit, getPeaks(peaks.values(), intenstiyLimit), getTotalIntensity(peaks.values(), intenstiyLimit));
+    }
+
+    /**
+     * Builds a new index from the m/z and intensity arrays of a spectrum. Peak
+     * objects are only created for the peaks above the intensity limit.
+     *
+     * @param mz the m/z values of the peaks
+     * @param intensity the intensities of the peaks
+     * @param intenstiyLimit a lower limit for the intensity of the peaks to
+     * index
+     * @param tolerance the tolerance to use
+     * @param ppm boolean indicating whether the tolerance is in ppm
+     */
+    public SpectrumIndex(double[] mz, double[] intensity, Double intenstiyLimit, double tolerance, boolean ppm) {
+        this(tolerance, ppm, intenstiyLimit, getPeaks(mz, intensity, intenstiyLimit), getTotalIntensity(intensity, intenstiyLimit));
+    }
+
+    /**
+     * Creates an index of the given peaks.
+     *
+     * @param tolerance the tolerance to use
+     * @param ppm boolean indicating whether the tolerance is in ppm
+     * @param intensityLimit the intensity limit used to select the peaks
+     * @param peaks the peaks to index
+     * @param totalIntensity the total intensity of the peaks
+     */
+    private SpectrumIndex(double tolerance, boolean ppm, Double intensityLimit, Peak[] peaks, double totalIntensity) {
+
         this.precursorTolerance = tolerance;
         this.ppm = ppm;
+        this.intensityLimit = intensityLimit;
+        this.totalIntensity = totalIntensity;
+
         if (ppm) {
             scalingFactor = FastMath.log((1000000 - tolerance) / (1000000 + tolerance));
+        } else {
+            scalingFactor = 0.0;
         }
-        totalIntensity = 0.0;
-        for (Peak peak : peaks.values()) {
-            if (intenstiyLimit == null || peak.intensity >= intenstiyLimit) {
-                totalIntensity += peak.intensity;
-                Integer bin = getBin(peak.mz);
-                if (binMax == null || bin > binMax) {
-                    binMax = bin;
-                }
-                if (binMin == null || bin < binMin) {
-                    binMin = bin;
-                }
-                HashMap<Double, Peak> peaksInBin = peaksMap.get(bin);
-                if (peaksInBin == null) {
-                    peaksInBin = new HashMap<Double, Peak>(4);
-                    peaksMap.put(bin, peaksInBin);
-                }
-                peaksInBin.put(peak.mz, peak);
+
+        for (int i = 1; i < peaks.length; i++) {
+            if (peaks[i - 1].mz > peaks[i].mz) {
+                Arrays.sort(peaks, Peak.AscendingMzComparator);
+                break;
+            }
+        }
+
+        this.peaks = peaks;
+
+        if (peaks.length == 0) {
+            mzValues = EMPTY_ARRAY;
+            intensityValues = EMPTY_ARRAY;
+        } else {
+            mzValues = new double[peaks.length];
+            intensityValues = new double[peaks.length];
+            for (int i = 0; i < peaks.length; i++) {
+                mzValues[i] = peaks[i].mz;
+                intensityValues[i] = peaks[i].intensity;
             }
         }
     }
 
+    /**
+     * Returns the peaks above the intensity limit.
+     *
+     * @param peaks the peaks
+     * @param intensityLimit the intensity limit, ignored if null
+     *
+     * @return the peaks above the intensity limit
+     */
+    private static Peak[] getPeaks(Iterable<Peak> peaks, Double intensityLimit) {
+        ArrayList<Peak> result = new ArrayList<Peak>();
+        for (Peak peak : peaks) {
+            if (intensityLimit == null || peak.intensity >= intensityLimit) {
+                result.add(peak);
+            }
+        }
+        return result.toArray(new Peak[result.size()]);
+    }
+
+    /**
+     * Returns the peaks above the intensity limit.
+     *
+     * @param mz the m/z values of the peaks
+     * @param intensity the intensities of the peaks
+     * @param intensityLimit the intensity limit, ignored if null
+     *
+     * @return the peaks above the intensity limit
+     */
+    private static Peak[] getPeaks(double[] mz, double[] intensity, Double intensityLimit) {
+        int nPeaks = 0;
+        for (int i = 0; i < mz.length; i++) {
+            if (intensityLimit == null || intensity[i] >= intensityLimit) {
+                nPeaks++;
+            }
+        }
+        Peak[] result = new Peak[nPeaks];
+        int peakIndex = 0;
+        for (int i = 0; i < mz.length; i++) {
+            if (intensityLimit == null || intensity[i] >= intensityLimit) {
+                result[peakIndex++] = new Peak(mz[i], intensity[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total intensity of the peaks above the intensity limit.
+     *
+     * @param peaks the peaks
+     * @param intensityLimit the intensity limit, ignored if null
+     *
+     * @return the total intensity of the peaks above the intensity limit
+     */
+    private static double getTotalIntensity(Iterable<Peak> peaks, Double intensityLimit) {
+        double result = 0.0;
+        for (Peak peak : peaks) {
+            if (intensityLimit == null || peak.intensity >= intensityLimit) {
+                result += peak.intensity;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total intensity of the peaks above the intensity limit.
+     *
+     * @param intensity the intensities of the peaks
+     * @param intensityLimit the intensity limit, ignored if null
+     *
+     * @return the total intensity of the peaks above the intensity limit
+     */
+    private static double getTotalIntensity(double[] intensity, Double intensityLimit) {
+        double result = 0.0;
+        for (int i = 0; i < intensity.length; i++) {
+            if (intensityLimit == null || intensity[i] >= intensityLimit) {
+                result += intensity[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Indicates whether this index was built with the given settings.
+     *
+     * @param intensityLimit the intensity limit
+     * @param tolerance the tolerance
+     * @param ppm boolean indicating whether the tolerance is in ppm
+     *
+     * @return a boolean indicating whether this index was built with the given
+     * settings
+     */
+    public boolean isIndexOf(Double intensityLimit, double tolerance, boolean ppm) {
+        return this.ppm == ppm && precursorTolerance == tolerance
+                && (this.intensityLimit == null ? intensityLimit == null : this.intensityLimit.equals(intensityLimit));
+    }
+
     /**
      * Returns the bin corresponding to the given m/z.
      *
@@ -137,64 +279,167 @@ public class SpectrumIndex implements UrParameter {
     }
 
     /**
-     * Returns the peaks matching the given m/z. TODO: check only one/two bins
-     * when possible.
+     * Returns the error between the given peak m/z and the queried m/z.
+     *
+     * @param peakMz the m/z of the peak
+     * @param mz the queried m/z
+     *
+     * @return the error
+     */
+    private double getError(double peakMz, double mz) {
+        if (ppm) {
+            return 1000000 * (peakMz - mz) / mz;
+        } else {
+            return peakMz - mz;
+        }
+    }
+
+    /**
+     * Returns the index of the first peak matching the given m/z. If no peak
+     * matches, the start and end of the matching peaks are equal.
+     *
+     * @param mz a m/z to query
+     *
+     * @return the index of the first peak matching the given m/z
+     */
+    public int getMatchingPeaksStart(double mz) {
+        int low = 0;
+        int high = mzValues.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getError(mzValues[middle], mz) < -precursorTolerance) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index after the last peak matching the given m/z. If no peak
+     * matches, the start and end of the matching peaks are equal.
+     *
+     * @param mz a m/z to query
+     *
+     * @return the index after the last peak matching the given m/z
+     */
+    public int getMatchingPeaksEnd(double mz) {
+        int low = 0;
+        int high = mzValues.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getError(mzValues[middle], mz) <= precursorTolerance) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the peaks matching the given m/z sorted by ascending m/z.
      *
      * @param mz a m/z to query
      *
      * @return the peaks matching the given m/z
      */
     public ArrayList<Peak> getMatchingPeaks(double mz) {
-        int bin0;
+        int start = getMatchingPeaksStart(mz);
+        int end = getMatchingPeaksEnd(mz);
+        ArrayList<Peak> result = new ArrayList<Peak>(end - start);
+        for (int i = start; i < end; i++) {
+            result.add(peaks[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of the given m/z values matching at least one peak.
+     * Values repeated in the array are counted as many times as they occur.
+     * Only the values close to the m/z range of the peaks are inspected.
+     *
+     * @param mz the m/z values to query sorted in ascending order
+     *
+     * @return the number of m/z values matching at least one peak
+     */
+    public int getNMatches(double[] mz) {
+        if (mzValues.length == 0 || mz.length == 0) {
+            return 0;
+        }
+
+        // Bounds of the m/z range which can match, widened by 1 m/z to be safe from rounding
+        double lowerBound, upperBound;
         if (ppm) {
-            bin0 = getBinPpm(mz);
+            double relativeTolerance = precursorTolerance / 1000000;
+            lowerBound = mzValues[0] / (1 + relativeTolerance) - 1;
+            upperBound = relativeTolerance < 1 ? mzValues[mzValues.length - 1] / (1 - relativeTolerance) + 1 : Double.POSITIVE_INFINITY;
         } else {
-            bin0 = getBinAbsolute(mz);
+            lowerBound = mzValues[0] - precursorTolerance - 1;
+            upperBound = mzValues[mzValues.length - 1] + precursorTolerance + 1;
         }
-        ArrayList<Peak> result = new ArrayList<Peak>(0);
-        HashMap<Double, Peak> binContent = peaksMap.get(bin0 - 1);
-        if (binContent != null) {
-            for (Double peakMz : binContent.keySet()) {
-                double error;
-                if (ppm) {
-                    error = 1000000 * (peakMz - mz) / mz;
-                } else {
-                    error = peakMz - mz;
-                }
-                if (Math.abs(error) <= precursorTolerance) {
-                    result.add(binContent.get(peakMz));
-                }
-            }
-        }
-        binContent = peaksMap.get(bin0);
-        if (binContent != null) {
-            for (Double peakMz : binContent.keySet()) {
-                double error;
-                if (ppm) {
-                    error = 1000000 * (peakMz - mz) / mz;
-                } else {
-                    error = peakMz - mz;
-                }
-                if (Math.abs(error) <= precursorTolerance) {
-                    result.add(binContent.get(peakMz));
-                }
+
+        int low = 0;
+        int high = mz.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mz[middle] < lowerBound) {
+                low = middle + 1;
+            } else {
+                high = middle;
             }
         }
-        binContent = peaksMap.get(bin0 + 1);
-        if (binContent != null) {
-            for (Double peakMz : binContent.keySet()) {
-                double error;
-                if (ppm) {
-                    error = 1000000 * (peakMz - mz) / mz;
-                } else {
-                    error = peakMz - mz;
-                }
-                if (Math.abs(error) <= precursorTolerance) {
-                    result.add(binContent.get(peakMz));
-                }
+
+        int nMatches = 0;
+        for (int i = low; i < mz.length && mz[i] <= upperBound; i++) {
+            if (getMatchingPeaksStart(mz[i]) < getMatchingPeaksEnd(mz[i])) {
+                nMatches++;
             }
         }
-        return result;
+        return nMatches;
+    }
+
+    /**
+     * Returns the number of peaks in the index.
+     *
+     * @return the number of peaks in the index
+     */
+    public int getNPeaks() {
+        return peaks.length;
+    }
+
+    /**
+     * Returns the peak at the given index.
+     *
+     * @param index the index of the peak
+     *
+     * @return the peak at the given index
+     */
+    public Peak getPeak(int index) {
+        return peaks[index];
+    }
+
+    /**
+     * Returns the m/z of the peak at the given index.
+     *
+     * @param index the index of the peak
+     *
+     * @return the m/z of the peak at the given index
+     */
+    public double getMz(int index) {
+        return mzValues[index];
+    }
+
+    /**
+     * Returns the intensity of the peak at the given index.
+     *
+     * @param index the index of the peak
+     *
+     * @return the intensity of the peak at the given index
+     */
+    public double getIntensity(int index) {
+        return intensityValues[index];
     }
 
     /**
@@ -203,16 +448,21 @@ public class SpectrumIndex implements UrParameter {
      * @return the bins in the map
      */
     public ArrayList<Integer> getBins() {
-        return new ArrayList<Integer>(peaksMap.keySet());
+        return new ArrayList<Integer>(getRawBins());
     }
 
     /**
-     * Returns the bins in the map as collection of keys from the map.
+     * Returns the bins of the peaks in the order of the m/z. The set is
+     * created every time the method is called.
      *
      * @return the bins in the map
      */
     public Set<Integer> getRawBins() {
-        return peaksMap.keySet();
+        LinkedHashSet<Integer> bins = new LinkedHashSet<Integer>();
+        for (int i = 0; i < mzValues.length; i++) {
+            bins.add(getBin(mzValues[i]));
+        }
+        return bins;
     }
 
     /**
@@ -223,7 +473,16 @@ public class SpectrumIndex implements UrParameter {
      * @return the peaks at the given bin
      */
     public HashMap<Double, Peak> getPeaksInBin(Integer bin) {
-        return peaksMap.get(bin);
+        HashMap<Double, Peak> result = null;
+        for (int i = 0; i < mzValues.length; i++) {
+            if (getBin(mzValues[i]) == bin) {
+                if (result == null) {
+                    result = new HashMap<Double, Peak>(4);
+                }
+                result.put(mzValues[i], peaks[i]);
+            }
+        }
+        return result;
     }
 
     /**
@@ -242,26 +501,34 @@ public class SpectrumIndex implements UrParameter {
     }
 
     /**
-     * Returns the highest bin.
-     * 
+     * Returns the highest bin. The bins vary monotonously with the m/z, the
+     * highest bin is hence the bin of the first or last peak.
+     *
      * @return binMax the highest bin
      */
     public Integer getBinMax() {
-        return binMax;
+        if (mzValues.length == 0) {
+            return null;
+        }
+        return Math.max(getBin(mzValues[0]), getBin(mzValues[mzValues.length - 1]));
     }
 
     /**
-     * Returns the lowest bin.
-     * 
+     * Returns the lowest bin. The bins vary monotonously with the m/z, the
+     * lowest bin is hence the bin of the first or last peak.
+     *
      * @return binMin the lowest bin
      */
     public Integer getBinMin() {
-        return binMin;
+        if (mzValues.length == 0) {
+            return null;
+        }
+        return Math.min(getBin(mzValues[0]), getBin(mzValues[mzValues.length - 1]));
     }
 
     /**
      * Returns the total intensity of the peaks above the intensity threshold.
-     * 
+     *
      * @return the total intensity of the peaks above the intensity threshold
      */
     public Double getTotalIntensity() {
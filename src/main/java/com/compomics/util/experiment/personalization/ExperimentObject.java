@@ -65,6 +65,16 @@ public abstract class ExperimentObject implements Serializable, Cloneable {
         return urParams.get(parameter.getParameterKey());
     }
     
+    /**
+     * Returns the map of user refinement parameters indexed by parameter key.
+     * Null if no parameter was set.
+     *
+     * @return the map of user refinement parameters
+     */
+    public HashMap<String, UrParameter> getUrParams() {
+        return urParams;
+    }
+
     /**
      * Clears the loaded parameters.
      */
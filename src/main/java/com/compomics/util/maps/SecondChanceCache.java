@@ -0,0 +1,287 @@
+package com.compomics.util.maps;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache where the values are stored in a concurrent map and retrieved
+ * without locking. Every value has a weight and the size of the cache is the
+ * sum of the weights of the cached values. When the size exceeds the capacity
+ * of the cache, a single thread evicts entries using a second chance policy
+ * while the other threads keep using the cache: entries accessed since the
+ * last sweep are kept and the others are removed until the size gets below
+ * the eviction target.
+ *
+ * @author Marc Vaudel
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public abstract class SecondChanceCache<K, V> {
+
+    /**
+     * The cached entries.
+     */
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+    /**
+     * When evicting, entries are removed until the size of the cache gets
+     * below this share of its capacity.
+     */
+    private final double evictionTarget;
+    /**
+     * The capacity of the cache.
+     */
+    private volatile long capacity;
+    /**
+     * The current size of the cache.
+     */
+    private final AtomicLong size = new AtomicLong();
+    /**
+     * Indicates whether a thread is evicting entries.
+     */
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+    /**
+     * The number of entries found in the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    /**
+     * The number of entries not found in the cache.
+     */
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * The number of entries evicted from the cache.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the capacity of the cache
+     * @param evictionTarget the share of the capacity to get below when
+     * evicting entries
+     */
+    public SecondChanceCache(long capacity, double evictionTarget) {
+        this.capacity = capacity;
+        this.evictionTarget = evictionTarget;
+    }
+
+    /**
+     * Returns the weight of the given value in the cache.
+     *
+     * @param value the value
+     *
+     * @return the weight of the value
+     */
+    protected abstract long getWeight(V value);
+
+    /**
+     * Returns the value cached for the given key, null if not in cache.
+     *
+     * @param key the key
+     *
+     * @return the cached value
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.referenced = true;
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Adds a value to the cache if no value was cached for this key, and
+     * evicts entries if the cache exceeds its capacity.
+     *
+     * @param key the key
+     * @param value the value
+     *
+     * @return the value in cache for this key
+     */
+    public V put(K key, V value) {
+        Entry<V> entry = new Entry<V>(value, getWeight(value));
+        Entry<V> previousEntry = entries.putIfAbsent(key, entry);
+        if (previousEntry != null) {
+            previousEntry.referenced = true;
+            return previousEntry.value;
+        }
+        size.addAndGet(entry.weight);
+        boolean evicted = true;
+        while (evicted && size.get() > capacity && evicting.compareAndSet(false, true)) {
+            try {
+                evicted = evict((long) (evictionTarget * capacity));
+            } finally {
+                evicting.set(false);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Evicts entries until the size gets below the given target. Entries
+     * accessed since the last sweep get a second chance, at most two sweeps
+     * are made.
+     *
+     * @param target the target size
+     *
+     * @return true if entries were evicted
+     */
+    private boolean evict(long target) {
+        boolean evicted = false;
+        for (int sweep = 0; sweep < 2 && size.get() > target; sweep++) {
+            Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext() && size.get() > target) {
+                Map.Entry<K, Entry<V>> mapEntry = iterator.next();
+                Entry<V> entry = mapEntry.getValue();
+                if (entry.referenced) {
+                    entry.referenced = false;
+                } else if (entries.remove(mapEntry.getKey(), entry)) {
+                    size.addAndGet(-entry.weight);
+                    evictions.incrementAndGet();
+                    evicted = true;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts the given share of the cache. No effect if another thread is
+     * already evicting entries.
+     *
+     * @param share the share of the cache to remove. 0.5 means 50%
+     */
+    public void reduce(double share) {
+        if (evicting.compareAndSet(false, true)) {
+            try {
+                evict((long) ((1 - share) * size.get()));
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public void clear() {
+        for (K key : entries.keySet()) {
+            Entry<V> entry = entries.remove(key);
+            if (entry != null) {
+                size.addAndGet(-entry.weight);
+            }
+        }
+    }
+
+    /**
+     * Returns the capacity of the cache.
+     *
+     * @return the capacity of the cache
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the capacity of the cache. Entries are evicted at the next
+     * insertion if the cache exceeds the new capacity.
+     *
+     * @param capacity the capacity of the cache
+     */
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the current size of the cache.
+     *
+     * @return the current size of the cache
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return the number of entries in the cache
+     */
+    public int getNEntries() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of entries found in the cache.
+     *
+     * @return the number of entries found in the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of entries not found in the cache.
+     *
+     * @return the number of entries not found in the cache
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries evicted from the cache.
+     *
+     * @return the number of entries evicted from the cache
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Resets the hit, miss and eviction counts.
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    /**
+     * A cache entry.
+     *
+     * @param <V> the type of value
+     */
+    private static class Entry<V> {
+
+        /**
+         * The cached value.
+         */
+        final V value;
+        /**
+         * The weight of the entry in the cache.
+         */
+        final long weight;
+        /**
+         * Indicates whether the entry was accessed since the last eviction
+         * sweep.
+         */
+        volatile boolean referenced = false;
+
+        /**
+         * Constructor.
+         *
+         * @param value the cached value
+         * @param weight the weight of the entry in the cache
+         */
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
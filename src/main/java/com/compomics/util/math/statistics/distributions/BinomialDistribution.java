@@ -1,8 +1,7 @@
 package com.compomics.util.math.statistics.distributions;
 
 import com.compomics.util.math.statistics.Distribution;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.BinomialDistributionImpl;
 import org.apache.commons.math.special.Beta;
@@ -33,11 +32,11 @@ public class BinomialDistribution implements Distribution {
     /**
      * A cache for the probabilities.
      */
-    private HashMap<Integer, Double> pCache = new HashMap<Integer, Double>();
+    private final ConcurrentHashMap<Integer, Double> pCache = new ConcurrentHashMap<Integer, Double>();
     /**
      * A cache for the cumulative probabilities.
      */
-    private HashMap<Integer, Double> descendingCumulativePCache = new HashMap<Integer, Double>();
+    private final ConcurrentHashMap<Integer, Double> descendingCumulativePCache = new ConcurrentHashMap<Integer, Double>();
 
     /**
      * Constructor.
@@ -77,8 +76,7 @@ public class BinomialDistribution implements Distribution {
      */
     private synchronized void addPToCache(int k, Double p) {
         if (pCache.size() >= cacheSize) {
-            HashSet<Integer> keys = new HashSet<Integer>(pCache.keySet());
-            for (Integer key : keys) {
+            for (Integer key : pCache.keySet()) {
                 pCache.remove(key);
                 if (pCache.size() < cacheSize) {
                     break;
@@ -103,7 +101,7 @@ public class BinomialDistribution implements Distribution {
         } else if (k < 0) {
             return 1.0;
         }
-        Double result = pCache.get(k);
+        Double result = descendingCumulativePCache.get(k);
         if (result == null) {
             // adapted from http://commons.apache.org/proper/commons-math/apidocs/src-html/org/apache/commons/math3/distribution/BinomialDistribution.html#line.130
             result = Beta.regularizedBeta(p, x + 1.0, n - x);
@@ -121,8 +119,7 @@ public class BinomialDistribution implements Distribution {
      */
     private synchronized void addDescendingCumulativePToCache(int k, Double p) {
         if (descendingCumulativePCache.size() >= cacheSize) {
-            HashSet<Integer> keys = new HashSet<Integer>(descendingCumulativePCache.keySet());
-            for (Integer key : keys) {
+            for (Integer key : descendingCumulativePCache.keySet()) {
                 descendingCumulativePCache.remove(key);
                 if (descendingCumulativePCache.size() < cacheSize) {
                     break;
@@ -1,10 +1,17 @@
 package com.compomics.util.test.experiment;
 
 import com.compomics.util.experiment.biology.AminoAcidPattern;
+import com.compomics.util.experiment.biology.Atom;
+import com.compomics.util.experiment.biology.AtomChain;
+import com.compomics.util.experiment.biology.AtomImpl;
+import com.compomics.util.experiment.biology.FragmentIonCache;
 import com.compomics.util.experiment.biology.Ion;
 import com.compomics.util.experiment.biology.IonFactory;
 import com.compomics.util.experiment.biology.NeutralLoss;
+import com.compomics.util.experiment.biology.PTM;
+import com.compomics.util.experiment.biology.PTMFactory;
 import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.biology.TheoreticalFragmentIons;
 import com.compomics.util.experiment.biology.ions.ElementaryIon;
 import com.compomics.util.experiment.biology.ions.PeptideFragmentIon;
 import com.compomics.util.experiment.biology.ions.TagFragmentIon;
@@ -706,4 +713,112 @@ public class FragmentFactoryTest extends TestCase {
             }
         }
     }
+
+    /**
+     * Tests that the fragment ion cache returns the ions of the factory and
+     * stays within its capacity.
+     */
+    public void testFragmentIonCache() {
+
+        FragmentIonCache fragmentIonCache = new FragmentIonCache();
+        FragmentIonCache smallCache = new FragmentIonCache(100);
+        String[] sequences = {"ACDEFGHIKLMNPQRSTVWY", "PEPTIDEK", "LGVNHDKVQK", "YAKEPTIDER"};
+
+        for (String sequence : sequences) {
+
+            Peptide peptide = new Peptide(sequence, new ArrayList<ModificationMatch>());
+            HashMap<Integer, HashMap<Integer, ArrayList<Ion>>> expectedIons = fragmentFactory.getFragmentIons(peptide);
+            TheoreticalFragmentIons fragmentIons = fragmentIonCache.getFragmentIons(fragmentFactory, peptide, null);
+            Assert.assertSame(fragmentIons, fragmentIonCache.getFragmentIons(fragmentFactory, new Peptide(sequence, new ArrayList<ModificationMatch>()), null));
+
+            Assert.assertEquals(expectedIons.keySet(), fragmentIons.getIons().keySet());
+            int nIons = 0;
+            for (Integer ionType : expectedIons.keySet()) {
+                HashMap<Integer, ArrayList<Ion>> expectedIonsOfType = expectedIons.get(ionType);
+                Assert.assertEquals(expectedIonsOfType.keySet(), fragmentIons.getIons().get(ionType).keySet());
+                for (Integer subType : expectedIonsOfType.keySet()) {
+                    ArrayList<Ion> expectedIonsOfSubType = expectedIonsOfType.get(subType);
+                    ArrayList<Ion> ionsOfSubType = fragmentIons.getIons(ionType, subType);
+                    double[] masses = fragmentIons.getMasses(ionType, subType);
+                    Assert.assertEquals(expectedIonsOfSubType.size(), ionsOfSubType.size());
+                    Assert.assertEquals(expectedIonsOfSubType.size(), masses.length);
+                    for (int charge = 1; charge <= 3; charge++) {
+                        double[] mzs = fragmentIons.getMz(ionType, subType, charge);
+                        Assert.assertSame(mzs, fragmentIons.getMz(ionType, subType, charge));
+                        for (int i = 0; i < expectedIonsOfSubType.size(); i++) {
+                            Ion expectedIon = expectedIonsOfSubType.get(i);
+                            Ion ion = ionsOfSubType.get(i);
+                            Assert.assertEquals(expectedIon.getName(), ion.getName());
+                            Assert.assertEquals(expectedIon.getTheoreticMass(), masses[i]);
+                            Assert.assertEquals(expectedIon.getTheoreticMz(charge), mzs[i]);
+                        }
+                    }
+                    nIons += expectedIonsOfSubType.size();
+                }
+            }
+            Assert.assertEquals(nIons, fragmentIons.getNIons());
+
+            smallCache.getFragmentIons(fragmentFactory, peptide, null);
+            Assert.assertTrue(smallCache.getSize() <= smallCache.getCapacity());
+        }
+
+        Assert.assertEquals(sequences.length, fragmentIonCache.getMissCount());
+        Assert.assertEquals(sequences.length, fragmentIonCache.getHitCount());
+        Assert.assertEquals(0, fragmentIonCache.getEvictionCount());
+        Assert.assertEquals(sequences.length, fragmentIonCache.getNEntries());
+        Assert.assertTrue(smallCache.getEvictionCount() > 0);
+
+        fragmentIonCache.clear();
+        Assert.assertEquals(0, fragmentIonCache.getNEntries());
+        Assert.assertEquals(0, fragmentIonCache.getSize());
+    }
+
+    /**
+     * Tests that the fragment ion cache does not return the ions computed
+     * before a modification was changed.
+     */
+    public void testFragmentIonCacheModificationChange() {
+
+        FragmentIonCache fragmentIonCache = new FragmentIonCache();
+        PTMFactory ptmFactory = PTMFactory.getInstance();
+        String ptmName = "Fragment ion cache test of K";
+        ArrayList<ModificationMatch> modificationMatches = new ArrayList<ModificationMatch>();
+        modificationMatches.add(new ModificationMatch(ptmName, true, 7));
+        Peptide peptide = new Peptide("LGVNHDKVQK", modificationMatches);
+        int ionType = Ion.IonType.PEPTIDE_FRAGMENT_ION.index;
+
+        try {
+            AtomChain atomChainAdded = new AtomChain();
+            atomChainAdded.append(new AtomImpl(Atom.C, 0), 2);
+            atomChainAdded.append(new AtomImpl(Atom.H, 0), 2);
+            atomChainAdded.append(new AtomImpl(Atom.O, 0));
+            ptmFactory.addUserPTM(new PTM(PTM.MODAA, ptmName, "test", atomChainAdded, null, AminoAcidPattern.getAminoAcidPatternFromString("K")));
+            TheoreticalFragmentIons fragmentIons = fragmentIonCache.getFragmentIons(fragmentFactory, peptide, null);
+            Assert.assertSame(fragmentIons, fragmentIonCache.getFragmentIons(fragmentFactory, peptide, null));
+
+            // same modification name with an additional CH2
+            atomChainAdded = new AtomChain();
+            atomChainAdded.append(new AtomImpl(Atom.C, 0), 3);
+            atomChainAdded.append(new AtomImpl(Atom.H, 0), 4);
+            atomChainAdded.append(new AtomImpl(Atom.O, 0));
+            ptmFactory.addUserPTM(new PTM(PTM.MODAA, ptmName, "test", atomChainAdded, null, AminoAcidPattern.getAminoAcidPatternFromString("K")));
+            TheoreticalFragmentIons newFragmentIons = fragmentIonCache.getFragmentIons(fragmentFactory, peptide, null);
+            Assert.assertNotSame(fragmentIons, newFragmentIons);
+            Assert.assertEquals(2, fragmentIonCache.getNEntries());
+
+            ArrayList<Ion> expectedIons = fragmentFactory.getFragmentIons(peptide).get(ionType).get(PeptideFragmentIon.Y_ION);
+            double[] masses = fragmentIons.getMasses(ionType, PeptideFragmentIon.Y_ION);
+            double[] newMasses = newFragmentIons.getMasses(ionType, PeptideFragmentIon.Y_ION);
+            Assert.assertEquals(expectedIons.size(), newMasses.length);
+            double maxShift = 0;
+            for (int i = 0; i < newMasses.length; i++) {
+                Assert.assertEquals(expectedIons.get(i).getTheoreticMass(), newMasses[i]);
+                maxShift = Math.max(maxShift, newMasses[i] - masses[i]);
+            }
+            Assert.assertEquals(14.01565, maxShift, tolerance);
+
+        } finally {
+            ptmFactory.removeUserPtm(ptmName);
+        }
+    }
 }
@@ -0,0 +1,141 @@
+package com.compomics.util.test.experiment.io;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.ConcurrentObjectsCache;
+import com.compomics.util.db.DerbyUtil;
+import com.compomics.util.db.ObjectsDB;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the lock-striped objects cache.
+ *
+ * @author Marc Vaudel
+ */
+public class ConcurrentObjectsCacheTest extends TestCase {
+
+    public void testEvictionAndWriteBack() throws Exception {
+
+        String path = this.getClass().getResource("ConcurrentObjectsCacheTest.class").getPath();
+        path = path.substring(1, path.indexOf("/target/"));
+        path += "/src/test/resources/experiment/testConcurrentCache";
+        try {
+            final ConcurrentObjectsCache cache = new ConcurrentObjectsCache(4, 800);
+            cache.setObjectSize(100);
+            final ObjectsDB objectsDB = new ObjectsDB(path, "testCache", true, cache);
+            try {
+                final String tableName = "test_table";
+                objectsDB.addTable(tableName);
+                int nObjects = 50;
+                for (int i = 0; i < nObjects; i++) {
+                    objectsDB.insertObject(tableName, "key_" + i, "value_" + i, true);
+                }
+                Assert.assertTrue(cache.getEvictionCount() > 0);
+                Assert.assertTrue(cache.getWriteBackCount() > 0);
+                Assert.assertTrue(cache.getContentSize() <= cache.getByteBudget());
+                Assert.assertTrue(cache.getNObjects() < nObjects);
+
+                for (int i = 0; i < nObjects; i++) {
+                    Assert.assertEquals("value_" + i, objectsDB.retrieveObject(tableName, "key_" + i, true));
+                }
+                Assert.assertTrue(cache.getMissCount() > 0);
+                Assert.assertTrue(cache.getHitCount() + cache.getMissCount() >= nObjects);
+
+                ExecutorService pool = Executors.newFixedThreadPool(8);
+                ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+                for (int i = 0; i < 8; i++) {
+                    final int offset = i;
+                    results.add(pool.submit(new Callable<Boolean>() {
+                        public Boolean call() throws Exception {
+                            for (int j = offset; j < 50; j += 8) {
+                                objectsDB.updateObject(tableName, "key_" + j, "updated_" + j);
+                                if (!("updated_" + j).equals(objectsDB.retrieveObject(tableName, "key_" + j, true))) {
+                                    return false;
+                                }
+                            }
+                            return true;
+                        }
+                    }));
+                }
+                pool.shutdown();
+                for (Future<Boolean> result : results) {
+                    Assert.assertTrue(result.get());
+                }
+
+                cache.saveCache(null, true);
+                Assert.assertTrue(cache.isEmpty());
+                for (int i = 0; i < nObjects; i++) {
+                    Assert.assertEquals("updated_" + i, objectsDB.retrieveObject(tableName, "key_" + i, true, false));
+                }
+
+            } finally {
+                objectsDB.close();
+            }
+        } finally {
+            File dbFolder = new File(path);
+            DerbyUtil.closeConnection();
+            Util.deleteDir(dbFolder);
+        }
+    }
+
+    public void testObjectSize() throws Exception {
+
+        ConcurrentObjectsCache cache = new ConcurrentObjectsCache(4, Long.MAX_VALUE);
+        cache.setObjectSize(100);
+        cache.setStoredSize("value_1", 10);
+        cache.setStoredSize("value_10", 30);
+        cache.addObject("db", "table", "key_1", "value_2", false, false);
+        Assert.assertEquals(20, cache.getContentSize());
+        cache.addObject("db", "table", "key_2", new Integer(2), false, false);
+        Assert.assertEquals(120, cache.getContentSize());
+        cache.setStoredSize(new Integer(1), 80);
+        cache.updateObject("db", "table", "key_2", new Integer(3));
+        Assert.assertEquals(100, cache.getContentSize());
+    }
+
+    public void testFlusher() throws Exception {
+
+        String path = this.getClass().getResource("ConcurrentObjectsCacheTest.class").getPath();
+        path = path.substring(1, path.indexOf("/target/"));
+        path += "/src/test/resources/experiment/testCacheFlusher";
+        try {
+            ConcurrentObjectsCache cache = new ConcurrentObjectsCache(4, 800);
+            cache.setObjectSize(100);
+            cache.startFlusher(8);
+            Assert.assertTrue(cache.isFlusherRunning());
+            ObjectsDB objectsDB = new ObjectsDB(path, "testFlusher", true, cache);
+            try {
+                String tableName = "test_table";
+                objectsDB.addTable(tableName);
+                int nObjects = 100;
+                for (int i = 0; i < nObjects; i++) {
+                    objectsDB.insertObject(tableName, "key_" + i, "value_" + i, true);
+                    Assert.assertEquals("value_" + i, objectsDB.retrieveObject(tableName, "key_" + i, false));
+                }
+                cache.flush();
+                Assert.assertTrue(cache.getWriteBackCount() > 0);
+                for (int i = 0; i < nObjects; i++) {
+                    Assert.assertEquals("value_" + i, objectsDB.retrieveObject(tableName, "key_" + i, true));
+                }
+                cache.close();
+                Assert.assertFalse(cache.isFlusherRunning());
+                cache.saveCache(null, true);
+                for (int i = 0; i < nObjects; i++) {
+                    Assert.assertTrue(objectsDB.inDB(tableName, "key_" + i, false));
+                }
+            } finally {
+                objectsDB.close();
+            }
+        } finally {
+            File dbFolder = new File(path);
+            DerbyUtil.closeConnection();
+            Util.deleteDir(dbFolder);
+        }
+    }
+}
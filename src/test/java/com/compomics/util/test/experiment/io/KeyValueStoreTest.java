@@ -0,0 +1,210 @@
+package com.compomics.util.test.experiment.io;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.KeyValueStore;
+import com.compomics.util.db.KeyValueTable;
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.Advocate;
+import com.compomics.util.experiment.identification.IdentificationDB;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the embedded key value store.
+ *
+ * @author Marc Vaudel
+ */
+public class KeyValueStoreTest extends TestCase {
+
+    public void testStore() throws Exception {
+
+        File folder = getFolder("testKeyValueStore");
+        try {
+            KeyValueStore store = new KeyValueStore(folder);
+            store.addTable("\"spectrum matches\"");
+            Assert.assertTrue(store.hasTable("spectrum matches"));
+            KeyValueTable table = store.getTable("\"spectrum matches\"");
+
+            HashMap<String, byte[]> values = new HashMap<String, byte[]>();
+            for (int i = 0; i < 100; i++) {
+                values.put("file1_cus_" + i, ("value " + i).getBytes("UTF-8"));
+                values.put("file2_cus_" + i, ("value " + i).getBytes("UTF-8"));
+            }
+            table.put(values);
+            table.put("file1_cus_0", "new value".getBytes("UTF-8"));
+            Assert.assertTrue(table.delete("file2_cus_0"));
+            Assert.assertFalse(table.delete("file3_cus_0"));
+
+            Assert.assertEquals("new value", new String(table.get("file1_cus_0"), "UTF-8"));
+            Assert.assertEquals("value 42", new String(table.get("file2_cus_42"), "UTF-8"));
+            Assert.assertNull(table.get("file2_cus_0"));
+            Assert.assertEquals(199, table.size());
+            ArrayList<String> keys = table.getKeys("file2_");
+            Assert.assertEquals(99, keys.size());
+            Assert.assertEquals("file2_cus_1", keys.get(0));
+
+            long length = table.getFileLength();
+            Assert.assertTrue(table.getGarbageShare() > 0);
+            table.compact();
+            Assert.assertTrue(table.getFileLength() < length);
+            Assert.assertEquals(0, table.getGarbageShare(), 0);
+            Assert.assertEquals("new value", new String(table.get("file1_cus_0"), "UTF-8"));
+            table.put("file3_cus_1", "appended".getBytes("UTF-8"));
+            store.close();
+
+            // simulate a record truncated by a crash
+            File[] files = folder.listFiles();
+            Assert.assertEquals(1, files.length);
+            FileOutputStream fos = new FileOutputStream(files[0], true);
+            fos.write(new byte[]{0, 0, 0, 12, 'f', 'i'});
+            fos.close();
+
+            store = new KeyValueStore(folder);
+            table = store.getTable("spectrum matches");
+            Assert.assertEquals(200, table.size());
+            Assert.assertEquals("appended", new String(table.get("file3_cus_1"), "UTF-8"));
+            Assert.assertEquals("value 99", new String(table.get("file1_cus_99"), "UTF-8"));
+            table.put("file3_cus_2", "after recovery".getBytes("UTF-8"));
+            Assert.assertEquals("after recovery", new String(table.get("file3_cus_2"), "UTF-8"));
+            store.close();
+
+        } finally {
+            Util.deleteDir(folder);
+        }
+    }
+
+    public void testReopen() throws Exception {
+
+        File folder = getFolder("testKeyValueStoreReopen");
+        try {
+            KeyValueStore store = new KeyValueStore(folder);
+            store.addTable("parameters");
+            store.getTable("parameters").put("version", "1".getBytes("UTF-8"));
+            store.close();
+
+            store = new KeyValueStore(folder);
+            KeyValueTable table = store.getTable("parameters");
+            Assert.assertEquals(1, table.size());
+            Assert.assertEquals("1", new String(table.get("version"), "UTF-8"));
+            store.close();
+
+        } finally {
+            Util.deleteDir(folder);
+        }
+    }
+
+    public void testInterruptedCompaction() throws Exception {
+
+        File folder = getFolder("testKeyValueStoreCompaction");
+        try {
+            KeyValueStore store = new KeyValueStore(folder);
+            store.addTable("matches");
+            KeyValueTable table = store.getTable("matches");
+            for (int i = 0; i < 10; i++) {
+                table.put("key_" + i, ("value " + i).getBytes("UTF-8"));
+            }
+            table.put("key_0", "new value".getBytes("UTF-8"));
+            String baseName = table.getBaseName();
+            store.close();
+
+            // crash while writing the compacted file, or with a newer generation which cannot be read
+            FileOutputStream fos = new FileOutputStream(new File(folder, baseName + ".1" + KeyValueTable.EXTENSION + KeyValueTable.TEMP_EXTENSION));
+            fos.write(new byte[]{0x4B, 0x56, 0x54, 0x42, 0, 0, 0, 1, 0, 0});
+            fos.close();
+            fos = new FileOutputStream(new File(folder, baseName + ".2" + KeyValueTable.EXTENSION));
+            fos.write(new byte[]{0x4B, 0x56});
+            fos.close();
+
+            store = new KeyValueStore(folder);
+            table = store.getTable("matches");
+            Assert.assertEquals(10, table.size());
+            Assert.assertEquals("new value", new String(table.get("key_0"), "UTF-8"));
+            Assert.assertEquals(1, folder.listFiles().length);
+
+            // crash after the compacted file was written, before the previous file was deleted
+            File previousFile = folder.listFiles()[0];
+            File copy = new File(folder, "copy");
+            Util.copyFile(previousFile, copy);
+            table.compact();
+            Assert.assertEquals(0, table.getGarbageShare(), 0);
+            for (File file : folder.listFiles()) {
+                Assert.assertFalse(file.getName().endsWith(KeyValueTable.TEMP_EXTENSION));
+            }
+            store.close();
+            Assert.assertTrue(copy.renameTo(previousFile));
+
+            store = new KeyValueStore(folder);
+            table = store.getTable("matches");
+            Assert.assertEquals(10, table.size());
+            Assert.assertEquals("new value", new String(table.get("key_0"), "UTF-8"));
+            Assert.assertEquals(0, table.getGarbageShare(), 0);
+            Assert.assertEquals(1, folder.listFiles().length);
+            store.close();
+
+        } finally {
+            Util.deleteDir(folder);
+        }
+    }
+
+    public void testIdentificationDB() throws Exception {
+
+        File folder = getFolder("testKeyValueDB");
+        try {
+            ObjectsCache cache = new ObjectsCache();
+            cache.setAutomatedMemoryManagement(false);
+            cache.setCacheSize(0);
+            IdentificationDB idDB = new IdentificationDB(folder.getAbsolutePath(), "testId", true, cache, true);
+            try {
+                Assert.assertTrue(idDB.getObjectsDB().isKeyValueStore());
+
+                String spectrumKey = "spectrum_file_cus_spectrum_title";
+                SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
+                Peptide peptide = new Peptide("PEPTIDE", new ArrayList<ModificationMatch>());
+                spectrumMatch.addHit(Advocate.mascot.getIndex(), new PeptideAssumption(peptide, 1, Advocate.mascot.getIndex(), new Charge(Charge.PLUS, 2), 0.1, "no file"), false);
+                idDB.addSpectrumMatch(spectrumMatch);
+                idDB.addPeptideMatch(new PeptideMatch(peptide, peptide.getKey()));
+
+                spectrumMatch = idDB.getSpectrumMatch(spectrumKey, true);
+                Assert.assertEquals(spectrumKey, spectrumMatch.getKey());
+                Assert.assertEquals(1, spectrumMatch.getAllAssumptions(Advocate.mascot.getIndex()).size());
+                Assert.assertTrue(idDB.spectrumMatchLoaded(spectrumKey));
+
+                spectrumMatch.setSpectrumNumber(7);
+                idDB.updateMatch(spectrumMatch);
+                Assert.assertEquals(7, idDB.getSpectrumMatch(spectrumKey, true).getSpectrumNumber().intValue());
+
+                idDB.removeSpectrumMatch(spectrumKey);
+                Assert.assertFalse(idDB.spectrumMatchLoaded(spectrumKey));
+                Assert.assertEquals("PEPTIDE", idDB.getPeptideMatch(peptide.getKey(), true).getKey());
+            } finally {
+                idDB.close();
+            }
+        } finally {
+            Util.deleteDir(folder);
+        }
+    }
+
+    /**
+     * Returns the folder to use for the test with the given name.
+     *
+     * @param name the name of the test
+     *
+     * @return the folder to use for the test
+     */
+    private File getFolder(String name) {
+        String path = this.getClass().getResource("KeyValueStoreTest.class").getPath();
+        path = path.substring(1, path.indexOf("/target/"));
+        path += "/src/test/resources/experiment/" + name;
+        return new File(path);
+    }
+}
@@ -0,0 +1,128 @@
+package com.compomics.util.test.experiment.io;
+
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.Advocate;
+import com.compomics.util.experiment.identification.MatchesCodec;
+import com.compomics.util.experiment.identification.SpectrumIdentificationAssumption;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.refinementparameters.PepnovoAssumptionDetails;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the compact encoding of the identification matches.
+ *
+ * @author Marc Vaudel
+ */
+public class MatchesCodecTest extends TestCase {
+
+    public void testSpectrumMatch() throws IOException, ClassNotFoundException {
+
+        MatchesCodec codec = new MatchesCodec();
+
+        String spectrumKey = "spectrum_file.mgf_cus_spectrum_title";
+        ArrayList<String> proteins = new ArrayList<String>();
+        proteins.add("P12345");
+        proteins.add("Q67890");
+
+        SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
+        spectrumMatch.setSpectrumNumber(42);
+        PeptideAssumption bestAssumption = null;
+        for (int rank = 1; rank <= 3; rank++) {
+            ArrayList<ModificationMatch> modificationMatches = new ArrayList<ModificationMatch>();
+            modificationMatches.add(new ModificationMatch("Oxidation of M", true, rank));
+            ModificationMatch fixedModification = new ModificationMatch("Carbamidomethylation of C", false, 4);
+            fixedModification.setConfident(true);
+            modificationMatches.add(fixedModification);
+            Peptide peptide = new Peptide("MPECTIDE", modificationMatches);
+            peptide.setParentProteins(new ArrayList<String>(proteins));
+            PeptideAssumption assumption = new PeptideAssumption(peptide, rank, Advocate.mascot.getIndex(), new Charge(Charge.PLUS, 2), 0.01 * rank, "search_result.dat");
+            assumption.setRawScore(12.5 / rank);
+            spectrumMatch.addHit(Advocate.mascot.getIndex(), assumption, false);
+            if (rank == 1) {
+                bestAssumption = assumption;
+                PepnovoAssumptionDetails details = new PepnovoAssumptionDetails();
+                details.setRankScore(3.5);
+                assumption.addUrParam(details);
+            }
+        }
+        spectrumMatch.setBestPeptideAssumption(bestAssumption);
+
+        byte[] encoded = codec.encode(spectrumMatch);
+        Assert.assertTrue(codec.canDecode(encoded));
+        Assert.assertTrue(encoded.length < getSerializedSize(spectrumMatch));
+
+        SpectrumMatch decodedMatch = (SpectrumMatch) codec.decode(encoded);
+        Assert.assertEquals(spectrumKey, decodedMatch.getKey());
+        Assert.assertEquals(42, decodedMatch.getSpectrumNumber().intValue());
+
+        HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> mascotAssumptions = decodedMatch.getAllAssumptions(Advocate.mascot.getIndex());
+        Assert.assertEquals(3, mascotAssumptions.size());
+        PeptideAssumption decodedBest = (PeptideAssumption) mascotAssumptions.get(0.01).get(0);
+        Assert.assertTrue(decodedBest == decodedMatch.getBestPeptideAssumption());
+        Assert.assertEquals(1, decodedBest.getRank());
+        Assert.assertEquals(2, decodedBest.getIdentificationCharge().value);
+        Assert.assertEquals("search_result.dat", decodedBest.getIdentificationFile());
+        Assert.assertEquals(12.5, decodedBest.getRawScore(), 0);
+        Assert.assertEquals(bestAssumption.getPeptide().getKey(), decodedBest.getPeptide().getKey());
+        Assert.assertEquals(proteins, decodedBest.getPeptide().getParentProteinsNoRemapping());
+        Assert.assertTrue(decodedBest.getPeptide().getModificationMatches().get(1).isConfident());
+        Assert.assertFalse(decodedBest.getPeptide().getModificationMatches().get(1).isVariable());
+
+        PepnovoAssumptionDetails details = (PepnovoAssumptionDetails) decodedBest.getUrParam(new PepnovoAssumptionDetails());
+        Assert.assertEquals(3.5, details.getRankScore(), 0);
+    }
+
+    public void testPeptideAndProteinMatches() throws IOException, ClassNotFoundException {
+
+        MatchesCodec codec = new MatchesCodec();
+
+        Peptide peptide = new Peptide("PEPTIDE", new ArrayList<ModificationMatch>());
+        PeptideMatch peptideMatch = new PeptideMatch(peptide, peptide.getKey());
+        peptideMatch.addSpectrumMatchKey("file_cus_1");
+        peptideMatch.addSpectrumMatchKey("file_cus_2");
+
+        PeptideMatch decodedPeptideMatch = (PeptideMatch) codec.decode(codec.encode(peptideMatch));
+        Assert.assertEquals(peptideMatch.getKey(), decodedPeptideMatch.getKey());
+        Assert.assertEquals("PEPTIDE", decodedPeptideMatch.getTheoreticPeptide().getSequence());
+        Assert.assertEquals(peptideMatch.getSpectrumMatchesKeys(), decodedPeptideMatch.getSpectrumMatchesKeys());
+
+        ProteinMatch proteinMatch = new ProteinMatch("P12345");
+        proteinMatch.addTheoreticProtein("Q67890");
+        proteinMatch.addPeptideMatchKey(peptide.getKey());
+
+        ProteinMatch decodedProteinMatch = (ProteinMatch) codec.decode(codec.encode(proteinMatch));
+        Assert.assertEquals(proteinMatch.getKey(), decodedProteinMatch.getKey());
+        Assert.assertEquals("P12345", decodedProteinMatch.getMainMatch());
+        Assert.assertEquals(proteinMatch.getPeptideMatchesKeys(), decodedProteinMatch.getPeptideMatchesKeys());
+
+        Assert.assertNull(codec.encode(new HashMap<String, String>()));
+    }
+
+    /**
+     * Returns the size of the given object when using Java serialization.
+     *
+     * @param object the object
+     *
+     * @return the size of the serialized object
+     *
+     * @throws IOException if an IOException occurs
+     */
+    private int getSerializedSize(Object object) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(object);
+        oos.close();
+        return bos.size();
+    }
+}
@@ -0,0 +1,93 @@
+package com.compomics.util.test.experiment.io;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.DerbyUtil;
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.db.ObjectsCursor;
+import com.compomics.util.db.ObjectsDB;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the prefix scans of the objects database.
+ *
+ * @author Marc Vaudel
+ */
+public class ObjectsCursorTest extends TestCase {
+
+    public void testDerbyScan() throws Exception {
+        testScan("testCursorDerby", false);
+    }
+
+    public void testKeyValueStoreScan() throws Exception {
+        testScan("testCursorKeyValue", true);
+    }
+
+    /**
+     * Fills a database and scans it.
+     *
+     * @param name the name of the test
+     * @param useKeyValueStore boolean indicating whether the key value store
+     * should be used
+     *
+     * @throws Exception exception thrown whenever an error occurred
+     */
+    private void testScan(String name, boolean useKeyValueStore) throws Exception {
+
+        String path = this.getClass().getResource("ObjectsCursorTest.class").getPath();
+        path = path.substring(1, path.indexOf("/target/"));
+        path += "/src/test/resources/experiment/" + name;
+        try {
+            ObjectsCache cache = new ObjectsCache();
+            cache.setAutomatedMemoryManagement(false);
+            cache.setCacheSize(1000);
+            ObjectsDB objectsDB = new ObjectsDB(path, name, true, cache, useKeyValueStore);
+            try {
+                String tableName = "test_table";
+                objectsDB.addTable(tableName);
+                for (int i = 0; i < 25; i++) {
+                    objectsDB.insertObject(tableName, "a_" + i, "value_a_" + i, false);
+                    objectsDB.insertObject(tableName, "b_" + i, "value_b_" + i, false);
+                }
+                StringBuilder longKey = new StringBuilder("a_");
+                for (int i = 0; i < ObjectsDB.MAX_KEY_LENGTH; i++) {
+                    longKey.append('x');
+                }
+                objectsDB.insertObject(tableName, longKey.toString(), "long value", false);
+
+                ObjectsCursor cursor = objectsDB.scanObjects(tableName, "a_", 7);
+                ArrayList<String> keys = new ArrayList<String>();
+                while (cursor.hasNext()) {
+                    String key = cursor.next();
+                    Assert.assertEquals(key.equals(longKey.toString()) ? "long value" : "value_" + key, cursor.getObject());
+                    keys.add(key);
+                }
+                Assert.assertEquals(26, keys.size());
+                Assert.assertEquals(26, new HashSet<String>(keys).size());
+                Assert.assertTrue(keys.contains(longKey.toString()));
+
+                cursor = objectsDB.scanKeys(tableName, "");
+                int nKeys = 0;
+                while (cursor.hasNext()) {
+                    cursor.next();
+                    Assert.assertNull(cursor.getObject());
+                    nKeys++;
+                }
+                Assert.assertEquals(51, nKeys);
+                Assert.assertFalse(objectsDB.scanKeys(tableName, "c_").hasNext());
+
+                objectsDB.loadObjects(tableName, "b_", 10, null, false);
+                Assert.assertEquals("value_b_3", objectsDB.retrieveObject(tableName, "b_3", false));
+                Assert.assertNull(objectsDB.retrieveObject(tableName, "a_3", false));
+            } finally {
+                objectsDB.close();
+            }
+        } finally {
+            DerbyUtil.closeConnection();
+            Util.deleteDir(new File(path));
+        }
+    }
+}
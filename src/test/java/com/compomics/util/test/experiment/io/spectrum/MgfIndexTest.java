@@ -0,0 +1,136 @@
+package com.compomics.util.test.experiment.io.spectrum;
+
+import com.compomics.util.experiment.io.massspectrometry.CompactMgfIndex;
+import com.compomics.util.experiment.io.massspectrometry.MgfIndex;
+import com.compomics.util.experiment.io.massspectrometry.MgfReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the indexing of mgf files.
+ *
+ * @author Marc Vaudel
+ */
+public class MgfIndexTest extends TestCase {
+
+    public void testParallelIndexing() throws Exception {
+
+        File mgfFile = new File("src/test/resources/experiment/testParallelIndex.mgf");
+        try {
+            writeTestFile(mgfFile, 500);
+
+            MgfIndex serialIndex = MgfReader.getIndexMap(mgfFile, null, 1);
+            MgfIndex parallelIndex = MgfReader.getIndexMap(mgfFile, null, 4, 1000);
+
+            Assert.assertEquals(500, serialIndex.getNSpectra());
+            Assert.assertEquals(serialIndex.getNSpectra(), parallelIndex.getNSpectra());
+            Assert.assertEquals(serialIndex.getSpectrumTitles(), parallelIndex.getSpectrumTitles());
+            Assert.assertEquals(serialIndex.getDuplicatedSpectrumTitles(), parallelIndex.getDuplicatedSpectrumTitles());
+            for (String title : serialIndex.getSpectrumTitles()) {
+                Assert.assertEquals(serialIndex.getIndex(title), parallelIndex.getIndex(title));
+                Assert.assertEquals(serialIndex.getSpectrumIndex(title), parallelIndex.getSpectrumIndex(title));
+            }
+            for (int i = 0; i < serialIndex.getNSpectra(); i++) {
+                Assert.assertEquals(serialIndex.getPrecursorMz(i), parallelIndex.getPrecursorMz(i));
+            }
+            Assert.assertEquals(serialIndex.getMinRT(), parallelIndex.getMinRT());
+            Assert.assertEquals(serialIndex.getMaxRT(), parallelIndex.getMaxRT());
+            Assert.assertEquals(serialIndex.getMaxMz(), parallelIndex.getMaxMz());
+            Assert.assertEquals(serialIndex.getMaxIntensity(), parallelIndex.getMaxIntensity());
+            Assert.assertEquals(serialIndex.getMaxCharge(), parallelIndex.getMaxCharge());
+            Assert.assertEquals(serialIndex.getMaxPeakCount(), parallelIndex.getMaxPeakCount());
+            Assert.assertEquals(serialIndex.isPeakPicked(), parallelIndex.isPeakPicked());
+            Assert.assertEquals(serialIndex.isPrecursorChargesMissing(), parallelIndex.isPrecursorChargesMissing());
+        } finally {
+            mgfFile.delete();
+        }
+    }
+
+    public void testCompactIndex() throws Exception {
+
+        File mgfFile = new File("src/test/resources/experiment/testCompactIndex.mgf");
+        File indexFile = new File("src/test/resources/experiment/testCompactIndex.mgf.cui");
+        try {
+            writeTestFile(mgfFile, 100);
+
+            MgfIndex mgfIndex = MgfReader.getIndexMap(mgfFile, null, 1);
+            Assert.assertTrue(mgfIndex instanceof CompactMgfIndex);
+            ((CompactMgfIndex) mgfIndex).write(indexFile);
+            Assert.assertTrue(CompactMgfIndex.isCompactIndex(indexFile));
+            MgfIndex readIndex = CompactMgfIndex.read(indexFile);
+
+            Assert.assertEquals(100, readIndex.getNSpectra());
+            Assert.assertEquals(mgfFile.getName(), readIndex.getFileName());
+            Assert.assertEquals(mgfIndex.getLastModified(), readIndex.getLastModified());
+            Assert.assertEquals(mgfIndex.getSpectrumTitles(), readIndex.getSpectrumTitles());
+            Assert.assertEquals(mgfIndex.getDuplicatedSpectrumTitles(), readIndex.getDuplicatedSpectrumTitles());
+            for (int i = 0; i < mgfIndex.getSpectrumTitles().size(); i++) {
+                String title = mgfIndex.getSpectrumTitle(i);
+                Assert.assertEquals(title, readIndex.getSpectrumTitle(i));
+                Assert.assertTrue(readIndex.containsSpectrum(title));
+                Assert.assertEquals(mgfIndex.getIndex(title), readIndex.getIndex(title));
+                Assert.assertEquals(mgfIndex.getSpectrumIndex(title), readIndex.getSpectrumIndex(title));
+            }
+            for (int i = 0; i < mgfIndex.getNSpectra(); i++) {
+                Assert.assertEquals(400 + i * 1.5, readIndex.getPrecursorMz(i));
+                // the center of the window is used for retention time windows
+                Assert.assertEquals(i + 0.25, readIndex.getPrecursorRt(i), 0.001);
+            }
+            Assert.assertFalse(readIndex.containsSpectrum("unknown"));
+            Assert.assertNull(readIndex.getIndex("unknown"));
+            Assert.assertEquals(-1, readIndex.getSpectrumIndex("unknown").intValue());
+            Assert.assertNull(readIndex.getPrecursorMz(100));
+            Assert.assertEquals(mgfIndex.getMinRT(), readIndex.getMinRT());
+            Assert.assertEquals(mgfIndex.getMaxRT(), readIndex.getMaxRT());
+            Assert.assertEquals(mgfIndex.getMaxMz(), readIndex.getMaxMz());
+            Assert.assertEquals(mgfIndex.getMaxIntensity(), readIndex.getMaxIntensity());
+            Assert.assertEquals(mgfIndex.getMaxCharge(), readIndex.getMaxCharge());
+            Assert.assertEquals(mgfIndex.getMaxPeakCount(), readIndex.getMaxPeakCount());
+            Assert.assertEquals(mgfIndex.isPeakPicked(), readIndex.isPeakPicked());
+            Assert.assertEquals(mgfIndex.isPrecursorChargesMissing(), readIndex.isPrecursorChargesMissing());
+        } finally {
+            mgfFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Writes an mgf file with duplicated titles, retention time windows and
+     * mixed line endings.
+     *
+     * @param mgfFile the file to write
+     * @param nSpectra the number of spectra
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void writeTestFile(File mgfFile, int nSpectra) throws Exception {
+        BufferedWriter bw = new BufferedWriter(new FileWriter(mgfFile));
+        try {
+            for (int i = 0; i < nSpectra; i++) {
+                String lineBreak = i % 3 == 0 ? "\r\n" : "\n";
+                bw.write("BEGIN IONS" + lineBreak);
+                bw.write("TITLE=spectrum " + (i % 7 == 0 ? 0 : i) + lineBreak);
+                if (i % 5 == 0) {
+                    bw.write("RTINSECONDS=" + i + "-" + (i + 0.5) + lineBreak);
+                } else {
+                    bw.write("RTINSECONDS=" + (i + 0.25) + lineBreak);
+                }
+                bw.write("PEPMASS=" + (400 + i * 1.5) + " " + (1000 + i) + lineBreak);
+                if (i % 11 != 0) {
+                    bw.write("CHARGE=" + (1 + i % 4) + "+" + lineBreak);
+                }
+                for (int j = 0; j <= i % 13; j++) {
+                    bw.write((100 + j) + " " + (i == 250 ? 0 : j + 1) + lineBreak);
+                }
+                bw.write("END IONS" + lineBreak);
+                bw.write(lineBreak);
+            }
+        } finally {
+            bw.close();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.compomics.util.test.experiment.io.spectrum;
 
 import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.Precursor;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
@@ -8,6 +9,11 @@ import junit.framework.Assert;
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This test case will test the mgf import and spectrum annotation
@@ -42,4 +48,39 @@ public class SpectrumImportTest extends TestCase {
         Assert.assertTrue(rtMax == 219.71);
         Assert.assertTrue(Math.abs(precursor.getRt() - 218.855) < 0.0001);
     }
+
+    public void testMemoryMappedMgf() throws Exception {
+        File mgfFile = new File("src/test/resources/experiment/test.mgf");
+        final SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
+        spectrumFactory.clearFactory();
+        spectrumFactory.setMemoryMappedMgf(true);
+        try {
+            spectrumFactory.addSpectra(mgfFile, null);
+
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        Precursor precursor = spectrumFactory.getPrecursor("test.mgf", "controllerType=0 controllerNumber=1 scan=159", false);
+                        MSnSpectrum spectrum = (MSnSpectrum) spectrumFactory.getSpectrum("test.mgf", "controllerType=0 controllerNumber=1 scan=160");
+                        return precursor.getMz() == 1060.86962890625
+                                && precursor.getRt() == 218.6808
+                                && precursor.getPossibleCharges().size() == 3
+                                && spectrum.getPeakMap().size() == 1
+                                && spectrum.getPeakMap().get(964.581665).intensity == 0.861346662
+                                && spectrum.getPrecursor().getRtWindow()[1] == 219.71;
+                    }
+                }));
+            }
+            pool.shutdown();
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            spectrumFactory.setMemoryMappedMgf(false);
+            spectrumFactory.closeFiles();
+            spectrumFactory.clearFactory();
+        }
+    }
 }
@@ -0,0 +1,361 @@
+package com.compomics.util.test.experiment.sequences;
+
+import com.compomics.util.Util;
+import com.compomics.util.experiment.biology.Protein;
+import com.compomics.util.experiment.identification.protein_sequences.FastaIndex;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test for the sequence factory.
+ *
+ * @author Marc Vaudel
+ */
+public class SequenceFactoryTest extends TestCase {
+
+    /**
+     * Tests that the proteins retrieved from a FASTA file mapped in memory are
+     * the same as when reading the file, also when retrieved concurrently.
+     *
+     * @throws Exception thrown whenever an error occurred while reading the
+     * FASTA file
+     */
+    public void testMemoryMappedFasta() throws Exception {
+
+        File folder = new File("target/test-classes/experiment/mappedFasta");
+        folder.mkdirs();
+        File fastaFile = new File(folder, "mapped.fasta");
+        final SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+
+        try {
+            BufferedWriter bw = new BufferedWriter(new FileWriter(fastaFile));
+            for (int i = 0; i < 200; i++) {
+                bw.write(">sp|P" + (10000 + i) + "|TEST" + i + "_HUMAN Test protein " + i + " OS=Homo sapiens GN=TEST" + i + " PE=1 SV=1\r\n");
+                StringBuilder sequence = new StringBuilder();
+                for (int j = 0; j < 30 + 7 * i; j++) {
+                    sequence.append("ACDEFGHIKLMNPQRSTVWY".charAt((i * j + j) % 20));
+                }
+                for (int j = 0; j < sequence.length(); j += 60) {
+                    bw.write(sequence.substring(j, Math.min(j + 60, sequence.length())));
+                    bw.write(i % 2 == 0 ? "\r\n" : " \n");
+                }
+                if (i % 3 == 0) {
+                    bw.write("*\n\n");
+                }
+            }
+            bw.close();
+
+            sequenceFactory.clearFactory();
+            sequenceFactory.setMemoryMappedFasta(false);
+            sequenceFactory.loadFastaFile(fastaFile);
+            HashMap<String, String> sequences = new HashMap<String, String>();
+            HashMap<String, String> descriptions = new HashMap<String, String>();
+            for (String accession : sequenceFactory.getAccessions()) {
+                sequences.put(accession, sequenceFactory.getProtein(accession).getSequence());
+                descriptions.put(accession, sequenceFactory.getHeader(accession).getDescription());
+            }
+            Assert.assertEquals(200, sequences.size());
+
+            sequenceFactory.clearFactory();
+            sequenceFactory.setMemoryMappedFasta(true);
+            sequenceFactory.setnCache(50);
+            sequenceFactory.loadFastaFile(fastaFile);
+
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            ArrayList<Future<HashMap<String, String>>> futures = new ArrayList<Future<HashMap<String, String>>>();
+            for (int thread = 0; thread < 4; thread++) {
+                futures.add(pool.submit(new Callable<HashMap<String, String>>() {
+                    @Override
+                    public HashMap<String, String> call() throws Exception {
+                        HashMap<String, String> result = new HashMap<String, String>();
+                        for (String accession : sequenceFactory.getAccessions()) {
+                            Protein protein = sequenceFactory.getProtein(accession);
+                            result.put(accession, protein.getSequence());
+                        }
+                        return result;
+                    }
+                }));
+            }
+            for (Future<HashMap<String, String>> future : futures) {
+                Assert.assertEquals(sequences, future.get());
+            }
+            pool.shutdown();
+
+            for (String accession : sequences.keySet()) {
+                Assert.assertEquals(descriptions.get(accession), sequenceFactory.getHeader(accession).getDescription());
+            }
+
+        } finally {
+            sequenceFactory.clearFactory();
+            sequenceFactory.setMemoryMappedFasta(false);
+            sequenceFactory.setnCache(1000000);
+            Util.deleteDir(folder);
+        }
+    }
+
+    /**
+     * Tests that the proteins retrieved from a FASTA file mapped in memory are
+     * the same as when reading the file for '\n', '\r' and "\r\n" line
+     * endings.
+     *
+     * @throws Exception thrown whenever an error occurred while reading the
+     * FASTA files
+     */
+    public void testMemoryMappedFastaLineEndings() throws Exception {
+
+        File folder = new File("target/test-classes/experiment/mappedFastaLineEndings");
+        folder.mkdirs();
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        String[] lineSeparators = {"\n", "\r", "\r\n"};
+
+        try {
+            for (int k = 0; k < lineSeparators.length; k++) {
+
+                String lineSeparator = lineSeparators[k];
+                File fastaFile = new File(folder, "lineEndings" + k + ".fasta");
+                BufferedWriter bw = new BufferedWriter(new FileWriter(fastaFile));
+                for (int i = 0; i < 20; i++) {
+                    bw.write(">sp|P" + (20000 + i) + "|TEST" + i + "_HUMAN Test protein " + i + " OS=Homo sapiens GN=TEST" + i + " PE=1 SV=1" + lineSeparator);
+                    StringBuilder sequence = new StringBuilder();
+                    for (int j = 0; j < 50 + 13 * i; j++) {
+                        sequence.append("ACDEFGHIKLMNPQRSTVWY".charAt((i * j + j) % 20));
+                    }
+                    for (int j = 0; j < sequence.length(); j += 60) {
+                        bw.write(sequence.substring(j, Math.min(j + 60, sequence.length())));
+                        bw.write(lineSeparator);
+                    }
+                }
+                bw.close();
+
+                sequenceFactory.clearFactory();
+                sequenceFactory.setMemoryMappedFasta(false);
+                sequenceFactory.loadFastaFile(fastaFile);
+                HashMap<String, String> sequences = new HashMap<String, String>();
+                HashMap<String, String> descriptions = new HashMap<String, String>();
+                for (String accession : sequenceFactory.getAccessions()) {
+                    sequences.put(accession, sequenceFactory.getProtein(accession).getSequence());
+                    descriptions.put(accession, sequenceFactory.getHeader(accession).getDescription());
+                }
+                Assert.assertEquals(20, sequences.size());
+
+                sequenceFactory.clearFactory();
+                sequenceFactory.setMemoryMappedFasta(true);
+                sequenceFactory.loadFastaFile(fastaFile);
+                for (String accession : sequences.keySet()) {
+                    Assert.assertEquals(sequences.get(accession), sequenceFactory.getProtein(accession).getSequence());
+                    Assert.assertEquals(descriptions.get(accession), sequenceFactory.getHeader(accession).getDescription());
+                }
+            }
+
+        } finally {
+            sequenceFactory.clearFactory();
+            sequenceFactory.setMemoryMappedFasta(false);
+            Util.deleteDir(folder);
+        }
+    }
+
+    /**
+     * Tests that the index and the target-decoy file obtained using multiple
+     * threads are the same as when using a single thread.
+     *
+     * @throws Exception thrown whenever an error occurred while reading or
+     * writing a FASTA file
+     */
+    public void testParallelIndexingAndDecoys() throws Exception {
+
+        File folder = new File("target/test-classes/experiment/parallelFasta");
+        folder.mkdirs();
+        File fastaFile = new File(folder, "parallel.fasta");
+        File sequentialDecoyFile = new File(folder, "sequential_concatenated_target_decoy.fasta");
+        File parallelDecoyFile = new File(folder, "parallel_concatenated_target_decoy.fasta");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+
+        try {
+            BufferedWriter bw = new BufferedWriter(new FileWriter(fastaFile));
+            for (int i = 0; i < 500; i++) {
+                String species = i % 4 == 0 ? "Mus musculus" : "Homo sapiens";
+                if (i % 5 == 0) {
+                    bw.write(">GEN" + i + " Generic protein " + i + "\r\n");
+                } else {
+                    bw.write(">sp|P" + (10000 + i) + "|TEST" + i + "_HUMAN Test protein " + i + " OS=" + species + " GN=TEST" + i + " PE=1 SV=1\n");
+                }
+                StringBuilder sequence = new StringBuilder();
+                for (int j = 0; j < 20 + 3 * i; j++) {
+                    sequence.append("ACDEFGHIKLMNPQRSTVWY".charAt((i * j + j) % 20));
+                }
+                for (int j = 0; j < sequence.length(); j += 60) {
+                    bw.write(sequence.substring(j, Math.min(j + 60, sequence.length())));
+                    bw.write(i % 3 == 0 ? "\r\n" : " \n");
+                }
+                if (i % 7 == 0) {
+                    bw.write(">sp|P" + (10000 + i) + "_REVERSED|TEST" + i + "_HUMAN-REVERSED Test protein " + i + "-REVERSED OS=" + species + "\n");
+                    bw.write(sequence.reverse() + "*\n\n");
+                }
+            }
+            bw.close();
+
+            FastaIndex sequentialIndex = SequenceFactory.getFastaIndex(fastaFile, true, null, 1);
+            FastaIndex parallelIndex = SequenceFactory.getFastaIndex(fastaFile, true, null, 8);
+            Assert.assertEquals(572, sequentialIndex.getNSequences());
+            Assert.assertEquals(sequentialIndex.getIndexes(), parallelIndex.getIndexes());
+            Assert.assertEquals(sequentialIndex.getDecoyAccesions(), parallelIndex.getDecoyAccesions());
+            Assert.assertEquals(sequentialIndex.getNTarget(), parallelIndex.getNTarget());
+            Assert.assertEquals(sequentialIndex.getDecoyTag(), parallelIndex.getDecoyTag());
+            Assert.assertEquals(sequentialIndex.isDefaultReversed(), parallelIndex.isDefaultReversed());
+            Assert.assertEquals(sequentialIndex.getDatabaseTypes(), parallelIndex.getDatabaseTypes());
+            Assert.assertEquals(sequentialIndex.getMainDatabaseType(), parallelIndex.getMainDatabaseType());
+            Assert.assertEquals(sequentialIndex.getSpecies(), parallelIndex.getSpecies());
+
+            sequenceFactory.clearFactory();
+            sequenceFactory.loadFastaFile(fastaFile);
+            sequenceFactory.appendDecoySequences(sequentialDecoyFile, null, 1);
+            sequenceFactory.clearFactory();
+            sequenceFactory.loadFastaFile(fastaFile);
+            sequenceFactory.appendDecoySequences(parallelDecoyFile, null, 4);
+            Assert.assertTrue(sequentialDecoyFile.length() > fastaFile.length());
+            Assert.assertTrue(Arrays.equals(readFile(sequentialDecoyFile), readFile(parallelDecoyFile)));
+
+            // errors should be the same as well
+            bw = new BufferedWriter(new FileWriter(fastaFile, true));
+            bw.write(">sp|P10401|TEST401_HUMAN Duplicate protein\nACDEFGHIK\n");
+            bw.close();
+            String sequentialError = null, parallelError = null;
+            try {
+                SequenceFactory.getFastaIndex(fastaFile, true, null, 1);
+            } catch (IllegalArgumentException e) {
+                sequentialError = e.getMessage();
+            }
+            try {
+                SequenceFactory.getFastaIndex(fastaFile, true, null, 8);
+            } catch (IllegalArgumentException e) {
+                parallelError = e.getMessage();
+            }
+            Assert.assertNotNull(sequentialError);
+            Assert.assertEquals(sequentialError, parallelError);
+
+        } finally {
+            sequenceFactory.clearFactory();
+            Util.deleteDir(folder);
+        }
+    }
+
+    /**
+     * Tests that the proteins iterated region by region in parallel are the
+     * same as the ones of the protein iterator.
+     *
+     * @throws Exception thrown whenever an error occurred while reading or
+     * writing the FASTA file
+     */
+    public void testRegionProteinIterator() throws Exception {
+
+        File folder = new File("target/test-classes/experiment/regionFasta");
+        folder.mkdirs();
+        File fastaFile = new File(folder, "regions.fasta");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+
+        try {
+            BufferedWriter bw = new BufferedWriter(new FileWriter(fastaFile));
+            for (int i = 0; i < 300; i++) {
+                bw.write(">sp|P" + (10000 + i) + "|TEST" + i + "_HUMAN Test protein " + i + " OS=Homo sapiens GN=TEST" + i + " PE=1 SV=1\r\n");
+                StringBuilder sequence = new StringBuilder();
+                for (int j = 0; j < 10 + 5 * i; j++) {
+                    sequence.append("ACDEFGHIKLMNPQRSTVWY".charAt((i + j * j) % 20));
+                }
+                for (int j = 0; j < sequence.length(); j += 60) {
+                    bw.write(sequence.substring(j, Math.min(j + 60, sequence.length())));
+                    bw.write("\r\n");
+                }
+                if (i % 4 == 0) {
+                    bw.write(">sp|P" + (10000 + i) + "_REVERSED|TEST" + i + "_HUMAN-REVERSED Test protein " + i + "-REVERSED\n");
+                    bw.write(sequence.reverse() + "\n");
+                }
+            }
+            bw.close();
+
+            sequenceFactory.clearFactory();
+            sequenceFactory.loadFastaFile(fastaFile);
+
+            for (boolean targetOnly : new boolean[]{true, false}) {
+                ArrayList<String> expected = new ArrayList<String>();
+                SequenceFactory.ProteinIterator proteinIterator = sequenceFactory.getProteinIterator(targetOnly);
+                while (proteinIterator.hasNext()) {
+                    Protein protein = proteinIterator.getNextProtein();
+                    expected.add(protein.getAccession() + " " + protein.getSequence() + " " + protein.isDecoy());
+                }
+                Assert.assertEquals(targetOnly ? 300 : 375, expected.size());
+
+                ArrayList<ArrayList<String>> regionProteins = sequenceFactory.processProteins(new SequenceFactory.RegionProcessor<ArrayList<String>>() {
+                    @Override
+                    public ArrayList<String> process(SequenceFactory.RegionProteinIterator regionIterator) throws IOException {
+                        ArrayList<String> result = new ArrayList<String>();
+                        while (regionIterator.hasNext()) {
+                            Protein protein = regionIterator.getNextProtein();
+                            result.add(protein.getAccession() + " " + protein.getSequence() + " " + protein.isDecoy());
+                        }
+                        return result;
+                    }
+                }, targetOnly, 4);
+                Assert.assertTrue(regionProteins.size() > 1);
+                ArrayList<String> actual = new ArrayList<String>();
+                for (ArrayList<String> proteins : regionProteins) {
+                    actual.addAll(proteins);
+                }
+                Assert.assertEquals(expected, actual);
+            }
+
+            HashMap<String, Integer> expectedOccurrences = new HashMap<String, Integer>();
+            for (String accession : sequenceFactory.getAccessions()) {
+                if (!sequenceFactory.isDecoyAccession(accession)) {
+                    String sequence = sequenceFactory.getProtein(accession).getSequence();
+                    for (int i = 0; i < sequence.length(); i++) {
+                        String aa = sequence.substring(i, i + 1);
+                        Integer n = expectedOccurrences.get(aa);
+                        expectedOccurrences.put(aa, n == null ? 1 : n + 1);
+                    }
+                }
+            }
+            Assert.assertEquals(expectedOccurrences, sequenceFactory.getAAOccurrences(null, 4));
+
+        } finally {
+            sequenceFactory.clearFactory();
+            Util.deleteDir(folder);
+        }
+    }
+
+    /**
+     * Returns the content of a file.
+     *
+     * @param file the file
+     *
+     * @return the content of the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                offset += inputStream.read(content, offset, content.length - offset);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return content;
+    }
+}
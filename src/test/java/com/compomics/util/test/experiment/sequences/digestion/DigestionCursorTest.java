@@ -0,0 +1,177 @@
+package com.compomics.util.test.experiment.sequences.digestion;
+
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.DigestionCursor;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.IteratorFactory;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.PeptideWithPosition;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.ProteinIteratorUtils;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.SequenceIterator;
+import com.compomics.util.preferences.DigestionPreferences;
+import java.util.ArrayList;
+import java.util.Arrays;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * This test verifies that the digestion cursors return the same peptides as
+ * the sequence iterators.
+ *
+ * @author Marc Vaudel
+ */
+public class DigestionCursorTest extends TestCase {
+
+    /**
+     * The sequences to digest.
+     */
+    private static final String[] SEQUENCES = {
+        "MKMMKMMRMMMKPMMRMMMMMMMMMMMRMMMMRMM",
+        "ACDKCEFGHKRCPLMNQCKSTVWYRACDEK",
+        "QCKAACQCRMLKPACDEFGHIKLMNPQRSTVWY",
+        "MKXACDKRBPEQCK"
+    };
+
+    /**
+     * Tests the unspecific digestion against peptides built directly from all
+     * the sub-sequences of the proteins.
+     */
+    public void testUnspecificCursor() {
+
+        ArrayList<String> fixedModifications = new ArrayList<String>(Arrays.asList("Carbamidomethylation of C", "TMT 6-plex of K", "TMT 6-plex of peptide N-term", "18O(2) of peptide C-term"));
+        IteratorFactory iteratorFactory = new IteratorFactory(fixedModifications);
+        ProteinIteratorUtils proteinIteratorUtils = new ProteinIteratorUtils(fixedModifications, null);
+        DigestionPreferences digestionPreferences = DigestionPreferences.getDefaultPreferences();
+        digestionPreferences.setCleavagePreference(DigestionPreferences.CleavagePreference.unSpecific);
+        Double massMin = 400.0;
+        Double massMax = 2500.0;
+
+        for (int i = 0; i < SEQUENCES.length - 1; i++) {
+
+            String sequence = SEQUENCES[i];
+            ArrayList<String> expected = new ArrayList<String>();
+
+            for (int start = 0; start < sequence.length(); start++) {
+                for (int end = start + 1; end <= sequence.length(); end++) {
+                    char[] peptideSequence = sequence.substring(start, end).toCharArray();
+                    Peptide peptide = proteinIteratorUtils.getPeptideFromProtein(peptideSequence, sequence, start, massMin, massMax);
+                    if (peptide != null && peptide.getMass() >= massMin && peptide.getMass() <= massMax) {
+                        expected.add(getDescription(start, peptide));
+                    }
+                }
+            }
+
+            Assert.assertFalse(expected.isEmpty());
+            Assert.assertEquals(expected, getCursorPeptides(iteratorFactory.getDigestionCursor(sequence, digestionPreferences, massMin, massMax)));
+            Assert.assertEquals(expected, getIteratorPeptides(iteratorFactory.getSequenceIterator(sequence, digestionPreferences, massMin, massMax)));
+        }
+    }
+
+    /**
+     * Tests that the enzymatic and whole protein cursors return the same
+     * peptides as the sequence iterators, sequences with amino acid
+     * combinations included.
+     */
+    public void testCursorsAgainstIterators() {
+
+        ArrayList<String> fixedModifications = new ArrayList<String>(Arrays.asList("Carbamidomethylation of C", "Oxidation of M"));
+        IteratorFactory iteratorFactory = new IteratorFactory(fixedModifications);
+
+        DigestionPreferences trypsin = DigestionPreferences.getDefaultPreferences();
+        DigestionPreferences wholeProtein = DigestionPreferences.getDefaultPreferences();
+        wholeProtein.setCleavagePreference(DigestionPreferences.CleavagePreference.wholeProtein);
+
+        for (String sequence : SEQUENCES) {
+            for (DigestionPreferences digestionPreferences : new DigestionPreferences[]{trypsin, wholeProtein}) {
+                ArrayList<String> expected = getIteratorPeptides(iteratorFactory.getSequenceIterator(sequence, digestionPreferences, null, null));
+                Assert.assertFalse(expected.isEmpty());
+                Assert.assertEquals(expected, getCursorPeptides(iteratorFactory.getDigestionCursor(sequence, digestionPreferences, null, null)));
+            }
+        }
+    }
+
+    /**
+     * Returns the peptides of the given cursor and checks that the primitive
+     * values exposed by the cursor match the peptide.
+     *
+     * @param digestionCursor the digestion cursor
+     *
+     * @return the peptides of the given cursor
+     */
+    private ArrayList<String> getCursorPeptides(DigestionCursor digestionCursor) {
+
+        ArrayList<String> result = new ArrayList<String>();
+
+        while (digestionCursor.next()) {
+
+            Peptide peptide = digestionCursor.getPeptide();
+            Assert.assertEquals(peptide.getSequence().length(), digestionCursor.getEnd() - digestionCursor.getStart());
+            Assert.assertEquals(peptide.getMass(), digestionCursor.getMass(), 1e-6);
+
+            int nModifications = digestionCursor.getNFixedModifications();
+            if (digestionCursor.getNTermModification() != null) {
+                nModifications++;
+            }
+            if (digestionCursor.getCTermModification() != null) {
+                nModifications++;
+            }
+            int nPeptideModifications = peptide.getModificationMatches() == null ? 0 : peptide.getModificationMatches().size();
+            Assert.assertEquals(nPeptideModifications, nModifications);
+
+            for (int i = 0; i < digestionCursor.getNFixedModifications(); i++) {
+                boolean found = false;
+                for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                    if (modificationMatch.getModificationSite() == digestionCursor.getFixedModificationSite(i)
+                            && modificationMatch.getTheoreticPtm().equals(digestionCursor.getFixedModification(i))) {
+                        found = true;
+                    }
+                }
+                Assert.assertTrue(found);
+            }
+
+            result.add(getDescription(digestionCursor.getStart(), peptide));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the peptides of the given iterator.
+     *
+     * @param sequenceIterator the sequence iterator
+     *
+     * @return the peptides of the given iterator
+     */
+    private ArrayList<String> getIteratorPeptides(SequenceIterator sequenceIterator) {
+
+        ArrayList<String> result = new ArrayList<String>();
+        PeptideWithPosition peptideWithPosition;
+
+        while ((peptideWithPosition = sequenceIterator.getNextPeptide()) != null) {
+            result.add(getDescription(peptideWithPosition.getPosition(), peptideWithPosition.getPeptide()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a description of the given peptide at the given position.
+     *
+     * @param position the position of the peptide on the protein
+     * @param peptide the peptide
+     *
+     * @return a description of the given peptide
+     */
+    private String getDescription(int position, Peptide peptide) {
+
+        StringBuilder description = new StringBuilder();
+        description.append(position).append(' ').append(peptide.getSequence());
+
+        if (peptide.getModificationMatches() != null) {
+            for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                description.append(' ').append(modificationMatch.getTheoreticPtm()).append('@').append(modificationMatch.getModificationSite());
+            }
+        }
+
+        return description.toString();
+    }
+}
@@ -24,10 +24,13 @@ import com.compomics.util.preferences.SequenceMatchingPreferences;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Random;
+import java.util.HashSet;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 import org.xmlpull.v1.XmlPullParserException;
@@ -114,6 +117,389 @@ public class FMIndexTest extends TestCase {
 
     }
 
+    /**
+     * Tests saving the index to its file and loading it back.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     */
+    public void testIndexFile() throws FileNotFoundException, IOException, ClassNotFoundException, InterruptedException {
+
+        WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
+        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
+        PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+        SearchParameters searchParameters = new SearchParameters();
+        searchParameters.setPtmSettings(new PtmSettings());
+        searchParameters.setFragmentIonAccuracy(0.02);
+        searchParameters.setFragmentAccuracyType(SearchParameters.MassAccuracyType.DA);
+
+        String indexKey = FMIndex.getIndexKey(sequences, searchParameters.getPtmSettings(), peptideVariantsPreferences, 0.02, SearchParameters.MassAccuracyType.DA);
+        File indexFile = FMIndex.getIndexFile(sequences, indexKey);
+        Assert.assertFalse(indexKey.equals(FMIndex.getIndexKey(sequences, searchParameters.getPtmSettings(), peptideVariantsPreferences, 10, SearchParameters.MassAccuracyType.PPM)));
+
+        try {
+            FMIndex builtIndex = new FMIndex(null, false, peptideVariantsPreferences, searchParameters, true, 1);
+            Assert.assertTrue(indexFile.exists());
+            FMIndex loadedIndex = new FMIndex(null, false, peptideVariantsPreferences, searchParameters, true, 1);
+            Assert.assertEquals(builtIndex.getAllocatedBytes(), loadedIndex.getAllocatedBytes());
+            Assert.assertEquals(builtIndex.indexStringLengths, loadedIndex.indexStringLengths);
+
+            SequenceMatchingPreferences sequenceMatchingPreferences = new SequenceMatchingPreferences();
+            sequenceMatchingPreferences.setSequenceMatchingType(SequenceMatchingPreferences.MatchingType.indistiguishableAminoAcids);
+            sequenceMatchingPreferences.setLimitX(0.25);
+            String[] peptides = new String[]{"ECTQDRGKTAFTEAVLLP", "SSS", "LLL", "KTAFTEAVL"};
+            for (String peptide : peptides) {
+                HashMap<String, HashMap<String, ArrayList<Integer>>> builtMapping = PeptideProteinMapping.getPeptideProteinIndexesMap(builtIndex.getProteinMapping(peptide, sequenceMatchingPreferences));
+                HashMap<String, HashMap<String, ArrayList<Integer>>> loadedMapping = PeptideProteinMapping.getPeptideProteinIndexesMap(loadedIndex.getProteinMapping(peptide, sequenceMatchingPreferences));
+                Assert.assertEquals(builtMapping.keySet(), loadedMapping.keySet());
+                for (String sequence : builtMapping.keySet()) {
+                    HashMap<String, ArrayList<Integer>> builtIndexes = builtMapping.get(sequence);
+                    HashMap<String, ArrayList<Integer>> loadedIndexes = loadedMapping.get(sequence);
+                    Assert.assertEquals(builtIndexes.keySet(), loadedIndexes.keySet());
+                    for (String accession : builtIndexes.keySet()) {
+                        ArrayList<Integer> builtPositions = builtIndexes.get(accession);
+                        ArrayList<Integer> loadedPositions = loadedIndexes.get(accession);
+                        Collections.sort(builtPositions);
+                        Collections.sort(loadedPositions);
+                        Assert.assertEquals(builtPositions, loadedPositions);
+                    }
+                }
+            }
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Tests that truncated or corrupted index files are rebuilt.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     */
+    public void testCorruptedIndexFile() throws FileNotFoundException, IOException, ClassNotFoundException, InterruptedException {
+
+        WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
+        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
+        PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+        SearchParameters searchParameters = new SearchParameters();
+        searchParameters.setPtmSettings(new PtmSettings());
+        searchParameters.setFragmentIonAccuracy(0.02);
+        searchParameters.setFragmentAccuracyType(SearchParameters.MassAccuracyType.DA);
+
+        String indexKey = FMIndex.getIndexKey(sequences, searchParameters.getPtmSettings(), peptideVariantsPreferences, 0.02, SearchParameters.MassAccuracyType.DA);
+        File indexFile = FMIndex.getIndexFile(sequences, indexKey);
+
+        try {
+            FMIndex builtIndex = new FMIndex(null, false, peptideVariantsPreferences, searchParameters, true, 1);
+            long fileLength = indexFile.length();
+
+            RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+            raf.setLength(fileLength / 2);
+            raf.close();
+            FMIndex rebuiltIndex = new FMIndex(null, false, peptideVariantsPreferences, searchParameters, true, 1);
+            Assert.assertEquals(builtIndex.getAllocatedBytes(), rebuiltIndex.getAllocatedBytes());
+            Assert.assertEquals(builtIndex.indexStringLengths, rebuiltIndex.indexStringLengths);
+            Assert.assertEquals(fileLength, indexFile.length());
+
+            raf = new RandomAccessFile(indexFile, "rw");
+            raf.seek(8 + 4 + indexKey.length());
+            raf.writeInt(Integer.MAX_VALUE);
+            raf.close();
+            rebuiltIndex = new FMIndex(null, false, peptideVariantsPreferences, searchParameters, true, 1);
+            Assert.assertEquals(builtIndex.getAllocatedBytes(), rebuiltIndex.getAllocatedBytes());
+            Assert.assertEquals(fileLength, indexFile.length());
+
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Tests that building the index parts concurrently gives the same
+     * mappings as the sequential build.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     */
+    public void testParallelIndexing() throws FileNotFoundException, IOException, ClassNotFoundException, InterruptedException {
+
+        Assert.assertEquals(FMIndex.MAX_INDEX_CHUNK_SIZE, FMIndex.getIndexChunkSize(Long.MAX_VALUE, 1, Long.MAX_VALUE));
+        Assert.assertEquals(FMIndex.MIN_INDEX_CHUNK_SIZE, FMIndex.getIndexChunkSize(1000, 32, Long.MAX_VALUE));
+        Assert.assertEquals(1000, FMIndex.getIndexChunkSize(Long.MAX_VALUE, 4, 4 * 1000 * FMIndex.BUILD_BYTES_PER_RESIDUE));
+
+        WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
+        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
+        PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+
+        FMIndex sequentialIndex = new FMIndex(null, false, null, peptideVariantsPreferences);
+        FMIndex parallelIndex = new FMIndex(null, false, null, peptideVariantsPreferences, false, 4, 4 * 300 * FMIndex.BUILD_BYTES_PER_RESIDUE);
+        Assert.assertEquals(1, sequentialIndex.indexStringLengths.size());
+        Assert.assertTrue(parallelIndex.indexStringLengths.size() > 1);
+
+        SequenceMatchingPreferences sequenceMatchingPreferences = new SequenceMatchingPreferences();
+        sequenceMatchingPreferences.setSequenceMatchingType(SequenceMatchingPreferences.MatchingType.indistiguishableAminoAcids);
+        sequenceMatchingPreferences.setLimitX(0.25);
+        SequenceFactory.ProteinIterator proteinIterator = sequenceFactory.getProteinIterator(false);
+        while (proteinIterator.hasNext()) {
+            String sequence = proteinIterator.getNextProtein().getSequence();
+            int[] starts = new int[]{0, sequence.length() / 2, sequence.length() - 8};
+            for (int start : starts) {
+                String peptide = sequence.substring(start, start + 8);
+                ArrayList<String> sequentialMappings = getMappings(sequentialIndex.getProteinMapping(peptide, sequenceMatchingPreferences));
+                ArrayList<String> parallelMappings = getMappings(parallelIndex.getProteinMapping(peptide, sequenceMatchingPreferences));
+                Assert.assertFalse(sequentialMappings.isEmpty());
+                Assert.assertEquals(sequentialMappings, parallelMappings);
+            }
+        }
+    }
+
+    /**
+     * Tests that flattening the occurrence tables does not change the
+     * mappings.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     */
+    public void testFlattenedOccurrenceTables() throws FileNotFoundException, IOException, ClassNotFoundException, InterruptedException {
+
+        WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
+        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
+        PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+
+        FMIndex treeIndex = new FMIndex(null, false, null, peptideVariantsPreferences);
+        FMIndex flatIndex = new FMIndex(null, false, null, peptideVariantsPreferences);
+        flatIndex.flattenOccurrenceTables();
+        Assert.assertTrue(flatIndex.occurrenceTablesPrimary.get(0).isFlat());
+
+        SequenceMatchingPreferences sequenceMatchingPreferences = new SequenceMatchingPreferences();
+        sequenceMatchingPreferences.setSequenceMatchingType(SequenceMatchingPreferences.MatchingType.indistiguishableAminoAcids);
+        sequenceMatchingPreferences.setLimitX(0.25);
+        SequenceFactory.ProteinIterator proteinIterator = sequenceFactory.getProteinIterator(false);
+        while (proteinIterator.hasNext()) {
+            String sequence = proteinIterator.getNextProtein().getSequence();
+            int[] starts = new int[]{0, sequence.length() / 2, sequence.length() - 8};
+            for (int start : starts) {
+                String peptide = sequence.substring(start, start + 8);
+                ArrayList<String> treeMappings = getMappings(treeIndex.getProteinMapping(peptide, sequenceMatchingPreferences));
+                ArrayList<String> flatMappings = getMappings(flatIndex.getProteinMapping(peptide, sequenceMatchingPreferences));
+                Assert.assertFalse(treeMappings.isEmpty());
+                Assert.assertEquals(treeMappings, flatMappings);
+            }
+        }
+    }
+
+    /**
+     * Tests that mapping peptides in batches on several threads gives the
+     * same mappings as mapping the peptides one by one.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     * @throws SQLException if an SQLException thrown whenever a problem
+     * occurred while interacting with the tree database
+     */
+    public void testBatchMapping() throws FileNotFoundException, IOException, ClassNotFoundException, InterruptedException, SQLException {
+
+        WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
+        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
+        FMIndex fmIndex = new FMIndex(null, false, null, PeptideVariantsPreferences.getNoVariantPreferences());
+
+        SequenceMatchingPreferences sequenceMatchingPreferences = new SequenceMatchingPreferences();
+        sequenceMatchingPreferences.setSequenceMatchingType(SequenceMatchingPreferences.MatchingType.indistiguishableAminoAcids);
+        sequenceMatchingPreferences.setLimitX(0.25);
+        ArrayList<String> peptides = new ArrayList<String>();
+        SequenceFactory.ProteinIterator proteinIterator = sequenceFactory.getProteinIterator(false);
+        while (proteinIterator.hasNext()) {
+            String sequence = proteinIterator.getNextProtein().getSequence();
+            for (int start = 0; start + 10 <= sequence.length(); start += 7) {
+                peptides.add(sequence.substring(start, start + 10));
+            }
+        }
+        peptides.add("SSS");
+        peptides.add("SSS");
+
+        HashMap<String, ArrayList<PeptideProteinMapping>> batchMappings = fmIndex.getProteinMappings(peptides, sequenceMatchingPreferences, 4);
+        Assert.assertEquals(new HashSet<String>(peptides), batchMappings.keySet());
+        for (String peptide : peptides) {
+            Assert.assertEquals(getMappings(fmIndex.getProteinMapping(peptide, sequenceMatchingPreferences)), getMappings(batchMappings.get(peptide)));
+        }
+    }
+
+    /**
+     * Tests that pruning the searches with variants using lower bounds on the
+     * number of variants does not change the mappings, with generic and
+     * specific variants.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     * @throws SQLException if an SQLException thrown whenever a problem
+     * occurred while interacting with the tree database
+     */
+    public void testVariantsPruning() throws FileNotFoundException, IOException, ClassNotFoundException, InterruptedException, SQLException {
+
+        WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
+        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
+
+        SequenceMatchingPreferences sequenceMatchingPreferences = new SequenceMatchingPreferences();
+        sequenceMatchingPreferences.setSequenceMatchingType(SequenceMatchingPreferences.MatchingType.indistiguishableAminoAcids);
+        sequenceMatchingPreferences.setLimitX(0.25);
+
+        // peptides from the proteins with a substitution and a deletion, or an insertion and two substitutions
+        Random random = new Random(42);
+        String aminoAcids = "ACDEFGHIKLMNPQRSTVWY";
+        ArrayList<String> peptides = new ArrayList<String>();
+        SequenceFactory.ProteinIterator proteinIterator = sequenceFactory.getProteinIterator(false);
+        while (proteinIterator.hasNext()) {
+            String sequence = proteinIterator.getNextProtein().getSequence();
+            for (int nEdits = 2; nEdits <= 3; ++nEdits) {
+                int start = random.nextInt(sequence.length() - 12);
+                StringBuilder peptide = new StringBuilder(sequence.substring(start, start + 12));
+                peptide.setCharAt(3, aminoAcids.charAt(random.nextInt(aminoAcids.length())));
+                if (nEdits == 2) {
+                    peptide.deleteCharAt(8);
+                } else {
+                    peptide.insert(6, aminoAcids.charAt(random.nextInt(aminoAcids.length())));
+                    peptide.setCharAt(10, aminoAcids.charAt(random.nextInt(aminoAcids.length())));
+                }
+                peptides.add(peptide.toString());
+            }
+        }
+
+        for (int nVariants = 2; nVariants <= 3; ++nVariants) {
+
+            PeptideVariantsPreferences genericPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+            genericPreferences.setUseSpecificCount(false);
+            genericPreferences.setnVariants(nVariants);
+            genericPreferences.setAaSubstitutionMatrix(AaSubstitutionMatrix.allSubstitutions);
+            testVariantsPruning(genericPreferences, peptides, sequenceMatchingPreferences);
+
+            PeptideVariantsPreferences specificPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+            specificPreferences.setUseSpecificCount(true);
+            specificPreferences.setnAaSubstitutions(nVariants - 1);
+            specificPreferences.setnAaInsertions(1);
+            specificPreferences.setnAaDeletions(nVariants - 2);
+            specificPreferences.setAaSubstitutionMatrix(AaSubstitutionMatrix.allSubstitutions);
+            testVariantsPruning(specificPreferences, peptides, sequenceMatchingPreferences);
+        }
+    }
+
+    /**
+     * Maps the given peptides with and without pruning of the searches with
+     * variants and checks that the mappings are the same.
+     *
+     * @param peptideVariantsPreferences the variants preferences
+     * @param peptides the peptides to map
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     * @throws SQLException if an SQLException thrown whenever a problem
+     * occurred while interacting with the tree database
+     */
+    private void testVariantsPruning(PeptideVariantsPreferences peptideVariantsPreferences, ArrayList<String> peptides, SequenceMatchingPreferences sequenceMatchingPreferences)
+            throws IOException, ClassNotFoundException, InterruptedException, SQLException {
+
+        FMIndex prunedIndex = new FMIndex(null, false, null, peptideVariantsPreferences);
+        FMIndex fullIndex = new FMIndex(null, false, null, peptideVariantsPreferences);
+        fullIndex.setVariantsPruning(false);
+        Assert.assertTrue(prunedIndex.isVariantsPruning());
+
+        int nMapped = 0;
+        for (String peptide : peptides) {
+            ArrayList<String> prunedMappings = getMappingsWithVariants(prunedIndex.getProteinMapping(peptide, sequenceMatchingPreferences));
+            ArrayList<String> fullMappings = getMappingsWithVariants(fullIndex.getProteinMapping(peptide, sequenceMatchingPreferences));
+            Assert.assertEquals(fullMappings, prunedMappings);
+            if (!prunedMappings.isEmpty()) {
+                ++nMapped;
+            }
+        }
+        Assert.assertTrue(nMapped > 0);
+    }
+
+    /**
+     * Returns the given mappings and their variants as strings in the order
+     * of the mappings.
+     *
+     * @param peptideProteinMappings the peptide to protein mappings
+     *
+     * @return the mappings and their variants as strings
+     */
+    private ArrayList<String> getMappingsWithVariants(ArrayList<PeptideProteinMapping> peptideProteinMappings) {
+        ArrayList<String> mappings = new ArrayList<String>(peptideProteinMappings.size());
+        for (PeptideProteinMapping peptideProteinMapping : peptideProteinMappings) {
+            StringBuilder mapping = new StringBuilder();
+            mapping.append(peptideProteinMapping.getProteinAccession()).append('_').append(peptideProteinMapping.getIndex()).append('_').append(peptideProteinMapping.getPeptideSequence());
+            if (peptideProteinMapping.getVariantMatches() != null) {
+                for (VariantMatch variantMatch : peptideProteinMapping.getVariantMatches()) {
+                    mapping.append('_').append(variantMatch.getSite()).append(variantMatch.getVariant().getDescription());
+                }
+            }
+            mappings.add(mapping.toString());
+        }
+        return mappings;
+    }
+
+    /**
+     * Returns the given mappings as sorted strings.
+     *
+     * @param peptideProteinMappings the peptide to protein mappings
+     *
+     * @return the mappings as sorted strings
+     */
+    private ArrayList<String> getMappings(ArrayList<PeptideProteinMapping> peptideProteinMappings) {
+        ArrayList<String> mappings = new ArrayList<String>(peptideProteinMappings.size());
+        for (PeptideProteinMapping peptideProteinMapping : peptideProteinMappings) {
+            mappings.add(peptideProteinMapping.getProteinAccession() + "_" + peptideProteinMapping.getIndex() + "_" + peptideProteinMapping.getPeptideSequence());
+        }
+        Collections.sort(mappings);
+        return mappings;
+    }
+
     /**
      * Tests the import and the mapping of a few peptide sequences.
      *
@@ -10,6 +10,7 @@ import com.compomics.util.experiment.identification.protein_sequences.SequenceFa
 import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
 import com.compomics.util.experiment.identification.amino_acid_tags.Tag;
 import com.compomics.util.experiment.identification.amino_acid_tags.matchers.TagMatcher;
+import com.compomics.util.experiment.identification.protein_inference.PeptideMapperUtils;
 import com.compomics.util.experiment.identification.protein_inference.PeptideProteinMapping;
 import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
@@ -20,6 +21,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 import org.xmlpull.v1.XmlPullParserException;
@@ -85,6 +87,57 @@ public class ProteinTreeTest extends TestCase {
         proteinTree.deleteDb();
     }
 
+    /**
+     * Tests the concurrent mapping of peptides with a node cache too small to
+     * hold the tree, and the mapping after reopening the tree.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     * @throws SQLException if an SQLException thrown whenever a problem
+     * occurred while interacting with the tree database
+     */
+    public void testConcurrentPeptideToProteinMapping() throws FileNotFoundException, IOException, ClassNotFoundException, SQLException, InterruptedException {
+
+        WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
+        ExceptionHandler exceptionHandler = new CommandLineExceptionHandler();
+        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
+
+        HashSet<String> peptides = new HashSet<String>();
+        for (String accession : sequenceFactory.getAccessions()) {
+            String sequence = sequenceFactory.getProtein(accession).getSequence();
+            for (int i = 0; i + 8 <= sequence.length(); i += 7) {
+                peptides.add(sequence.substring(i, i + 8));
+            }
+        }
+
+        ProteinTree proteinTree = new ProteinTree(1000, 1000);
+        proteinTree.initiateTree(3, 50, 50, waitingHandlerCLIImpl, exceptionHandler, true, false, 1);
+        HashMap<String, ArrayList<PeptideProteinMapping>> expected = PeptideMapperUtils.getProteinMappings(proteinTree, peptides, SequenceMatchingPreferences.defaultStringMatching, 1);
+        proteinTree.close();
+
+        proteinTree = new ProteinTree(1000, 10);
+        proteinTree.initiateTree(3, 50, 50, waitingHandlerCLIImpl, exceptionHandler, true, false, 1);
+        proteinTree.setMemoryAllocation(0);
+        HashMap<String, ArrayList<PeptideProteinMapping>> mappings = PeptideMapperUtils.getProteinMappings(proteinTree, peptides, SequenceMatchingPreferences.defaultStringMatching, 4);
+
+        Assert.assertEquals(expected.size(), mappings.size());
+        for (String peptide : expected.keySet()) {
+            HashMap<String, HashMap<String, ArrayList<Integer>>> expectedIndexes = PeptideProteinMapping.getPeptideProteinIndexesMap(expected.get(peptide));
+            HashMap<String, HashMap<String, ArrayList<Integer>>> indexes = PeptideProteinMapping.getPeptideProteinIndexesMap(mappings.get(peptide));
+            Assert.assertFalse(expectedIndexes.isEmpty());
+            Assert.assertEquals(expectedIndexes, indexes);
+        }
+
+        proteinTree.deleteDb();
+    }
+
     /**
      * Tests the mapping of de novo sequence tags to the database.
      *
@@ -0,0 +1,108 @@
+package com.compomics.util.test.experiment.sequences.indexing;
+
+import com.compomics.util.experiment.identification.protein_inference.fm_index.MatrixContent;
+import com.compomics.util.experiment.identification.protein_inference.fm_index.TagMappingCache;
+import java.util.ArrayList;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the cache of the tag mapping results.
+ *
+ * @author Marc Vaudel
+ */
+public class TagMappingCacheTest extends TestCase {
+
+    /**
+     * Tests the retrieval of the cached contents and the statistics.
+     */
+    public void testGetPut() {
+        TagMappingCache cache = new TagMappingCache(100);
+        ArrayList<MatrixContent> contents = getContents(2);
+        Assert.assertNull(cache.get(0, "TEST", 100.123456));
+        cache.put(0, "TEST", 100.123456, contents);
+        Assert.assertTrue(cache.get(0, "TEST", 100.123456) == contents);
+        Assert.assertTrue(cache.get(0, "TEST", 100.1234561) == contents);
+        Assert.assertNull(cache.get(1, "TEST", 100.123456));
+        Assert.assertNull(cache.get(0, "TEST", 100.12347));
+        Assert.assertNull(cache.get(0, "TESK", 100.123456));
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(4, cache.getMissCount());
+        Assert.assertEquals(3, cache.getSize());
+
+        cache.put(0, "TEST", 100.123456, getContents(5));
+        Assert.assertTrue(cache.get(0, "TEST", 100.123456) == contents);
+        Assert.assertEquals(3, cache.getSize());
+
+        cache.clear();
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(0, cache.getNEntries());
+        cache.resetStatistics();
+        Assert.assertEquals(0, cache.getHitCount());
+        Assert.assertEquals(0, cache.getMissCount());
+    }
+
+    /**
+     * Tests that the cache stays within its capacity and keeps the recently
+     * used entries.
+     */
+    public void testEviction() {
+        TagMappingCache cache = new TagMappingCache(100);
+        cache.put(0, "HOT", 0, getContents(1));
+        for (int i = 0; i < 200; i++) {
+            Assert.assertNotNull(cache.get(0, "HOT", 0));
+            cache.put(0, "COLD", i, getContents(1));
+            Assert.assertTrue(cache.getSize() <= 100);
+        }
+        Assert.assertNotNull(cache.get(0, "HOT", 0));
+        Assert.assertTrue(cache.getEvictionCount() > 0);
+        Assert.assertEquals(2 * cache.getNEntries(), cache.getSize());
+    }
+
+    /**
+     * Tests the cache when used by multiple threads.
+     *
+     * @throws InterruptedException exception thrown whenever a threading
+     * issue occurred
+     */
+    public void testConcurrency() throws InterruptedException {
+        final TagMappingCache cache = new TagMappingCache(1000);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        int indexPart = i % 3;
+                        double mass = i % 700;
+                        if (cache.get(indexPart, "PEPTIDE", mass) == null) {
+                            cache.put(indexPart, "PEPTIDE", mass, getContents(1));
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(2 * cache.getNEntries(), cache.getSize());
+        Assert.assertTrue(cache.getSize() <= 1000);
+        Assert.assertEquals(40000, cache.getHitCount() + cache.getMissCount());
+    }
+
+    /**
+     * Returns a list of empty matrix contents.
+     *
+     * @param n the number of matrix contents
+     *
+     * @return a list of empty matrix contents
+     */
+    private static ArrayList<MatrixContent> getContents(int n) {
+        ArrayList<MatrixContent> contents = new ArrayList<MatrixContent>(n);
+        for (int i = 0; i < n; i++) {
+            contents.add(new MatrixContent(0));
+        }
+        return contents;
+    }
+}
@@ -0,0 +1,101 @@
+package com.compomics.util.test.experiment.sequences.indexing;
+
+import com.compomics.util.experiment.identification.protein_inference.fm_index.Rank;
+import com.compomics.util.experiment.identification.protein_inference.fm_index.WaveletTree;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the rank and wavelet tree of the FM index.
+ *
+ * @author Marc Vaudel
+ */
+public class WaveletTreeTest extends TestCase {
+
+    /**
+     * The characters of the test texts.
+     */
+    private static final String CHARACTERS = "/ACDEFGHIKLMNPQRSTVWY";
+
+    /**
+     * Tests the rank against counts.
+     */
+    public void testRank() {
+        Random random = new Random(42);
+        for (int length : new int[]{1, 63, 64, 255, 256, 257, 5000}) {
+            byte[] text = getText(random, length);
+            long[] alphabet = new long[2];
+            for (char character : "ACDEFGHIK".toCharArray()) {
+                alphabet[character >>> 6] |= 1L << (character & 63);
+            }
+            Rank rank = new Rank(text, alphabet);
+            int ones = 0;
+            for (int i = 0; i < length; i++) {
+                boolean one = "ACDEFGHIK".indexOf(text[i]) >= 0;
+                if (one) {
+                    ones++;
+                }
+                Assert.assertEquals(one, rank.isOne(i));
+                Assert.assertEquals(ones, rank.getRankOne(i));
+                Assert.assertEquals(i + 1 - ones, rank.getRankZero(i));
+                Assert.assertEquals(ones, rank.getRank(i, false));
+            }
+        }
+    }
+
+    /**
+     * Tests that the flattened tree answers the queries as the tree.
+     */
+    public void testFlatten() {
+        Random random = new Random(42);
+        byte[] text = getText(random, 10000);
+        text[text.length - 1] = '$';
+        long[] alphabet = new long[2];
+        for (char character : (CHARACTERS + "$").toCharArray()) {
+            alphabet[character >>> 6] |= 1L << (character & 63);
+        }
+        WaveletTree tree = new WaveletTree(text, alphabet, null, 128);
+        WaveletTree flatTree = new WaveletTree(text, alphabet, null, 128);
+        flatTree.flatten();
+        Assert.assertTrue(flatTree.isFlat());
+        Assert.assertTrue(Arrays.equals(tree.createLessTable(), flatTree.createLessTable()));
+
+        for (int i = 0; i < text.length; i += 7) {
+            Assert.assertTrue(Arrays.equals(tree.getCharacterInfo(i), flatTree.getCharacterInfo(i)));
+            for (char character : CHARACTERS.toCharArray()) {
+                Assert.assertEquals(tree.getRank(i, character), flatTree.getRank(i, character));
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            int left = random.nextInt(text.length) - 1;
+            int right = Math.min(text.length - 1, left + random.nextInt(50));
+            int[][] treeQuery = tree.rangeQuery(left, right);
+            int[][] flatQuery = flatTree.rangeQuery(left, right);
+            Assert.assertEquals(treeQuery[128][0], flatQuery[128][0]);
+            for (int j = 0; j < treeQuery[128][0]; j++) {
+                Assert.assertTrue(Arrays.equals(treeQuery[j], flatQuery[j]));
+            }
+            for (char character : CHARACTERS.toCharArray()) {
+                Assert.assertTrue(Arrays.equals(tree.singleRangeQuery(left, right, character), flatTree.singleRangeQuery(left, right, character)));
+            }
+        }
+    }
+
+    /**
+     * Returns a random text.
+     *
+     * @param random the random number generator
+     * @param length the length of the text
+     *
+     * @return a random text
+     */
+    private static byte[] getText(Random random, int length) {
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) CHARACTERS.charAt(random.nextInt(CHARACTERS.length()));
+        }
+        return text;
+    }
+}
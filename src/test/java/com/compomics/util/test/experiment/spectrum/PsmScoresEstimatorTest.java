@@ -0,0 +1,94 @@
+package com.compomics.util.test.experiment.spectrum;
+
+import com.compomics.util.experiment.biology.Ion;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.psm_scoring.PsmScore;
+import com.compomics.util.experiment.identification.psm_scoring.PsmScoresEstimator;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import com.compomics.util.experiment.massspectrometry.Precursor;
+import com.compomics.util.preferences.IdentificationParameters;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test for the PSM scores estimator.
+ *
+ * @author Marc Vaudel
+ */
+public class PsmScoresEstimatorTest extends TestCase {
+
+    /**
+     * Tests that the scores computed together from a single annotation are the
+     * same as the scores computed separately.
+     *
+     * @throws Exception thrown whenever an error occurred while scoring
+     */
+    public void testGetScores() throws Exception {
+
+        Random random = new Random(7);
+        String aminoAcids = "ACDEFGHIKLMNPQRSTVWY";
+        IdentificationParameters identificationParameters = new IdentificationParameters(new SearchParameters());
+        AnnotationSettings annotationSettings = identificationParameters.getAnnotationPreferences();
+        PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+        PsmScoresEstimator psmScoresEstimator = new PsmScoresEstimator();
+        PsmScore[] psmScores = {PsmScore.hyperScore, PsmScore.ms2_mz_fidelity, PsmScore.aa_ms2_mz_fidelity, PsmScore.aa_intensity, PsmScore.complementarity, PsmScore.precursor_accuracy};
+
+        for (int i = 0; i < 200; i++) {
+
+            StringBuilder sequence = new StringBuilder();
+            int length = 7 + random.nextInt(20);
+            for (int j = 0; j < length; j++) {
+                sequence.append(aminoAcids.charAt(random.nextInt(aminoAcids.length())));
+            }
+            sequence.append(random.nextBoolean() ? 'K' : 'R');
+            Peptide peptide = new Peptide(sequence.toString(), new ArrayList<ModificationMatch>());
+            int charge = 2 + random.nextInt(2);
+            String spectrumKey = "spectrum" + i;
+            SpecificAnnotationSettings specificAnnotationSettings = annotationSettings.getSpecificAnnotationPreferences(spectrumKey,
+                    new PeptideAssumption(peptide, new Charge(Charge.PLUS, charge)), identificationParameters.getSequenceMatchingPreferences(),
+                    identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+
+            // half of the expected fragment ions with a small error and noise peaks
+            ArrayList<Double> mzs = new ArrayList<Double>();
+            HashMap<Integer, ArrayList<Ion>> expectedIons = peptideSpectrumAnnotator.getExpectedIons(specificAnnotationSettings, peptide);
+            for (Integer ionCharge : expectedIons.keySet()) {
+                for (Ion ion : expectedIons.get(ionCharge)) {
+                    if (random.nextBoolean()) {
+                        mzs.add(ion.getTheoreticMz(ionCharge) + (random.nextDouble() - 0.5) * 0.02);
+                    }
+                }
+            }
+            int nNoise = 50 + random.nextInt(200);
+            for (int j = 0; j < nNoise; j++) {
+                mzs.add(100 + 1900 * random.nextDouble());
+            }
+            double[] mz = new double[mzs.size()];
+            double[] intensity = new double[mzs.size()];
+            for (int j = 0; j < mz.length; j++) {
+                mz[j] = mzs.get(j);
+                intensity[j] = Math.floor(random.nextDouble() * 50) * 100;
+            }
+            ArrayList<Charge> precursorCharges = new ArrayList<Charge>(1);
+            precursorCharges.add(new Charge(Charge.PLUS, charge));
+            Precursor precursor = new Precursor(-1, (peptide.getMass() + charge * 1.007276) / charge, 0, precursorCharges);
+            MSnSpectrum spectrum = new MSnSpectrum(2, precursor, spectrumKey, mz, intensity, "test.mgf");
+
+            double[] scores = psmScoresEstimator.getScores(peptide, charge, spectrum, identificationParameters, specificAnnotationSettings, peptideSpectrumAnnotator, psmScores);
+            Assert.assertEquals(psmScores.length, scores.length);
+            for (int j = 0; j < psmScores.length; j++) {
+                double score = psmScoresEstimator.getScore(peptide, charge, spectrum, identificationParameters, specificAnnotationSettings, peptideSpectrumAnnotator, psmScores[j]);
+                Assert.assertEquals(psmScores[j].name + " of " + peptide.getSequence(), score, scores[j], 0.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.compomics.util.test.experiment.spectrum;
+
+import com.compomics.util.experiment.biology.Ion;
+import com.compomics.util.experiment.biology.PTM;
+import com.compomics.util.experiment.biology.PTMFactory;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.ptm.ptmscores.AScore;
+import com.compomics.util.experiment.identification.ptm.ptmscores.PhosphoRS;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import com.compomics.util.experiment.massspectrometry.Precursor;
+import com.compomics.util.preferences.IdentificationParameters;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test for the PTM site scores.
+ *
+ * @author Marc Vaudel
+ */
+public class PtmSiteScoresTest extends TestCase {
+
+    /**
+     * The sequences of the phosphopeptides.
+     */
+    private static final String[] SEQUENCES = {"ESATENEIVWEKQRPK", "LESWHCKDCYTDR", "TYDHASAMRCPR", "GTTQTMGTLKMLYQESSTMTGK",
+        "MATSNGQSTSTATTR", "TNGKISKTIRTPLPTTSEHR"};
+    /**
+     * The phosphorylated sites of the peptides.
+     */
+    private static final int[][] SITES = {{2}, {10}, {6}, {8}, {8, 10}, {6, 11, 17}};
+    /**
+     * The PhosphoRS site probabilities obtained with a tolerance in Da by
+     * annotating the spectra, as {site, probability} per peptide.
+     */
+    private static final double[][][] PHOSPHO_RS_DA = {
+        {{2, 50.0}, {4, 50.0}},
+        {{3, 33.33333333333333}, {10, 33.33333333333333}, {11, 33.33333333333333}},
+        {{1, 14.595532786327341}, {2, 14.595532786327341}, {6, 70.80893442734532}},
+        {{2, 9.644956341639348}, {3, 9.644956341639348}, {5, 29.014425178102627}, {8, 29.014425178102627}, {13, 9.644956341639348}, {16, 3.7599180767731313}, {17, 3.7599180767731313}, {18, 3.7599180767731313}, {20, 1.7565263885573075}},
+        {{3, 26.498083669642465}, {4, 26.49808366964247}, {8, 26.49808366964247}, {9, 26.49808366964247}, {10, 26.49808366964247}, {11, 26.49808366964247}, {13, 26.49808366964246}, {14, 14.51341431250274}},
+        {{1, 36.014210538153954}, {6, 43.99763157697433}, {8, 43.99763157697433}, {11, 43.99763157697433}, {15, 43.99763157697433}, {16, 43.99763157697433}, {17, 43.99763157697433}}};
+    /**
+     * The A-scores obtained with a tolerance in Da by annotating the spectra,
+     * as {site, score} per peptide.
+     */
+    private static final double[][][] A_SCORE_DA = {
+        {{2, 6.736240440941941}},
+        {{10, 0.0}, {11, 0.0}},
+        {{6, 10.858228815511174}},
+        {{8, 5.996323487375822}},
+        {{9, 0.0}, {10, 0.0}},
+        {{16, 0.0}, {17, 0.0}}};
+    /**
+     * The PhosphoRS site probabilities obtained with a tolerance in ppm by
+     * annotating the spectra, as {site, probability} per peptide.
+     */
+    private static final double[][][] PHOSPHO_RS_PPM = {
+        {{2, 50.0}, {4, 50.0}},
+        {{3, 33.33333333333333}, {10, 33.33333333333333}, {11, 33.33333333333333}},
+        {{1, 0.010973974313543598}, {2, 0.010973974313543598}, {6, 99.97805205137291}},
+        {{2, 0.6666534349283321}, {3, 0.6666534349283321}, {5, 47.99423914427387}, {8, 47.99423914427387}, {13, 0.6666534349283321}, {16, 0.6666534349283321}, {17, 0.6666534349283321}, {18, 0.6666534349283321}, {20, 0.0116011018822598}},
+        {{3, 28.566348686013306}, {4, 28.566348686013306}, {8, 28.566348686013306}, {9, 28.566348686013306}, {10, 28.566348686013306}, {11, 28.566348686013306}, {13, 28.566348686013306}, {14, 0.03555919790688372}},
+        {{1, 0.35583616745442714}, {6, 49.940693972090926}, {8, 49.94069397209092}, {11, 49.94069397209094}, {15, 49.94069397209092}, {16, 49.94069397209093}, {17, 49.940693972090926}}};
+    /**
+     * The A-scores obtained with a tolerance in ppm by annotating the
+     * spectra, as {site, score} per peptide.
+     */
+    private static final double[][][] A_SCORE_PPM = {
+        {{2, 0.0}, {4, 0.0}},
+        {{10, 0.0}, {11, 0.0}},
+        {{6, 55.22989981745626}},
+        {{8, 17.329415833827632}},
+        {{9, 0.0}, {10, 0.0}},
+        {{17, 9.357715290943386}}};
+
+    /**
+     * Tests that the PhosphoRS and A-scores of phosphopeptides with several
+     * candidate sites are the same as when annotating the spectra, with a
+     * fragment ion tolerance in Da.
+     *
+     * @throws Exception thrown whenever an error occurred while scoring
+     */
+    public void testSiteScoresDa() throws Exception {
+        ArrayList<HashMap<Integer, Double>> scores = getSiteScores(false);
+        assertScores(PHOSPHO_RS_DA, A_SCORE_DA, scores);
+    }
+
+    /**
+     * Tests that the PhosphoRS and A-scores of phosphopeptides with several
+     * candidate sites are the same as when annotating the spectra, with a
+     * fragment ion tolerance in ppm.
+     *
+     * @throws Exception thrown whenever an error occurred while scoring
+     */
+    public void testSiteScoresPpm() throws Exception {
+        ArrayList<HashMap<Integer, Double>> scores = getSiteScores(true);
+        assertScores(PHOSPHO_RS_PPM, A_SCORE_PPM, scores);
+    }
+
+    /**
+     * Asserts that the given scores are the expected ones.
+     *
+     * @param phosphoRS the expected PhosphoRS site probabilities
+     * @param aScore the expected A-scores
+     * @param scores the PhosphoRS and A-scores of every peptide, in this order
+     */
+    private static void assertScores(double[][][] phosphoRS, double[][][] aScore, ArrayList<HashMap<Integer, Double>> scores) {
+        Assert.assertEquals(2 * SEQUENCES.length, scores.size());
+        for (int i = 0; i < SEQUENCES.length; i++) {
+            assertScores(SEQUENCES[i] + " PhosphoRS", phosphoRS[i], scores.get(2 * i));
+            assertScores(SEQUENCES[i] + " A-score", aScore[i], scores.get(2 * i + 1));
+        }
+    }
+
+    /**
+     * Asserts that the given scores per site are the expected ones.
+     *
+     * @param message the message to display upon failure
+     * @param expected the expected scores as {site, score}
+     * @param scores the scores per site
+     */
+    private static void assertScores(String message, double[][] expected, HashMap<Integer, Double> scores) {
+        Assert.assertEquals(message, expected.length, scores.size());
+        for (double[] siteScore : expected) {
+            Double score = scores.get((int) siteScore[0]);
+            Assert.assertNotNull(message + " at " + (int) siteScore[0], score);
+            Assert.assertEquals(message + " at " + (int) siteScore[0], siteScore[1], score, 1e-10);
+        }
+    }
+
+    /**
+     * Returns the PhosphoRS and A-scores of the test peptides on synthetic
+     * spectra containing part of their fragment ions and noise.
+     *
+     * @param ppm boolean indicating whether the fragment ion tolerance should
+     * be in ppm
+     *
+     * @return the PhosphoRS and A-scores of every peptide, in this order
+     *
+     * @throws Exception thrown whenever an error occurred while scoring
+     */
+    public static ArrayList<HashMap<Integer, Double>> getSiteScores(boolean ppm) throws Exception {
+
+        Random random = new Random(11);
+        PTMFactory ptmFactory = PTMFactory.getInstance();
+        ArrayList<PTM> ptms = new ArrayList<PTM>(3);
+        ptms.add(ptmFactory.getPTM("Phosphorylation of S"));
+        ptms.add(ptmFactory.getPTM("Phosphorylation of T"));
+        ptms.add(ptmFactory.getPTM("Phosphorylation of Y"));
+        SearchParameters searchParameters = new SearchParameters();
+        if (ppm) {
+            searchParameters.setFragmentAccuracyType(SearchParameters.MassAccuracyType.PPM);
+            searchParameters.setFragmentIonAccuracy(10.0);
+        }
+        IdentificationParameters identificationParameters = new IdentificationParameters(searchParameters);
+        AnnotationSettings annotationSettings = identificationParameters.getAnnotationPreferences();
+        PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+        ArrayList<HashMap<Integer, Double>> result = new ArrayList<HashMap<Integer, Double>>(2 * SEQUENCES.length);
+
+        for (int i = 0; i < SEQUENCES.length; i++) {
+
+            String sequence = SEQUENCES[i];
+            ArrayList<ModificationMatch> modificationMatches = new ArrayList<ModificationMatch>(SITES[i].length);
+            for (int site : SITES[i]) {
+                modificationMatches.add(new ModificationMatch("Phosphorylation of " + sequence.charAt(site - 1), true, site));
+            }
+            Peptide peptide = new Peptide(sequence, modificationMatches);
+            int charge = 2;
+            String spectrumKey = "spectrum" + i;
+            SpecificAnnotationSettings specificAnnotationSettings = annotationSettings.getSpecificAnnotationPreferences(spectrumKey,
+                    new PeptideAssumption(peptide, new Charge(Charge.PLUS, charge)), identificationParameters.getSequenceMatchingPreferences(),
+                    identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+
+            // half of the expected fragment ions with a small error and noise peaks,
+            // the ions are sorted by m/z to draw them in a reproducible order
+            ArrayList<Double> theoreticMzs = new ArrayList<Double>();
+            HashMap<Integer, ArrayList<Ion>> expectedIons = peptideSpectrumAnnotator.getExpectedIons(specificAnnotationSettings, peptide);
+            for (Integer ionCharge : expectedIons.keySet()) {
+                for (Ion ion : expectedIons.get(ionCharge)) {
+                    theoreticMzs.add(ion.getTheoreticMz(ionCharge));
+                }
+            }
+            Collections.sort(theoreticMzs);
+            ArrayList<Double> mzs = new ArrayList<Double>();
+            for (Double theoreticMz : theoreticMzs) {
+                if (random.nextBoolean()) {
+                    mzs.add(theoreticMz + (random.nextDouble() - 0.5) * (ppm ? 0.004 : 0.02));
+                }
+            }
+            int nNoise = 50 + random.nextInt(200);
+            for (int j = 0; j < nNoise; j++) {
+                mzs.add(100 + 1900 * random.nextDouble());
+            }
+            double[] mz = new double[mzs.size()];
+            double[] intensity = new double[mzs.size()];
+            for (int j = 0; j < mz.length; j++) {
+                mz[j] = mzs.get(j);
+                intensity[j] = Math.floor(random.nextDouble() * 50) * 100;
+            }
+            ArrayList<Charge> precursorCharges = new ArrayList<Charge>(1);
+            precursorCharges.add(new Charge(Charge.PLUS, charge));
+            Precursor precursor = new Precursor(-1, (peptide.getMass() + charge * 1.007276) / charge, 0, precursorCharges);
+            MSnSpectrum spectrum = new MSnSpectrum(2, precursor, spectrumKey, mz, intensity, "test.mgf");
+
+            result.add(PhosphoRS.getSequenceProbabilities(peptide, ptms, spectrum, annotationSettings, specificAnnotationSettings, true,
+                    identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences(),
+                    new PeptideSpectrumAnnotator()));
+            result.add(AScore.getAScore(peptide, ptms, spectrum, annotationSettings, specificAnnotationSettings, true,
+                    identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences(),
+                    new PeptideSpectrumAnnotator()));
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,204 @@
+package com.compomics.util.test.experiment.spectrum;
+
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import com.compomics.util.experiment.massspectrometry.Peak;
+import com.compomics.util.experiment.massspectrometry.Precursor;
+import com.compomics.util.experiment.massspectrometry.indexes.SpectrumIndex;
+import com.compomics.util.math.BasicMathFunctions;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the storage of the peaks of a spectrum.
+ *
+ * @author Marc Vaudel
+ */
+public class SpectrumPeaksTest extends TestCase {
+
+    public void testPeakArrays() throws Exception {
+
+        double[] mz = new double[]{500.2, 100.1, 300.3, 100.1, 250.0};
+        double[] intensity = new double[]{5, 1, 3, 2, 4};
+        MSnSpectrum spectrum = new MSnSpectrum(2, new Precursor(-1, 400, 0, new ArrayList<Charge>()), "title", mz, intensity, "file.mgf");
+
+        Assert.assertEquals(4, spectrum.getNPeaks());
+        double[] orderedMz = spectrum.getOrderedMzValues();
+        double[] orderedIntensities = spectrum.getIntensityValuesAsArray();
+        Assert.assertEquals(100.1, orderedMz[0]);
+        Assert.assertEquals(2.0, orderedIntensities[0]);
+        Assert.assertEquals(500.2, orderedMz[3]);
+        Assert.assertEquals(5.0, orderedIntensities[3]);
+        Assert.assertEquals(100.1, spectrum.getMinMz());
+        Assert.assertEquals(500.2, spectrum.getMaxMz());
+        Assert.assertEquals(14.0, spectrum.getTotalIntensity());
+        Assert.assertEquals(5.0, spectrum.getMaxIntensity());
+
+        HashMap<Double, Peak> peakMap = spectrum.getPeakMap();
+        Assert.assertEquals(4, peakMap.size());
+        Assert.assertEquals(3.0, peakMap.get(300.3).intensity);
+        Assert.assertSame(peakMap, spectrum.getPeakMap());
+
+        spectrum.addPeak(new Peak(200.0, 6));
+        spectrum.addPeak(new Peak(300.3, 7));
+        Assert.assertEquals(5, spectrum.getNPeaks());
+        Assert.assertEquals(200.0, spectrum.getOrderedMzValues()[1]);
+        Assert.assertEquals(7.0, spectrum.getPeakMap().get(300.3).intensity);
+        Assert.assertEquals(7.0, spectrum.getMaxIntensity());
+
+        HashMap<Double, Peak> subSpectrum = spectrum.getSubSpectrum(200.0, 300.3);
+        Assert.assertEquals(2, subSpectrum.size());
+        Assert.assertTrue(subSpectrum.containsKey(200.0));
+        Assert.assertTrue(subSpectrum.containsKey(250.0));
+
+        HashMap<Double, Peak> newPeaks = new HashMap<Double, Peak>();
+        newPeaks.put(150.0, new Peak(150.0, 1));
+        spectrum.setPeakList(newPeaks);
+        Assert.assertEquals(1, spectrum.getNPeaks());
+        Assert.assertEquals(150.0, spectrum.getMaxMz());
+
+        spectrum.removePeakList();
+        Assert.assertTrue(spectrum.isEmpty());
+        Assert.assertTrue(spectrum.getPeakMap().isEmpty());
+    }
+
+    public void testRetentionTimeAndSerialization() throws Exception {
+
+        HashMap<Double, Peak> peaks = new HashMap<Double, Peak>();
+        peaks.put(100.1, new Peak(100.1, 1, 12.5));
+        peaks.put(200.2, new Peak(200.2, 2, 12.5));
+        MSnSpectrum spectrum = new MSnSpectrum(2, new Precursor(-1, 400, 0, new ArrayList<Charge>()), "title", peaks, "file.mzML");
+        Assert.assertEquals(12.5, spectrum.getPeaksRetentionTime());
+        Assert.assertEquals(12.5, spectrum.getPeakMap().get(200.2).rt);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(spectrum);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        MSnSpectrum copy = (MSnSpectrum) in.readObject();
+        in.close();
+
+        Assert.assertEquals(2, copy.getNPeaks());
+        Assert.assertEquals(200.2, copy.getMaxMz());
+        Assert.assertEquals(2.0, copy.getMaxIntensity());
+        Assert.assertEquals(12.5, copy.getPeakMap().get(100.1).rt);
+
+        // the peak map is rebuilt from the peak arrays and not serialized
+        MSnSpectrum unmapped = new MSnSpectrum(2, new Precursor(-1, 400, 0, new ArrayList<Charge>()), "title", peaks, "file.mzML");
+        ByteArrayOutputStream unmappedBos = new ByteArrayOutputStream();
+        out = new ObjectOutputStream(unmappedBos);
+        out.writeObject(unmapped);
+        out.close();
+        Assert.assertEquals(unmappedBos.size(), bos.size());
+    }
+
+    public void testIntensityLimit() throws Exception {
+
+        final MSnSpectrum spectrum = new MSnSpectrum(2, new Precursor(-1, 400, 0, new ArrayList<Charge>()), "title",
+                new double[]{150.0, 250.0, 300.0, 350.0, 400.0}, new double[]{1000.0, 1.0, 2.0, 3.0, 4.0}, "file.mgf");
+        final double limit = BasicMathFunctions.percentile(new double[]{1.0, 2.0, 3.0, 4.0}, 0.5);
+        final double highLimit = BasicMathFunctions.percentile(new double[]{1.0, 2.0, 3.0, 4.0}, 0.75);
+        Assert.assertEquals(limit, spectrum.getIntensityLimit(0.5));
+        Assert.assertEquals(highLimit, spectrum.getIntensityLimit(0.75));
+        Assert.assertEquals(limit, spectrum.getIntensityLimit(0.5));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int thread = 0; thread < 4; thread++) {
+            final double fraction = thread % 2 == 0 ? 0.5 : 0.75;
+            final double expectedLimit = thread % 2 == 0 ? limit : highLimit;
+            futures.add(pool.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for (int i = 0; i < 1000; i++) {
+                        if (spectrum.getIntensityLimit(fraction) != expectedLimit) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> future : futures) {
+            Assert.assertTrue(future.get());
+        }
+        pool.shutdown();
+
+        spectrum.setPeaks(new double[]{150.0, 250.0, 300.0}, new double[]{1000.0, 10.0, 20.0});
+        Assert.assertEquals(BasicMathFunctions.percentile(new double[]{10.0, 20.0}, 0.5), spectrum.getIntensityLimit(0.5));
+    }
+
+    public void testArrayIndex() throws Exception {
+
+        double[] mz = new double[]{1012.5, 1012.51, 1012.8};
+        double[] intensity = new double[]{12345, 12354, 54321};
+        HashMap<Double, Peak> peakMap = new HashMap<Double, Peak>();
+        for (int i = 0; i < mz.length; i++) {
+            peakMap.put(mz[i], new Peak(mz[i], intensity[i]));
+        }
+
+        SpectrumIndex mapIndex = new SpectrumIndex(peakMap, 20000.0, 0.5, false);
+        SpectrumIndex arrayIndex = new SpectrumIndex(mz, intensity, 20000.0, 0.5, false);
+        Assert.assertEquals(mapIndex.getTotalIntensity(), arrayIndex.getTotalIntensity());
+        Assert.assertEquals(mapIndex.getBinMin(), arrayIndex.getBinMin());
+        Assert.assertEquals(mapIndex.getBinMax(), arrayIndex.getBinMax());
+        Assert.assertEquals(1, arrayIndex.getMatchingPeaks(1012.52).size());
+        Assert.assertEquals(1012.8, arrayIndex.getMatchingPeaks(1012.52).get(0).mz);
+
+        arrayIndex = new SpectrumIndex(mz, intensity, null, 20, true);
+        Assert.assertEquals(2, arrayIndex.getMatchingPeaks(1012.52).size());
+    }
+
+    public void testIndexMatching() throws Exception {
+
+        Random random = new Random(42);
+        double[] mz = new double[2000];
+        double[] intensity = new double[mz.length];
+        for (int i = 0; i < mz.length; i++) {
+            mz[i] = 100 + 1900 * random.nextDouble();
+            intensity[i] = random.nextDouble();
+        }
+        MSnSpectrum spectrum = new MSnSpectrum(2, new Precursor(-1, 400, 0, new ArrayList<Charge>()), "title", mz, intensity, "file.mgf");
+
+        double[][] tolerances = new double[][]{{0.02, 0}, {0.5, 0}, {10, 1}, {20, 1}};
+        for (double[] tolerance : tolerances) {
+            boolean ppm = tolerance[1] == 1;
+            SpectrumIndex spectrumIndex = spectrum.getSpectrumIndex(0.5, tolerance[0], ppm);
+            Assert.assertSame(spectrumIndex, spectrum.getSpectrumIndex(0.5, tolerance[0], ppm));
+            for (int i = 0; i < 1000; i++) {
+                double queryMz = 100 + 1900 * random.nextDouble();
+                int nExpected = 0;
+                for (int j = 0; j < mz.length; j++) {
+                    double error = ppm ? 1000000 * (mz[j] - queryMz) / queryMz : mz[j] - queryMz;
+                    if (intensity[j] >= 0.5 && Math.abs(error) <= tolerance[0]) {
+                        nExpected++;
+                    }
+                }
+                ArrayList<Peak> matchingPeaks = spectrumIndex.getMatchingPeaks(queryMz);
+                Assert.assertEquals(nExpected, matchingPeaks.size());
+                Assert.assertEquals(nExpected, spectrumIndex.getMatchingPeaksEnd(queryMz) - spectrumIndex.getMatchingPeaksStart(queryMz));
+                for (int j = 1; j < matchingPeaks.size(); j++) {
+                    Assert.assertTrue(matchingPeaks.get(j - 1).mz < matchingPeaks.get(j).mz);
+                }
+            }
+        }
+
+        SpectrumIndex spectrumIndex = spectrum.getSpectrumIndex(null, 0.02, false);
+        Assert.assertEquals(mz.length, spectrumIndex.getNPeaks());
+        spectrum.addPeak(new Peak(50.0, 1.0));
+        Assert.assertNotSame(spectrumIndex, spectrum.getSpectrumIndex(null, 0.02, false));
+        Assert.assertEquals(mz.length + 1, spectrum.getSpectrumIndex(null, 0.02, false).getNPeaks());
+    }
+}
@@ -1,9 +1,28 @@
 package com.compomics.util.test.experiment.spectrum.indexing;
 
+import com.compomics.util.experiment.biology.Ion;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.matches.IonMatch;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.ptm.ptmscores.SiteScoringIons;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.Peak;
+import com.compomics.util.experiment.massspectrometry.Precursor;
 import com.compomics.util.experiment.massspectrometry.indexes.SpectrumIndex;
+import com.compomics.util.preferences.IdentificationParameters;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -62,4 +81,154 @@ public class SpectrumAnnotationTest extends TestCase {
 
     
     
+    /**
+     * Tests that the static annotation of the PeptideSpectrumAnnotator gives
+     * the same matches as an annotator, also when used by multiple threads.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * annotating the spectra
+     */
+    public void testStatelessAnnotation() throws Exception {
+
+        IdentificationParameters identificationParameters = new IdentificationParameters(new SearchParameters());
+        final AnnotationSettings annotationSettings = identificationParameters.getAnnotationPreferences();
+        PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+        Random random = new Random(42);
+
+        String[] sequences = {"LGVNHDKVQK", "YAKEPTIDER", "ACDEFGHIKLMNPQRSTVWYK", "SSSTPTPPTR"};
+        final Peptide[] peptides = new Peptide[sequences.length];
+        final SpecificAnnotationSettings[] specificAnnotationSettings = new SpecificAnnotationSettings[sequences.length];
+        final MSnSpectrum[] spectra = new MSnSpectrum[sequences.length];
+        final ArrayList<ArrayList<IonMatch>> expectedMatches = new ArrayList<ArrayList<IonMatch>>(sequences.length);
+
+        for (int i = 0; i < sequences.length; i++) {
+
+            Peptide peptide = new Peptide(sequences[i], new ArrayList<ModificationMatch>());
+            PeptideAssumption peptideAssumption = new PeptideAssumption(peptide, new Charge(Charge.PLUS, 3));
+            SpecificAnnotationSettings peptideAnnotationSettings = annotationSettings.getSpecificAnnotationPreferences("spectrum" + i, peptideAssumption,
+                    identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+
+            ArrayList<Double> mzList = new ArrayList<Double>();
+            HashMap<Integer, ArrayList<Ion>> expectedIons = peptideSpectrumAnnotator.getExpectedIons(peptideAnnotationSettings, peptide);
+            for (Integer charge : expectedIons.keySet()) {
+                for (Ion ion : expectedIons.get(charge)) {
+                    if (random.nextBoolean()) {
+                        mzList.add(ion.getTheoreticMz(charge) + 0.01 * (random.nextDouble() - 0.5));
+                    }
+                }
+            }
+            for (int j = 0; j < 100; j++) {
+                mzList.add(100 + 1500 * random.nextDouble());
+            }
+            double[] mz = new double[mzList.size()];
+            double[] intensity = new double[mzList.size()];
+            for (int j = 0; j < mz.length; j++) {
+                mz[j] = mzList.get(j);
+                intensity[j] = 100 * random.nextInt(50);
+            }
+            MSnSpectrum spectrum = new MSnSpectrum(2, new Precursor(-1, (peptide.getMass() + 3 * 1.007276) / 3, 0, new ArrayList<Charge>()), "spectrum" + i, mz, intensity, "file.mgf");
+
+            peptides[i] = peptide;
+            specificAnnotationSettings[i] = peptideAnnotationSettings;
+            spectra[i] = spectrum;
+            ArrayList<IonMatch> ionMatches = peptideSpectrumAnnotator.getSpectrumAnnotation(annotationSettings, peptideAnnotationSettings, spectrum, peptide);
+            Assert.assertFalse(ionMatches.isEmpty());
+            expectedMatches.add(ionMatches);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        ArrayList<Future<ArrayList<IonMatch>>> futures = new ArrayList<Future<ArrayList<IonMatch>>>();
+        for (int repetition = 0; repetition < 50; repetition++) {
+            for (int i = 0; i < sequences.length; i++) {
+                final int index = i;
+                futures.add(pool.submit(new Callable<ArrayList<IonMatch>>() {
+                    @Override
+                    public ArrayList<IonMatch> call() throws Exception {
+                        return PeptideSpectrumAnnotator.getIonMatches(annotationSettings, specificAnnotationSettings[index], spectra[index], peptides[index]);
+                    }
+                }));
+            }
+        }
+        pool.shutdown();
+
+        for (int j = 0; j < futures.size(); j++) {
+            ArrayList<IonMatch> expected = expectedMatches.get(j % sequences.length);
+            ArrayList<IonMatch> ionMatches = futures.get(j).get();
+            Assert.assertEquals(expected.size(), ionMatches.size());
+            for (int k = 0; k < expected.size(); k++) {
+                IonMatch expectedMatch = expected.get(k);
+                IonMatch ionMatch = ionMatches.get(k);
+                Assert.assertEquals(IonMatch.getMatchKey(expectedMatch.ion, expectedMatch.charge), IonMatch.getMatchKey(ionMatch.ion, ionMatch.charge));
+                Assert.assertEquals(expectedMatch.peak.mz, ionMatch.peak.mz);
+            }
+        }
+    }
+
+    /**
+     * Tests that the number of expected ions matched in spectra restricted to
+     * m/z windows equals the number of ion matches of the annotator, with
+     * tolerances in Da and in ppm.
+     */
+    public void testSiteScoringIons() throws Exception {
+
+        Random random = new Random(42);
+        String[] sequences = {"LGVNHDKVQK", "ACDEFGHIKLMNPQRSTVWYK", "SSSTPTPPTR"};
+
+        for (boolean ppm : new boolean[]{false, true}) {
+
+            SearchParameters searchParameters = new SearchParameters();
+            if (ppm) {
+                searchParameters.setFragmentAccuracyType(SearchParameters.MassAccuracyType.PPM);
+                searchParameters.setFragmentIonAccuracy(10.0);
+            }
+            IdentificationParameters identificationParameters = new IdentificationParameters(searchParameters);
+            AnnotationSettings annotationSettings = identificationParameters.getAnnotationPreferences();
+            PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+            double error = ppm ? 0.001 : 0.01;
+
+            for (int i = 0; i < sequences.length; i++) {
+
+                Peptide peptide = new Peptide(sequences[i], new ArrayList<ModificationMatch>());
+                PeptideAssumption peptideAssumption = new PeptideAssumption(peptide, new Charge(Charge.PLUS, 2));
+                SpecificAnnotationSettings peptideAnnotationSettings = annotationSettings.getSpecificAnnotationPreferences("spectrum" + i, peptideAssumption,
+                        identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+
+                ArrayList<Double> mzList = new ArrayList<Double>();
+                HashMap<Integer, ArrayList<Ion>> expectedIons = peptideSpectrumAnnotator.getExpectedIons(peptideAnnotationSettings, peptide);
+                for (Integer charge : expectedIons.keySet()) {
+                    for (Ion ion : expectedIons.get(charge)) {
+                        if (random.nextBoolean()) {
+                            mzList.add(ion.getTheoreticMz(charge) + error * (random.nextDouble() - 0.5));
+                        }
+                    }
+                }
+                for (int j = 0; j < 100; j++) {
+                    mzList.add(100 + 1500 * random.nextDouble());
+                }
+
+                SiteScoringIons siteScoringIons = new SiteScoringIons(peptide, peptideAnnotationSettings);
+
+                for (double minMz = 0; minMz < 1700; minMz += 100) {
+
+                    ArrayList<Double> windowMz = new ArrayList<Double>();
+                    for (double mz : mzList) {
+                        if (mz > minMz && mz <= minMz + 100) {
+                            windowMz.add(mz);
+                        }
+                    }
+                    double[] mz = new double[windowMz.size()];
+                    double[] intensity = new double[windowMz.size()];
+                    for (int j = 0; j < mz.length; j++) {
+                        mz[j] = windowMz.get(j);
+                        intensity[j] = 100 * random.nextInt(50);
+                    }
+                    MSnSpectrum spectrum = new MSnSpectrum(2, new Precursor(-1, (peptide.getMass() + 2 * 1.007276) / 2, 0, new ArrayList<Charge>()), "spectrum" + i + "_" + ppm + "_" + minMz, mz, intensity, "file.mgf");
+
+                    ArrayList<IonMatch> ionMatches = peptideSpectrumAnnotator.getSpectrumAnnotation(annotationSettings, peptideAnnotationSettings, spectrum, peptide);
+                    SpectrumIndex spectrumIndex = SiteScoringIons.getSpectrumIndex(spectrum, annotationSettings, peptideAnnotationSettings);
+                    Assert.assertEquals(ionMatches.size(), siteScoringIons.getNMatches(spectrumIndex));
+                }
+            }
+        }
+    }
 }
@@ -3,6 +3,8 @@ package com.compomics.util.test.math;
 import com.compomics.util.math.statistics.distributions.BinomialDistribution;
 import junit.framework.Assert;
 import junit.framework.TestCase;
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.BinomialDistributionImpl;
 import org.apache.commons.math.util.MathUtils;
 
 /**
@@ -34,6 +36,28 @@ public class TestBinomialDistribution extends TestCase {
         }
     }
 
+    /**
+     * Tests that the descending cumulative probabilities are not mixed with
+     * the probabilities in cache.
+     *
+     * @throws MathException exception thrown whenever an error occurred while
+     * estimating a probability
+     */
+    public void testDescendingCumulativeP() throws MathException {
+        double tolerance = Math.pow(10, -10);
+        int n = 50;
+        double p = 0.125;
+        BinomialDistribution binomialDistribution = new BinomialDistribution(n, p);
+        BinomialDistributionImpl binomialDistributionImpl = new BinomialDistributionImpl(n, p);
+        for (int k = 0; k < n; k++) {
+            Assert.assertEquals(binomialDistributionImpl.probability(k), binomialDistribution.getProbabilityAt((double) k), tolerance);
+            double expected = 1.0 - binomialDistributionImpl.cumulativeProbability(k);
+            Assert.assertEquals(expected, binomialDistribution.getDescendingCumulativeProbabilityAt((double) k), tolerance);
+            Assert.assertEquals(expected, binomialDistribution.getDescendingCumulativeProbabilityAt((double) k), tolerance);
+            Assert.assertEquals(binomialDistributionImpl.probability(k), binomialDistribution.getProbabilityAt((double) k), tolerance);
+        }
+    }
+
     /**
      * Results obtained using excel
      */